@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+/**
+ * A single operation to be timed by {@link BenchmarkRunner}. Anything that should not be
+ * measured, like building test data or connecting, belongs in setUp().
+ */
+public abstract class Benchmark
+{
+    /**
+     * @param name Name reported with the results, also used to select benchmarks to run.
+     */
+    public Benchmark (String name)
+    {
+        this._name = name;
+    }
+
+    /** Return the name of this benchmark. */
+    public String getName ()
+    {
+        return _name;
+    }
+
+    /** Prepare state for run(). Called once before warmup. */
+    public void setUp ()
+        throws Exception
+    {
+    }
+
+    /** Release anything set up by setUp(). Called once after measurement. */
+    public void tearDown ()
+        throws Exception
+    {
+    }
+
+    /**
+     * Perform the operation being measured once. The return value is consumed by the runner so
+     * that the JIT can not throw the work away.
+     */
+    public abstract Object run ()
+        throws Exception;
+
+    protected String _name;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs benchmarks and prints the average time per operation for each.
+ *
+ * Each benchmark is warmed up for bench.warmup milliseconds, then timed over bench.iterations
+ * rounds of bench.time milliseconds each. Command line arguments, if any, select the benchmarks
+ * whose names contain one of them.
+ */
+public class BenchmarkRunner
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        List<Benchmark> benches = new ArrayList<Benchmark>();
+        ConnectBenchmark.addAll(benches);
+        BindBenchmark.addAll(benches);
+        SearchBenchmark.addAll(benches);
+        ToArrayValueBenchmark.addAll(benches);
+        WriteBenchmark.addAll(benches);
+
+        BenchmarkRunner runner = new BenchmarkRunner(
+            Long.getLong("bench.warmup", 2000L), Long.getLong("bench.time", 1000L),
+            Integer.getInteger("bench.iterations", 5));
+        System.out.println(String.format("%-50s %14s %12s", "Benchmark", "ns/op", "error"));
+        for (Benchmark bench : benches) {
+            if (selected(bench, args)) {
+                runner.run(bench);
+            }
+        }
+    }
+
+    /**
+     * @param warmupMillis How long to run each benchmark before timing it.
+     * @param roundMillis How long each timed round lasts.
+     * @param rounds How many timed rounds to average over.
+     */
+    public BenchmarkRunner (long warmupMillis, long roundMillis, int rounds)
+    {
+        this._warmupMillis = warmupMillis;
+        this._roundMillis = roundMillis;
+        this._rounds = rounds;
+    }
+
+    /**
+     * Set up, warm up, time and tear down a benchmark, printing its results.
+     */
+    public void run (Benchmark bench)
+        throws Exception
+    {
+        bench.setUp();
+        try {
+            round(bench, _warmupMillis);
+            double[] nanosPerOp = new double[_rounds];
+            for (int ii = 0; ii < _rounds; ii++) {
+                // Start each round with as little garbage from the previous one as we can.
+                System.gc();
+                nanosPerOp[ii] = round(bench, _roundMillis);
+            }
+            double mean = 0;
+            for (double nanos : nanosPerOp) {
+                mean += nanos;
+            }
+            mean /= _rounds;
+            double variance = 0;
+            for (double nanos : nanosPerOp) {
+                variance += (nanos - mean) * (nanos - mean);
+            }
+            double error = (_rounds > 1) ? Math.sqrt(variance / (_rounds - 1)) : 0;
+            System.out.println(String.format("%-50s %14.1f %12.1f", bench.getName(), mean, error));
+        } finally {
+            bench.tearDown();
+        }
+    }
+
+    /**
+     * Run the benchmark repeatedly for about the given time.
+     *
+     * @return Average nanoseconds per operation.
+     */
+    protected double round (Benchmark bench, long millis)
+        throws Exception
+    {
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000L;
+        long ops = 0;
+        long now = start;
+        int batch = 1;
+        do {
+            long batchStart = now;
+            for (int ii = 0; ii < batch; ii++) {
+                consume(bench.run());
+            }
+            ops += batch;
+            now = System.nanoTime();
+            // Grow the batch until reading the clock is a negligible part of it.
+            if (now - batchStart < MIN_BATCH_NANOS) {
+                batch <<= 1;
+            }
+        } while (now < deadline);
+        return (now - start) / (double) ops;
+    }
+
+    /** Fold a result into a field the JIT can't prove is unused. */
+    protected static void consume (Object result)
+    {
+        _sink ^= System.identityHashCode(result);
+    }
+
+    /** Return true if no filters were given, or the benchmark's name contains one of them. */
+    protected static boolean selected (Benchmark bench, String[] filters)
+    {
+        if (filters.length == 0) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (bench.getName().indexOf(filter) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected long _warmupMillis;
+    protected long _roundMillis;
+    protected int _rounds;
+
+    protected static volatile int _sink;
+
+    /** Operations are run in batches at least this long between checks of the clock. */
+    protected static final long MIN_BATCH_NANOS = 100000L;
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.io.IOException;
+
+import com.threerings.quercus.lib.ldap.server.Directory;
+import com.threerings.quercus.lib.ldap.server.Entry;
+import com.threerings.quercus.lib.ldap.server.LdapServer;
+
+/**
+ * An in-process LDAP server shared by the benchmarks that need one, holding
+ * dc=example,dc=com with PEOPLE entries under ou=People.
+ */
+public class BenchmarkServer
+{
+    /** Number of people in the directory. */
+    public static final int PEOPLE = 1000;
+
+    public static final String BASE_DN = "dc=example,dc=com";
+    public static final String PEOPLE_DN = "ou=People," + BASE_DN;
+    public static final String MANAGER_DN = "cn=Manager," + BASE_DN;
+    public static final String MANAGER_PASSWORD = "secret";
+
+    /**
+     * Return the shared server, starting it on first use.
+     */
+    public static synchronized LdapServer getServer ()
+        throws IOException
+    {
+        if (_server == null) {
+            Directory directory = new Directory();
+            directory.add(new Entry(BASE_DN).add("objectClass", "top")
+                .add("objectClass", "dcObject").add("dc", "example"));
+            directory.add(new Entry(PEOPLE_DN).add("objectClass", "top")
+                .add("objectClass", "organizationalUnit").add("ou", "People"));
+            for (int ii = 0; ii < PEOPLE; ii++) {
+                String uid = "user" + ii;
+                directory.add(new Entry("uid=" + uid + "," + PEOPLE_DN)
+                    .add("objectClass", "top").add("objectClass", "person")
+                    .add("objectClass", "posixAccount").add("objectClass", "inetOrgPerson")
+                    .add("uid", uid).add("givenName", "User").add("sn", Integer.toString(ii))
+                    .add("cn", "User " + ii).add("mail", uid + "@example.com")
+                    .add("mail", uid + "alias@example.com")
+                    .add("description", "User " + ii + " the Example Person")
+                    .add("loginShell", "/bin/tcsh").add("uidNumber", Integer.toString(10000 + ii))
+                    .add("gidNumber", Integer.toString(10000 + ii))
+                    .add("homeDirectory", "/home/" + uid).add("userPassword", "password" + ii));
+            }
+            _server = new LdapServer(directory);
+            _server.setRootDN(MANAGER_DN, MANAGER_PASSWORD);
+            _server.start();
+        }
+        return _server;
+    }
+
+    protected static LdapServer _server;
+}
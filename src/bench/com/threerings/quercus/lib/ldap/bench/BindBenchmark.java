@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.util.List;
+
+import com.threerings.quercus.lib.ldap.LdapConnectionPool;
+import com.threerings.quercus.lib.ldap.LdapLinkResource;
+
+/**
+ * Measures a bind and unbind against the in-process server, as done on every login, with and
+ * without connection pooling.
+ */
+public class BindBenchmark extends Benchmark
+{
+    /** Add anonymous and authenticated binds, pooled and not. */
+    public static void addAll (List<Benchmark> benches)
+    {
+        benches.add(new BindBenchmark("anonymous", "", "", true));
+        benches.add(new BindBenchmark("anonymous", "", "", false));
+        benches.add(new BindBenchmark("manager", BenchmarkServer.MANAGER_DN,
+                                      BenchmarkServer.MANAGER_PASSWORD, true));
+        benches.add(new BindBenchmark("manager", BenchmarkServer.MANAGER_DN,
+                                      BenchmarkServer.MANAGER_PASSWORD, false));
+    }
+
+    public BindBenchmark (String identity, String dn, String password, boolean pooled)
+    {
+        super("simpleBind " + identity + (pooled ? " pooled" : " unpooled"));
+        this._dn = dn;
+        this._password = password;
+        this._pooled = pooled;
+    }
+
+    @Override
+    public void setUp ()
+        throws Exception
+    {
+        _uri = BenchmarkServer.getServer().getURI();
+        // Keeping no idle connections means every bind makes a new one.
+        _pool = new LdapConnectionPool(_pooled ? 8 : 0, 60 * 1000L, 1000L);
+    }
+
+    @Override
+    public void tearDown ()
+    {
+        _pool.close();
+    }
+
+    @Override
+    public Object run ()
+    {
+        LdapLinkResource link = new LdapLinkResource(_uri, _pool);
+        if (!link.simpleBind(_dn, _password)) {
+            throw new IllegalStateException("Bind failed");
+        }
+        link.unbind();
+        return link;
+    }
+
+    protected String _dn;
+    protected String _password;
+    protected boolean _pooled;
+    protected String _uri;
+    protected LdapConnectionPool _pool;
+}
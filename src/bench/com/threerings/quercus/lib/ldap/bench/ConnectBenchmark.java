@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.util.List;
+
+import com.threerings.quercus.lib.ldap.LdapModule;
+
+/**
+ * Measures ldap_connect(), which only normalizes the host and port into a URI and creates the
+ * link; no connection is made until ldap_bind().
+ */
+public class ConnectBenchmark extends Benchmark
+{
+    /** Add a benchmark for each style of host argument scripts use. */
+    public static void addAll (List<Benchmark> benches)
+    {
+        benches.add(new ConnectBenchmark("hostname", "localhost", ""));
+        benches.add(new ConnectBenchmark("hostname+port", "localhost", "389"));
+        benches.add(new ConnectBenchmark("ldap-uri", " ldap://localhost", ""));
+        benches.add(new ConnectBenchmark("ldaps-uri", "ldaps://localhost", ""));
+    }
+
+    public ConnectBenchmark (String variant, String hostname, String port)
+    {
+        super("ldap_connect " + variant);
+        this._hostname = hostname;
+        this._port = port;
+    }
+
+    @Override
+    public Object run ()
+    {
+        return LdapModule.ldap_connect(null, _hostname, _port);
+    }
+
+    protected String _hostname;
+    protected String _port;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.directory.SearchControls;
+
+import com.threerings.quercus.lib.ldap.LdapConnectionPool;
+import com.threerings.quercus.lib.ldap.LdapLinkResource;
+import com.threerings.quercus.lib.ldap.LdapResultResource;
+
+/**
+ * Measures LdapLinkResource.search() against the in-process server over a bound connection, for
+ * each scope with all attributes and with just two. The result is read in full but not converted
+ * to PHP arrays; ToArrayValueBenchmark covers that.
+ */
+public class SearchBenchmark extends Benchmark
+{
+    /** Add a benchmark for each scope and attribute list. */
+    public static void addAll (List<Benchmark> benches)
+    {
+        for (boolean allAttrs : new boolean[] { true, false }) {
+            benches.add(new SearchBenchmark("base", "uid=user1," + BenchmarkServer.PEOPLE_DN,
+                "(objectClass=*)", SearchControls.OBJECT_SCOPE, allAttrs));
+            benches.add(new SearchBenchmark("one", BenchmarkServer.PEOPLE_DN,
+                "(uid=user1*)", SearchControls.ONELEVEL_SCOPE, allAttrs));
+            benches.add(new SearchBenchmark("sub", BenchmarkServer.BASE_DN,
+                "(uid=user1*)", SearchControls.SUBTREE_SCOPE, allAttrs));
+        }
+    }
+
+    public SearchBenchmark (String scopeName, String baseDN, String filter, int scope,
+                            boolean allAttrs)
+    {
+        super("search " + scopeName + " " + filter + (allAttrs ? " attrs=all" : " attrs=cn,mail"));
+        this._baseDN = baseDN;
+        this._filter = filter;
+        this._scope = scope;
+        this._allAttrs = allAttrs;
+    }
+
+    @Override
+    public void setUp ()
+        throws Exception
+    {
+        _pool = new LdapConnectionPool(1, 60 * 1000L, 1000L);
+        _link = new LdapLinkResource(BenchmarkServer.getServer().getURI(), _pool);
+        if (!_link.simpleBind("", "")) {
+            throw new IllegalStateException("Bind failed");
+        }
+    }
+
+    @Override
+    public void tearDown ()
+    {
+        _link.unbind();
+        _pool.close();
+    }
+
+    @Override
+    public Object run ()
+    {
+        List<String> attrs = null;
+        if (!_allAttrs) {
+            attrs = new ArrayList<String>();
+            attrs.add("cn");
+            attrs.add("mail");
+        }
+        LdapResultResource result =
+            _link.search(_baseDN, _filter, attrs, 0, 0, 0, 0, _scope);
+        if (result == null) {
+            throw new IllegalStateException("Search failed");
+        }
+        return result;
+    }
+
+    protected String _baseDN;
+    protected String _filter;
+    protected int _scope;
+    protected boolean _allAttrs;
+    protected LdapConnectionPool _pool;
+    protected LdapLinkResource _link;
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.StringValueImpl;
+import com.caucho.quercus.env.Value;
+
+import com.threerings.quercus.lib.ldap.LdapResultResource;
+
+/**
+ * Measures LdapResultResource.toArrayValue(), the conversion behind ldap_get_entries(), on results
+ * of people entries shaped like those in test/openldap/test.ldif. The "legacy" variants time the
+ * conversion as it was before attribute names were shared and arrays presized, as a baseline.
+ */
+public class ToArrayValueBenchmark extends Benchmark
+{
+    /** Add the benchmarks for each result size to the list. */
+    public static void addAll (List<Benchmark> benches)
+    {
+        for (int size : SIZES) {
+            benches.add(new ToArrayValueBenchmark(size, false));
+            benches.add(new ToArrayValueBenchmark(size, true));
+        }
+    }
+
+    public ToArrayValueBenchmark (int size, boolean legacy)
+    {
+        super("toArrayValue" + (legacy ? ".legacy" : "") + " entries=" + size);
+        this._size = size;
+        this._legacy = legacy;
+    }
+
+    @Override
+    public void setUp ()
+        throws Exception
+    {
+        _entries = createEntries(_size);
+        _result = new LdapResultResource(new EntryEnumeration(_entries), false);
+    }
+
+    @Override
+    public Object run ()
+        throws Exception
+    {
+        return _legacy ? legacyToArrayValue(_entries) : _result.toArrayValue();
+    }
+
+    /**
+     * Create the given number of people entries with the same attributes as sally in
+     * test/openldap/test.ldif.
+     */
+    public static List<SearchResult> createEntries (int count)
+    {
+        List<SearchResult> entries = new ArrayList<SearchResult>(count);
+        for (int ii = 0; ii < count; ii++) {
+            String uid = "user" + ii;
+            // The LDAP provider creates case insensitive attribute sets, so do the same.
+            BasicAttributes attrs = new BasicAttributes(true);
+            attrs.put("uid", uid);
+            attrs.put("givenName", "User");
+            attrs.put("sn", Integer.toString(ii));
+            attrs.put("cn", "User " + ii);
+            BasicAttribute mail = new BasicAttribute("mail");
+            mail.add(uid + "@example.com");
+            mail.add(uid + "alias@example.com");
+            attrs.put(mail);
+            attrs.put("description", "User " + ii + " the Example Person");
+            attrs.put("loginShell", "/bin/tcsh");
+            attrs.put("uidNumber", Integer.toString(10000 + ii));
+            attrs.put("gidNumber", Integer.toString(10000 + ii));
+            attrs.put("homeDirectory", "/home/" + uid);
+            BasicAttribute objectClass = new BasicAttribute("objectClass");
+            objectClass.add("top");
+            objectClass.add("person");
+            objectClass.add("posixAccount");
+            objectClass.add("inetOrgPerson");
+            attrs.put(objectClass);
+
+            String rdn = "uid=" + uid;
+            SearchResult entry = new SearchResult(rdn, null, attrs);
+            entry.setNameInNamespace(rdn + ",ou=People,dc=example,dc=com");
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * The ldap_get_entries() conversion as it was originally written, with new keys for every
+     * array and BasicAttributes casts.
+     */
+    protected static ArrayValue legacyToArrayValue (List<SearchResult> entries)
+        throws NamingException
+    {
+        ArrayValue entriesArray = new ArrayValueImpl();
+        entriesArray.put(StringValueImpl.create("count"), LongValue.create(entries.size()));
+        int entriesIdx = 0;
+        for (SearchResult entry : entries) {
+            BasicAttributes attrs = (BasicAttributes) entry.getAttributes();
+            ArrayValue entryAttrs = new ArrayValueImpl();
+            entryAttrs.put(StringValueImpl.create("count"), LongValue.create(attrs.size()));
+            entryAttrs.put(StringValueImpl.create("dn"),
+                StringValueImpl.create(entry.getNameInNamespace()));
+            NamingEnumeration<Attribute> attrsEnum = attrs.getAll();
+            int attrIdx = 0;
+            while (attrsEnum.hasMore()) {
+                BasicAttribute attr = (BasicAttribute) attrsEnum.next();
+                Value attrName = StringValueImpl.create(attr.getID().toLowerCase());
+                ArrayValue attrValues = new ArrayValueImpl();
+                attrValues.put(StringValueImpl.create("count"), LongValue.create(attr.size()));
+                NamingEnumeration valuesEnum = attr.getAll();
+                int valueIdx = 0;
+                while (valuesEnum.hasMore()) {
+                    attrValues.put(LongValue.create(valueIdx),
+                        StringValueImpl.create(valuesEnum.next().toString()));
+                    valueIdx++;
+                }
+                entryAttrs.put(attrName, attrValues);
+                entryAttrs.put(LongValue.create(attrIdx), attrName);
+                attrIdx++;
+            }
+            entriesArray.put(LongValue.create(entriesIdx), entryAttrs);
+            entriesIdx++;
+        }
+        return entriesArray;
+    }
+
+    /** Feeds a prepared list of entries to LdapResultResource as if they came from a search. */
+    protected static class EntryEnumeration
+        implements NamingEnumeration<SearchResult>
+    {
+        public EntryEnumeration (List<SearchResult> entries)
+        {
+            _iter = entries.iterator();
+        }
+
+        // from interface NamingEnumeration
+        public boolean hasMore ()
+        {
+            return _iter.hasNext();
+        }
+
+        // from interface NamingEnumeration
+        public SearchResult next ()
+        {
+            return _iter.next();
+        }
+
+        // from interface Enumeration
+        public boolean hasMoreElements ()
+        {
+            return _iter.hasNext();
+        }
+
+        // from interface Enumeration
+        public SearchResult nextElement ()
+        {
+            if (!_iter.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return _iter.next();
+        }
+
+        // from interface NamingEnumeration
+        public void close ()
+        {
+        }
+
+        protected Iterator<SearchResult> _iter;
+    }
+
+    protected int _size;
+    protected boolean _legacy;
+    protected List<SearchResult> _entries;
+    protected LdapResultResource _result;
+
+    protected static final int[] SIZES = { 10, 1000, 100000 };
+}
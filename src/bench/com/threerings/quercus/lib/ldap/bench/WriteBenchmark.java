@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.bench;
+
+import java.util.List;
+import java.util.Map;
+import javax.naming.directory.BasicAttributes;
+
+import com.threerings.quercus.lib.ldap.LdapBulkWrite;
+import com.threerings.quercus.lib.ldap.LdapLinkResource;
+import com.threerings.quercus.lib.ldap.LdapWrite;
+
+/**
+ * Measures importing a batch of new entries, one ldap_add() at a time and as a bulk write with
+ * several adds in flight.
+ */
+public class WriteBenchmark extends Benchmark
+{
+    /** Entries added by each run. */
+    public static final int ENTRIES = 100;
+
+    /** Add serial and bulk imports. */
+    public static void addAll (List<Benchmark> benches)
+    {
+        benches.add(new WriteBenchmark(0));
+        benches.add(new WriteBenchmark(LdapBulkWrite.DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    /**
+     * @param maxInFlight Adds in flight at once for a bulk write, 0 to add one at a time.
+     */
+    public WriteBenchmark (int maxInFlight)
+    {
+        super("add " + ENTRIES + ((maxInFlight == 0) ? " serial" : " bulk " + maxInFlight));
+        this._maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void setUp ()
+        throws Exception
+    {
+        _link = new LdapLinkResource(BenchmarkServer.getServer().getURI());
+        if (!_link.simpleBind(BenchmarkServer.MANAGER_DN, BenchmarkServer.MANAGER_PASSWORD)) {
+            throw new IllegalStateException("Bind failed");
+        }
+    }
+
+    @Override
+    public void tearDown ()
+    {
+        _link.unbind();
+    }
+
+    @Override
+    public Object run ()
+        throws Exception
+    {
+        // Each run adds entries that don't exist yet.
+        String prefix = "uid=" + getName().replace(' ', '-') + "-" + (_runs++) + "-";
+        LdapBulkWrite bulk = (_maxInFlight == 0) ? null : _link.startBulk(_maxInFlight);
+        for (int ii = 0; ii < ENTRIES; ii++) {
+            BasicAttributes attrs = new BasicAttributes(true);
+            attrs.put("objectClass", "inetOrgPerson");
+            attrs.put("sn", Integer.toString(ii));
+            attrs.put("cn", "Imported " + ii);
+            String dn = prefix + ii + "," + BenchmarkServer.PEOPLE_DN;
+            boolean sent = (bulk == null) ? _link.add(dn, attrs) :
+                bulk.submit(LdapWrite.add(dn, attrs));
+            if (!sent) {
+                throw new IllegalStateException("Add failed");
+            }
+        }
+        if (bulk != null) {
+            Map<String, String> failures = bulk.finish();
+            if (!failures.isEmpty()) {
+                throw new IllegalStateException("Adds failed: " + failures);
+            }
+        }
+        return prefix;
+    }
+
+    protected int _maxInFlight;
+    protected int _runs;
+    protected LdapLinkResource _link;
+}
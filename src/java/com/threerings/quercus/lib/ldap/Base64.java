@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes base64 (RFC 4648), as LDIF files hold values that aren't plain text.
+ */
+public class Base64
+{
+    /**
+     * Encode bytes as base64 characters, with padding.
+     */
+    public static byte[] encode (byte[] data)
+    {
+        byte[] out = new byte[(data.length + 2) / 3 * 4];
+        int length = 0;
+        int ii = 0;
+        for (; ii + 2 < data.length; ii += 3) {
+            int bits = ((data[ii] & 0xFF) << 16) | ((data[ii + 1] & 0xFF) << 8) |
+                (data[ii + 2] & 0xFF);
+            out[length++] = ENCODE[bits >> 18];
+            out[length++] = ENCODE[(bits >> 12) & 0x3F];
+            out[length++] = ENCODE[(bits >> 6) & 0x3F];
+            out[length++] = ENCODE[bits & 0x3F];
+        }
+        int left = data.length - ii;
+        if (left > 0) {
+            int bits = (data[ii] & 0xFF) << 16;
+            if (left > 1) {
+                bits |= (data[ii + 1] & 0xFF) << 8;
+            }
+            out[length++] = ENCODE[bits >> 18];
+            out[length++] = ENCODE[(bits >> 12) & 0x3F];
+            out[length++] = (left > 1) ? ENCODE[(bits >> 6) & 0x3F] : (byte) '=';
+            out[length++] = (byte) '=';
+        }
+        return out;
+    }
+
+    /**
+     * Decode base64 text from the given position on, ignoring whitespace and stopping at the
+     * first padding character.
+     *
+     * @throws IllegalArgumentException if the text has a character that isn't base64.
+     */
+    public static byte[] decode (String text, int start)
+    {
+        byte[] out = new byte[(text.length() - start) * 3 / 4 + 3];
+        int length = 0;
+        int bits = 0;
+        int buffered = 0;
+        for (int ii = start; ii < text.length(); ii++) {
+            char c = text.charAt(ii);
+            if (c == '=') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            int value = (c < 128) ? DECODE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("bad base64 character '" + c + "'");
+            }
+            bits = (bits << 6) | value;
+            buffered += 6;
+            if (buffered >= 8) {
+                buffered -= 8;
+                out[length++] = (byte) (bits >> buffered);
+            }
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(out, 0, result, 0, length);
+        return result;
+    }
+
+    protected static final byte[] ENCODE = new byte[64];
+    protected static final int[] DECODE = new int[128];
+    static {
+        Arrays.fill(DECODE, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int ii = 0; ii < alphabet.length(); ii++) {
+            ENCODE[ii] = (byte) alphabet.charAt(ii);
+            DECODE[alphabet.charAt(ii)] = ii;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import com.caucho.util.LruCache;
+
+/**
+ * Checks users' passwords the way login pages do, by searching for the user's entry and then
+ * binding as it, for ldap_authenticate(). The search runs on the connection of a link bound with
+ * a service identity, which comes from the connection pool, and the DN found is remembered for
+ * dnTTLMillis so that repeated logins skip it. The password is checked by binding again on a
+ * connection kept only for that, taken from a pool of its own, so a login costs a search and a
+ * bind instead of two connections, two binds and a search.
+ *
+ * Results go through the link's bind cache like those of ldap_bind(). If a remembered DN no
+ * longer takes the password, the user is looked up again in case the entry was moved.
+ */
+public class LdapAuthenticator
+    implements LdapMetrics.Source
+{
+    /**
+     * Create an authenticator configured from system properties, falling back to the defaults
+     * below.
+     */
+    public LdapAuthenticator ()
+    {
+        this(Integer.getInteger(PROP_PREFIX + "maxIdlePerServer", DEFAULT_MAX_IDLE_PER_SERVER),
+             Integer.getInteger(PROP_PREFIX + "dnCacheSize", DEFAULT_DN_CACHE_SIZE),
+             Long.getLong(PROP_PREFIX + "dnTTLMillis", DEFAULT_DN_TTL_MILLIS));
+    }
+
+    /**
+     * Create a new authenticator.
+     *
+     * @param maxIdlePerServer Connections for checking passwords kept open per server.
+     * @param dnCacheSize Most DNs remembered, 0 to search for every login.
+     * @param dnTTLMillis How long a DN is remembered.
+     */
+    public LdapAuthenticator (int maxIdlePerServer, int dnCacheSize, long dnTTLMillis)
+    {
+        this._pool = new LdapConnectionPool(
+            maxIdlePerServer, LdapConnectionPool.DEFAULT_MAX_IDLE_MILLIS,
+            LdapConnectionPool.DEFAULT_VALIDATE_IDLE_MILLIS);
+        this._dnTTL = dnTTLMillis;
+        if (dnCacheSize > 0) {
+            _dns = new LruCache<String, CachedDN>(dnCacheSize);
+        }
+    }
+
+    /**
+     * Return the authenticator shared by all LdapLinkResources that were not given one
+     * explicitly.
+     */
+    public static LdapAuthenticator getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Find the only entry matching a filter and check a password against it.
+     *
+     * @param link A bound link, whose identity may search for users.
+     * @return The DN of the user if the password is right, null if it is wrong, no single entry
+     *         matches or the servers fail.
+     */
+    public String authenticate (LdapLinkResource link, String baseDN, String filter,
+                                String password)
+    {
+        String key = link._uriList + ' ' + baseDN + ' ' + filter;
+        String dn = getDN(key);
+        boolean remembered = (dn != null);
+        if (!remembered) {
+            dn = link.findDN(baseDN, filter);
+            if (dn == null) {
+                return null;
+            }
+            putDN(key, dn);
+        }
+        if (checkPassword(link, dn, password)) {
+            return dn;
+        }
+        if (remembered) {
+            // The user may have been moved or renamed since we looked.
+            String current = link.findDN(baseDN, filter);
+            if (current == null) {
+                removeDN(key);
+            } else {
+                putDN(key, current);
+                if (!current.equals(dn) && checkPassword(link, current, password)) {
+                    return current;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Return the number of logins that found the user's DN remembered. */
+    public long getDNHitCount ()
+    {
+        return _hits.get();
+    }
+
+    /** Return the number of logins that had to search for the user. */
+    public long getDNMissCount ()
+    {
+        return _misses.get();
+    }
+
+    /** Return the pool of connections used to check passwords. */
+    public LdapConnectionPool getPool ()
+    {
+        return _pool;
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("auth.dnCache.hits", getDNHitCount());
+        snapshot.put("auth.dnCache.misses", getDNMissCount());
+    }
+
+    /**
+     * Check a password by binding as the DN on a connection to the link's server kept for
+     * that. The connection goes back to its pool whatever the answer, as a refused bind leaves
+     * it anonymous and usable; it is only closed if the server fails.
+     */
+    protected boolean checkPassword (LdapLinkResource link, String dn, String password)
+    {
+        Boolean cached = link._bindCache.check(link._uriList, dn, password);
+        if (cached != null) {
+            return cached.booleanValue();
+        }
+        // The link's options and TLS, but not its identity.
+        String uri = link._uri;
+        Hashtable<String, String> env = new Hashtable<String, String>(link._env);
+        env.remove(Context.SECURITY_PRINCIPAL);
+        env.remove(Context.SECURITY_CREDENTIALS);
+        env.put(Context.PROVIDER_URL, uri);
+        LdapConnectionPool.Key key = link.newKey(uri, env);
+
+        long start = System.nanoTime();
+        LdapContext ctx = null;
+        boolean success;
+        try {
+            ctx = _pool.borrow(key, env);
+            ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+            ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+            ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+            try {
+                // Sun's provider binds again on the same connection for LDAPv3.
+                ctx.reconnect(null);
+                success = true;
+            } catch (AuthenticationException e) {
+                success = false;
+            }
+            // Don't keep the password around in an idle connection.
+            ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+            _pool.release(key, ctx);
+            link._health.succeeded(uri);
+        } catch (NamingException e) {
+            if (ctx != null) {
+                _pool.discard(key, ctx);
+            }
+            link._metrics.recordError(e);
+            if (LdapServerHealth.isServerFailure(e)) {
+                link._health.failed(uri);
+            }
+            return false;
+        } finally {
+            link._metrics.recordTime(LdapMetrics.BIND, start);
+        }
+        link._bindCache.put(link._uriList, dn, password, success);
+        return success;
+    }
+
+    protected String getDN (String key)
+    {
+        CachedDN cached = (_dns == null) ? null : _dns.get(key);
+        if (cached != null && System.currentTimeMillis() < cached.expires) {
+            _hits.incrementAndGet();
+            return cached.dn;
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    protected void putDN (String key, String dn)
+    {
+        if (_dns != null) {
+            _dns.put(key, new CachedDN(dn, System.currentTimeMillis() + _dnTTL));
+        }
+    }
+
+    protected void removeDN (String key)
+    {
+        if (_dns != null) {
+            _dns.remove(key);
+        }
+    }
+
+    /** A DN found by a search, and until when it is trusted. */
+    protected static class CachedDN
+    {
+        public final String dn;
+        public final long expires;
+
+        public CachedDN (String dn, long expires)
+        {
+            this.dn = dn;
+            this.expires = expires;
+        }
+    }
+
+    /** Connections used only to check passwords, each bound as whoever was checked last. */
+    protected LdapConnectionPool _pool;
+
+    /** DNs by servers, base DN and filter, or null if they are not remembered. */
+    protected LruCache<String, CachedDN> _dns;
+    protected long _dnTTL;
+
+    protected AtomicLong _hits = new AtomicLong();
+    protected AtomicLong _misses = new AtomicLong();
+
+    /** Prefix of the system properties used to configure the shared authenticator. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.auth.";
+
+    public static final int DEFAULT_MAX_IDLE_PER_SERVER = 8;
+    public static final int DEFAULT_DN_CACHE_SIZE = 10000;
+    public static final long DEFAULT_DN_TTL_MILLIS = 5 * 60 * 1000L;
+
+    protected static final LdapAuthenticator _shared = new LdapAuthenticator();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads links over the servers given to ldap_connect(), such as several replicas of the same
+ * directory. Every bind asks order() which server to try first, and falls back to the others in
+ * turn when a server can't be reached. Links report each operation they run on a server through
+ * started() and finished(), from which the strategies below rank the servers.
+ *
+ * This class itself goes round-robin. Subclasses rank servers by score(), lowest first, with
+ * ties still taken in turn. The shared balancer's strategy is picked with the
+ * com.threerings.quercus.ldap.balancer.strategy system property: roundRobin (the default),
+ * leastOutstanding, ewma, or the name of a subclass with a no-argument constructor.
+ */
+public class LdapBalancer
+{
+    /**
+     * Prefers servers with the fewest operations in progress across all links.
+     */
+    public static class LeastOutstanding extends LdapBalancer
+    {
+        @Override
+        protected double score (Stats stats)
+        {
+            return stats.outstanding.get();
+        }
+    }
+
+    /**
+     * Prefers servers that have been answering quickly, by an exponentially weighted moving
+     * average of their recent latencies, scaled up by the operations they have in progress so
+     * that a fast server isn't piled onto. Servers that have not answered anything yet are tried
+     * first, so that every server gets measured.
+     */
+    public static class Ewma extends LdapBalancer
+    {
+        public Ewma ()
+        {
+            this(Double.parseDouble(System.getProperty(PROP_PREFIX + "ewmaWeight",
+                                                       String.valueOf(DEFAULT_EWMA_WEIGHT))));
+        }
+
+        /**
+         * @param weight How much each new latency counts for in the average, between 0 and 1.
+         */
+        public Ewma (double weight)
+        {
+            this._weight = weight;
+        }
+
+        @Override
+        protected double score (Stats stats)
+        {
+            return stats.getLatency() * (stats.outstanding.get() + 1);
+        }
+
+        @Override
+        protected void recordLatency (Stats stats, long millis)
+        {
+            stats.addLatency(millis, _weight);
+        }
+
+        protected double _weight;
+    }
+
+    /**
+     * Return the balancer shared by all LdapLinkResources that were not given one explicitly.
+     */
+    public static LdapBalancer getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Create a balancer with the named strategy.
+     *
+     * @param strategy roundRobin, leastOutstanding, ewma, or the name of an LdapBalancer
+     *        subclass.
+     * @throws IllegalArgumentException if the strategy is unknown.
+     */
+    public static LdapBalancer create (String strategy)
+    {
+        if ("roundRobin".equalsIgnoreCase(strategy)) {
+            return new LdapBalancer();
+        } else if ("leastOutstanding".equalsIgnoreCase(strategy)) {
+            return new LeastOutstanding();
+        } else if ("ewma".equalsIgnoreCase(strategy)) {
+            return new Ewma();
+        }
+        try {
+            return (LdapBalancer) Class.forName(strategy).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unknown LDAP balancer strategy " + strategy);
+        }
+    }
+
+    /**
+     * Return the servers in the order they should be tried.
+     */
+    public String[] order (String[] uris)
+    {
+        int count = uris.length;
+        if (count < 2) {
+            return uris;
+        }
+        // Rotate the list so that ties go to each server in turn.
+        int first = (_next.getAndIncrement() & Integer.MAX_VALUE) % count;
+        final String[] ordered = new String[count];
+        for (int ii = 0; ii < count; ii++) {
+            ordered[ii] = uris[(first + ii) % count];
+        }
+
+        // Take the scores once, as they change under us. The sort is stable, so ties stay rotated.
+        final double[] scores = new double[count];
+        Integer[] indices = new Integer[count];
+        for (int ii = 0; ii < count; ii++) {
+            scores[ii] = score(getStats(ordered[ii]));
+            indices[ii] = ii;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            public int compare (Integer a, Integer b) {
+                return Double.compare(scores[a], scores[b]);
+            }
+        });
+        String[] ranked = new String[count];
+        for (int ii = 0; ii < count; ii++) {
+            ranked[ii] = ordered[indices[ii]];
+        }
+        return ranked;
+    }
+
+    /**
+     * Note that an operation is starting on a server.
+     */
+    public void started (String uri)
+    {
+        getStats(uri).outstanding.incrementAndGet();
+    }
+
+    /**
+     * Note that an operation started on a server is over.
+     *
+     * @param millis How long the server took to answer, or -1 if the time says nothing about the
+     *        server, such as for a bind answered by a pooled connection.
+     */
+    public void finished (String uri, long millis)
+    {
+        Stats stats = getStats(uri);
+        stats.outstanding.decrementAndGet();
+        if (millis >= 0) {
+            recordLatency(stats, millis);
+        }
+    }
+
+    /**
+     * Return the number of operations in progress on a server.
+     */
+    public int getOutstanding (String uri)
+    {
+        return getStats(uri).outstanding.get();
+    }
+
+    /**
+     * Return the average latency of a server in milliseconds, if the strategy tracks it.
+     */
+    public double getLatency (String uri)
+    {
+        return getStats(uri).getLatency();
+    }
+
+    /**
+     * Return how desirable a server is, lower being better.
+     */
+    protected double score (Stats stats)
+    {
+        return 0;
+    }
+
+    /**
+     * Take note of how long a server took to answer. Only strategies that need it do.
+     */
+    protected void recordLatency (Stats stats, long millis)
+    {
+    }
+
+    protected Stats getStats (String uri)
+    {
+        Stats stats = _stats.get(uri);
+        if (stats == null) {
+            Stats created = new Stats();
+            stats = _stats.putIfAbsent(uri, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /** What we know about one server. */
+    protected static class Stats
+    {
+        public final AtomicInteger outstanding = new AtomicInteger();
+
+        public synchronized double getLatency ()
+        {
+            return _latency;
+        }
+
+        public synchronized void addLatency (long millis, double weight)
+        {
+            _latency = _measured ? (weight * millis + (1 - weight) * _latency) : millis;
+            _measured = true;
+        }
+
+        protected double _latency;
+        protected boolean _measured;
+    }
+
+    protected ConcurrentHashMap<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+
+    /** Where the next round-robin rotation starts. */
+    protected AtomicInteger _next = new AtomicInteger();
+
+    /** Prefix of the system properties used to configure the shared balancer. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.balancer.";
+
+    public static final String DEFAULT_STRATEGY = "roundRobin";
+    public static final double DEFAULT_EWMA_WEIGHT = 0.3;
+
+    protected static final LdapBalancer _shared =
+        create(System.getProperty(PROP_PREFIX + "strategy", DEFAULT_STRATEGY));
+}
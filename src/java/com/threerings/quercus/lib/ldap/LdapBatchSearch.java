@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.naming.InvalidNameException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Looks up many entries with a few searches rather than one round trip each. Values of the same
+ * attribute are folded into OR filters of at most maxTerms terms, and DNs that share a parent and
+ * naming attribute, like the members of a group, are read with a one level search of the parent
+ * for those naming attribute values. The searches run at the same time, each on a new instance
+ * of the link's context, on the executor used by LdapPendingResult.
+ */
+public class LdapBatchSearch
+{
+    /**
+     * Create a batch whose searches use the given controls. Their scope is ignored, each search
+     * sets its own.
+     *
+     * @param maxTerms Most values to put in the filter of one search.
+     */
+    public LdapBatchSearch (SearchControls ctls, int maxTerms)
+    {
+        this._ctls = ctls;
+        this._maxTerms = Math.max(1, maxTerms);
+    }
+
+    /**
+     * Add searches for the entries under baseDN whose attribute has any of the given values.
+     */
+    public void addValues (String baseDN, int scope, String attribute, List<String> values)
+    {
+        fold(baseDN, scope, attribute, new ArrayList<String>(new LinkedHashSet<String>(values)));
+    }
+
+    /**
+     * Add reads of the entries with the given DNs. They are returned by run() in the order given
+     * here, and DNs that do not exist are left out.
+     *
+     * @throws InvalidNameException if one of the DNs is malformed.
+     */
+    public void addDNs (List<String> dns)
+        throws InvalidNameException
+    {
+        // Group DNs whose first RDN is a single value of the same attribute by their parents.
+        HashMap<String, List<String>> groups = new HashMap<String, List<String>>();
+        List<String> groupOrder = new ArrayList<String>();
+        for (String dn : dns) {
+            LdapName name = new LdapName(dn);
+            if (_wanted.containsKey(name)) {
+                continue;
+            }
+            _wanted.put(name, null);
+            _order.add(name);
+            if (name.size() == 0) {
+                // The root DSE can only be read on its own.
+                _queries.add(new Query(dn, SearchControls.OBJECT_SCOPE, "(objectClass=*)",
+                                       new Object[0]));
+                continue;
+            }
+            Rdn rdn = name.getRdn(name.size() - 1);
+            if (rdn.size() != 1 || !(rdn.getValue() instanceof String)) {
+                // Multi-valued and binary RDNs are read on their own.
+                _queries.add(new Query(dn, SearchControls.OBJECT_SCOPE, "(objectClass=*)",
+                                       new Object[0]));
+                continue;
+            }
+            String parent = name.getPrefix(name.size() - 1).toString();
+            String key = rdn.getType().toLowerCase() + "\n" + parent;
+            List<String> values = groups.get(key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                groups.put(key, values);
+                groupOrder.add(key);
+            }
+            values.add((String) rdn.getValue());
+        }
+        for (String key : groupOrder) {
+            int split = key.indexOf('\n');
+            fold(key.substring(split + 1), SearchControls.ONELEVEL_SCOPE,
+                 key.substring(0, split), groups.get(key));
+        }
+    }
+
+    /**
+     * Return the number of searches the batch will run.
+     */
+    public int getSearchCount ()
+    {
+        return _queries.size();
+    }
+
+    /**
+     * Run the searches and return the entries they found. Searches whose base does not exist
+     * find nothing rather than failing the batch.
+     *
+     * @param ctx Context to make new instances of for each search.
+     * @throws NamingException if any of the searches fails.
+     */
+    public List<SearchResult> run (LdapContext ctx)
+        throws NamingException
+    {
+        List<Future<List<SearchResult>>> futures = new ArrayList<Future<List<SearchResult>>>();
+        for (Query query : _queries) {
+            futures.add(LdapPendingResult.getExecutor().submit(query.bind(ctx.newInstance(null))));
+        }
+
+        List<SearchResult> found = new ArrayList<SearchResult>();
+        NamingException failure = null;
+        for (Future<List<SearchResult>> future : futures) {
+            // Wait for every search even after one fails, so that none outlive the batch.
+            try {
+                found.addAll(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = toNamingException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new InterruptedNamingException(
+                        "Interrupted waiting for batch search");
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (_order.isEmpty()) {
+            return found;
+        }
+
+        // Put read entries in the order they were asked for, leaving out any that other entries
+        // under the same parent happened to match by a second naming attribute value.
+        for (SearchResult entry : found) {
+            LdapName name = new LdapName(entry.getNameInNamespace());
+            if (_wanted.containsKey(name)) {
+                _wanted.put(name, entry);
+            }
+        }
+        List<SearchResult> ordered = new ArrayList<SearchResult>(_order.size());
+        for (LdapName name : _order) {
+            SearchResult entry = _wanted.get(name);
+            if (entry != null) {
+                ordered.add(entry);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Add searches for values of attribute, at most maxTerms at a time.
+     */
+    protected void fold (String baseDN, int scope, String attribute, List<String> values)
+    {
+        for (int start = 0; start < values.size(); start += _maxTerms) {
+            int end = Math.min(start + _maxTerms, values.size());
+            StringBuilder filter = new StringBuilder();
+            if (end - start > 1) {
+                filter.append("(|");
+            }
+            for (int ii = start; ii < end; ii++) {
+                // JNDI escapes the values it fills in for the placeholders.
+                filter.append('(').append(attribute).append("={").append(ii - start).append("})");
+            }
+            if (end - start > 1) {
+                filter.append(')');
+            }
+            _queries.add(new Query(baseDN, scope, filter.toString(),
+                                   values.subList(start, end).toArray()));
+        }
+    }
+
+    protected static NamingException toNamingException (Throwable cause)
+    {
+        if (cause instanceof NamingException) {
+            return (NamingException) cause;
+        }
+        NamingException ne = new NamingException("Batch search failed");
+        ne.setRootCause(cause);
+        return ne;
+    }
+
+    /** One search of the batch. */
+    protected class Query
+    {
+        public final String baseDN;
+        public final int scope;
+        public final String filter;
+        public final Object[] args;
+
+        public Query (String baseDN, int scope, String filter, Object[] args)
+        {
+            this.baseDN = baseDN;
+            this.scope = scope;
+            this.filter = filter;
+            this.args = args;
+        }
+
+        /**
+         * Return a task that runs this search on the given context and then closes it.
+         */
+        public Callable<List<SearchResult>> bind (final LdapContext ctx)
+        {
+            return new Callable<List<SearchResult>>() {
+                public List<SearchResult> call () throws NamingException {
+                    SearchControls ctls = new SearchControls(
+                        scope, _ctls.getCountLimit(), _ctls.getTimeLimit(),
+                        _ctls.getReturningAttributes(), _ctls.getReturningObjFlag(),
+                        _ctls.getDerefLinkFlag());
+                    List<SearchResult> entries = new ArrayList<SearchResult>();
+                    try {
+                        NamingEnumeration<SearchResult> answer =
+                            ctx.search(baseDN, filter, args, ctls);
+                        while (answer.hasMore()) {
+                            entries.add(answer.next());
+                        }
+                    } catch (NameNotFoundException e) {
+                        // Nothing under a parent that isn't there.
+                    } finally {
+                        ctx.close();
+                    }
+                    return entries;
+                }
+            };
+        }
+    }
+
+    protected SearchControls _ctls;
+    protected int _maxTerms;
+    protected List<Query> _queries = new ArrayList<Query>();
+
+    /** DNs asked for, in order, and the entries found for them. */
+    protected List<LdapName> _order = new ArrayList<LdapName>();
+    protected HashMap<LdapName, SearchResult> _wanted = new HashMap<LdapName, SearchResult>();
+
+    /** Default limit on the values folded into one filter. */
+    public static final int DEFAULT_MAX_TERMS = 100;
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.caucho.util.LruCache;
+
+/**
+ * Remembers the outcome of recent simple binds, so that scripts that use ldap_bind() only to
+ * check a password don't hit the directory on every login. Results are kept per server URI and
+ * DN and keyed by a PBKDF2 digest of the password, salted once per cache, so that a heap dump
+ * doesn't hand out passwords or cheap-to-crack digests of them.
+ *
+ * Successful binds are trusted for positiveTTLMillis and failed ones for negativeTTLMillis. Only
+ * a bind with the same password is answered from the cache, and a failure never evicts the
+ * success of a different password, so mistyping a password can't lock out the right one. A DN's
+ * cached binds are forgotten when a link writes to its entry, for instance to change its
+ * password; changes made outside this JVM are only noticed once positiveTTLMillis runs out. At
+ * most maxEntries DNs are kept, the least recently used being dropped first. Setting maxEntries
+ * to 0 disables the cache.
+ */
+public class LdapBindCache
+    implements LdapMetrics.Source
+{
+    /**
+     * Create a cache configured from system properties, falling back to the defaults below.
+     */
+    public LdapBindCache ()
+    {
+        this(Integer.getInteger(PROP_PREFIX + "maxEntries", DEFAULT_MAX_ENTRIES),
+             Long.getLong(PROP_PREFIX + "positiveTTLMillis", DEFAULT_POSITIVE_TTL_MILLIS),
+             Long.getLong(PROP_PREFIX + "negativeTTLMillis", DEFAULT_NEGATIVE_TTL_MILLIS),
+             Integer.getInteger(PROP_PREFIX + "hashIterations", DEFAULT_HASH_ITERATIONS));
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries Maximum number of bind results kept, 0 to disable caching.
+     * @param positiveTTLMillis How long a successful bind is trusted for.
+     * @param negativeTTLMillis How long a failed bind is remembered for. 0 doesn't cache
+     *        failures.
+     * @param hashIterations PBKDF2 iterations used to hash passwords. More makes the hashes
+     *        harder to brute force and every bind, cached or not, slower.
+     */
+    public LdapBindCache (int maxEntries, long positiveTTLMillis, long negativeTTLMillis,
+                          int hashIterations)
+    {
+        this._positiveTTL = positiveTTLMillis;
+        this._negativeTTL = negativeTTLMillis;
+        this._iterations = hashIterations;
+        if (maxEntries > 0) {
+            _results = new LruCache<String, Results>(maxEntries);
+            _salt = new byte[SALT_LENGTH];
+            new SecureRandom().nextBytes(_salt);
+        }
+    }
+
+    /**
+     * Return the cache shared by all LdapLinkResources that were not given one explicitly.
+     */
+    public static LdapBindCache getShared ()
+    {
+        return _shared;
+    }
+
+    /** Return true if results are cached at all. */
+    public boolean isEnabled ()
+    {
+        return (_results != null);
+    }
+
+    /**
+     * Look up the outcome of an earlier bind with the same server, DN and password.
+     *
+     * @return TRUE or FALSE if a bind with this password succeeded or failed recently, null if
+     *         the server has to be asked.
+     */
+    public Boolean check (String uri, String dn, String password)
+    {
+        if (_results == null) {
+            return null;
+        }
+        Results results = _results.get(toKey(uri, dn));
+        Result result = (results == null) ? null : results.find(hash(password));
+        if (result == null) {
+            // Possibly a password that was just set, so let the server decide.
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return Boolean.valueOf(result.success);
+    }
+
+    /**
+     * Record the outcome of a bind the server answered. A success replaces the DN's previous
+     * success, as only one password works at a time, and a failure replaces only the outcome
+     * cached for the same password.
+     *
+     * @param success true if the server accepted the password, false if it rejected it.
+     */
+    public void put (String uri, String dn, String password, boolean success)
+    {
+        if (_results == null) {
+            return;
+        }
+        long ttl = success ? _positiveTTL : _negativeTTL;
+        String key = toKey(uri, dn);
+        Results results = _results.get(key);
+        if (results == null) {
+            if (ttl <= 0) {
+                return;
+            }
+            results = new Results();
+            Results existing = _results.putIfNew(key, results);
+            if (existing != null) {
+                results = existing;
+            }
+        }
+        results.put(hash(password), success, ttl);
+    }
+
+    /**
+     * Forget the cached binds for a DN, for instance after its password was changed.
+     */
+    public void invalidate (String uri, String dn)
+    {
+        if (_results != null) {
+            _results.remove(toKey(uri, dn));
+        }
+    }
+
+    /**
+     * Forget all cached binds.
+     */
+    public void invalidateAll ()
+    {
+        if (_results != null) {
+            _results.clear();
+        }
+    }
+
+    /** Return the number of binds answered from the cache. */
+    public long getHitCount ()
+    {
+        return _hits.get();
+    }
+
+    /** Return the number of binds that had to go to the server. */
+    public long getMissCount ()
+    {
+        return _misses.get();
+    }
+
+    /** Return the number of DNs with bind results currently cached. */
+    public int size ()
+    {
+        return (_results == null) ? 0 : _results.size();
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("bindCache.hits", getHitCount());
+        snapshot.put("bindCache.misses", getMissCount());
+    }
+
+    /**
+     * DNs are compared without regard to case or spaces around the separators, as the server
+     * would.
+     */
+    protected static String toKey (String uri, String dn)
+    {
+        StringBuilder key = new StringBuilder(uri.length() + dn.length() + 1);
+        key.append(uri).append(' ');
+        boolean afterSeparator = true;
+        for (int ii = 0; ii < dn.length(); ii++) {
+            char c = dn.charAt(ii);
+            if (c == ' ' && afterSeparator) {
+                continue;
+            }
+            if (c == ',' || c == '=') {
+                // Drop spaces before the separator too.
+                while (key.charAt(key.length() - 1) == ' ') {
+                    key.setLength(key.length() - 1);
+                }
+                afterSeparator = true;
+            } else {
+                afterSeparator = false;
+            }
+            key.append(Character.toLowerCase(c));
+        }
+        return key.toString();
+    }
+
+    protected byte[] hash (String password)
+    {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), _salt, _iterations,
+                                             HASH_LENGTH * 8);
+            try {
+                // Factories aren't thread safe, and getting one is cheap next to the hashing.
+                return SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(spec)
+                    .getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** The outcome of a bind with one password. */
+    protected static class Result
+    {
+        public final byte[] hash;
+        public final boolean success;
+        public final long expires;
+
+        public Result (byte[] hash, boolean success, long expires)
+        {
+            this.hash = hash;
+            this.success = success;
+            this.expires = expires;
+        }
+
+        public boolean matches (byte[] hash)
+        {
+            return MessageDigest.isEqual(this.hash, hash);
+        }
+    }
+
+    /** The outcomes of recent binds as one DN, guarded by its own monitor. */
+    protected static class Results
+    {
+        /** Return the unexpired outcome cached for a password hash, or null. */
+        public synchronized Result find (byte[] hash)
+        {
+            long now = System.currentTimeMillis();
+            if (_success != null && now >= _success.expires) {
+                _success = null;
+            }
+            if (_success != null && _success.matches(hash)) {
+                return _success;
+            }
+            for (Iterator<Result> iter = _failures.iterator(); iter.hasNext(); ) {
+                Result failure = iter.next();
+                if (now >= failure.expires) {
+                    iter.remove();
+                } else if (failure.matches(hash)) {
+                    return failure;
+                }
+            }
+            return null;
+        }
+
+        public synchronized void put (byte[] hash, boolean success, long ttl)
+        {
+            // Whatever we knew about this password is out of date.
+            if (_success != null && _success.matches(hash)) {
+                _success = null;
+            }
+            for (Iterator<Result> iter = _failures.iterator(); iter.hasNext(); ) {
+                if (iter.next().matches(hash)) {
+                    iter.remove();
+                }
+            }
+            if (ttl <= 0) {
+                return;
+            }
+            Result result = new Result(hash, success, System.currentTimeMillis() + ttl);
+            if (success) {
+                _success = result;
+            } else {
+                _failures.addLast(result);
+                if (_failures.size() > MAX_FAILURES) {
+                    _failures.removeFirst();
+                }
+            }
+        }
+
+        /** The password that worked last, or null. */
+        protected Result _success;
+
+        /** Passwords that were refused, oldest first. */
+        protected LinkedList<Result> _failures = new LinkedList<Result>();
+
+        /** Failures kept per DN, so that guessing passwords can't grow the cache. */
+        protected static final int MAX_FAILURES = 4;
+    }
+
+    /** Cached results by URI and DN, or null if caching is disabled. */
+    protected LruCache<String, Results> _results;
+
+    /** Salt for every password hash, so that a password hashes to the same key each time. */
+    protected byte[] _salt;
+
+    protected long _positiveTTL;
+    protected long _negativeTTL;
+    protected int _iterations;
+
+    protected AtomicLong _hits = new AtomicLong();
+    protected AtomicLong _misses = new AtomicLong();
+
+    /** Prefix of the system properties used to configure the shared cache. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.bindcache.";
+
+    public static final int DEFAULT_MAX_ENTRIES = 0;
+    public static final long DEFAULT_POSITIVE_TTL_MILLIS = 5 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10 * 1000L;
+    public static final int DEFAULT_HASH_ITERATIONS = 1000;
+
+    protected static final int SALT_LENGTH = 16;
+    protected static final int HASH_LENGTH = 20;
+
+    protected static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    protected static final LdapBindCache _shared = new LdapBindCache();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
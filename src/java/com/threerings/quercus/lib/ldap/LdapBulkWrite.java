@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+import com.caucho.quercus.env.ResourceValue;
+
+/**
+ * Applies many writes over the connection of one link without waiting for each answer before
+ * sending the next, as started by ldap_bulk_start(). Up to maxInFlight writes are outstanding at
+ * once, each on its own instance of the link's context and a thread of a pool kept for bulk
+ * writes, so a large import costs about one round trip per maxInFlight entries instead of one per
+ * entry, and doesn't hold up asynchronous searches. Submitting blocks while that many are
+ * outstanding.
+ *
+ * A write to an entry waits for earlier writes to the same entry or its parent to finish, so
+ * entries can be added in the usual parents first order. A delete waits for every earlier write,
+ * since it fails while any of the entry's children are still being deleted. Failures don't stop
+ * the others; they are collected by DN and returned by finish(). The link must not be unbound
+ * before finish().
+ *
+ * The pool is configured with the maxThreads and maxQueued system properties under PROP_PREFIX.
+ * When its queue is full, writes run on the submitting thread.
+ */
+public class LdapBulkWrite extends ResourceValue
+{
+    /**
+     * Start a bulk write over the given connection.
+     *
+     * @param link The link the connection belongs to, whose search cache entries are dropped
+     *        when the bulk write finishes.
+     * @param maxInFlight Most writes to have outstanding at once.
+     */
+    public LdapBulkWrite (LdapLinkResource link, LdapContext ctx, int maxInFlight)
+    {
+        this._link = link;
+        this._ctx = ctx;
+        this._maxInFlight = Math.max(1, maxInFlight);
+        this._permits = new Semaphore(_maxInFlight);
+    }
+
+    /**
+     * Send a write, waiting first for a free slot and for the writes it depends on.
+     *
+     * @return false if the bulk write has already finished.
+     */
+    public boolean submit (final LdapWrite write)
+    {
+        if (_finished) {
+            return false;
+        }
+        LdapName name = write.getName();
+        if (write.getOperation().equals(LdapMetrics.DELETE)) {
+            waitForAll();
+        } else {
+            waitFor(name);
+            if (name.size() > 1) {
+                waitFor((LdapName) name.getPrefix(name.size() - 1));
+            }
+        }
+        _permits.acquireUninterruptibly();
+        final LdapContext ctx;
+        try {
+            ctx = _ctx.newInstance(null);
+        } catch (NamingException e) {
+            _permits.release();
+            failed(write, e);
+            return true;
+        }
+        _submitted++;
+        _pending.put(name, _executor.submit(new Runnable() {
+            public void run () {
+                apply(ctx, write);
+            }
+        }));
+        if (_pending.size() > PRUNE_FACTOR * _maxInFlight) {
+            prune();
+        }
+        return true;
+    }
+
+    /**
+     * Wait for every write to finish.
+     *
+     * @return The message of each write that failed, by DN, in the order they failed.
+     */
+    public Map<String, String> finish ()
+    {
+        if (!_finished) {
+            _finished = true;
+            waitForAll();
+            _link.invalidateSearches();
+            if (_serverFailure != null) {
+                // Have the link reconnect, as it would after any other operation.
+                _link.noteFailure(_serverFailure);
+            }
+        }
+        synchronized (_failures) {
+            return new LinkedHashMap<String, String>(_failures);
+        }
+    }
+
+    /** Return the number of writes sent. */
+    public int getSubmittedCount ()
+    {
+        return _submitted;
+    }
+
+    /** Return the most writes outstanding at once. */
+    public int getMaxInFlight ()
+    {
+        return _maxInFlight;
+    }
+
+    /**
+     * Apply one write on an executor thread, freeing its slot when done.
+     */
+    protected void apply (LdapContext ctx, LdapWrite write)
+    {
+        long start = System.nanoTime();
+        try {
+            write.apply(ctx);
+            _link.noteWritten(write);
+        } catch (NamingException e) {
+            _link.getMetrics().recordError(e);
+            failed(write, e);
+        } finally {
+            _link.getMetrics().recordTime(write.getOperation(), start);
+            LdapConnectionPool.close(ctx);
+            _permits.release();
+        }
+    }
+
+    /**
+     * Note a write that failed.
+     */
+    protected void failed (LdapWrite write, NamingException e)
+    {
+        synchronized (_failures) {
+            _failures.put(write.getDN(), e.getMessage());
+            if (_serverFailure == null && LdapServerHealth.isServerFailure(e)) {
+                _serverFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Wait for the last write to the given entry, if it is still outstanding.
+     */
+    protected void waitFor (LdapName name)
+    {
+        Future<?> future = _pending.get(name);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            // apply() catches what it expects, so this is a bug; let the caller see it.
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for every outstanding write.
+     */
+    protected void waitForAll ()
+    {
+        _permits.acquireUninterruptibly(_maxInFlight);
+        _permits.release(_maxInFlight);
+        _pending.clear();
+    }
+
+    /**
+     * Forget the writes that have finished, so that a long import doesn't keep them all.
+     */
+    protected void prune ()
+    {
+        Iterator<Future<?>> iter = _pending.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isDone()) {
+                iter.remove();
+            }
+        }
+    }
+
+    protected LdapLinkResource _link;
+    protected LdapContext _ctx;
+    protected int _maxInFlight;
+    protected Semaphore _permits;
+    protected int _submitted;
+    protected boolean _finished;
+
+    /** The last write to each entry that may still be outstanding. Only used by the submitter. */
+    protected HashMap<LdapName, Future<?>> _pending = new HashMap<LdapName, Future<?>>();
+
+    /** Messages of the writes that failed, by DN. Guards _serverFailure too. */
+    protected LinkedHashMap<String, String> _failures = new LinkedHashMap<String, String>();
+    protected NamingException _serverFailure;
+
+    /** Writes outstanding unless the script asks for another number. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /** Prefix of the system properties used to configure the executor. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.bulk.";
+
+    public static final int DEFAULT_MAX_THREADS = 16;
+    public static final int DEFAULT_MAX_QUEUED = 256;
+
+    /** How many times maxInFlight writes are remembered before finished ones are forgotten. */
+    protected static final int PRUNE_FACTOR = 4;
+
+    protected static final ExecutorService _executor;
+    static {
+        int maxThreads = Integer.getInteger(PROP_PREFIX + "maxThreads", DEFAULT_MAX_THREADS);
+        int maxQueued = Integer.getInteger(PROP_PREFIX + "maxQueued", DEFAULT_MAX_QUEUED);
+        // Idle threads are kept, since letting core threads time out needs Java 6.
+        _executor = new ThreadPoolExecutor(
+            maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+                public Thread newThread (Runnable task) {
+                    Thread thread = new Thread(
+                        task, "LDAP bulk write " + _threads.incrementAndGet());
+                    // Don't keep the JVM alive for writes nobody will wait for.
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                protected AtomicInteger _threads = new AtomicInteger();
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+}
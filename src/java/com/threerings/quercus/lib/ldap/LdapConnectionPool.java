@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Keeps bound LDAP connections around after ldap_unbind() so that later binds with the same
+ * server, options and identity can skip the TCP (and possibly TLS) handshake and the bind round
+ * trip.
+ *
+ * Connections are grouped by {@link Key}. At most maxIdlePerKey idle connections are retained for
+ * each key and maxIdle in all, idle connections are closed once they have gone unused for
+ * maxIdleMillis, and a connection that has sat idle for longer than validateIdleMillis is checked
+ * with a cheap read before it is handed out again.
+ *
+ * Connections bound as a user are bound again when reused, so that the server still checks the
+ * password, which may have been changed or the account disabled since. Only the connection and
+ * any TLS handshake are saved for them.
+ */
+public class LdapConnectionPool
+    implements LdapMetrics.Source
+{
+    /**
+     * Identifies a set of interchangeable connections: same server URI, protocol version,
+     * referral handling, read timeout, use of StartTLS and bind identity. The password is only
+     * kept as a salted digest.
+     */
+    public static class Key
+    {
+        public Key (String uri, int version, boolean followReferrals, String dn, String password)
+        {
+            this(uri, version, followReferrals, 0, dn, password);
+        }
+
+        /**
+         * @param readTimeout Milliseconds the connections wait for answers, 0 for ever.
+         */
+        public Key (String uri, int version, boolean followReferrals, int readTimeout, String dn,
+                    String password)
+        {
+            this(uri, version, followReferrals, readTimeout, false, dn, password);
+        }
+
+        /**
+         * @param readTimeout Milliseconds the connections wait for answers, 0 for ever.
+         * @param startTLS Whether the connections are switched to TLS before binding.
+         */
+        public Key (String uri, int version, boolean followReferrals, int readTimeout,
+                    boolean startTLS, String dn, String password)
+        {
+            this(uri, version, followReferrals, readTimeout, startTLS, null, dn, password);
+        }
+
+        /**
+         * @param readTimeout Milliseconds the connections wait for answers, 0 for ever.
+         * @param startTLS Whether the connections are switched to TLS before binding.
+         * @param binaryAttributes The attributes the connections read as bytes, separated by
+         *        spaces, or null for only those the provider knows to be binary.
+         */
+        public Key (String uri, int version, boolean followReferrals, int readTimeout,
+                    boolean startTLS, String binaryAttributes, String dn, String password)
+        {
+            this._uri = uri;
+            this._version = version;
+            this._followReferrals = followReferrals;
+            this._readTimeout = readTimeout;
+            this._startTLS = startTLS;
+            this._binaryAttributes = (binaryAttributes == null) ? "" : binaryAttributes;
+            this._dn = dn;
+            this._credential = digest(password);
+            this._hashCode = ((((uri.hashCode() * 31 + version) * 31 + dn.hashCode()) * 31 +
+                Arrays.hashCode(_credential)) * 31 + _binaryAttributes.hashCode()) * 31 +
+                readTimeout + (followReferrals ? 1 : 0) + (startTLS ? 2 : 0);
+        }
+
+        /** Return the URI of the server these connections talk to. */
+        public String getURI ()
+        {
+            return _uri;
+        }
+
+        /** Return true if these connections use StartTLS. */
+        public boolean isStartTLS ()
+        {
+            return _startTLS;
+        }
+
+        /** Return the DN these connections are bound as, or an empty string if anonymous. */
+        public String getDN ()
+        {
+            return _dn;
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key okey = (Key) other;
+            return (_hashCode == okey._hashCode) && (_version == okey._version) &&
+                (_followReferrals == okey._followReferrals) &&
+                (_readTimeout == okey._readTimeout) && (_startTLS == okey._startTLS) &&
+                _uri.equals(okey._uri) && _binaryAttributes.equals(okey._binaryAttributes) &&
+                _dn.equals(okey._dn) && Arrays.equals(_credential, okey._credential);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return _hashCode;
+        }
+
+        @Override
+        public String toString ()
+        {
+            // Never include the credential digest here, this ends up in log messages.
+            return _uri + " v" + _version + (_startTLS ? " starttls" : "") +
+                (_followReferrals ? " follow " : " ignore ") +
+                (_dn.length() == 0 ? "anonymous" : _dn);
+        }
+
+        protected String _uri;
+        protected int _version;
+        protected boolean _followReferrals;
+        protected int _readTimeout;
+        protected boolean _startTLS;
+        protected String _binaryAttributes;
+        protected String _dn;
+        protected byte[] _credential;
+        protected int _hashCode;
+    }
+
+    /**
+     * Create a pool configured from system properties, falling back to the defaults below.
+     */
+    public LdapConnectionPool ()
+    {
+        this(Integer.getInteger(PROP_PREFIX + "maxIdlePerKey", DEFAULT_MAX_IDLE_PER_KEY),
+             Integer.getInteger(PROP_PREFIX + "maxIdle", DEFAULT_MAX_IDLE),
+             Long.getLong(PROP_PREFIX + "maxIdleMillis", DEFAULT_MAX_IDLE_MILLIS),
+             Long.getLong(PROP_PREFIX + "validateIdleMillis", DEFAULT_VALIDATE_IDLE_MILLIS),
+             LdapTls.getShared());
+    }
+
+    /**
+     * Create a new pool.
+     *
+     * @param maxIdlePerKey Maximum number of idle connections kept for each key. Setting this to
+     *        0 disables pooling, connections are then closed as soon as they are released.
+     * @param maxIdleMillis Idle connections unused for longer than this are closed.
+     * @param validateIdleMillis Connections idle for longer than this are checked with a read of
+     *        the root DSE before being handed out. 0 checks every connection on borrow.
+     */
+    public LdapConnectionPool (int maxIdlePerKey, long maxIdleMillis, long validateIdleMillis)
+    {
+        this(maxIdlePerKey, maxIdleMillis, validateIdleMillis, LdapTls.getShared());
+    }
+
+    /**
+     * Create a new pool whose StartTLS connections are opened by the given LdapTls.
+     *
+     * @param tls Opens connections for keys that use StartTLS, sharing TLS sessions between them.
+     */
+    public LdapConnectionPool (int maxIdlePerKey, long maxIdleMillis, long validateIdleMillis,
+                               LdapTls tls)
+    {
+        this(maxIdlePerKey, DEFAULT_MAX_IDLE, maxIdleMillis, validateIdleMillis, tls);
+    }
+
+    /**
+     * Create a new pool holding at most maxIdle idle connections in all, whatever their keys.
+     * When it is full, the connection that has been idle longest is closed to make room.
+     */
+    public LdapConnectionPool (int maxIdlePerKey, int maxIdle, long maxIdleMillis,
+                               long validateIdleMillis, LdapTls tls)
+    {
+        this._maxIdlePerKey = maxIdlePerKey;
+        this._maxIdle = maxIdle;
+        this._maxIdleMillis = maxIdleMillis;
+        this._validateIdleMillis = validateIdleMillis;
+        this._tls = tls;
+    }
+
+    /**
+     * Return the pool shared by all LdapLinkResources that were not given one explicitly.
+     */
+    public static LdapConnectionPool getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Get a connection for the given key, reusing an idle one if a healthy one is available and
+     * otherwise binding a new one.
+     *
+     * @param key Identifies the server, options and identity of the connection.
+     * @param env JNDI environment used to create a new connection on a pool miss.
+     * @return A bound LdapContext, which must later be handed to release() or discard().
+     * @throws NamingException if a new connection can not be created, including on bad
+     *         credentials.
+     */
+    public LdapContext borrow (Key key, Hashtable<String, String> env)
+        throws NamingException
+    {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+
+        Idle idle;
+        while ((idle = pollIdle(key)) != null) {
+            if (key.getDN().length() > 0) {
+                if (rebind(key, idle.ctx)) {
+                    _hits.incrementAndGet();
+                    _active.incrementAndGet();
+                    return idle.ctx;
+                }
+                _validationFailures.incrementAndGet();
+                continue;
+            }
+            // Validate outside the lock, since this may cost a round trip to the server.
+            if (now - idle.since < _validateIdleMillis || isHealthy(idle.ctx)) {
+                _hits.incrementAndGet();
+                _active.incrementAndGet();
+                return idle.ctx;
+            }
+            _validationFailures.incrementAndGet();
+            close(idle.ctx);
+        }
+
+        _misses.incrementAndGet();
+        long start = System.nanoTime();
+        LdapContext ctx = open(key, env);
+        LdapMetrics.getShared().recordTime(LdapMetrics.CONNECT, start);
+        _active.incrementAndGet();
+        return ctx;
+    }
+
+    /**
+     * Return a connection obtained from borrow() to the pool. It is closed instead if the pool
+     * already holds maxIdlePerKey idle connections for this key, and if the pool holds maxIdle
+     * in all, the one idle longest is closed to make room.
+     */
+    public void release (Key key, LdapContext ctx)
+    {
+        _active.decrementAndGet();
+        long now = System.currentTimeMillis();
+        boolean retained = false;
+        synchronized (this) {
+            if (!_closed && _maxIdlePerKey > 0) {
+                LinkedList<Idle> idles = _idle.get(key);
+                if (idles == null) {
+                    idles = new LinkedList<Idle>();
+                    _idle.put(key, idles);
+                }
+                if (idles.size() < _maxIdlePerKey) {
+                    // Most recently used goes to the front so that the cold ones age out.
+                    idles.addFirst(new Idle(ctx, now));
+                    _idleCount++;
+                    retained = true;
+                }
+                if (retained && _idleCount > _maxIdle) {
+                    ctx = removeOldest();
+                    retained = false;
+                }
+            }
+        }
+        if (!retained) {
+            _evictions.incrementAndGet();
+            close(ctx);
+        }
+        evictIdle(now);
+    }
+
+    /**
+     * Close a connection obtained from borrow() that should not be reused, for instance because
+     * the server dropped it.
+     */
+    public void discard (Key key, LdapContext ctx)
+    {
+        _active.decrementAndGet();
+        close(ctx);
+    }
+
+    /**
+     * Close all idle connections and stop retaining released ones.
+     */
+    public void close ()
+    {
+        List<Idle> closing = new ArrayList<Idle>();
+        synchronized (this) {
+            _closed = true;
+            for (LinkedList<Idle> idles : _idle.values()) {
+                closing.addAll(idles);
+            }
+            _idle.clear();
+            _idleCount = 0;
+        }
+        for (Idle idle : closing) {
+            close(idle.ctx);
+        }
+    }
+
+    /** Return the number of borrows satisfied by an idle connection. */
+    public long getHitCount ()
+    {
+        return _hits.get();
+    }
+
+    /** Return the number of borrows that had to create a new connection. */
+    public long getMissCount ()
+    {
+        return _misses.get();
+    }
+
+    /** Return the number of connections closed for being idle too long or overflowing the pool. */
+    public long getEvictionCount ()
+    {
+        return _evictions.get();
+    }
+
+    /** Return the number of idle connections found dead when borrowed. */
+    public long getValidationFailureCount ()
+    {
+        return _validationFailures.get();
+    }
+
+    /** Return the number of connections borrowed and not yet released or discarded. */
+    public int getActiveCount ()
+    {
+        return _active.get();
+    }
+
+    /** Return the number of idle connections currently held. */
+    public synchronized int getIdleCount ()
+    {
+        return _idleCount;
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("pool.active", getActiveCount());
+        snapshot.put("pool.idle", getIdleCount());
+        snapshot.put("pool.hits", getHitCount());
+        snapshot.put("pool.misses", getMissCount());
+    }
+
+    /**
+     * Create and bind a new connection for the given key.
+     */
+    protected LdapContext open (Key key, Hashtable<String, String> env)
+        throws NamingException
+    {
+        return key.isStartTLS() ? _tls.open(env) : new InitialLdapContext(env, null);
+    }
+
+    /**
+     * Remove and return the most recently used idle connection for key, or null if none.
+     */
+    protected synchronized Idle pollIdle (Key key)
+    {
+        LinkedList<Idle> idles = _idle.get(key);
+        if (idles == null || idles.isEmpty()) {
+            return null;
+        }
+        _idleCount--;
+        return idles.removeFirst();
+    }
+
+    /**
+     * Remove and return the connection that has been idle longest, whatever its key. The caller
+     * holds the lock.
+     */
+    protected LdapContext removeOldest ()
+    {
+        LinkedList<Idle> oldest = null;
+        for (LinkedList<Idle> idles : _idle.values()) {
+            if (!idles.isEmpty() &&
+                (oldest == null || idles.getLast().since < oldest.getLast().since)) {
+                oldest = idles;
+            }
+        }
+        _idleCount--;
+        LdapContext ctx = oldest.removeLast().ctx;
+        if (oldest.isEmpty()) {
+            _idle.values().remove(oldest);
+        }
+        return ctx;
+    }
+
+    /**
+     * Bind an idle connection again with the credentials it was first bound with, over the
+     * same connection. A refused bind is thrown, the password having changed; a connection that
+     * fails otherwise is closed.
+     *
+     * @return false if the connection was found dead.
+     * @throws NamingException if the server refused the bind.
+     */
+    protected boolean rebind (Key key, LdapContext ctx)
+        throws NamingException
+    {
+        if (key._version != 3) {
+            // Only LDAPv3 allows binding again on a connection.
+            close(ctx);
+            return false;
+        }
+        try {
+            ctx.reconnect(null);
+            return true;
+        } catch (NamingException e) {
+            close(ctx);
+            if (LdapServerHealth.isServerFailure(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Close idle connections that have gone unused for longer than maxIdleMillis. This is run
+     * opportunistically from borrow() and release(), at most once per sweep interval.
+     */
+    protected void evictIdle (long now)
+    {
+        List<Idle> closing = null;
+        synchronized (this) {
+            if (now - _lastSweep < SWEEP_INTERVAL_MILLIS) {
+                return;
+            }
+            _lastSweep = now;
+            Iterator<LinkedList<Idle>> iter = _idle.values().iterator();
+            while (iter.hasNext()) {
+                LinkedList<Idle> idles = iter.next();
+                // Oldest connections are at the back of the list.
+                while (!idles.isEmpty() && now - idles.getLast().since > _maxIdleMillis) {
+                    if (closing == null) {
+                        closing = new ArrayList<Idle>();
+                    }
+                    closing.add(idles.removeLast());
+                    _idleCount--;
+                }
+                if (idles.isEmpty()) {
+                    iter.remove();
+                }
+            }
+        }
+        if (closing != null) {
+            for (Idle idle : closing) {
+                _evictions.incrementAndGet();
+                close(idle.ctx);
+            }
+        }
+    }
+
+    /**
+     * Check that an idle connection still works by reading the root DSE without asking for any
+     * attributes.
+     */
+    protected boolean isHealthy (LdapContext ctx)
+    {
+        try {
+            ctx.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    /** Close a connection, ignoring failures since it is going away either way. */
+    protected static void close (LdapContext ctx)
+    {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            // Nothing more we can do with it.
+        }
+    }
+
+    /**
+     * Hash a password with the salt for this JVM so that keys never hold the plain text.
+     */
+    protected static byte[] digest (String password)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(_salt);
+            return md.digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** An idle connection and when it was released. */
+    protected static class Idle
+    {
+        public final LdapContext ctx;
+        public final long since;
+
+        public Idle (LdapContext ctx, long since)
+        {
+            this.ctx = ctx;
+            this.since = since;
+        }
+    }
+
+    protected HashMap<Key, LinkedList<Idle>> _idle = new HashMap<Key, LinkedList<Idle>>();
+    protected int _idleCount;
+    protected long _lastSweep;
+    protected boolean _closed;
+
+    protected int _maxIdlePerKey;
+    protected int _maxIdle;
+    protected long _maxIdleMillis;
+    protected long _validateIdleMillis;
+    protected LdapTls _tls;
+
+    protected AtomicLong _hits = new AtomicLong();
+    protected AtomicLong _misses = new AtomicLong();
+    protected AtomicLong _evictions = new AtomicLong();
+    protected AtomicLong _validationFailures = new AtomicLong();
+    protected AtomicInteger _active = new AtomicInteger();
+
+    /** Prefix of the system properties used to configure the shared pool. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.pool.";
+
+    public static final int DEFAULT_MAX_IDLE_PER_KEY = 8;
+    public static final int DEFAULT_MAX_IDLE = 256;
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 60 * 1000L;
+    public static final long DEFAULT_VALIDATE_IDLE_MILLIS = 1000L;
+
+    /** How often borrow() and release() look for idle connections to close. */
+    protected static final long SWEEP_INTERVAL_MILLIS = 1000L;
+
+    /** Asking for the special "1.1" attribute returns no attributes at all. */
+    protected static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    protected static final byte[] _salt = new byte[16];
+    static {
+        new SecureRandom().nextBytes(_salt);
+    }
+
+    protected static final LdapConnectionPool _shared = new LdapConnectionPool();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.Hashtable;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapContext;
+
+import com.threerings.quercus.lib.ldap.server.LdapServer;
+import com.threerings.quercus.lib.ldap.server.TestServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class LdapConnectionPoolTest
+{
+    @Before public void setUp ()
+    {
+        _server = TestServer.getServer();
+        _key = new LdapConnectionPool.Key(_server.getURI(), 3, false, "", "");
+    }
+
+    @After public void tearDown ()
+    {
+        if (_pool != null) {
+            _pool.close();
+        }
+    }
+
+    @Test public void borrowAndRelease ()
+        throws NamingException
+    {
+        _pool = new LdapConnectionPool(2, 60000, 60000);
+        int binds = _server.getBindCount();
+        LdapContext ctx = _pool.borrow(_key, createEnv());
+        assertEquals(1, _pool.getMissCount());
+        assertEquals(1, _pool.getActiveCount());
+        assertEquals(binds + 1, _server.getBindCount());
+
+        _pool.release(_key, ctx);
+        assertEquals(0, _pool.getActiveCount());
+        assertEquals(1, _pool.getIdleCount());
+        assertSame("A released connection should be handed out again", ctx,
+                   _pool.borrow(_key, createEnv()));
+        assertEquals(1, _pool.getHitCount());
+        assertEquals("Reuse shouldn't bind again", binds + 1, _server.getBindCount());
+        assertEquals(0, _pool.getIdleCount());
+
+        // Other identities get connections of their own.
+        LdapConnectionPool.Key root = new LdapConnectionPool.Key(
+            _server.getURI(), 3, false, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        LdapContext rootCtx = _pool.borrow(root, createEnv(TestServer.ROOT_DN,
+                                                             TestServer.ROOT_PASSWORD));
+        assertNotSame(ctx, rootCtx);
+        assertEquals(2, _pool.getMissCount());
+        _pool.release(_key, ctx);
+        _pool.release(root, rootCtx);
+        assertEquals(2, _pool.getIdleCount());
+
+        // Discarded connections are gone for good.
+        ctx = _pool.borrow(_key, createEnv());
+        _pool.discard(_key, ctx);
+        assertEquals(0, _pool.getActiveCount());
+        assertEquals(1, _pool.getIdleCount());
+    }
+
+    @Test public void overflow ()
+        throws NamingException
+    {
+        _pool = new LdapConnectionPool(1, 60000, 60000);
+        LdapContext first = _pool.borrow(_key, createEnv());
+        LdapContext second = _pool.borrow(_key, createEnv());
+        _pool.release(_key, first);
+        _pool.release(_key, second);
+        assertEquals("Only one idle connection should be kept", 1, _pool.getIdleCount());
+        assertEquals(1, _pool.getEvictionCount());
+        assertSame(first, _pool.borrow(_key, createEnv()));
+
+        // A pool that keeps nothing closes everything it is given back.
+        _pool.close();
+        _pool = new LdapConnectionPool(0, 60000, 60000);
+        _pool.release(_key, _pool.borrow(_key, createEnv()));
+        assertEquals(0, _pool.getIdleCount());
+        assertEquals(1, _pool.getEvictionCount());
+    }
+
+    @Test public void evictIdle ()
+        throws Exception
+    {
+        _pool = new LdapConnectionPool(2, 50, 60000);
+        _pool.release(_key, _pool.borrow(_key, createEnv()));
+        assertEquals(1, _pool.getIdleCount());
+        Thread.sleep(100);
+        // Sweeps happen at most once a second, so make this one due.
+        _pool._lastSweep = 0;
+        _pool.borrow(_key, createEnv());
+        assertEquals("The stale connection should have been closed", 1, _pool.getEvictionCount());
+        assertEquals(0, _pool.getHitCount());
+        assertEquals(2, _pool.getMissCount());
+    }
+
+    @Test public void validate ()
+        throws NamingException
+    {
+        final boolean[] healthy = { true };
+        _pool = new LdapConnectionPool(2, 60000, 0) {
+            @Override protected boolean isHealthy (LdapContext ctx) {
+                return healthy[0] && super.isHealthy(ctx);
+            }
+        };
+        LdapContext ctx = _pool.borrow(_key, createEnv());
+        _pool.release(_key, ctx);
+        assertSame(ctx, _pool.borrow(_key, createEnv()));
+        _pool.release(_key, ctx);
+
+        healthy[0] = false;
+        assertNotSame("A dead connection should be replaced", ctx,
+                      _pool.borrow(_key, createEnv()));
+        assertEquals(1, _pool.getValidationFailureCount());
+        assertEquals(0, _pool.getIdleCount());
+    }
+
+    @Test public void maxIdle ()
+        throws Exception
+    {
+        _pool = new LdapConnectionPool(2, 2, 60000, 60000, LdapTls.getShared());
+        LdapConnectionPool.Key root = new LdapConnectionPool.Key(
+            _server.getURI(), 3, false, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        LdapContext first = _pool.borrow(_key, createEnv());
+        LdapContext second = _pool.borrow(_key, createEnv());
+        LdapContext rootCtx = _pool.borrow(root, createEnv(TestServer.ROOT_DN,
+                                                             TestServer.ROOT_PASSWORD));
+        _pool.release(_key, first);
+        // Release times are in milliseconds, so keep them apart.
+        Thread.sleep(10);
+        _pool.release(_key, second);
+        Thread.sleep(10);
+        _pool.release(root, rootCtx);
+        assertEquals("Only two idle connections should be kept in all", 2, _pool.getIdleCount());
+        assertEquals(1, _pool.getEvictionCount());
+        assertSame("The oldest should have been closed", second, _pool.borrow(_key, createEnv()));
+        assertSame(rootCtx, _pool.borrow(root, createEnv(TestServer.ROOT_DN,
+                                                         TestServer.ROOT_PASSWORD)));
+        assertEquals(2, _pool.getHitCount());
+    }
+
+    @Test public void passwordChanges ()
+        throws Exception
+    {
+        LdapServer server = TestServer.start();
+        try {
+            _pool = new LdapConnectionPool(2, 60000, 60000);
+            String dn = "uid=sally,ou=People,dc=example,dc=com";
+            LdapLinkResource admin = new LdapLinkResource(server.getURI(), _pool);
+            assertTrue(admin.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+            assertTrue(admin.modify(dn, password("old")));
+
+            LdapLinkResource link = new LdapLinkResource(server.getURI(), _pool);
+            assertTrue(link.simpleBind(dn, "old"));
+            link.unbind();
+            assertTrue("The pooled connection should be bound again",
+                       link.simpleBind(dn, "old"));
+            assertEquals(1, _pool.getHitCount());
+            link.unbind();
+
+            assertTrue(admin.modify(dn, password("new")));
+            int binds = server.getBindCount();
+            for (int ii = 0; ii < 3; ii++) {
+                assertFalse("The old password should be refused", link.simpleBind(dn, "old"));
+            }
+            assertEquals("Every bind should reach the server", binds + 3, server.getBindCount());
+            assertTrue(link.simpleBind(dn, "new"));
+            link.unbind();
+            admin.unbind();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void linksReturnConnections ()
+    {
+        _pool = new LdapConnectionPool(2, 60000, 60000);
+        LdapLinkResource link = new LdapLinkResource(_server.getURI(), _pool);
+        link.simpleBind("", "");
+        assertEquals(1, _pool.getActiveCount());
+        link.unbind();
+        assertEquals(0, _pool.getActiveCount());
+        assertEquals(1, _pool.getIdleCount());
+
+        // Binding again releases the previous connection first.
+        link.simpleBind("", "");
+        link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        assertEquals(1, _pool.getActiveCount());
+        assertEquals(1, _pool.getIdleCount());
+
+        // As does the end of the request, for scripts that never unbind.
+        link.cleanup();
+        assertEquals(0, _pool.getActiveCount());
+        assertEquals(2, _pool.getIdleCount());
+    }
+
+    protected Hashtable<String, String> createEnv ()
+    {
+        return createEnv(null, null);
+    }
+
+    protected Hashtable<String, String> createEnv (String dn, String password)
+    {
+        Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.PROVIDER_URL, _server.getURI());
+        // Anonymous binds are simple binds without a DN, as links make them.
+        env.put(Context.SECURITY_AUTHENTICATION, "simple");
+        if (dn != null) {
+            env.put(Context.SECURITY_PRINCIPAL, dn);
+            env.put(Context.SECURITY_CREDENTIALS, password);
+        }
+        return env;
+    }
+
+    /** Return a modification replacing an entry's password. */
+    protected static ModificationItem[] password (String password)
+    {
+        return new ModificationItem[] { new ModificationItem(
+            DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("userPassword", password)) };
+    }
+
+    public static junit.framework.Test suite ()
+    {
+        return new JUnit4TestAdapter(LdapConnectionPoolTest.class);
+    }
+
+    protected LdapServer _server;
+    protected LdapConnectionPool.Key _key;
+    protected LdapConnectionPool _pool;
+}
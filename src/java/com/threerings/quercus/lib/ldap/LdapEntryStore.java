@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * The entries of a search result, packed into a few arrays instead of a SearchResult with its
+ * Hashtable of BasicAttributes, each with a Vector of Strings, per entry. Attribute names are kept
+ * once per result, in a dictionary that entries refer to by number, and every DN and value is
+ * kept as its UTF-8 bytes, one after the other, in a single buffer. An attribute costs a few ints
+ * on top of its values instead of several hundred bytes of objects, and a large result is a
+ * handful of arrays for the garbage collector to trace rather than millions of objects.
+ *
+ * Entries are read through Entry, a view holding only its position, or as a SearchResult made on
+ * demand by get(). Values the provider read as bytes, see LdapOptions.getBinaryAttributes(), are
+ * given back as bytes, and the other values as text; an attribute with any binary value has them
+ * all given back as bytes. Stores are only added to while their result is being read, and can be
+ * shared once it is complete.
+ */
+public class LdapEntryStore extends AbstractList<SearchResult>
+{
+    /**
+     * A view of one entry of the store.
+     */
+    public class Entry
+    {
+        /** Return the store holding the entry. */
+        public LdapEntryStore getStore ()
+        {
+            return LdapEntryStore.this;
+        }
+
+        /** Return the position of the entry in its store. */
+        public int getIndex ()
+        {
+            return _index;
+        }
+
+        /** Return the DN of the entry. */
+        public String getDN ()
+        {
+            return getText(_entryValues[_index]);
+        }
+
+        /** Return the number of attributes of the entry. */
+        public int getAttributeCount ()
+        {
+            return getAttributeEnd() - _entryAttrs[_index];
+        }
+
+        /**
+         * Return the position of an attribute of the entry in the store, for the attribute
+         * methods of LdapEntryStore.
+         *
+         * @param attr Position of the attribute in the entry.
+         */
+        public int getAttribute (int attr)
+        {
+            return _entryAttrs[_index] + attr;
+        }
+
+        /**
+         * Return the position in the store of the entry's attribute with the given name, in any
+         * case, or -1 if it doesn't have one.
+         */
+        public int findAttribute (String name)
+        {
+            for (int ii = _entryAttrs[_index], nn = getAttributeEnd(); ii < nn; ii++) {
+                if (_names.get(getNameId(ii)).equalsIgnoreCase(name)) {
+                    return ii;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Return the position in the store of the first value of an attribute, which follows
+         * the values of the entry's attributes before it.
+         */
+        public int getFirstValue (int attribute)
+        {
+            int value = _entryValues[_index] + 1;
+            for (int ii = _entryAttrs[_index]; ii < attribute; ii++) {
+                value += _attrValueCounts[ii];
+            }
+            return value;
+        }
+
+        /** Return the entry as a new SearchResult. */
+        public SearchResult toSearchResult ()
+        {
+            return get(_index);
+        }
+
+        protected Entry (int index)
+        {
+            this._index = index;
+        }
+
+        protected int getAttributeEnd ()
+        {
+            return (_index + 1 < _size) ? _entryAttrs[_index + 1] : _attrCount;
+        }
+
+        protected int _index;
+    }
+
+    /**
+     * Create an empty store.
+     */
+    public LdapEntryStore ()
+    {
+        this(new ArrayList<String>(), new HashMap<String, Integer>());
+    }
+
+    /**
+     * Create an empty store adding to the given dictionary of attribute names.
+     */
+    protected LdapEntryStore (ArrayList<String> names, HashMap<String, Integer> nameIds)
+    {
+        this._names = names;
+        this._nameIds = nameIds;
+    }
+
+    /**
+     * Return a view of the entry at the given position.
+     */
+    public Entry getEntry (int index)
+    {
+        if (index < 0 || index >= _size) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + _size);
+        }
+        return new Entry(index);
+    }
+
+    /**
+     * Return the entry at the given position as a new SearchResult, whose attributes ignore
+     * case like those of the LDAP provider and whose name is its DN.
+     */
+    @Override
+    public SearchResult get (int index)
+    {
+        Entry entry = getEntry(index);
+        BasicAttributes attrs = new BasicAttributes(true);
+        int value = _entryValues[index] + 1;
+        for (int ii = _entryAttrs[index], nn = entry.getAttributeEnd(); ii < nn; ii++) {
+            BasicAttribute attr = new BasicAttribute(getName(ii));
+            for (int jj = 0; jj < _attrValueCounts[ii]; jj++, value++) {
+                attr.add(isBinary(ii) ? (Object) getBytes(value) : getText(value));
+            }
+            attrs.put(attr);
+        }
+        String dn = entry.getDN();
+        SearchResult result = new SearchResult(dn, null, attrs, false);
+        result.setNameInNamespace(dn);
+        return result;
+    }
+
+    @Override
+    public int size ()
+    {
+        return _size;
+    }
+
+    /**
+     * Return the number of attribute names in the dictionary, which numbers them from 0.
+     */
+    public int getNameCount ()
+    {
+        return _names.size();
+    }
+
+    /** Return the name of an attribute, as the server sent it. */
+    public String getName (int attribute)
+    {
+        return _names.get(getNameId(attribute));
+    }
+
+    /** Return the number of an attribute's name in the dictionary. */
+    public int getNameId (int attribute)
+    {
+        return _attrNames[attribute] >>> 1;
+    }
+
+    /** Return true if the values of an attribute are given back as bytes. */
+    public boolean isBinary (int attribute)
+    {
+        return (_attrNames[attribute] & 1) != 0;
+    }
+
+    /** Return the number of values of an attribute. */
+    public int getValueCount (int attribute)
+    {
+        return _attrValueCounts[attribute];
+    }
+
+    /** Return a copy of the bytes of a value. */
+    public byte[] getBytes (int value)
+    {
+        int start = getValueStart(value);
+        byte[] bytes = new byte[_valueEnds[value] - start];
+        System.arraycopy(_data, start, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /** Return a value decoded as text. */
+    public String getText (int value)
+    {
+        int start = getValueStart(value);
+        try {
+            return new String(_data, start, _valueEnds[value] - start, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return a rough estimate of the bytes the store takes, for the search cache.
+     */
+    public long getWeight ()
+    {
+        return _data.length + 4L * (_valueEnds.length + 2 * _attrNames.length +
+                                    2 * _entryAttrs.length);
+    }
+
+    /**
+     * Create a store sharing this one's dictionary, holding copies of the entries from the
+     * given position on, for a streaming result dropping those it has read past.
+     */
+    protected LdapEntryStore tail (int from)
+    {
+        LdapEntryStore tail = new LdapEntryStore(_names, _nameIds);
+        for (int ii = from; ii < _size; ii++) {
+            tail.startEntry();
+            int value = _entryValues[ii];
+            tail.addValue(_data, getValueStart(value), _valueEnds[value]);
+            value++;
+            for (int aa = _entryAttrs[ii], nn = new Entry(ii).getAttributeEnd(); aa < nn; aa++) {
+                tail.addAttribute(_attrNames[aa], _attrValueCounts[aa]);
+                for (int jj = 0; jj < _attrValueCounts[aa]; jj++, value++) {
+                    tail.addValue(_data, getValueStart(value), _valueEnds[value]);
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Add an entry to the end of the store.
+     */
+    protected void append (SearchResult entry)
+        throws NamingException
+    {
+        startEntry();
+        addValue(toBytes(entry.getNameInNamespace()));
+        NamingEnumeration<? extends Attribute> attrs = entry.getAttributes().getAll();
+        while (attrs.hasMore()) {
+            Attribute attr = attrs.next();
+            // The values go in first, as they decide whether the attribute is binary.
+            int attribute = addAttribute(0, 0);
+            boolean binary = false;
+            int count = 0;
+            NamingEnumeration<?> values = attr.getAll();
+            while (values.hasMore()) {
+                Object value = values.next();
+                if (value instanceof byte[]) {
+                    binary = true;
+                    addValue((byte[]) value);
+                } else {
+                    addValue(toBytes(String.valueOf(value)));
+                }
+                count++;
+            }
+            _attrNames[attribute] = (getNameId(attr.getID()) << 1) | (binary ? 1 : 0);
+            _attrValueCounts[attribute] = count;
+        }
+    }
+
+    /**
+     * Shrink the arrays to what they hold, once the result is complete.
+     */
+    protected void trim ()
+    {
+        _data = resize(_data, _dataSize);
+        _valueEnds = resize(_valueEnds, _valueCount);
+        _attrNames = resize(_attrNames, _attrCount);
+        _attrValueCounts = resize(_attrValueCounts, _attrCount);
+        _entryAttrs = resize(_entryAttrs, _size);
+        _entryValues = resize(_entryValues, _size);
+    }
+
+    protected void startEntry ()
+    {
+        if (_size == _entryAttrs.length) {
+            _entryAttrs = resize(_entryAttrs, 2 * _size + 8);
+            _entryValues = resize(_entryValues, 2 * _size + 8);
+        }
+        _entryAttrs[_size] = _attrCount;
+        _entryValues[_size] = _valueCount;
+        _size++;
+    }
+
+    /**
+     * Add an attribute to the last entry, to be followed by its values.
+     *
+     * @param name The attribute's name in the dictionary, shifted left by one, plus one if it is
+     *        binary.
+     * @return The position of the attribute.
+     */
+    protected int addAttribute (int name, int valueCount)
+    {
+        if (_attrCount == _attrNames.length) {
+            _attrNames = resize(_attrNames, 2 * _attrCount + 16);
+            _attrValueCounts = resize(_attrValueCounts, 2 * _attrCount + 16);
+        }
+        _attrNames[_attrCount] = name;
+        _attrValueCounts[_attrCount] = valueCount;
+        return _attrCount++;
+    }
+
+    protected void addValue (byte[] bytes)
+    {
+        addValue(bytes, 0, bytes.length);
+    }
+
+    protected void addValue (byte[] source, int start, int end)
+    {
+        int length = end - start;
+        if (_dataSize + length > _data.length) {
+            _data = resize(_data, Math.max(2 * _data.length, _dataSize + length) + 256);
+        }
+        System.arraycopy(source, start, _data, _dataSize, length);
+        _dataSize += length;
+        if (_valueCount == _valueEnds.length) {
+            _valueEnds = resize(_valueEnds, 2 * _valueCount + 32);
+        }
+        _valueEnds[_valueCount++] = _dataSize;
+    }
+
+    protected int getValueStart (int value)
+    {
+        return (value == 0) ? 0 : _valueEnds[value - 1];
+    }
+
+    /**
+     * Return the number of a name in the dictionary, adding it if it is new.
+     */
+    protected int getNameId (String name)
+    {
+        Integer id = _nameIds.get(name);
+        if (id == null) {
+            id = _names.size();
+            _names.add(name);
+            _nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    protected static byte[] toBytes (String value)
+    {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static byte[] resize (byte[] array, int length)
+    {
+        byte[] resized = new byte[length];
+        System.arraycopy(array, 0, resized, 0, Math.min(array.length, length));
+        return resized;
+    }
+
+    protected static int[] resize (int[] array, int length)
+    {
+        int[] resized = new int[length];
+        System.arraycopy(array, 0, resized, 0, Math.min(array.length, length));
+        return resized;
+    }
+
+    /** Attribute names by number, as the server sent them, and their numbers by name. */
+    protected ArrayList<String> _names;
+    protected HashMap<String, Integer> _nameIds;
+
+    /** Every DN and value, one after the other, and where each ends. */
+    protected byte[] _data = new byte[0];
+    protected int _dataSize;
+    protected int[] _valueEnds = new int[0];
+    protected int _valueCount;
+
+    /** The name and binary flag of each attribute of each entry, see addAttribute(). */
+    protected int[] _attrNames = new int[0];
+    protected int[] _attrValueCounts = new int[0];
+    protected int _attrCount;
+
+    /** The first attribute of each entry, and its DN, which its values follow. */
+    protected int[] _entryAttrs = new int[0];
+    protected int[] _entryValues = new int[0];
+    protected int _size;
+}
@@ -0,0 +1,683 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import javax.naming.directory.InvalidSearchFilterException;
+
+/**
+ * A search filter parsed from its string form (RFC 4515), so that malformed filters can be
+ * refused without asking the server and equivalent ones recognized. A filter without the outer
+ * parentheses, as JNDI accepts, is read as if it had them, and a backslash followed by anything
+ * other than two hex digits escapes that character, as in LDAPv2.
+ *
+ * normalize() returns the canonical form of a filter: attribute names and matching rules in
+ * lower case, the operands of ANDs and ORs flattened, without duplicates and sorted, ANDs and
+ * ORs of one operand and double negations removed, and values escaped the same way whatever
+ * escapes the original used. Values themselves are left alone, as whether case matters depends
+ * on the attribute's matching rules. Filters are immutable.
+ */
+public abstract class LdapFilter
+{
+    /** Filters combining others: (&...), (|...) and (!...). */
+    public static class Composite extends LdapFilter
+    {
+        public Composite (char operator, List<LdapFilter> operands)
+        {
+            this._operator = operator;
+            this._operands = Collections.unmodifiableList(new ArrayList<LdapFilter>(operands));
+        }
+
+        /** Return '&', '|' or '!'. */
+        public char getOperator ()
+        {
+            return _operator;
+        }
+
+        public List<LdapFilter> getOperands ()
+        {
+            return _operands;
+        }
+
+        @Override
+        public LdapFilter normalize ()
+        {
+            if (_operator == NOT) {
+                LdapFilter operand = _operands.get(0).normalize();
+                if (operand instanceof Composite && ((Composite) operand)._operator == NOT) {
+                    return ((Composite) operand)._operands.get(0);
+                }
+                return new Composite(NOT, Collections.singletonList(operand));
+            }
+            // Sorted by canonical string, which also drops duplicates.
+            TreeMap<String, LdapFilter> operands = new TreeMap<String, LdapFilter>();
+            addNormalized(operands);
+            if (operands.size() == 1) {
+                return operands.values().iterator().next();
+            }
+            return new Composite(_operator, new ArrayList<LdapFilter>(operands.values()));
+        }
+
+        @Override
+        protected void append (StringBuilder buf)
+        {
+            buf.append('(').append(_operator);
+            for (LdapFilter operand : _operands) {
+                operand.append(buf);
+            }
+            buf.append(')');
+        }
+
+        /**
+         * Add the normalized operands of this filter to operands, and those of operands that
+         * are themselves filters of the same kind in their place.
+         */
+        protected void addNormalized (TreeMap<String, LdapFilter> operands)
+        {
+            for (LdapFilter operand : _operands) {
+                if (operand instanceof Composite && ((Composite) operand)._operator == _operator) {
+                    ((Composite) operand).addNormalized(operands);
+                    continue;
+                }
+                LdapFilter normalized = operand.normalize();
+                if (normalized instanceof Composite &&
+                    ((Composite) normalized)._operator == _operator) {
+                    ((Composite) normalized).addNormalized(operands);
+                } else {
+                    operands.put(normalized.toString(), normalized);
+                }
+            }
+        }
+
+        protected char _operator;
+        protected List<LdapFilter> _operands;
+    }
+
+    /** Filters comparing an attribute with a value: =, ~=, >= and <=. */
+    public static class Comparison extends LdapFilter
+    {
+        public Comparison (String attribute, String operator, byte[] value)
+        {
+            this._attribute = attribute;
+            this._operator = operator;
+            this._value = value;
+        }
+
+        public String getAttribute ()
+        {
+            return _attribute;
+        }
+
+        /** Return "=", "~=", ">=" or "<=". */
+        public String getOperator ()
+        {
+            return _operator;
+        }
+
+        /** Return the value, unescaped. */
+        public byte[] getValue ()
+        {
+            return _value.clone();
+        }
+
+        @Override
+        public LdapFilter normalize ()
+        {
+            return new Comparison(toLowerCase(_attribute), _operator, _value);
+        }
+
+        @Override
+        protected void append (StringBuilder buf)
+        {
+            buf.append('(').append(_attribute).append(_operator);
+            appendValue(buf, _value);
+            buf.append(')');
+        }
+
+        protected String _attribute;
+        protected String _operator;
+        protected byte[] _value;
+    }
+
+    /** The presence filter, (attribute=*). */
+    public static class Present extends LdapFilter
+    {
+        public Present (String attribute)
+        {
+            this._attribute = attribute;
+        }
+
+        public String getAttribute ()
+        {
+            return _attribute;
+        }
+
+        @Override
+        public LdapFilter normalize ()
+        {
+            return new Present(toLowerCase(_attribute));
+        }
+
+        @Override
+        protected void append (StringBuilder buf)
+        {
+            buf.append('(').append(_attribute).append("=*)");
+        }
+
+        protected String _attribute;
+    }
+
+    /** Substring filters, such as (cn=J*n*Doe). */
+    public static class Substring extends LdapFilter
+    {
+        /**
+         * @param initial The part the value starts with, or null.
+         * @param any The parts in between, in order.
+         * @param fin The part the value ends with, or null.
+         */
+        public Substring (String attribute, byte[] initial, List<byte[]> any, byte[] fin)
+        {
+            this._attribute = attribute;
+            this._initial = initial;
+            this._any = Collections.unmodifiableList(new ArrayList<byte[]>(any));
+            this._final = fin;
+        }
+
+        public String getAttribute ()
+        {
+            return _attribute;
+        }
+
+        /** Return the part the value starts with, unescaped, or null. */
+        public byte[] getInitial ()
+        {
+            return (_initial == null) ? null : _initial.clone();
+        }
+
+        /** Return the parts in between, unescaped. */
+        public List<byte[]> getAny ()
+        {
+            List<byte[]> any = new ArrayList<byte[]>(_any.size());
+            for (byte[] part : _any) {
+                any.add(part.clone());
+            }
+            return any;
+        }
+
+        /** Return the part the value ends with, unescaped, or null. */
+        public byte[] getFinal ()
+        {
+            return (_final == null) ? null : _final.clone();
+        }
+
+        @Override
+        public LdapFilter normalize ()
+        {
+            return new Substring(toLowerCase(_attribute), _initial, _any, _final);
+        }
+
+        @Override
+        protected void append (StringBuilder buf)
+        {
+            buf.append('(').append(_attribute).append('=');
+            if (_initial != null) {
+                appendValue(buf, _initial);
+            }
+            buf.append('*');
+            for (byte[] part : _any) {
+                appendValue(buf, part);
+                buf.append('*');
+            }
+            if (_final != null) {
+                appendValue(buf, _final);
+            }
+            buf.append(')');
+        }
+
+        protected String _attribute;
+        protected byte[] _initial;
+        protected List<byte[]> _any;
+        protected byte[] _final;
+    }
+
+    /** Extensible match filters, such as (cn:caseExactMatch:=Doe) or (:dn:2.5.13.5:=x). */
+    public static class Extensible extends LdapFilter
+    {
+        /**
+         * @param attribute The attribute, or null to match any with the rule.
+         * @param dn Whether the attributes of the entry's DN are matched too.
+         * @param rule The matching rule, or null for the attribute's equality rule.
+         */
+        public Extensible (String attribute, boolean dn, String rule, byte[] value)
+        {
+            this._attribute = attribute;
+            this._dn = dn;
+            this._rule = rule;
+            this._value = value;
+        }
+
+        @Override
+        public LdapFilter normalize ()
+        {
+            return new Extensible((_attribute == null) ? null : toLowerCase(_attribute), _dn,
+                                  (_rule == null) ? null : toLowerCase(_rule), _value);
+        }
+
+        @Override
+        protected void append (StringBuilder buf)
+        {
+            buf.append('(');
+            if (_attribute != null) {
+                buf.append(_attribute);
+            }
+            if (_dn) {
+                buf.append(":dn");
+            }
+            if (_rule != null) {
+                buf.append(':').append(_rule);
+            }
+            buf.append(":=");
+            appendValue(buf, _value);
+            buf.append(')');
+        }
+
+        protected String _attribute;
+        protected boolean _dn;
+        protected String _rule;
+        protected byte[] _value;
+    }
+
+    /**
+     * Parse a filter.
+     *
+     * @throws InvalidSearchFilterException if the filter is malformed.
+     */
+    public static LdapFilter parse (String filter)
+        throws InvalidSearchFilterException
+    {
+        String text = filter.trim();
+        if (text.length() == 0) {
+            throw error(filter, 0, "empty filter");
+        }
+        if (text.charAt(0) != '(') {
+            // JNDI lets a lone item leave out its parentheses.
+            text = "(" + text + ")";
+        }
+        int[] pos = { 0 };
+        LdapFilter parsed = parseFilter(text, pos);
+        if (pos[0] != text.length()) {
+            throw error(text, pos[0], "unexpected text after the filter");
+        }
+        return parsed;
+    }
+
+    /**
+     * Escape a string for use in a filter or DN, as PHP's ldap_escape() does.
+     *
+     * @param ignore Characters not to escape.
+     * @param flags ESCAPE_FILTER to escape the characters special in filters, ESCAPE_DN those
+     *        special in DNs, along with leading and trailing spaces, both or neither to escape
+     *        every character.
+     */
+    public static String escape (String value, String ignore, int flags)
+    {
+        boolean[] special = new boolean[128];
+        if ((flags & ESCAPE_FILTER) != 0) {
+            mark(special, "\\*()\u0000");
+        }
+        if ((flags & ESCAPE_DN) != 0) {
+            mark(special, "\\,=+<>;\"#\r");
+        }
+        boolean all = ((flags & (ESCAPE_FILTER | ESCAPE_DN)) == 0);
+        StringBuilder buf = new StringBuilder(value.length() + 16);
+        int last = value.length() - 1;
+        for (int ii = 0; ii <= last; ii++) {
+            char c = value.charAt(ii);
+            boolean escape;
+            if (ignore != null && ignore.indexOf(c) >= 0) {
+                escape = false;
+            } else if (all) {
+                escape = true;
+            } else if (c == ' ' && (flags & ESCAPE_DN) != 0) {
+                escape = (ii == 0 || ii == last);
+            } else {
+                escape = (c < 128 && special[c]);
+            }
+            if (!escape) {
+                buf.append(c);
+            } else if (c <= 0xFF) {
+                // PHP strings are bytes, which Quercus hands us as chars up to 0xFF.
+                appendHex(buf, c);
+            } else {
+                for (byte b : toUTF8(String.valueOf(c))) {
+                    appendHex(buf, b & 0xFF);
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Return the canonical form of this filter, see the class documentation.
+     */
+    public abstract LdapFilter normalize ();
+
+    /**
+     * Return the string form of the filter, with values escaped canonically.
+     */
+    @Override
+    public String toString ()
+    {
+        StringBuilder buf = new StringBuilder();
+        append(buf);
+        return buf.toString();
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        return (other instanceof LdapFilter) && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return toString().hashCode();
+    }
+
+    /** Append the string form of the filter. */
+    protected abstract void append (StringBuilder buf);
+
+    /**
+     * Parse the filter starting with the parenthesis at pos, leaving pos after its closing
+     * parenthesis.
+     */
+    protected static LdapFilter parseFilter (String text, int[] pos)
+        throws InvalidSearchFilterException
+    {
+        if (pos[0] >= text.length() || text.charAt(pos[0]) != '(') {
+            throw error(text, pos[0], "expected '('");
+        }
+        pos[0]++;
+        if (pos[0] >= text.length()) {
+            throw error(text, pos[0], "unexpected end");
+        }
+        char c = text.charAt(pos[0]);
+        LdapFilter filter;
+        if (c == AND || c == OR || c == NOT) {
+            pos[0]++;
+            // Like JNDI, allow spaces around the operands.
+            skipSpaces(text, pos);
+            List<LdapFilter> operands = new ArrayList<LdapFilter>();
+            while (pos[0] < text.length() && text.charAt(pos[0]) == '(') {
+                operands.add(parseFilter(text, pos));
+                skipSpaces(text, pos);
+            }
+            if (c == NOT && operands.size() != 1) {
+                throw error(text, pos[0], "'!' takes one filter");
+            }
+            filter = new Composite(c, operands);
+        } else {
+            filter = parseItem(text, pos);
+        }
+        if (pos[0] >= text.length() || text.charAt(pos[0]) != ')') {
+            throw error(text, pos[0], "expected ')'");
+        }
+        pos[0]++;
+        return filter;
+    }
+
+    /**
+     * Advance pos past any whitespace.
+     */
+    protected static void skipSpaces (String text, int[] pos)
+    {
+        while (pos[0] < text.length() && Character.isWhitespace(text.charAt(pos[0]))) {
+            pos[0]++;
+        }
+    }
+
+    /**
+     * Parse a simple, presence, substring or extensible item, leaving pos at its closing
+     * parenthesis.
+     */
+    protected static LdapFilter parseItem (String text, int[] pos)
+        throws InvalidSearchFilterException
+    {
+        int start = pos[0];
+        int equals = text.indexOf('=', start);
+        int close = findClose(text, start);
+        if (equals < 0 || equals > close) {
+            throw error(text, start, "expected '='");
+        }
+        pos[0] = close;
+        String left = text.substring(start, equals);
+        String value = text.substring(equals + 1, close);
+        if (left.endsWith(":")) {
+            return parseExtensible(text, start, left.substring(0, left.length() - 1),
+                                   unescape(text, equals + 1, value));
+        }
+        String operator = "=";
+        if (left.endsWith("~") || left.endsWith(">") || left.endsWith("<")) {
+            operator = left.charAt(left.length() - 1) + "=";
+            left = left.substring(0, left.length() - 1);
+        }
+        checkAttribute(text, start, left);
+        if (!operator.equals("=") || value.indexOf('*') < 0) {
+            return new Comparison(left, operator, unescape(text, equals + 1, value));
+        }
+        if (value.equals("*")) {
+            return new Present(left);
+        }
+        // Unescaped stars split the value into its parts.
+        List<byte[]> parts = new ArrayList<byte[]>();
+        int partStart = 0;
+        for (int ii = 0; ii <= value.length(); ii++) {
+            if (ii == value.length() || value.charAt(ii) == '*') {
+                parts.add(unescape(text, equals + 1 + partStart, value.substring(partStart, ii)));
+                partStart = ii + 1;
+            } else if (value.charAt(ii) == '\\') {
+                ii++;
+            }
+        }
+        if (parts.size() == 1) {
+            // The only stars were escaped.
+            return new Comparison(left, operator, parts.get(0));
+        }
+        for (int ii = 1; ii < parts.size() - 1; ii++) {
+            if (parts.get(ii).length == 0) {
+                throw error(text, equals + 1, "empty substring");
+            }
+        }
+        byte[] initial = parts.get(0);
+        byte[] fin = parts.get(parts.size() - 1);
+        return new Substring(left, (initial.length == 0) ? null : initial,
+                             parts.subList(1, parts.size() - 1),
+                             (fin.length == 0) ? null : fin);
+    }
+
+    /**
+     * Parse the part of an extensible match item before ":=".
+     */
+    protected static LdapFilter parseExtensible (String text, int start, String left,
+                                                 byte[] value)
+        throws InvalidSearchFilterException
+    {
+        List<String> parts = new ArrayList<String>(Arrays.asList(left.split(":", -1)));
+        String attribute = parts.remove(0);
+        boolean dn = false;
+        if (!parts.isEmpty() && parts.get(0).equalsIgnoreCase("dn")) {
+            dn = true;
+            parts.remove(0);
+        }
+        String rule = null;
+        if (!parts.isEmpty()) {
+            rule = parts.remove(0);
+            checkAttribute(text, start, rule);
+        }
+        if (!parts.isEmpty() || (attribute.length() == 0 && rule == null)) {
+            throw error(text, start, "bad extensible match");
+        }
+        if (attribute.length() > 0) {
+            checkAttribute(text, start, attribute);
+        }
+        return new Extensible((attribute.length() == 0) ? null : attribute, dn, rule, value);
+    }
+
+    /**
+     * Return the position of the parenthesis closing the item starting at start. Values may not
+     * hold unescaped parentheses.
+     */
+    protected static int findClose (String text, int start)
+        throws InvalidSearchFilterException
+    {
+        for (int ii = start; ii < text.length(); ii++) {
+            char c = text.charAt(ii);
+            if (c == '\\') {
+                ii++;
+            } else if (c == ')') {
+                return ii;
+            } else if (c == '(') {
+                throw error(text, ii, "unescaped '('");
+            }
+        }
+        throw error(text, text.length(), "expected ')'");
+    }
+
+    /**
+     * Check that an attribute description or matching rule has only the characters it may.
+     */
+    protected static void checkAttribute (String text, int start, String attribute)
+        throws InvalidSearchFilterException
+    {
+        if (attribute.length() == 0) {
+            throw error(text, start, "missing attribute");
+        }
+        for (int ii = 0; ii < attribute.length(); ii++) {
+            char c = attribute.charAt(ii);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                  c == '-' || c == '.' || c == ';' || c == '_')) {
+                throw error(text, start + ii, "bad character in attribute '" + attribute + "'");
+            }
+        }
+    }
+
+    /**
+     * Return the bytes of an escaped value, given as UTF-8 apart from its escapes.
+     *
+     * @param offset Where the value starts in text, for error messages.
+     */
+    protected static byte[] unescape (String text, int offset, String value)
+        throws InvalidSearchFilterException
+    {
+        if (value.indexOf('\\') < 0) {
+            return toUTF8(value);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length());
+        int ii = 0;
+        while (ii < value.length()) {
+            int next = value.indexOf('\\', ii);
+            if (next < 0) {
+                next = value.length();
+            }
+            byte[] plain = toUTF8(value.substring(ii, next));
+            out.write(plain, 0, plain.length);
+            if (next == value.length()) {
+                break;
+            }
+            if (next + 1 >= value.length()) {
+                throw error(text, offset + next, "dangling '\\'");
+            }
+            int hi = Character.digit(value.charAt(next + 1), 16);
+            int lo = (next + 2 < value.length()) ? Character.digit(value.charAt(next + 2), 16) :
+                -1;
+            if (hi >= 0 && lo >= 0) {
+                out.write((hi << 4) | lo);
+                ii = next + 3;
+            } else {
+                // An LDAPv2 style escape of the character itself.
+                byte[] escaped = toUTF8(value.substring(next + 1, next + 2));
+                out.write(escaped, 0, escaped.length);
+                ii = next + 2;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Append a value, escaping what must be escaped and every byte outside printable ASCII, so
+     * that each value has a single canonical form.
+     */
+    protected static void appendValue (StringBuilder buf, byte[] value)
+    {
+        for (byte b : value) {
+            int c = b & 0xFF;
+            if (c < 0x20 || c >= 0x7F || c == '*' || c == '(' || c == ')' || c == '\\') {
+                appendHex(buf, c);
+            } else {
+                buf.append((char) c);
+            }
+        }
+    }
+
+    protected static void appendHex (StringBuilder buf, int b)
+    {
+        buf.append('\\').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+    }
+
+    protected static void mark (boolean[] special, String chars)
+    {
+        for (int ii = 0; ii < chars.length(); ii++) {
+            special[chars.charAt(ii)] = true;
+        }
+    }
+
+    protected static String toLowerCase (String name)
+    {
+        // Attribute names are ASCII, so the default locale mustn't get a say.
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    protected static byte[] toUTF8 (String value)
+    {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static InvalidSearchFilterException error (String text, int pos, String message)
+    {
+        return new InvalidSearchFilterException(
+            "Bad search filter \"" + text + "\" at " + pos + ": " + message);
+    }
+
+    /** Flags of escape(), with the values of PHP's LDAP_ESCAPE_FILTER and LDAP_ESCAPE_DN. */
+    public static final int ESCAPE_FILTER = 1;
+    public static final int ESCAPE_DN = 2;
+
+    protected static final char AND = '&';
+    protected static final char OR = '|';
+    protected static final char NOT = '!';
+
+    protected static final char[] HEX = "0123456789abcdef".toCharArray();
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.directory.InvalidSearchFilterException;
+
+import com.caucho.util.LruCache;
+
+/**
+ * Remembers recently parsed search filters in their canonical form, so that the filters a busy
+ * script sends over and over are checked and normalized once rather than on every search.
+ * Filters that fail to parse aren't remembered. At most maxEntries filters are kept, the least
+ * recently used being dropped first. Setting maxEntries to 0 disables the cache.
+ */
+public class LdapFilterCache
+    implements LdapMetrics.Source
+{
+    /**
+     * Create a cache configured from system properties, falling back to the defaults below.
+     */
+    public LdapFilterCache ()
+    {
+        this(Integer.getInteger(PROP_PREFIX + "maxEntries", DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries Maximum number of filters kept, 0 to disable caching.
+     */
+    public LdapFilterCache (int maxEntries)
+    {
+        if (maxEntries > 0) {
+            _filters = new LruCache<String, LdapFilter>(maxEntries);
+        }
+    }
+
+    /**
+     * Return the cache shared by all LdapLinkResources.
+     */
+    public static LdapFilterCache getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Return the normalized form of a filter, parsing it if it isn't cached.
+     *
+     * @throws InvalidSearchFilterException if the filter is malformed.
+     */
+    public LdapFilter get (String filter)
+        throws InvalidSearchFilterException
+    {
+        LdapFilter parsed = (_filters == null) ? null : _filters.get(filter);
+        if (parsed != null) {
+            _hits.incrementAndGet();
+            return parsed;
+        }
+        _misses.incrementAndGet();
+        parsed = LdapFilter.parse(filter).normalize();
+        if (_filters != null) {
+            _filters.put(filter, parsed);
+        }
+        return parsed;
+    }
+
+    /** Return the number of filters found already parsed. */
+    public long getHitCount ()
+    {
+        return _hits.get();
+    }
+
+    /** Return the number of filters that had to be parsed. */
+    public long getMissCount ()
+    {
+        return _misses.get();
+    }
+
+    /** Return the number of filters currently cached. */
+    public int size ()
+    {
+        return (_filters == null) ? 0 : _filters.size();
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("filterCache.hits", getHitCount());
+        snapshot.put("filterCache.misses", getMissCount());
+    }
+
+    /** Normalized filters by their text as given, or null if they are not cached. */
+    protected LruCache<String, LdapFilter> _filters;
+
+    protected AtomicLong _hits = new AtomicLong();
+    protected AtomicLong _misses = new AtomicLong();
+
+    /** Prefix of the system properties used to configure the shared cache. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.filtercache.";
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    protected static final LdapFilterCache _shared = new LdapFilterCache();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
@@ -15,26 +15,175 @@
 
 package com.threerings.quercus.lib.ldap;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import javax.naming.AuthenticationException;
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
-import javax.naming.directory.InitialDirContext;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.InvalidSearchFilterException;
+import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
 
+import com.caucho.quercus.env.EnvCleanup;
 import com.caucho.quercus.env.ResourceValue;
 
 public class LdapLinkResource extends ResourceValue
+    implements EnvCleanup
 {
     /**
      * Create a new LdapLinkResource.
      *
-     * @param uri URI of LDAP server.
+     * @param uri URI of LDAP server, or the URIs of several equivalent servers separated by
+     *        spaces. Binds go to one of them as chosen by the balancer, and fail over to the
+     *        others.
      */
     public LdapLinkResource (String uri)
     {
-        this._uri = uri;
+        this(uri, LdapConnectionPool.getShared());
+    }
+
+    /**
+     * Create a new LdapLinkResource that gets its connections from the given pool.
+     *
+     * @param uri URI of LDAP server.
+     * @param pool Pool to borrow bound connections from and return them to on unbind.
+     */
+    public LdapLinkResource (String uri, LdapConnectionPool pool)
+    {
+        this(uri, pool, LdapBindCache.getShared());
+    }
+
+    /**
+     * Create a new LdapLinkResource that gets its connections from the given pool and checks
+     * passwords against the given bind cache first.
+     *
+     * @param uri URI of LDAP server.
+     * @param pool Pool to borrow bound connections from and return them to on unbind.
+     * @param bindCache Recent bind results, consulted before asking the server.
+     */
+    public LdapLinkResource (String uri, LdapConnectionPool pool, LdapBindCache bindCache)
+    {
+        this(uri, pool, bindCache, LdapSearchCache.getShared());
+    }
+
+    /**
+     * Create a new LdapLinkResource with its own pool and caches.
+     *
+     * @param uri URI of LDAP server.
+     * @param pool Pool to borrow bound connections from and return them to on unbind.
+     * @param bindCache Recent bind results, consulted before asking the server.
+     * @param searchCache Recent search results, consulted before asking the server.
+     */
+    public LdapLinkResource (String uri, LdapConnectionPool pool, LdapBindCache bindCache,
+                             LdapSearchCache searchCache)
+    {
+        this(uri, pool, bindCache, searchCache, LdapServerHealth.getShared());
+    }
+
+    /**
+     * Create a new LdapLinkResource with its own pool, caches and record of which servers are
+     * down.
+     *
+     * @param uri URI of LDAP server.
+     * @param pool Pool to borrow bound connections from and return them to on unbind.
+     * @param bindCache Recent bind results, consulted before asking the server.
+     * @param searchCache Recent search results, consulted before asking the server.
+     * @param health Tracks failures of the server, so that binds fail fast while it is down.
+     */
+    public LdapLinkResource (String uri, LdapConnectionPool pool, LdapBindCache bindCache,
+                             LdapSearchCache searchCache, LdapServerHealth health)
+    {
+        this(uri, pool, bindCache, searchCache, health, LdapBalancer.getShared());
+    }
+
+    /**
+     * Create a new LdapLinkResource with all of its collaborators given explicitly.
+     *
+     * @param uri URI of LDAP server, or several separated by spaces.
+     * @param pool Pool to borrow bound connections from and return them to on unbind.
+     * @param bindCache Recent bind results, consulted before asking the server.
+     * @param searchCache Recent search results, consulted before asking the server.
+     * @param health Tracks failures of the servers, so that binds fail fast while they are down.
+     * @param balancer Picks which of several servers to bind to.
+     */
+    public LdapLinkResource (String uri, LdapConnectionPool pool, LdapBindCache bindCache,
+                             LdapSearchCache searchCache, LdapServerHealth health,
+                             LdapBalancer balancer)
+    {
+        this._uriList = uri.trim();
+        this._uris = _uriList.split("\\s+");
+        this._uri = _uris[0];
+        this._pool = pool;
+        this._bindCache = bindCache;
+        this._searchCache = searchCache;
+        this._health = health;
+        this._balancer = balancer;
+    }
+
+    /**
+     * Set the path of the script using this link, for the slow query log.
+     */
+    public void setScript (String script)
+    {
+        _script = script;
+    }
+
+    /**
+     * Return the options of this link, as changed by ldap_set_option().
+     */
+    public LdapOptions getOptions ()
+    {
+        return _options;
+    }
+
+    /**
+     * Return the metrics this link records its operations in.
+     */
+    public LdapMetrics getMetrics ()
+    {
+        return _metrics;
+    }
+
+    /**
+     * Have the connections of later binds switched to TLS with the StartTLS extended operation
+     * before binding. Unlike PHP, which negotiates TLS right away, this takes effect with the next
+     * ldap_bind(), since that is when this link connects; a failed negotiation makes the bind
+     * fail. TLS sessions are shared between connections, so most skip the full handshake.
+     *
+     * @return false if the link connects with ldaps:// and so already uses TLS.
+     */
+    public boolean startTLS ()
+    {
+        for (String uri : _uris) {
+            if (uri.toLowerCase().startsWith("ldaps:")) {
+                return false;
+            }
+        }
+        _startTLS = true;
+        return true;
     }
 
     /**
@@ -50,18 +199,726 @@ public class LdapLinkResource extends ResourceValue
      * @param deref Specifies how aliases should be handled during the search.
      * @param scope The scope to search under. Can be SearchControls.OBJECT_SCOPE, ONELEVEL_SCOPE,
      *        or SUBTREE_SCOPE.
-     * @return LdapResultResource identifier of the search result, or null on error.
+     * @return LdapResultResource identifier of the search result, or null on error. If
+     *         LdapModule.LDAP_OPT_STREAM_RESULTS is set the result reads entries from the server as
+     *         they are asked for, until this link is unbound. If LdapModule.LDAP_OPT_PAGE_SIZE is
+     *         set the search is run in pages of that many entries, and a streaming result only
+     *         asks for the next page once the script has read the previous one. A control from
+     *         setPagedResultsControl() overrides both, and the result holds a single page.
+     *         Results that are read in full may be answered from, and are added to, the search
+     *         cache, as LdapModule.LDAP_OPT_SEARCH_CACHE_TTL allows. Searches of a subtree kept
+     *         by an LdapMirror may be answered in full by it instead.
      */
     public LdapResultResource search (String baseDN, String filter, List<String> attributes,
                                       int attrsOnly, long sizeLimit, int timeLimit, int deref,
                                       int scope)
     {
+        return search(baseDN, filter, attributes, attrsOnly, sizeLimit, timeLimit, deref, scope,
+                      null);
+    }
+
+    /**
+     * Search for the specified filter on the directory, returning a sorted view of the result.
+     * Servers that support server side sorting, and virtual list views if the view is a window,
+     * return only the view. Others return the whole result, which the view picks its entries
+     * from as it is read, keeping no more than it needs. A size limit then returns the first
+     * entries in order rather than failing. Views are never streamed or cached, and a control
+     * from setPagedResultsControl() is dropped.
+     *
+     * @param view The order and window of entries to return, or null for the whole result in
+     *        the server's order. A view is used for one search.
+     * @see #search(String, String, List, int, long, int, int, int)
+     */
+    public LdapResultResource search (String baseDN, String filter, List<String> attributes,
+                                      int attrsOnly, long sizeLimit, int timeLimit, int deref,
+                                      int scope, LdapView view)
+    {
+        long start = System.nanoTime();
+        LdapResultResource result = runSearch(baseDN, filter, attributes, attrsOnly, sizeLimit,
+                                              timeLimit, deref, scope, view);
+        long nanos = System.nanoTime() - start;
+        _metrics.recordTime((scope == SearchControls.OBJECT_SCOPE) ?
+                            LdapMetrics.READ : LdapMetrics.SEARCH, start);
+        int entries = (result != null && result.isComplete()) ? result.getEntries().size() : -1;
+        if (entries >= 0) {
+            _metrics.recordResultSize(entries);
+        }
+        if (_slowLog.isEnabled()) {
+            LdapSlowLog.Query query = _slowLog.searched(new LdapSlowLog.Query(
+                _uri, baseDN, filter, scope, attributes, _script, nanos), entries);
+            if (query != null && result != null) {
+                // Not slow yet, but converting the entries may make it so.
+                result.setSlowLogQuery(_slowLog, query);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Does the work of search(), which times it.
+     */
+    protected LdapResultResource runSearch (String baseDN, String filter,
+                                            List<String> attributes, int attrsOnly,
+                                            long sizeLimit, int timeLimit, int deref, int scope,
+                                            LdapView view)
+    {
+        boolean attrTypesOnly = (attrsOnly == 1);
+        SearchControls ctls = createControls(attributes, sizeLimit, timeLimit, deref, scope);
+        boolean streaming = _options.streamResults();
+        int pageSize = _options.getPageSize();
+        PagedResultsControl paged = _pagedControl;
+        _pagedControl = null;
         // Give up if we're not bound.
-        if (_ctx == null) {
+        if (_key == null) {
+            return null;
+        }
+        LdapFilter parsed = parseFilter(filter);
+        if (parsed == null) {
             return null;
         }
+        if (view == null && paged == null) {
+            LdapResultResource mirrored = searchMirror(baseDN, parsed, ctls, attrTypesOnly);
+            if (mirrored != null) {
+                return mirrored;
+            }
+        }
+        String canonical = parsed.toString();
 
-        boolean attrTypesOnly = (attrsOnly == 1);
+        // Streaming results and single pages don't hold the whole answer, so they aren't cached,
+        // and views would need their windows in the key.
+        LdapSearchCache.Key cacheKey = null;
+        long cacheTTL = (streaming || paged != null || view != null) ? 0 : getSearchCacheTTL();
+        if (cacheTTL != 0) {
+            cacheKey = new LdapSearchCache.Key(_key, baseDN, canonical, ctls, attrTypesOnly);
+            LdapEntryStore cached = _searchCache.get(cacheKey);
+            if (cached != null) {
+                return new LdapResultResource(cached, attrTypesOnly);
+            }
+        }
+
+        // If the server fails, searches are worth one more try on another. Pages aren't, as the
+        // paging state is the failed server's.
+        int tries = (_uris.length > 1 && paged == null) ? 2 : 1;
+        String failed = null;
+        while (tries-- > 0) {
+            try {
+                LdapContext ctx = getContext(failed);
+                String uri = _uri;
+                long start = System.currentTimeMillis();
+                _balancer.started(uri);
+                try {
+                    if (view != null) {
+                        return searchView(ctx, baseDN, filter, ctls, attrTypesOnly, pageSize,
+                                          view);
+                    }
+                    if (paged != null) {
+                        return searchPage(ctx, baseDN, filter, ctls, attrTypesOnly, paged);
+                    }
+                    return search(ctx, baseDN, filter, ctls, attrTypesOnly, streaming, pageSize,
+                                  cacheKey, cacheTTL);
+                } finally {
+                    _balancer.finished(uri, System.currentTimeMillis() - start);
+                }
+            } catch (NamingException e) {
+                _metrics.recordError(e);
+                failed = _uri;
+                if (!noteFailure(e)) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a search filter parsed and normalized, its string form being the canonical one
+     * equivalent filters share, or null if it is malformed and not worth sending to the server.
+     * The server is still sent the filter as the script wrote it.
+     */
+    protected LdapFilter parseFilter (String filter)
+    {
+        try {
+            return _filters.get(filter);
+        } catch (InvalidSearchFilterException e) {
+            _metrics.recordError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Answer a search from a mirror of the subtree it is in, if there is one that can.
+     *
+     * @param filter The search filter, normalized.
+     * @return The result, or null if the search has to go to the server.
+     */
+    protected LdapResultResource searchMirror (String baseDN, LdapFilter filter,
+                                               SearchControls ctls, boolean attrTypesOnly)
+    {
+        for (LdapMirror mirror : _mirrors) {
+            if (!mirror.answers(_uris, _key.getDN()) ||
+                !mirror.getBinaryAttributes().equals(_options.getBinaryAttributes())) {
+                continue;
+            }
+            List<SearchResult> entries = mirror.search(baseDN, filter, ctls);
+            if (entries != null) {
+                try {
+                    return new LdapResultResource(entries, attrTypesOnly);
+                } catch (NamingException e) {
+                    // Entries in memory can always be read, so this doesn't happen.
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a search on a connection of ours and wrap its answer.
+     */
+    protected LdapResultResource search (LdapContext ctx, String baseDN, String filter,
+                                         SearchControls ctls, boolean attrTypesOnly,
+                                         boolean streaming, int pageSize,
+                                         LdapSearchCache.Key cacheKey, long cacheTTL)
+        throws NamingException
+    {
+        NamingEnumeration answer;
+        if (pageSize > 0) {
+            // Not critical, so servers without paging support just send everything at once.
+            answer = new LdapPagedEnumeration(ctx, baseDN, filter, ctls, pageSize, false);
+        } else {
+            answer = ctx.search(baseDN, filter, ctls);
+        }
+        LdapResultResource result = new LdapResultResource(answer, attrTypesOnly, streaming);
+        if (streaming && !result.isComplete()) {
+            trackStreaming(result);
+        }
+        if (cacheKey != null) {
+            _searchCache.put(cacheKey, result.getEntries(), cacheTTL);
+        }
+        _health.succeeded(_uri);
+        return result;
+    }
+
+    /**
+     * Run a search for a sorted view on a connection of ours, having the server sort it if it
+     * can and sorting it here if not. The result keeps the sort and virtual list view response
+     * controls, made up if the view was sorted here.
+     */
+    protected LdapResultResource searchView (LdapContext ctx, String baseDN, String filter,
+                                             SearchControls ctls, boolean attrTypesOnly,
+                                             int pageSize, LdapView view)
+        throws NamingException
+    {
+        LdapResultResource result;
+        Set<String> supported = getSupportedControls(ctx);
+        if (supported.contains(SortControl.OID) &&
+            (!view.isWindow() || supported.contains(LdapVirtualListControl.OID))) {
+            NamingEnumeration answer;
+            ctx.setRequestControls(view.createControls(true));
+            try {
+                answer = ctx.search(baseDN, filter, ctls);
+            } finally {
+                ctx.setRequestControls(null);
+            }
+            // The server sends the first entries in order before saying the limit was hit.
+            List<SearchResult> entries = new ArrayList<SearchResult>();
+            try {
+                while (answer.hasMore()) {
+                    entries.add((SearchResult) answer.next());
+                }
+            } catch (SizeLimitExceededException e) {
+                // That's all we asked for.
+            }
+            result = new LdapResultResource(entries, attrTypesOnly);
+            result.setResponseControls(ctx.getResponseControls());
+        } else {
+            // Fetch everything, with the sort keys, and keep only the view.
+            long sizeLimit = ctls.getCountLimit();
+            ctls.setCountLimit(0);
+            List<String> added = addSortAttributes(ctls, view);
+            NamingEnumeration answer = (pageSize > 0) ?
+                new LdapPagedEnumeration(ctx, baseDN, filter, ctls, pageSize, false) :
+                ctx.search(baseDN, filter, ctls);
+            List<SearchResult> entries = view.select(answer, sizeLimit);
+            for (SearchResult entry : entries) {
+                for (String attribute : added) {
+                    entry.getAttributes().remove(attribute);
+                }
+            }
+            result = new LdapResultResource(entries, attrTypesOnly);
+            result.setResponseControls(view.getResponseControls());
+        }
+        _health.succeeded(_uri);
+        return result;
+    }
+
+    /**
+     * Add the view's sort keys to the attributes a search returns, if it doesn't return them
+     * all already.
+     *
+     * @return The attributes added, to be removed from the entries again.
+     */
+    protected static List<String> addSortAttributes (SearchControls ctls, LdapView view)
+    {
+        List<String> added = new ArrayList<String>();
+        String[] attributes = ctls.getReturningAttributes();
+        if (attributes == null) {
+            return added;
+        }
+        List<String> returning = new ArrayList<String>(Arrays.asList(attributes));
+        for (SortKey key : view.getKeys()) {
+            String attribute = key.getAttributeID();
+            boolean found = false;
+            for (String name : returning) {
+                found |= name.equalsIgnoreCase(attribute) || name.equals("*");
+            }
+            if (!found) {
+                returning.add(attribute);
+                added.add(attribute);
+            }
+        }
+        ctls.setReturningAttributes(returning.toArray(new String[returning.size()]));
+        return added;
+    }
+
+    /**
+     * Return the controls the server a connection is to supports, reading them from its root
+     * DSE the first time the connection is asked about.
+     */
+    protected static Set<String> getSupportedControls (LdapContext ctx)
+        throws NamingException
+    {
+        synchronized (_supportedControls) {
+            Set<String> supported = _supportedControls.get(ctx);
+            if (supported != null) {
+                return supported;
+            }
+        }
+        Set<String> supported = new HashSet<String>();
+        Attribute attr = ctx.getAttributes("", SUPPORTED_CONTROL).get(SUPPORTED_CONTROL[0]);
+        if (attr != null) {
+            for (int ii = 0; ii < attr.size(); ii++) {
+                supported.add(String.valueOf(attr.get(ii)));
+            }
+        }
+        synchronized (_supportedControls) {
+            _supportedControls.put(ctx, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * Start a search and return without waiting for its answer, so that a script can have
+     * several searches in flight at once. Each search runs on a context sharing this link's
+     * connection, on the executor of LdapPendingResult. Results are read in full; the paging
+     * and search cache options apply as for search(), streaming does not. Searches still
+     * running when the link is unbound, or its request ends, are cancelled.
+     *
+     * @return The pending search, or null if the link is not bound or the search could not be
+     *         started.
+     * @see #search
+     */
+    public LdapPendingResult searchAsync (final String baseDN, final String filter,
+                                          List<String> attributes, int attrsOnly, long sizeLimit,
+                                          int timeLimit, int deref, int scope)
+    {
+        final boolean attrTypesOnly = (attrsOnly == 1);
+        final SearchControls ctls = createControls(attributes, sizeLimit, timeLimit, deref, scope);
+        final int pageSize = _options.getPageSize();
+        if (_key == null) {
+            return null;
+        }
+        LdapFilter parsed = parseFilter(filter);
+        if (parsed == null) {
+            return null;
+        }
+        LdapResultResource mirrored = searchMirror(baseDN, parsed, ctls, attrTypesOnly);
+        if (mirrored != null) {
+            return LdapPendingResult.completed(mirrored);
+        }
+        String canonical = parsed.toString();
+
+        final long cacheTTL = getSearchCacheTTL();
+        final LdapSearchCache.Key cacheKey = (cacheTTL == 0) ? null :
+            new LdapSearchCache.Key(_key, baseDN, canonical, ctls, attrTypesOnly);
+        if (cacheKey != null) {
+            LdapEntryStore cached = _searchCache.get(cacheKey);
+            if (cached != null) {
+                return LdapPendingResult.completed(new LdapResultResource(cached, attrTypesOnly));
+            }
+        }
+
+        // Contexts aren't safe to share between threads, but new instances of one are, and
+        // they multiplex their operations over the same connection.
+        final LdapContext ctx;
+        try {
+            ctx = getContext().newInstance(null);
+        } catch (NamingException e) {
+            _metrics.recordError(e);
+            noteFailure(e);
+            return null;
+        }
+        final String uri = _uri;
+        LdapPendingResult pending = LdapPendingResult.submit(new Callable<LdapResultResource>() {
+            public LdapResultResource call () throws NamingException {
+                long startNanos = System.nanoTime();
+                long start = System.currentTimeMillis();
+                _balancer.started(uri);
+                try {
+                    NamingEnumeration answer = (pageSize > 0) ?
+                        new LdapPagedEnumeration(ctx, baseDN, filter, ctls, pageSize, false) :
+                        ctx.search(baseDN, filter, ctls);
+                    LdapResultResource result = new LdapResultResource(answer, attrTypesOnly);
+                    if (cacheKey != null) {
+                        _searchCache.put(cacheKey, result.getEntries(), cacheTTL);
+                    }
+                    _health.succeeded(uri);
+                    _metrics.recordResultSize(result.getEntries().size());
+                    return result;
+                } catch (NamingException e) {
+                    _metrics.recordError(e);
+                    // The link may be in use by now, so only the server's health is updated.
+                    if (LdapServerHealth.isServerFailure(e)) {
+                        _health.failed(uri);
+                    }
+                    throw e;
+                } finally {
+                    _balancer.finished(uri, System.currentTimeMillis() - start);
+                    _metrics.recordTime(LdapMetrics.SEARCH, startNanos);
+                }
+            }
+        }, ctx);
+        // Forget the searches that are over, so that long scripts don't pile them up.
+        for (Iterator<LdapPendingResult> iter = _pending.iterator(); iter.hasNext(); ) {
+            if (iter.next().isDone()) {
+                iter.remove();
+            }
+        }
+        _pending.add(pending);
+        return pending;
+    }
+
+    /**
+     * Read many entries by DN with as few searches as possible, see LdapBatchSearch.
+     *
+     * @param dns DNs of the entries to read.
+     * @param attributes Attributes to fetch, or null for all of them.
+     * @param attrsOnly Retrieve only attribute types if 1, values and types if 0.
+     * @return A result with the entries that exist, in the order of dns, or null on error.
+     */
+    public LdapResultResource readBatch (List<String> dns, List<String> attributes,
+                                         int attrsOnly)
+    {
+        LdapBatchSearch batch = new LdapBatchSearch(
+            createControls(attributes, 0, 0, LdapModule.LDAP_DEREF_NEVER,
+                           SearchControls.OBJECT_SCOPE), LdapBatchSearch.DEFAULT_MAX_TERMS);
+        try {
+            batch.addDNs(dns);
+        } catch (InvalidNameException e) {
+            return null;
+        }
+        return runBatch(batch, attrsOnly == 1, LdapMetrics.READ);
+    }
+
+    /**
+     * Find the entries whose attribute has any of many values with as few searches as possible,
+     * see LdapBatchSearch.
+     *
+     * @param baseDN Base DN of the searches.
+     * @param attribute Attribute to match, such as uid.
+     * @param values Values to look for.
+     * @param attributes Attributes to fetch, or null for all of them.
+     * @param attrsOnly Retrieve only attribute types if 1, values and types if 0.
+     * @param scope The scope to search under.
+     * @return A result with all entries found, or null on error.
+     */
+    public LdapResultResource searchBatch (String baseDN, String attribute, List<String> values,
+                                           List<String> attributes, int attrsOnly, int scope)
+    {
+        LdapBatchSearch batch = new LdapBatchSearch(
+            createControls(attributes, 0, 0, LdapModule.LDAP_DEREF_NEVER, scope),
+            LdapBatchSearch.DEFAULT_MAX_TERMS);
+        batch.addValues(baseDN, scope, attribute, values);
+        return runBatch(batch, attrsOnly == 1, LdapMetrics.SEARCH);
+    }
+
+    /**
+     * Run a batch on our connection.
+     *
+     * @param operation The name the batch is timed under in LdapMetrics.
+     */
+    protected LdapResultResource runBatch (LdapBatchSearch batch, boolean attrTypesOnly,
+                                           String operation)
+    {
+        if (_key == null) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            LdapContext ctx = getContext();
+            String uri = _uri;
+            long start = System.currentTimeMillis();
+            _balancer.started(uri);
+            try {
+                LdapResultResource result = new LdapResultResource(batch.run(ctx), attrTypesOnly);
+                _health.succeeded(uri);
+                _metrics.recordResultSize(result.getEntries().size());
+                return result;
+            } finally {
+                _balancer.finished(uri, System.currentTimeMillis() - start);
+            }
+        } catch (NamingException e) {
+            _metrics.recordError(e);
+            noteFailure(e);
+            return null;
+        } finally {
+            _metrics.recordTime(operation, startNanos);
+        }
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @return true if successful, false otherwise.
+     */
+    public boolean add (String dn, Attributes attributes)
+    {
+        try {
+            return write(LdapWrite.add(dn, attributes));
+        } catch (InvalidNameException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Change the attributes of an entry, all at once.
+     *
+     * @return true if successful, false otherwise.
+     */
+    public boolean modify (String dn, ModificationItem[] modifications)
+    {
+        try {
+            return write(LdapWrite.modify(dn, modifications));
+        } catch (InvalidNameException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete an entry. Sun's provider treats deleting an entry that doesn't exist, but whose
+     * parent does, as having succeeded.
+     *
+     * @return true if successful, false otherwise.
+     */
+    public boolean delete (String dn)
+    {
+        try {
+            return write(LdapWrite.delete(dn));
+        } catch (InvalidNameException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start applying many writes over our connection at once.
+     *
+     * @param maxInFlight Most writes to have outstanding at once.
+     * @return The bulk write, or null if the link is not bound or can't connect.
+     */
+    public LdapBulkWrite startBulk (int maxInFlight)
+    {
+        if (_key == null) {
+            return null;
+        }
+        try {
+            return new LdapBulkWrite(this, getContext(), maxInFlight);
+        } catch (NamingException e) {
+            _metrics.recordError(e);
+            noteFailure(e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the entries below a base DN to an LDIF file as the server returns them, without
+     * converting them for PHP or keeping them. The search is run in pages if
+     * LdapModule.LDAP_OPT_PAGE_SIZE is set, and has no size or time limit.
+     *
+     * @param attributes Attributes to write, or null for all of them.
+     * @return The number of entries written, or -1 if the search failed or the file couldn't be
+     *         written. The file may then hold some of the entries.
+     */
+    public int exportLdif (File file, String baseDN, String filter, List<String> attributes)
+    {
+        if (_key == null || parseFilter(filter) == null) {
+            return -1;
+        }
+        SearchControls ctls = createControls(attributes, 0, 0, -1, SearchControls.SUBTREE_SCOPE);
+        int pageSize = _options.getPageSize();
+        long startNanos = System.nanoTime();
+        try {
+            LdapContext ctx = getContext();
+            String uri = _uri;
+            long start = System.currentTimeMillis();
+            _balancer.started(uri);
+            FileOutputStream out = null;
+            try {
+                NamingEnumeration<SearchResult> answer = (pageSize > 0) ?
+                    new LdapPagedEnumeration(ctx, baseDN, filter, ctls, pageSize, false) :
+                    ctx.search(baseDN, filter, ctls);
+                try {
+                    out = new FileOutputStream(file);
+                    LdifWriter writer = new LdifWriter(out.getChannel());
+                    while (answer.hasMore()) {
+                        SearchResult result = answer.next();
+                        writer.write(result.getNameInNamespace(), result.getAttributes());
+                    }
+                    writer.flush();
+                    _health.succeeded(uri);
+                    _metrics.recordResultSize(writer.getCount());
+                    return writer.getCount();
+                } finally {
+                    answer.close();
+                }
+            } finally {
+                _balancer.finished(uri, System.currentTimeMillis() - start);
+                if (out != null) {
+                    out.close();
+                }
+            }
+        } catch (NamingException e) {
+            _metrics.recordError(e);
+            noteFailure(e);
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            _metrics.recordTime(LdapMetrics.SEARCH, startNanos);
+        }
+    }
+
+    /**
+     * Apply the records of an LDIF file with a bulk write, reading one record at a time. Content
+     * records add entries, and change records add, modify or delete them.
+     *
+     * @param maxInFlight Most writes to have outstanding at once.
+     * @return The message of each write that failed, by DN, or null if the link is not bound or
+     *         the file can't be opened. Reading stops at a record that isn't valid LDIF, or
+     *         that the file can't be read past, after applying the records before it; its
+     *         error is returned under "line N", N being the line the record starts on.
+     * @see LdapBulkWrite
+     */
+    public Map<String, String> importLdif (File file, int maxInFlight)
+    {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            LdapBulkWrite bulk = startBulk(maxInFlight);
+            if (bulk == null) {
+                return null;
+            }
+            LdifReader reader = new LdifReader(in.getChannel());
+            try {
+                LdapWrite write;
+                while ((write = reader.next()) != null) {
+                    bulk.submit(write);
+                }
+            } catch (IOException e) {
+                Map<String, String> failures = bulk.finish();
+                failures.put("line " + reader.getRecordLine(), e.getMessage());
+                return failures;
+            }
+            return bulk.finish();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing was written to it.
+            }
+        }
+    }
+
+    /**
+     * Apply a write on our connection. Writes are not retried on another server if ours fails,
+     * since they may have been applied before it did.
+     */
+    protected boolean write (LdapWrite write)
+    {
+        if (_key == null) {
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            LdapContext ctx = getContext();
+            String uri = _uri;
+            long start = System.currentTimeMillis();
+            _balancer.started(uri);
+            try {
+                write.apply(ctx);
+                _health.succeeded(uri);
+                noteWritten(write);
+                return true;
+            } finally {
+                _balancer.finished(uri, System.currentTimeMillis() - start);
+            }
+        } catch (NamingException e) {
+            _metrics.recordError(e);
+            noteFailure(e);
+            return false;
+        } finally {
+            _metrics.recordTime(write.getOperation(), startNanos);
+            invalidateSearches();
+        }
+    }
+
+    /**
+     * Drop the cached searches of our servers after writing to them, so that scripts see their
+     * own changes. Other JVMs' caches still have to wait for their TTL.
+     */
+    protected void invalidateSearches ()
+    {
+        if (_searchCache.isEnabled()) {
+            for (String uri : _uris) {
+                _searchCache.invalidate(uri);
+            }
+        }
+    }
+
+    /**
+     * Have the mirrors of our servers send searches of an entry we wrote to the server until
+     * the change reaches them, so that scripts see their own changes. Cached binds as the entry
+     * are forgotten too, as the write may have changed its password.
+     */
+    protected void noteWritten (LdapWrite write)
+    {
+        _bindCache.invalidate(_uriList, write.getDN());
+        for (LdapMirror mirror : _mirrors) {
+            if (mirror.follows(_uris)) {
+                mirror.expectChange(write.getDN());
+            }
+        }
+    }
+
+    /**
+     * Build the controls for a search from the arguments of ldap_search(). Negative limits and
+     * deref take the link's options instead.
+     */
+    protected SearchControls createControls (List<String> attributes, long sizeLimit,
+                                             int timeLimit, int deref, int scope)
+    {
+        if (sizeLimit < 0) {
+            sizeLimit = _options.getSizeLimit();
+        }
+        if (timeLimit < 0) {
+            timeLimit = _options.getTimeLimit();
+        }
+        if (deref < 0) {
+            deref = _options.getDeref();
+        }
 
         // Convert List of attributes to a String array. If List is null, leave attrArray null.
         String[] attrArray = null;
@@ -76,19 +933,74 @@ public class LdapLinkResource extends ResourceValue
         // Set up all the options for the search. XXX: do we want true or false for retobj argument?
         boolean doDeref = ((deref == LdapModule.LDAP_DEREF_SEARCHING) ||
             (deref == LdapModule.LDAP_DEREF_ALWAYS));
-        SearchControls ctls = new SearchControls(scope, sizeLimit, timeLimit, attrArray, true,
-            doDeref);
+        // PHP's time limit is in seconds, JNDI's in milliseconds.
+        return new SearchControls(scope, sizeLimit, timeLimit * 1000, attrArray, true, doDeref);
+    }
+
+    /**
+     * Return how long the next search's result may be cached: 0 if it may not, a negative number
+     * for the cache's default TTL, otherwise milliseconds.
+     */
+    protected long getSearchCacheTTL ()
+    {
+        if (!_searchCache.isEnabled()) {
+            return 0;
+        }
+        int ttl = _options.getSearchCacheTTL();
+        return (ttl < 0) ? -1 : ttl * 1000L;
+    }
 
+    /**
+     * Send the simple paged results control (RFC 2696) with the next search on this link, for
+     * scripts that page through results themselves as with PHP's ldap_control_paged_result().
+     *
+     * @param pageSize Number of entries the server should return.
+     * @param critical Whether the server must refuse the search if it does not support paging.
+     * @param cookie Cookie from the previous page's result, or null for the first page.
+     * @throws NamingException if the control can not be encoded.
+     */
+    public void setPagedResultsControl (int pageSize, boolean critical, byte[] cookie)
+        throws NamingException
+    {
         try {
-            NamingEnumeration answer = _ctx.search(baseDN, filter, ctls);
-            return new LdapResultResource(answer, attrTypesOnly);
-        } catch (NamingException e) {
-            return null;
+            _pagedControl = new PagedResultsControl(pageSize, cookie, critical);
+        } catch (IOException e) {
+            NamingException ne = new NamingException("Unable to encode paged results control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
+
+    /**
+     * Run a search that returns a single page, keeping the response controls with the result so
+     * the script can ask for the cookie of the next page.
+     */
+    protected LdapResultResource searchPage (LdapContext ctx, String baseDN, String filter,
+                                             SearchControls ctls, boolean attrTypesOnly,
+                                             PagedResultsControl paged)
+        throws NamingException
+    {
+        NamingEnumeration answer;
+        ctx.setRequestControls(new Control[] { paged });
+        try {
+            answer = ctx.search(baseDN, filter, ctls);
+        } finally {
+            ctx.setRequestControls(null);
         }
+        LdapResultResource result = new LdapResultResource(answer, attrTypesOnly);
+        // The controls come back with the end of the search, which the result has now read.
+        result.setResponseControls(ctx.getResponseControls());
+        return result;
     }
 
     /**
-     * Perform a simple bind to an LDAP server, saving the context.
+     * Perform a simple bind to an LDAP server, saving the context. The connection comes from the
+     * pool if one is already bound with the same identity and options, otherwise a new one is
+     * created. Any connection this link was previously bound with is released first.
+     *
+     * If the bind cache knows the outcome of a recent bind with the same DN and password, that
+     * is returned without asking the server. A connection is then only made if the link is
+     * used for something else, which fails if the password has since stopped working.
      *
      * @param dn Distinguished name to bind as. If this is an empty string, an anonymous bind will
      *        be attempted.
@@ -99,17 +1011,49 @@ public class LdapLinkResource extends ResourceValue
      */
     public boolean simpleBind (String dn, String password)
     {
+        long start = System.nanoTime();
+        try {
+            return bind(dn, password);
+        } finally {
+            _metrics.recordTime(LdapMetrics.BIND, start);
+        }
+    }
+
+    /**
+     * Does the work of simpleBind(), which times it.
+     */
+    protected boolean bind (String dn, String password)
+    {
+        releaseContext();
+
         Hashtable<String, String> env = new Hashtable<String, String>();
         // Set up environment properties needed for binding.
         env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put(Context.PROVIDER_URL, _uri);
         env.put(Context.SECURITY_AUTHENTICATION, "simple");
-        env.put("java.naming.ldap.version", Integer.toString(LdapModule.LDAP_OPT_PROTOCOL_VERSION));
-        if (LdapModule.LDAP_OPT_REFERRALS == 1) {
+        int version = _options.getProtocolVersion();
+        boolean followReferrals = _options.followReferrals();
+        env.put("java.naming.ldap.version", Integer.toString(version));
+        if (followReferrals) {
             env.put(Context.REFERRAL, "follow");
         } else {
             env.put(Context.REFERRAL, "ignore");
         }
+        // Sun's LDAP provider reads these in milliseconds. The read timeout needs Java 6.
+        int connectTimeout = _options.getNetworkTimeout() * 1000;
+        int readTimeout = _options.getTimeout() * 1000;
+        if (connectTimeout > 0) {
+            env.put(CONNECT_TIMEOUT, Integer.toString(connectTimeout));
+        }
+        if (readTimeout > 0) {
+            env.put(READ_TIMEOUT, Integer.toString(readTimeout));
+        }
+        if (_startTLS) {
+            env.put(LdapTls.START_TLS, "true");
+        }
+        String binaryAttributes = _options.getBinaryAttributes();
+        if (binaryAttributes.length() > 0) {
+            env.put(BINARY_ATTRIBUTES, binaryAttributes);
+        }
 
         if (dn.length() > 0) {
             if (password.length() == 0) {
@@ -122,35 +1066,367 @@ public class LdapLinkResource extends ResourceValue
             env.put(Context.SECURITY_CREDENTIALS, password);
         }
 
+        // Bind results hold for all of the servers, as they are copies of the same directory.
+        // A bind after ldap_start_tls() has to connect, as it is how TLS gets negotiated.
+        boolean cacheable = (dn.length() > 0) && !_startTLS && _bindCache.isEnabled();
+        if (cacheable) {
+            Boolean cached = _bindCache.check(_uriList, dn, password);
+            if (cached != null) {
+                if (!cached.booleanValue()) {
+                    return false;
+                }
+                // Hang on to what we need to connect should the script do more than bind.
+                _key = newKey(_uri, env);
+                _env = env;
+                return true;
+            }
+        }
+
         try {
-            _ctx = new InitialDirContext(env);
+            connect(env);
+        } catch (AuthenticationException e) {
+            _metrics.recordError(e);
+            if (cacheable) {
+                _bindCache.put(_uriList, dn, password, false);
+            }
+            return false;
         } catch (NamingException e) {
-            //e.printStackTrace();
+            _metrics.recordError(e);
             return false;
         }
+        if (cacheable) {
+            _bindCache.put(_uriList, dn, password, true);
+        }
         return true;
     }
 
     /**
-     * Unbind from LDAP server.
+     * Check a user's password the way login pages do: search for the only entry matching a
+     * filter, then bind as it. The search runs on this link's connection, so the link must be
+     * bound with an identity allowed to search for users; the bind runs on a connection of the
+     * authenticator's own, so this link stays bound as it was.
+     *
+     * @param filter Filter matching the user, such as "(uid=john)", already escaped.
+     * @return The DN of the user if the password is right, null if it is wrong or empty, no
+     *         single entry matches, or the link is not bound.
+     * @see LdapAuthenticator
+     */
+    public String authenticate (String baseDN, String filter, String password)
+    {
+        // As with simpleBind(), an empty password could pass for an anonymous bind.
+        if (_key == null || password.length() == 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            return _authenticator.authenticate(this, baseDN, filter, password);
+        } finally {
+            _metrics.recordTime(LdapMetrics.AUTHENTICATE, start);
+        }
+    }
+
+    /**
+     * Return the DN of the only entry below a base DN matching a filter, fetching no attributes.
+     *
+     * @return The DN, or null if no entry or several match, or the search fails.
+     */
+    protected String findDN (String baseDN, String filter)
+    {
+        // "1.1" asks for no attributes; the list is added to, so it can't be a singleton.
+        List<String> noAttributes = new ArrayList<String>();
+        noAttributes.add("1.1");
+        LdapResultResource result = search(baseDN, filter, noAttributes, 0, 2, 0, -1,
+                                           SearchControls.SUBTREE_SCOPE);
+        if (result == null) {
+            return null;
+        }
+        try {
+            LdapEntryStore.Entry entry = result.getEntry(0);
+            if (entry == null || result.getEntry(1) != null) {
+                return null;
+            }
+            return entry.getDN();
+        } catch (NamingException e) {
+            _metrics.recordError(e);
+            return null;
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Unbind from LDAP server. The connection goes back to the pool to be reused by a later bind
+     * with the same identity.
      * @return true if successful, false if not.
      */
     public boolean unbind ()
     {
         // Can't unbind if we never got bound in the first place!
-        if (_ctx == null) {
+        if (_key == null) {
             return false;
         }
 
-        try {
-            _ctx.close();
-        } catch (NamingException e) {
-            //e.printStackTrace();
+        long start = System.nanoTime();
+        releaseContext();
+        _metrics.recordTime(LdapMetrics.UNBIND, start);
+        return true;
+    }
+
+    /**
+     * Return the connection this link is bound with, connecting now if the bind was answered
+     * from the bind cache.
+     *
+     * @return The connection, or null if the link is not bound.
+     * @throws NamingException if the deferred connection can not be made.
+     */
+    protected LdapContext getContext ()
+        throws NamingException
+    {
+        return getContext(null);
+    }
+
+    /**
+     * Return the connection this link is bound with, connecting now if it has none.
+     *
+     * @param exclude A server not to connect to, such as one that just failed, or null.
+     * @return The connection, or null if the link is not bound.
+     * @throws NamingException if the deferred connection can not be made.
+     */
+    protected LdapContext getContext (String exclude)
+        throws NamingException
+    {
+        if (_ctx == null && _key != null) {
+            try {
+                connect(_env, exclude);
+            } catch (AuthenticationException e) {
+                // The cached bind is no longer good, so don't let it vouch for anyone else.
+                _bindCache.invalidate(_uriList, _key.getDN());
+                releaseContext();
+                throw e;
+            }
+        }
+        return _ctx;
+    }
+
+    /**
+     * Bind a connection with the given environment, trying the servers in the order the
+     * balancer gives, skipping those that are down. A server that can't be reached or doesn't
+     * answer in time is noted as failing and the next one tried.
+     *
+     * @throws NamingException from the bind to the last server tried, or if all are down.
+     */
+    protected void connect (Hashtable<String, String> env)
+        throws NamingException
+    {
+        connect(env, null);
+    }
+
+    /**
+     * Bind a connection as connect(env) does, but never to the given server.
+     *
+     * @param exclude A server that just failed an operation, or null.
+     */
+    protected void connect (Hashtable<String, String> env, String exclude)
+        throws NamingException
+    {
+        NamingException failure = null;
+        for (String uri : _balancer.order(_uris)) {
+            if (uri.equals(exclude) || !_health.allow(uri)) {
+                continue;
+            }
+            env.put(Context.PROVIDER_URL, uri);
+            LdapConnectionPool.Key key = newKey(uri, env);
+            long start = System.currentTimeMillis();
+            _balancer.started(uri);
+            try {
+                _ctx = _pool.borrow(key, env);
+            } catch (NamingException e) {
+                if (!LdapServerHealth.isServerFailure(e)) {
+                    // The server is up, it just refused the bind.
+                    _balancer.finished(uri, -1);
+                    _health.connected(uri);
+                    throw e;
+                }
+                _balancer.finished(uri, System.currentTimeMillis() - start);
+                _health.failed(uri);
+                if (failure != null) {
+                    // Only the last failure is thrown, and counted by whoever catches it.
+                    _metrics.recordError(failure);
+                }
+                failure = e;
+                continue;
+            }
+            // Binds may be answered by pooled connections, so their time says little. Nor does
+            // a bind show that the server answers searches in time, so it only brings back a
+            // server that was down.
+            _balancer.finished(uri, -1);
+            _health.connected(uri);
+            _uri = uri;
+            _key = key;
+            _env = env;
+            return;
+        }
+        throw (failure != null) ? failure :
+            new NamingException("No LDAP server in " + _uriList + " is up");
+    }
+
+    /**
+     * Create the pool key for connections to a server with the given environment.
+     */
+    protected LdapConnectionPool.Key newKey (String uri, Hashtable<String, String> env)
+    {
+        String readTimeout = env.get(READ_TIMEOUT);
+        String dn = env.get(Context.SECURITY_PRINCIPAL);
+        String password = env.get(Context.SECURITY_CREDENTIALS);
+        return new LdapConnectionPool.Key(
+            uri, Integer.parseInt(env.get("java.naming.ldap.version")),
+            "follow".equals(env.get(Context.REFERRAL)),
+            (readTimeout == null) ? 0 : Integer.parseInt(readTimeout),
+            env.containsKey(LdapTls.START_TLS), env.get(BINARY_ATTRIBUTES),
+            (dn == null) ? "" : dn, (password == null) ? "" : password);
+    }
+
+    /**
+     * Note an operation that failed. If the server was unreachable or slow to answer, count it
+     * against the server and close our connection, so that the next operation connects again,
+     * to another server if there are several.
+     *
+     * @return true if the server failed and the link has been reconnected or may be.
+     */
+    protected boolean noteFailure (NamingException e)
+    {
+        // Failures to connect at all were already counted by connect().
+        if (_ctx == null || !LdapServerHealth.isServerFailure(e)) {
             return false;
         }
+        _health.failed(_uri);
+        closeStreaming();
+        cancelSearches();
+        _pool.discard(_key, _ctx);
+        _ctx = null;
         return true;
     }
 
-    protected InitialDirContext _ctx;
+    /**
+     * Remember a streaming result that is still reading from our connection, so that it can be
+     * closed before the connection goes back to the pool. Results that have finished are
+     * forgotten at the same time.
+     */
+    protected void trackStreaming (LdapResultResource result)
+    {
+        Iterator<LdapResultResource> iter = _streaming.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isComplete()) {
+                iter.remove();
+            }
+        }
+        _streaming.add(result);
+    }
+
+    /**
+     * Hand our connection, if any, back to the pool. Connections that have seen communication
+     * errors are closed instead. Streaming results still reading from it are abandoned, and
+     * searches still running on it cancelled.
+     */
+    protected void releaseContext ()
+    {
+        _env = null;
+        if (_ctx == null) {
+            _key = null;
+            return;
+        }
+        closeStreaming();
+        cancelSearches();
+        _pool.release(_key, _ctx);
+        _ctx = null;
+        _key = null;
+    }
+
+    /**
+     * Abandon the streaming results still reading from our connection.
+     */
+    protected void closeStreaming ()
+    {
+        for (LdapResultResource result : _streaming) {
+            result.close();
+        }
+        _streaming.clear();
+    }
+
+    /**
+     * Cancel the asynchronous searches still running on our connection.
+     */
+    protected void cancelSearches ()
+    {
+        for (LdapPendingResult pending : _pending) {
+            pending.cancel();
+        }
+        _pending.clear();
+    }
+
+    /**
+     * Hand our connection back to the pool at the end of the request that made this link, as
+     * ldap_connect() arranges. PHP scripts rarely call ldap_unbind().
+     */
+    public void cleanup ()
+    {
+        releaseContext();
+    }
+
+    protected LdapContext _ctx;
+
+    /** The server we are bound to, or will be tried first. */
     protected String _uri;
+
+    /** The servers this link may bind to, and the list as given to the constructor. */
+    protected String[] _uris;
+    protected String _uriList;
+
+    protected LdapOptions _options = new LdapOptions();
+
+    /** Whether connections are switched to TLS before binding, see startTLS(). */
+    protected boolean _startTLS;
+
+    protected LdapConnectionPool _pool;
+    protected LdapConnectionPool.Key _key;
+    protected LdapBindCache _bindCache;
+    protected LdapSearchCache _searchCache;
+    protected LdapFilterCache _filters = LdapFilterCache.getShared();
+    protected LdapServerHealth _health;
+    protected LdapBalancer _balancer;
+    protected LdapMetrics _metrics = LdapMetrics.getShared();
+    protected LdapSlowLog _slowLog = LdapSlowLog.getShared();
+    protected LdapAuthenticator _authenticator = LdapAuthenticator.getShared();
+    protected List<LdapMirror> _mirrors = LdapMirror.getShared();
+
+    /** Path of the script using this link, or null if unknown. */
+    protected String _script;
+
+    /**
+     * Environment of the bind, to connect with whenever the link has no connection: after a bind
+     * answered from the cache, or after its server failed.
+     */
+    protected Hashtable<String, String> _env;
+
+    /** Paged results control to send with the next search only, or null. */
+    protected PagedResultsControl _pagedControl;
+
+    /** Streaming results that may still be reading from _ctx. */
+    protected ArrayList<LdapResultResource> _streaming = new ArrayList<LdapResultResource>();
+
+    /** Asynchronous searches that may still be running on _ctx. */
+    protected ArrayList<LdapPendingResult> _pending = new ArrayList<LdapPendingResult>();
+
+    /** Controls supported by the servers of connections, which may be pooled or closed. */
+    protected static final WeakHashMap<LdapContext, Set<String>> _supportedControls =
+        new WeakHashMap<LdapContext, Set<String>>();
+
+    protected static final String[] SUPPORTED_CONTROL = { "supportedControl" };
+
+    /** Environment properties of Sun's LDAP provider for its timeouts. */
+    protected static final String CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+    protected static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+    /** Environment property listing the attributes whose values are returned as byte arrays. */
+    protected static final String BINARY_ATTRIBUTES = "java.naming.ldap.attributes.binary";
 }
@@ -15,12 +15,45 @@
 
 package com.threerings.quercus.lib.ldap;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.InterruptedNamingException;
 import javax.naming.NamingException;
+import javax.naming.NoPermissionException;
+import javax.naming.ldap.LdapName;
 
 import com.caucho.quercus.env.ArrayValue;
 import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.StringValueImpl;
+import com.caucho.quercus.env.Value;
+
+import com.threerings.quercus.lib.ldap.server.Directory;
+import com.threerings.quercus.lib.ldap.server.Entry;
+import com.threerings.quercus.lib.ldap.server.Filter;
+import com.threerings.quercus.lib.ldap.server.LdapServer;
+import com.threerings.quercus.lib.ldap.server.Schema;
+import com.threerings.quercus.lib.ldap.server.TestServer;
 
 import org.junit.After;
 import org.junit.Before;
@@ -35,17 +68,26 @@ import junit.framework.JUnit4TestAdapter;
 
 public class LdapLinkResourceTest
 {
-    /** Get LDAP server port from test.properties, and instantiate connection. */
+    /** Get the port of the in-process test LDAP server, and instantiate connection. */
     @Before public void setUp ()
     {
-        String port = System.getProperty("slapd_port");
+        String port = TestServer.getPort();
         _connection = new LdapLinkResource("ldap://localhost:" + port);
     }
 
-    /** Unbind from server. If we're not bound, nothing will happen. */
+    /**
+     * Unbind from server. If we're not bound, nothing will happen. Links and servers of the
+     * test's own are unbound and stopped too.
+     */
     @After public void tearDown ()
     {
         _connection.unbind();
+        for (LdapLinkResource link : _links) {
+            link.unbind();
+        }
+        for (LdapServer server : _servers) {
+            server.stop();
+        }
     }
 
     @Test public void anonymousBind ()
@@ -126,10 +168,801 @@ public class LdapLinkResourceTest
         }
     }
 
+    @Test public void searchStreaming ()
+    {
+        _connection.getOptions().set(LdapOptions.STREAM_RESULTS, 1);
+        try {
+            _connection.simpleBind("", "");
+            LdapResultResource searchResult = _connection.search("ou=People,dc=example,dc=com",
+                "objectClass=person", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertNotNull("Streaming search for people should not return null", searchResult);
+            assertNotNull("First entry should be available", searchResult.getEntry(0));
+            assertNotNull("Second entry should be read on demand", searchResult.getEntry(1));
+            assertNull("There are only two people", searchResult.getEntry(2));
+            assertTrue("Result should be fully read", searchResult.isComplete());
+            try {
+                searchResult.getEntry(0);
+                fail("Streaming results should not keep entries already read past");
+            } catch (NamingException e) {
+                // Expected.
+            }
+            try {
+                searchResult.toArrayValue();
+                fail("Streaming results should not convert only the entries they still have");
+            } catch (NamingException e) {
+                // Expected.
+            }
+        } catch (NamingException e) {
+            fail("Walking a streaming result shouldn't throw an Exception.");
+        }
+    }
+
+    @Test public void searchPaged ()
+    {
+        _connection.simpleBind("", "");
+        try {
+            _connection.setPagedResultsControl(1, true, null);
+            LdapResultResource page = _connection.search("ou=Groups,dc=example,dc=com",
+                "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertNotNull("First page should not be null", page);
+            assertEquals("First page should hold a single entry", 1,
+                page.toArrayValue().get(StringValueImpl.create("count")).toInt());
+            byte[] cookie = page.getPagedResultsCookie();
+            assertTrue("There should be a cookie for the second page", cookie.length > 0);
+
+            _connection.setPagedResultsControl(1, true, cookie);
+            page = _connection.search("ou=Groups,dc=example,dc=com",
+                "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertEquals("Second page should hold a single entry", 1,
+                page.toArrayValue().get(StringValueImpl.create("count")).toInt());
+            assertEquals("Second page should be the last", 0, page.getPagedResultsCookie().length);
+        } catch (NamingException e) {
+            fail("Paging by hand shouldn't throw an Exception.");
+        }
+    }
+
+    @Test public void searchAutomaticPaging ()
+    {
+        _connection.getOptions().set(LdapOptions.PAGE_SIZE, 1);
+        try {
+            _connection.simpleBind("", "");
+            LdapResultResource searchResult = _connection.search("ou=Groups,dc=example,dc=com",
+                "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertEquals("Both groups should come back across two pages", 2,
+                searchResult.toArrayValue().get(StringValueImpl.create("count")).toInt());
+        } catch (NamingException e) {
+            fail("Searching with automatic paging shouldn't throw an Exception.");
+        }
+    }
+
+    @Test public void searchServerSizeLimit ()
+        throws Exception
+    {
+        // A server that hands out at most one entry per search.
+        LdapServer server = startServer();
+        server.setSizeLimit(1);
+        LdapLinkResource link = addLink(new LdapLinkResource(server.getURI()));
+        link.simpleBind("", "");
+        assertNull("A search over the server's size limit should fail", link.search(
+            "ou=Groups,dc=example,dc=com", "objectClass=groupOfUniqueNames", null, 0, 0, 0,
+            0, SearchControls.SUBTREE_SCOPE));
+
+        link.getOptions().set(LdapOptions.PAGE_SIZE, 10);
+        LdapResultResource searchResult = link.search("ou=Groups,dc=example,dc=com",
+            "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+        assertEquals("Paging should get both groups past the server's size limit", 2,
+            searchResult.toArrayValue().get(StringValueImpl.create("count")).toInt());
+    }
+
+    @Test public void searchReferral ()
+        throws Exception
+    {
+        // Nothing listens on port 1, so following the referral fails right away.
+        LdapServer server = startServer();
+        server.addReferral("ou=Elsewhere,dc=example,dc=com",
+                           "ldap://localhost:1/ou=Elsewhere,dc=example,dc=com");
+        LdapLinkResource link = addLink(new LdapLinkResource(server.getURI()));
+        // Ignoring referrals asks for the referral object itself.
+        link.simpleBind("", "");
+        LdapResultResource searchResult = link.search("ou=Elsewhere,dc=example,dc=com",
+            "objectClass=*", null, 0, 0, 0, 0, SearchControls.OBJECT_SCOPE);
+        assertNotNull("Reading a referral object should work", searchResult);
+        ArrayValue entries = searchResult.toArrayValue();
+        assertEquals("The referral object should come back", 1,
+            entries.get(StringValueImpl.create("count")).toInt());
+
+        link.getOptions().set(LdapOptions.REFERRALS, 1);
+        link.simpleBind("", "");
+        assertNull("Following a referral to a dead server should fail", link.search(
+            "ou=Elsewhere,dc=example,dc=com", "objectClass=*", null, 0, 0, 0, 0,
+            SearchControls.SUBTREE_SCOPE));
+    }
+
+    @Test public void bindCache ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        // No pooling, so that every bind the cache doesn't answer reaches the server.
+        LdapConnectionPool pool = new LdapConnectionPool(0, 0, 0);
+        LdapBindCache cache = new LdapBindCache(10, 60000, 60000, 10);
+        LdapLinkResource link = addLink(new LdapLinkResource(server.getURI(), pool, cache));
+        assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+        link.unbind();
+        assertTrue("A cached bind should succeed",
+                   link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+        assertEquals("The cached bind shouldn't reach the server", 1, server.getBindCount());
+
+        assertFalse(link.simpleBind(TestServer.ROOT_DN, "s3kr1t"));
+        assertFalse("A cached failure should fail", link.simpleBind(TestServer.ROOT_DN,
+                                                                     "s3kr1t"));
+        assertEquals("Only the first bad password should reach the server", 2,
+                     server.getBindCount());
+
+        // A wrong password leaves the right one cached, and searching after a cached bind
+        // connects for real.
+        assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+        assertEquals(2, server.getBindCount());
+        assertNotNull(link.search("dc=example,dc=com", "uid=sally", null, 0, 0, 0, 0,
+                                  SearchControls.SUBTREE_SCOPE));
+        assertEquals(3, server.getBindCount());
+
+        cache.invalidate(server.getURI(), TestServer.ROOT_DN);
+        assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+        assertEquals("An invalidated bind should reach the server", 4,
+                     server.getBindCount());
+
+        // Changing a password through a link forgets the old one.
+        String dn = "uid=john,ou=People,dc=example,dc=com";
+        assertTrue(link.modify(dn, new ModificationItem[] {
+            new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                                 new BasicAttribute("userPassword", "secret")) }));
+        assertTrue(link.simpleBind(dn, "secret"));
+        assertTrue(link.simpleBind(dn, "secret"));
+        int binds = server.getBindCount();
+        assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+        assertTrue(link.modify(dn, new ModificationItem[] {
+            new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                                 new BasicAttribute("userPassword", "other")) }));
+        assertFalse("The old password should stop working", link.simpleBind(dn, "secret"));
+        assertTrue(link.simpleBind(dn, "other"));
+        assertTrue(server.getBindCount() >= binds + 2);
+    }
+
+    @Test public void serverFailures ()
+    {
+        NamingException timeout = new NamingException("LDAP response read timed out");
+        assertTrue(LdapServerHealth.isServerFailure(timeout));
+        assertFalse("Errors returned by the server aren't failures",
+                    LdapServerHealth.isServerFailure(new NoPermissionException()));
+        assertFalse(LdapServerHealth.isServerFailure(new InterruptedNamingException()));
+
+        NamingException wrapped = new NamingException("Batch search failed");
+        wrapped.setRootCause(new RuntimeException(new SocketTimeoutException()));
+        assertTrue("Socket timeouts are found however they were wrapped",
+                   LdapServerHealth.isServerFailure(wrapped));
+        wrapped.setRootCause(new IllegalStateException());
+        assertFalse(LdapServerHealth.isServerFailure(wrapped));
+    }
+
+    @Test public void serverHealth ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        LdapServerHealth health = new LdapServerHealth(2, 500);
+        LdapLinkResource link = addLink(new LdapLinkResource(server.getURI(),
+            new LdapConnectionPool(0, 0, 0), LdapBindCache.getShared(),
+            LdapSearchCache.getShared(), health));
+        link.getOptions().set(LdapOptions.TIMEOUT, 1);
+        assertTrue(link.simpleBind("", ""));
+        server.setLatency(3000);
+        long start = System.currentTimeMillis();
+        assertNull("A slow server should time out", link.search("dc=example,dc=com",
+            "uid=sally", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE));
+        assertTrue("Searches should give up after the read timeout",
+                   System.currentTimeMillis() - start < 2500);
+        assertFalse(health.isDown(server.getURI()));
+        // The link reconnects for this one, which mustn't clear the first timeout.
+        assertNull(link.search("dc=example,dc=com", "uid=sally", null, 0, 0, 0, 0,
+                               SearchControls.SUBTREE_SCOPE));
+        assertTrue("Two timeouts in a row should mark the server down",
+                   health.isDown(server.getURI()));
+
+        server.setLatency(0);
+        start = System.currentTimeMillis();
+        assertFalse("Binds should fail fast while the server is down",
+                    link.simpleBind("", ""));
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, health.getRejectedCount());
+
+        Thread.sleep(600);
+        assertTrue("The server should be tried again after the cooldown",
+                   link.simpleBind("", ""));
+        assertFalse(health.isDown(server.getURI()));
+    }
+
+    @Test public void balanceAndFailOver ()
+        throws Exception
+    {
+        LdapServer first = startServer();
+        LdapServer second = startServer();
+        LdapServerHealth health = new LdapServerHealth(1, 60000);
+        LdapConnectionPool pool = new LdapConnectionPool(0, 0, 0);
+        LdapLinkResource link = addLink(new LdapLinkResource(
+            first.getURI() + " " + second.getURI(), pool, LdapBindCache.getShared(),
+            LdapSearchCache.getShared(), health, new LdapBalancer()));
+        LdapLinkResource deadFirst = addLink(new LdapLinkResource(
+            "ldap://localhost:1 " + first.getURI(), pool, LdapBindCache.getShared(),
+            LdapSearchCache.getShared(), health, new LdapBalancer()));
+        for (int ii = 0; ii < 4; ii++) {
+            assertTrue(link.simpleBind("", ""));
+        }
+        assertEquals("Binds should be spread over the servers", 2, first.getBindCount());
+        assertEquals(2, second.getBindCount());
+
+        assertTrue("Binds should fail over from a dead server", deadFirst.simpleBind("", ""));
+        assertTrue(deadFirst.simpleBind("", ""));
+        assertTrue(health.isDown("ldap://localhost:1"));
+        assertEquals(4, first.getBindCount());
+
+        LdapBalancer balancer = new LdapBalancer.LeastOutstanding();
+        String[] uris = { "ldap://a:389", "ldap://b:389" };
+        balancer.started("ldap://a:389");
+        for (int ii = 0; ii < 2; ii++) {
+            assertEquals("ldap://b:389", balancer.order(uris)[0]);
+        }
+        balancer.finished("ldap://a:389", 10);
+        assertEquals(0, balancer.getOutstanding("ldap://a:389"));
+    }
+
+    @Test public void searchFailsOver ()
+        throws Exception
+    {
+        LdapServer first = startServer();
+        LdapServer second = startServer();
+        // Servers aren't marked down until long after, and the first is always preferred, so
+        // only the retry itself can avoid it.
+        LdapServerHealth health = new LdapServerHealth(10, 60000);
+        LdapLinkResource link = addLink(new LdapLinkResource(
+            first.getURI() + " " + second.getURI(), new LdapConnectionPool(0, 0, 0),
+            LdapBindCache.getShared(), LdapSearchCache.getShared(), health, new LdapBalancer() {
+                @Override public String[] order (String[] uris) {
+                    return uris;
+                }
+            }));
+        link.getOptions().set(LdapOptions.TIMEOUT, 1);
+        assertTrue(link.simpleBind("", ""));
+        assertEquals(1, first.getBindCount());
+
+        first.setLatency(3000);
+        int searches = second.getSearchCount();
+        assertNotNull("The search should fail over", link.search("dc=example,dc=com",
+            "uid=sally", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE));
+        assertEquals("The retry should go to the other server", searches + 1,
+                     second.getSearchCount());
+        assertEquals(1, first.getBindCount());
+        assertFalse(health.isDown(first.getURI()));
+    }
+
+    @Test public void metrics ()
+        throws Exception
+    {
+        LdapMetrics metrics = LdapMetrics.getShared();
+        long binds = metrics.getTimes(LdapMetrics.BIND).getCount();
+        long searches = metrics.getTimes(LdapMetrics.SEARCH).getCount();
+        long results = metrics.getResultSizes().getCount();
+        long authErrors = metrics.getErrorCount("AuthenticationException");
+
+        assertFalse(_connection.simpleBind(TestServer.ROOT_DN, "s3kr1t"));
+        assertTrue(_connection.simpleBind("", ""));
+        LdapResultResource searchResult = _connection.search("ou=People,dc=example,dc=com",
+            "objectClass=person", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+        searchResult.toArrayValue();
+
+        assertEquals(binds + 2, metrics.getTimes(LdapMetrics.BIND).getCount());
+        assertEquals(searches + 1, metrics.getTimes(LdapMetrics.SEARCH).getCount());
+        assertEquals(results + 1, metrics.getResultSizes().getCount());
+        assertEquals(authErrors + 1, metrics.getErrorCount("AuthenticationException"));
+        assertTrue(metrics.getResultSizes().getMax() >= 2);
+
+        Map<String, Number> snapshot = metrics.snapshot();
+        assertEquals(searches + 1, snapshot.get("search.count").longValue());
+        assertTrue(snapshot.get("converted.chars").longValue() > 0);
+        assertTrue("The pool should count the connection in use",
+                   snapshot.get("pool.active").intValue() >= 1);
+        assertEquals("JMX should see the same numbers", searches + 1,
+                     ((Number) ManagementFactory.getPlatformMBeanServer().getAttribute(
+                         new ObjectName(LdapMetrics.OBJECT_NAME), "search.count")).longValue());
+        try {
+            ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName(LdapMetrics.OBJECT_NAME), "reset", null, null);
+            fail("The metrics have no operations");
+        } catch (ReflectionException e) {
+            // Expected.
+        }
+
+        // Subsystems add their own counters.
+        LdapMetrics own = new LdapMetrics();
+        LdapMetrics.Source source = new LdapMetrics.Source() {
+            public void addMetrics (Map<String, Number> counters) {
+                LdapMetrics.add(counters, "mirror.hits", 2);
+            }
+        };
+        own.addSource(source);
+        own.addSource(source);
+        assertEquals(4L, own.snapshot().get("mirror.hits"));
+    }
+
+    @Test public void slowLog ()
+        throws Exception
+    {
+        File file = File.createTempFile("slow", ".log");
+        File rotated = new File(file.getPath() + ".1");
+        file.deleteOnExit();
+        rotated.deleteOnExit();
+        // Everything is slow, and the file rotates after a couple of lines.
+        LdapSlowLog log = new LdapSlowLog(file, 0, 1.0, 400, 1);
+        _connection._slowLog = log;
+        _connection.setScript("/var/www/login.php");
+        try {
+            _connection.simpleBind("", "");
+            ArrayList<String> attributes = new ArrayList<String>();
+            attributes.add("mail");
+            _connection.search("ou=People,dc=example,dc=com", "(uid=sally)", attributes, 0, 0,
+                               0, 0, SearchControls.SUBTREE_SCOPE);
+            // Lines are written by a thread of the log's own.
+            log.flush();
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            String line = in.readLine();
+            in.close();
+            assertTrue(line, line.indexOf(" entries=1 scope=sub base=\"ou=People,dc=example," +
+                       "dc=com\" filter=\"(uid=sally)\" attrs=mail") > 0);
+            assertTrue(line, line.endsWith(" script=\"/var/www/login.php\""));
+
+            for (int ii = 0; ii < 3; ii++) {
+                _connection.search("ou=People,dc=example,dc=com", "(uid=sally)", attributes, 0,
+                                   0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            }
+            log.flush();
+            assertTrue("The log should have rotated", rotated.exists());
+            log.close();
+
+            // A search that isn't slow by itself is logged if converting it makes it so.
+            log = new LdapSlowLog(file, 1000, 1.0, 1 << 20, 1);
+            log.converted(new LdapSlowLog.Query("ldap://localhost", "dc=example,dc=com",
+                "(cn=*)", SearchControls.ONELEVEL_SCOPE, null, null, 600 * 1000000L),
+                10, 500 * 1000000L);
+            log.close();
+            in = new BufferedReader(new FileReader(file));
+            String last = null;
+            for (String next; (next = in.readLine()) != null; ) {
+                last = next;
+            }
+            in.close();
+            assertTrue(last, last.indexOf(" search=600ms convert=500ms entries=10 scope=one") > 0);
+        } finally {
+            log.close();
+            file.delete();
+            rotated.delete();
+        }
+    }
+
+    @Test public void startTLS ()
+        throws Exception
+    {
+        LdapServer server = TestServer.getServer();
+        LdapTls tls = new LdapTls(TestServer.createTLSContext(false));
+        // Pool nothing, so that every bind needs a new connection.
+        LdapConnectionPool pool = new LdapConnectionPool(0, 0, 0, tls);
+        // Cached binds would skip the connections that negotiate TLS.
+        LdapBindCache cache = new LdapBindCache(10, 60000, 60000, 10);
+        int started = server.getStartTLSCount();
+        for (int ii = 0; ii < 3; ii++) {
+            LdapLinkResource link = new LdapLinkResource(server.getURI(), pool, cache);
+            assertTrue(link.startTLS());
+            assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+            LdapResultResource result = link.search("ou=People,dc=example,dc=com",
+                "(uid=sally)", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertEquals(1, result.toArrayValue().get(StringValueImpl.create("count")).toInt());
+            link.unbind();
+        }
+        assertEquals(started + 3, server.getStartTLSCount());
+        assertEquals(0, cache.getHitCount());
+        // Only the first connection needed a full handshake.
+        assertEquals(1, tls.getHandshakeCount());
+        assertEquals(2, tls.getResumedCount());
+
+        // The password is still checked, once the connection is secure.
+        LdapLinkResource link = new LdapLinkResource(server.getURI(), pool);
+        link.startTLS();
+        assertFalse(link.simpleBind(TestServer.ROOT_DN, "wrong"));
+        assertEquals(started + 4, server.getStartTLSCount());
+
+        // A client that doesn't trust the server's certificate can't bind at all.
+        SSLContext untrusting = SSLContext.getInstance("TLSv1.2");
+        untrusting.init(null, new TrustManager[0], null);
+        pool = new LdapConnectionPool(0, 0, 0, new LdapTls(untrusting));
+        link = new LdapLinkResource(server.getURI(), pool);
+        link.startTLS();
+        assertFalse(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+
+        assertFalse(new LdapLinkResource("ldaps://localhost").startTLS());
+    }
+
+    @Test public void bulkWrite ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        LdapSearchCache cache = new LdapSearchCache(1024 * 1024, 60000);
+        LdapLinkResource link = addLink(new LdapLinkResource(
+            server.getURI(), new LdapConnectionPool(), new LdapBindCache(0, 0, 0, 1), cache));
+        assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+        String base = "ou=Imported,dc=example,dc=com";
+        assertNull("Nothing is imported yet", link.search(base, "(objectClass=*)", null, 0,
+            0, 0, 0, SearchControls.SUBTREE_SCOPE));
+        link.search("dc=example,dc=com", "(uid=user*)", null, 0, 0, 0, 0,
+                    SearchControls.SUBTREE_SCOPE);
+        assertEquals(1, cache.size());
+
+        // Every write takes a while, so doing them one at a time would take seconds.
+        server.setLatency(50);
+        long start = System.currentTimeMillis();
+        LdapBulkWrite bulk = link.startBulk(16);
+        BasicAttributes ou = new BasicAttributes(true);
+        ou.put("objectClass", "organizationalUnit");
+        ou.put("ou", "Imported");
+        assertTrue(bulk.submit(LdapWrite.add(base, ou)));
+        // The users wait for their parent, then go sixteen at a time.
+        for (int ii = 0; ii < 40; ii++) {
+            BasicAttributes user = new BasicAttributes(true);
+            user.put("objectClass", "inetOrgPerson");
+            user.put("uid", "user" + ii);
+            user.put("cn", "User " + ii);
+            user.put("sn", "User");
+            assertTrue(bulk.submit(LdapWrite.add("uid=user" + ii + "," + base, user)));
+        }
+        BasicAttributes duplicate = new BasicAttributes(true);
+        duplicate.put("uid", "user0");
+        assertTrue(bulk.submit(LdapWrite.add("uid=user0," + base, duplicate)));
+        assertTrue(bulk.submit(LdapWrite.modify("uid=user1," + base, new ModificationItem[] {
+            new ModificationItem(DirContext.ADD_ATTRIBUTE,
+                                 new BasicAttribute("mail", "user1@example.com")) })));
+        Map<String, String> failures = bulk.finish();
+        long elapsed = System.currentTimeMillis() - start;
+        assertFalse("A finished bulk write takes no more",
+                    bulk.submit(LdapWrite.delete("uid=user2," + base)));
+        server.setLatency(0);
+
+        assertEquals(failures.toString(), 1, failures.size());
+        assertTrue(failures.containsKey("uid=user0," + base));
+        assertTrue("43 writes took " + elapsed + "ms", elapsed < 1500);
+        assertEquals(40, server.getDirectory().search(base, Directory.SCOPE_ONE,
+            new Filter.Present(new Schema(), "uid")).size());
+        assertEquals("user1@example.com", server.getDirectory().get("uid=user1," + base)
+                     .get("mail").getStrings().get(0));
+        assertEquals("The cached search should have been dropped", 0, cache.size());
+
+        // Single writes go over the link's connection.
+        assertTrue(link.delete("uid=user2," + base));
+        assertFalse("Entries with children can't be deleted", link.delete(base));
+        assertFalse(link.add("not a dn", new BasicAttributes()));
+    }
+
+    @Test public void searchCache ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        LdapSearchCache cache = new LdapSearchCache(1024 * 1024, 60000);
+        LdapLinkResource link = addLink(new LdapLinkResource(
+            server.getURI(), new LdapConnectionPool(), new LdapBindCache(0, 0, 0, 1), cache));
+        link.simpleBind("", "");
+        for (int ii = 0; ii < 3; ii++) {
+            LdapResultResource searchResult = link.search("dc=example,dc=com", "uid=sally",
+                null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertEquals("uid=sally,ou=People,dc=example,dc=com", searchResult.toArrayValue()
+                .get(LongValue.create(0)).get(StringValueImpl.create("dn")).toString());
+        }
+        assertEquals("Repeated searches should come from the cache", 1,
+                     server.getSearchCount());
+        assertEquals(2, cache.getHitCount());
+
+        // Other identities don't share results.
+        link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        link.search("dc=example,dc=com", "uid=sally", null, 0, 0, 0, 0,
+                    SearchControls.SUBTREE_SCOPE);
+        assertEquals(2, server.getSearchCount());
+
+        link.getOptions().set(LdapOptions.SEARCH_CACHE_TTL, 0);
+        link.search("dc=example,dc=com", "uid=sally", null, 0, 0, 0, 0,
+                    SearchControls.SUBTREE_SCOPE);
+        assertEquals("A TTL of 0 should bypass the cache", 3, server.getSearchCount());
+    }
+
+    @Test public void searchAsyncOverlaps ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        LdapLinkResource link = addLink(new LdapLinkResource(server.getURI()));
+        link.simpleBind("", "");
+        // The server holds each search until all three have reached it.
+        CountDownLatch barrier = new CountDownLatch(3);
+        server.setSearchBarrier(barrier);
+        LdapPendingResult[] pending = new LdapPendingResult[3];
+        for (int ii = 0; ii < pending.length; ii++) {
+            pending[ii] = link.searchAsync("ou=People,dc=example,dc=com", "uid=sally", null,
+                0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+        }
+        for (LdapPendingResult search : pending) {
+            assertNotNull("Searches should run at the same time", search.get(5000));
+        }
+        assertEquals(0, barrier.getCount());
+
+        barrier = new CountDownLatch(2);
+        server.setSearchBarrier(barrier);
+        LdapPendingResult held = link.searchAsync("ou=People,dc=example,dc=com", "uid=sally",
+            null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+        assertNull("A search should time out when the server is slower", held.get(10));
+        barrier.countDown();
+        assertNotNull("A search that timed out can be waited for again", held.get(5000));
+
+        // Unbinding cancels the searches still running.
+        server.setSearchBarrier(new CountDownLatch(2));
+        held = link.searchAsync("ou=People,dc=example,dc=com", "uid=sally", null, 0, 0, 0, 0,
+                                SearchControls.SUBTREE_SCOPE);
+        link.unbind();
+        assertTrue(held.isDone());
+        assertNull("A cancelled search has no result", held.get(-1));
+    }
+
+    @Test public void readBatchFoldsSearches ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        List<String> dns = new ArrayList<String>();
+        for (int ii = 0; ii < 250; ii++) {
+            String dn = "uid=member" + ii + ",ou=People,dc=example,dc=com";
+            server.getDirectory().add(new Entry(dn).add("objectClass", "account")
+                                      .add("uid", "member" + ii));
+            dns.add(dn);
+        }
+        LdapLinkResource link = addLink(new LdapLinkResource(server.getURI()));
+        link.simpleBind("", "");
+        int searches = server.getSearchCount();
+        LdapResultResource result = link.readBatch(dns, null, 0);
+        assertEquals(250, result.toArrayValue().get(StringValueImpl.create("count")).toInt());
+        assertEquals("Members should be read a hundred at a time", 3,
+                     server.getSearchCount() - searches);
+    }
+
+    @Test public void compactEntries ()
+        throws NamingException
+    {
+        List<SearchResult> entries = new ArrayList<SearchResult>();
+        for (int ii = 0; ii < 2; ii++) {
+            BasicAttributes attrs = new BasicAttributes(true);
+            attrs.put("cn", "J\u00f6rg " + ii);
+            attrs.put("jpegPhoto", new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) ii });
+            BasicAttribute objectClass = new BasicAttribute("objectClass");
+            objectClass.add("top");
+            objectClass.add("person");
+            attrs.put(objectClass);
+            SearchResult entry = new SearchResult("cn=" + ii, null, attrs);
+            entry.setNameInNamespace("cn=" + ii + ",dc=example,dc=com");
+            entries.add(entry);
+        }
+        LdapResultResource result = new LdapResultResource(entries, false);
+        LdapEntryStore store = result.getEntries();
+        assertEquals("Entries share their attribute names", 3, store.getNameCount());
+        for (int ii = 0; ii < 2; ii++) {
+            SearchResult entry = store.get(ii);
+            assertEquals(entries.get(ii).getNameInNamespace(), entry.getNameInNamespace());
+            assertEquals(entries.get(ii).getAttributes(), entry.getAttributes());
+            assertEquals("J\u00f6rg " + ii, entry.getAttributes().get("CN").get());
+            assertEquals(ii, ((byte[]) entry.getAttributes().get("jpegphoto").get())[2]);
+        }
+        ArrayValue values = result.firstEntry().next().getValues("objectclass", false);
+        assertEquals(2, values.get(StringValueImpl.create("count")).toInt());
+        assertEquals("person", values.get(LongValue.create(1)).toString());
+        assertNull(result.firstEntry().getValues("mail", false));
+
+        // Streaming results drop entries, but not from under the cursors on them.
+        _connection.getOptions().set(LdapOptions.STREAM_RESULTS, 1);
+        _connection.simpleBind("", "");
+        LdapResultResource streamed = _connection.search("ou=People,dc=example,dc=com",
+            "objectClass=person", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+        LdapResultEntry first = streamed.firstEntry();
+        String dn = first.getDN();
+        assertNotNull(first.next());
+        assertEquals(dn, first.getDN());
+    }
+
+    @Test public void mirror ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        String base = "ou=People,dc=example,dc=com";
+        LdapMirror mirror = new LdapMirror(server.getURI(), base, TestServer.ROOT_DN,
+            TestServer.ROOT_PASSWORD, new String[] { "cn", "mail" }, 100, 5000);
+        LdapLinkResource link = addLink(new LdapLinkResource(
+            server.getURI(), new LdapConnectionPool(), new LdapBindCache(0, 0, 0, 1),
+            new LdapSearchCache(0, 0)));
+        link._mirrors = Collections.singletonList(mirror);
+        try {
+            mirror.start();
+            assertTrue("The mirror should read the subtree", mirror.awaitReady(5000));
+            assertEquals(3, mirror.size());
+            assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+
+            int searches = server.getSearchCount();
+            assertEquals(2, countEntries(link.search(base, "(&(objectClass=person)(cn=*DOE))",
+                null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE)));
+            List<String> attributes = new ArrayList<String>();
+            attributes.add("mail");
+            Value sally = link.search("uid=sally," + base, "(mail=sally*)", attributes, 0, 0,
+                0, 0, SearchControls.OBJECT_SCOPE).toArrayValue().get(LongValue.create(0));
+            assertEquals("uid=sally," + base, sally.get(StringValueImpl.create("dn")).toString());
+            assertEquals(2, sally.get(StringValueImpl.create("mail")).get(
+                StringValueImpl.create("count")).toInt());
+            assertTrue(sally.get(StringValueImpl.create("cn")).isNull());
+            assertEquals(1, countEntries(link.searchAsync(base, "(!(uid=john))", null, 0, 0, 0,
+                0, SearchControls.ONELEVEL_SCOPE).get(-1)));
+            assertEquals("The mirror should have answered", searches, server.getSearchCount());
+            assertEquals(3, mirror.getHitCount());
+
+            // Filters and attributes it can't answer for go to the server.
+            link.search(base, "(uidNumber>=10000)", null, 0, 0, 0, 0,
+                        SearchControls.SUBTREE_SCOPE);
+            attributes.clear();
+            attributes.add("createTimestamp");
+            link.search(base, "(uid=john)", attributes, 0, 0, 0, 0,
+                        SearchControls.SUBTREE_SCOPE);
+            link.search("dc=example,dc=com", "(uid=john)", null, 0, 0, 0, 0,
+                        SearchControls.SUBTREE_SCOPE);
+            assertEquals(searches + 3, server.getSearchCount());
+            assertEquals("Searches outside the subtree aren't misses", 2, mirror.getMissCount());
+
+            // Writes show up right away, and in the mirror once they come back.
+            assertTrue(link.modify("uid=john," + base, new ModificationItem[] {
+                new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                                     new BasicAttribute("mail", "jd@example.com")) }));
+            assertEquals(1, countEntries(link.search(base, "(mail=jd@*)", null, 0, 0, 0, 0,
+                SearchControls.SUBTREE_SCOPE)));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mirror.isWriting() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            searches = server.getSearchCount();
+            assertEquals(0, countEntries(link.search(base, "(mail=john@example.com)", null, 0, 0,
+                0, 0, SearchControls.SUBTREE_SCOPE)));
+            assertEquals(1, countEntries(link.search(base, "(mail=JD@example.com)", null, 0, 0,
+                0, 0, SearchControls.SUBTREE_SCOPE)));
+            assertEquals(searches, server.getSearchCount());
+
+            // As do changes made by others.
+            server.getDirectory().add(new Entry("uid=kim," + base).add("objectClass", "person")
+                                      .add("uid", "kim").add("cn", "Kim Doe").add("sn", "Doe"));
+            assertTrue(link.delete("uid=sally," + base));
+            deadline = System.currentTimeMillis() + 5000;
+            while ((mirror.size() != 3 || mirror.isWriting()) &&
+                   System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            ArrayValue found = link.search(base, "(cn=*doe)", null, 0, 0, 0, 0,
+                SearchControls.SUBTREE_SCOPE).toArrayValue();
+            assertEquals(2, found.get(StringValueImpl.create("count")).toInt());
+            assertEquals("uid=kim," + base, found.get(LongValue.create(1)).get(
+                StringValueImpl.create("dn")).toString());
+            assertEquals(searches, server.getSearchCount());
+
+            // Other identities may not see what the mirror sees.
+            link.simpleBind("", "");
+            link.search(base, "(uid=john)", null, 0, 0, 0, 0, SearchControls.SUBTREE_SCOPE);
+            assertEquals(searches + 1, server.getSearchCount());
+
+            mirror.stop();
+            assertFalse(mirror.isReady());
+        } finally {
+            mirror.stop();
+        }
+    }
+
+    @Test public void mirrorMatching ()
+        throws Exception
+    {
+        LdapServer server = startServer();
+        String base = "ou=Groups,dc=example,dc=com";
+        LdapMirror mirror = new LdapMirror(server.getURI(), base, TestServer.ROOT_DN,
+            TestServer.ROOT_PASSWORD, new String[] { "cn" }, 100, 5000);
+        LdapLinkResource link = addLink(new LdapLinkResource(
+            server.getURI(), new LdapConnectionPool(), new LdapBindCache(0, 0, 0, 1),
+            new LdapSearchCache(0, 0)));
+        link._mirrors = Collections.singletonList(mirror);
+        try {
+            mirror.start();
+            assertTrue(mirror.awaitReady(5000));
+            assertTrue(link.simpleBind(TestServer.ROOT_DN, TestServer.ROOT_PASSWORD));
+
+            // Members are matched as DNs, whatever their spacing and case.
+            int searches = server.getSearchCount();
+            assertEquals(2, countEntries(link.search(base,
+                "(uniqueMember=UID=sally, ou=People,dc=example,dc=com)", null, 0, 0, 0, 0,
+                SearchControls.SUBTREE_SCOPE)));
+            assertEquals(searches, server.getSearchCount());
+
+            // Attributes with other matching rules are left to the server.
+            assertEquals(1, countEntries(link.search(base, "(gidNumber=10001)", null, 0, 0, 0,
+                0, SearchControls.SUBTREE_SCOPE)));
+            assertEquals(searches + 1, server.getSearchCount());
+
+            // As are searches asking for attributes no entry has, along with all the others.
+            List<String> attributes = new ArrayList<String>();
+            attributes.add("*");
+            attributes.add("createTimestamp");
+            link.search(base, "(cn=john)", attributes, 0, 0, 0, 0,
+                        SearchControls.SUBTREE_SCOPE);
+            assertEquals(searches + 2, server.getSearchCount());
+        } finally {
+            mirror.stop();
+        }
+
+        assertEquals(LdapMirror.normalize("uid=Sally,ou=People", true),
+                     LdapMirror.normalize("UID=sally , OU=people", true));
+    }
+
+    @Test public void mirrorRenames ()
+        throws Exception
+    {
+        Set<String> none = Collections.emptySet();
+        LdapMirror.Index index = new LdapMirror.Index(none, none, none);
+        String[] dns = { "ou=a,dc=example", "cn=b,ou=a,dc=example" };
+        for (String dn : dns) {
+            assertTrue(index.apply(new LdapName(dn), dn, new BasicAttributes(true), null));
+        }
+
+        // Leaves are moved, but entries with others below them have to be read again.
+        String dn = "cn=c,ou=a,dc=example";
+        assertTrue(index.apply(new LdapName(dn), dn, new BasicAttributes(true),
+            new LdapPersistentSearchControl.Change(LdapPersistentSearchControl.MODDN, dns[1])));
+        assertEquals(2, index.size());
+        dn = "ou=z,dc=example";
+        assertFalse(index.apply(new LdapName(dn), dn, new BasicAttributes(true),
+            new LdapPersistentSearchControl.Change(LdapPersistentSearchControl.MODDN, dns[0])));
+    }
+
+    /**
+     * Start a server of the test's own, for tests that change its entries or settings. It is
+     * stopped by tearDown().
+     */
+    protected LdapServer startServer ()
+        throws IOException
+    {
+        LdapServer server = TestServer.start();
+        _servers.add(server);
+        return server;
+    }
+
+    /**
+     * Have a link unbound by tearDown().
+     */
+    protected LdapLinkResource addLink (LdapLinkResource link)
+    {
+        _links.add(link);
+        return link;
+    }
+
+    protected static int countEntries (LdapResultResource result)
+        throws NamingException
+    {
+        return result.toArrayValue().get(StringValueImpl.create("count")).toInt();
+    }
+
     public static junit.framework.Test suite ()
     {
         return new JUnit4TestAdapter(LdapLinkResourceTest.class);
     }
 
     protected LdapLinkResource _connection;
+
+    /** Links and servers of the running test's own, see addLink() and startServer(). */
+    protected List<LdapLinkResource> _links = new ArrayList<LdapLinkResource>();
+    protected List<LdapServer> _servers = new ArrayList<LdapServer>();
 }
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.naming.NamingException;
+
+/**
+ * Counts what links do: how long each kind of operation takes, how many entries searches return,
+ * how much ldap_get_entries() converts, and which errors come back. snapshot() returns all of it,
+ * along with the counters of the subsystems that added themselves as sources, such as the shared
+ * connection pool and caches, as a map of names to numbers. The shared instance is registered
+ * with the platform MBean server under OBJECT_NAME so that the same names show up as JMX
+ * attributes.
+ *
+ * Recording is a few atomic increments, so it is always on.
+ */
+public class LdapMetrics
+    implements DynamicMBean
+{
+    /** Operations that are timed. */
+    public static final String CONNECT = "connect";
+    public static final String BIND = "bind";
+    public static final String SEARCH = "search";
+    public static final String READ = "read";
+    public static final String UNBIND = "unbind";
+    public static final String ADD = "add";
+    public static final String MODIFY = "modify";
+    public static final String DELETE = "delete";
+    public static final String AUTHENTICATE = "authenticate";
+
+    /**
+     * Counts values into buckets by powers of two, which is plenty to tell a 1ms search from a
+     * 100ms one while taking a fixed amount of memory and no locks.
+     */
+    public static class Histogram
+    {
+        /** Record one value, which is taken as 0 if negative. */
+        public void record (long value)
+        {
+            value = Math.max(0, value);
+            _buckets.incrementAndGet(bucket(value));
+            _count.incrementAndGet();
+            _total.addAndGet(value);
+            long max;
+            while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {
+                // Someone else raised it first, try again.
+            }
+        }
+
+        /** Return the number of values recorded. */
+        public long getCount ()
+        {
+            return _count.get();
+        }
+
+        /** Return the sum of the values recorded. */
+        public long getTotal ()
+        {
+            return _total.get();
+        }
+
+        /** Return the largest value recorded. */
+        public long getMax ()
+        {
+            return _max.get();
+        }
+
+        /** Return the average of the values recorded, or 0 if there are none. */
+        public double getMean ()
+        {
+            long count = _count.get();
+            return (count == 0) ? 0 : (double) _total.get() / count;
+        }
+
+        /**
+         * Return a value that at least the given fraction of the values recorded are no more
+         * than, rounded up to the top of its bucket and capped at the maximum.
+         */
+        public long getPercentile (double fraction)
+        {
+            long counted = 0;
+            for (int ii = 0; ii < BUCKETS; ii++) {
+                counted += _buckets.get(ii);
+                if (counted > 0 && counted >= fraction * _count.get()) {
+                    return Math.min(_max.get(), (ii == 0) ? 0 : (1L << ii) - 1);
+                }
+            }
+            return _max.get();
+        }
+
+        /**
+         * Bucket 0 holds 0, and bucket n the values of n significant bits.
+         */
+        protected static int bucket (long value)
+        {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        protected AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        protected AtomicLong _count = new AtomicLong();
+        protected AtomicLong _total = new AtomicLong();
+        protected AtomicLong _max = new AtomicLong();
+
+        protected static final int BUCKETS = 48;
+    }
+
+    /**
+     * A subsystem that reports its own counters in snapshots, such as a cache.
+     */
+    public interface Source
+    {
+        /**
+         * Add the subsystem's counters to a snapshot, under names that start with the name of
+         * the subsystem and a dot, such as "pool.active".
+         */
+        public void addMetrics (Map<String, Number> snapshot);
+    }
+
+    /**
+     * Return the metrics recorded by all links.
+     */
+    public static LdapMetrics getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Record how long an operation took.
+     *
+     * @param operation One of the operation names above.
+     * @param startNanos The System.nanoTime() when the operation started.
+     */
+    public void recordTime (String operation, long startNanos)
+    {
+        getTimes(operation).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Record the number of entries a search found.
+     */
+    public void recordResultSize (int entries)
+    {
+        _resultSizes.record(entries);
+    }
+
+    /**
+     * Record a conversion of entries to a PHP array.
+     *
+     * @param entries Number of entries converted.
+     * @param chars Total length of the attribute values converted.
+     */
+    public void recordConversion (int entries, long chars)
+    {
+        _convertedEntries.addAndGet(entries);
+        _convertedChars.addAndGet(chars);
+    }
+
+    /**
+     * Count an error reported by JNDI, by its type.
+     */
+    public void recordError (NamingException e)
+    {
+        String type = e.getClass().getName();
+        type = type.substring(type.lastIndexOf('.') + 1);
+        AtomicLong count = _errors.get(type);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = _errors.putIfAbsent(type, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Have snapshots include the counters of a subsystem from now on.
+     */
+    public void addSource (Source source)
+    {
+        _sources.add(source);
+    }
+
+    /**
+     * Add a count to a snapshot, on top of what another source of the same kind put there.
+     */
+    public static void add (Map<String, Number> snapshot, String name, long value)
+    {
+        Number previous = snapshot.get(name);
+        snapshot.put(name, (previous == null) ? value : previous.longValue() + value);
+    }
+
+    /**
+     * Return the latencies of an operation, in microseconds.
+     */
+    public Histogram getTimes (String operation)
+    {
+        Histogram times = _times.get(operation);
+        if (times == null) {
+            Histogram created = new Histogram();
+            times = _times.putIfAbsent(operation, created);
+            if (times == null) {
+                times = created;
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Return the numbers of entries searches found.
+     */
+    public Histogram getResultSizes ()
+    {
+        return _resultSizes;
+    }
+
+    /**
+     * Return the number of errors of the given NamingException subclass, by simple name.
+     */
+    public long getErrorCount (String type)
+    {
+        AtomicLong count = _errors.get(type);
+        return (count == null) ? 0 : count.get();
+    }
+
+    /**
+     * Return everything recorded, plus the counters of the sources added, by name. Times are in
+     * milliseconds. The map is a copy and sorted by name.
+     */
+    public Map<String, Number> snapshot ()
+    {
+        TreeMap<String, Number> snapshot = new TreeMap<String, Number>();
+        for (Map.Entry<String, Histogram> entry : _times.entrySet()) {
+            String prefix = entry.getKey() + ".";
+            Histogram times = entry.getValue();
+            snapshot.put(prefix + "count", times.getCount());
+            snapshot.put(prefix + "meanMillis", times.getMean() / 1000);
+            snapshot.put(prefix + "p50Millis", times.getPercentile(0.5) / 1000.0);
+            snapshot.put(prefix + "p99Millis", times.getPercentile(0.99) / 1000.0);
+            snapshot.put(prefix + "maxMillis", times.getMax() / 1000.0);
+        }
+        snapshot.put("results.count", _resultSizes.getCount());
+        snapshot.put("results.meanEntries", _resultSizes.getMean());
+        snapshot.put("results.p99Entries", _resultSizes.getPercentile(0.99));
+        snapshot.put("results.maxEntries", _resultSizes.getMax());
+        snapshot.put("converted.entries", _convertedEntries.get());
+        snapshot.put("converted.chars", _convertedChars.get());
+        for (Map.Entry<String, AtomicLong> entry : _errors.entrySet()) {
+            snapshot.put("errors." + entry.getKey(), entry.getValue().get());
+        }
+        for (Source source : _sources) {
+            source.addMetrics(snapshot);
+        }
+        return snapshot;
+    }
+
+    // from interface DynamicMBean
+    public Object getAttribute (String name)
+        throws AttributeNotFoundException
+    {
+        Number value = snapshot().get(name);
+        if (value == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return value;
+    }
+
+    // from interface DynamicMBean
+    public AttributeList getAttributes (String[] names)
+    {
+        Map<String, Number> snapshot = snapshot();
+        AttributeList attributes = new AttributeList();
+        for (String name : names) {
+            Number value = snapshot.get(name);
+            if (value != null) {
+                attributes.add(new Attribute(name, value));
+            }
+        }
+        return attributes;
+    }
+
+    // from interface DynamicMBean
+    public void setAttribute (Attribute attribute)
+        throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    // from interface DynamicMBean
+    public AttributeList setAttributes (AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    // from interface DynamicMBean
+    public Object invoke (String action, Object[] params, String[] signature)
+        throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(action),
+                                      "No operation " + action);
+    }
+
+    // from interface DynamicMBean
+    public MBeanInfo getMBeanInfo ()
+    {
+        // Errors and operations show up as they happen, so describe what there is right now.
+        Map<String, Number> snapshot = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        Iterator<Map.Entry<String, Number>> iter = snapshot.entrySet().iterator();
+        for (int ii = 0; iter.hasNext(); ii++) {
+            Map.Entry<String, Number> entry = iter.next();
+            attributes[ii] = new MBeanAttributeInfo(entry.getKey(),
+                entry.getValue().getClass().getName(), entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "LDAP module metrics", attributes, null,
+                             new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * Register the shared metrics with the platform MBean server, unless something already is
+     * under OBJECT_NAME, such as another web app's copy of this library.
+     */
+    protected static void register ()
+    {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(_shared, name);
+            }
+        } catch (JMException e) {
+            // Metrics are still available through snapshot().
+        } catch (SecurityException e) {
+            // Likewise.
+        }
+    }
+
+    protected ConcurrentHashMap<String, Histogram> _times =
+        new ConcurrentHashMap<String, Histogram>();
+    protected Histogram _resultSizes = new Histogram();
+    protected AtomicLong _convertedEntries = new AtomicLong();
+    protected AtomicLong _convertedChars = new AtomicLong();
+    protected ConcurrentHashMap<String, AtomicLong> _errors =
+        new ConcurrentHashMap<String, AtomicLong>();
+    protected CopyOnWriteArrayList<Source> _sources = new CopyOnWriteArrayList<Source>();
+
+    /** Name the shared metrics are registered under with JMX. */
+    public static final String OBJECT_NAME = "com.threerings.quercus.ldap:type=Metrics";
+
+    protected static final LdapMetrics _shared = new LdapMetrics();
+    static {
+        if (!"false".equals(System.getProperty("com.threerings.quercus.ldap.metrics.jmx"))) {
+            register();
+        }
+    }
+}
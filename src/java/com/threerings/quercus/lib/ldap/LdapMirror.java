@@ -0,0 +1,1441 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * A copy of a subtree of a directory held in memory, so that searches of read-mostly data such
+ * as user profiles and group membership can be answered without asking the server. The mirror
+ * reads the subtree with a persistent search, which then goes on sending each entry that is
+ * added, changed or removed, and indexes the entries by the values of their attributes, the
+ * attributes they have and, for a few attributes, the three character substrings of their
+ * values. Searches of the subtree whose filters use only and, or, not, equality, presence and
+ * substring matches are answered from the indexes; others, and those asking for attributes no
+ * entry has, such as operational ones, go to the server as usual.
+ *
+ * Values of the configured string attributes are matched ignoring case and insignificant spaces,
+ * as directory strings are, and those of the configured DN attributes, such as member, as
+ * distinguished names, so that spaces between their RDNs and the case of their attribute types
+ * don't matter either. Binary values are compared byte for byte. Equality and substring filters
+ * on any other attribute go to the server, which knows its matching rule; presence filters don't
+ * depend on one, and are answered for every attribute.
+ *
+ * The mirror only answers links bound with the identity it reads the subtree as, so that no
+ * one sees entries the directory wouldn't show them. After a link writes to an entry of the
+ * subtree, searches go to the server until the change comes back over the persistent search,
+ * or writeWaitMillis pass, so scripts see their own writes. While the mirror is reading the
+ * subtree, or after its connection fails and until it has read the subtree again,
+ * everything goes to the server.
+ */
+public class LdapMirror
+    implements LdapMetrics.Source
+{
+    /**
+     * Create a mirror configured from system properties, falling back to the defaults below.
+     *
+     * @param uri URI of the server to follow.
+     * @param baseDN The subtree to mirror.
+     * @param bindDN DN to read the subtree as, or an empty string to read it anonymously.
+     */
+    public LdapMirror (String uri, String baseDN, String bindDN, String password)
+        throws InvalidNameException
+    {
+        this(uri, baseDN, bindDN, password,
+             getList("substringAttributes", DEFAULT_SUBSTRING_ATTRIBUTES),
+             getList("stringAttributes", DEFAULT_STRING_ATTRIBUTES),
+             getList("dnAttributes", DEFAULT_DN_ATTRIBUTES),
+             Long.getLong(PROP_PREFIX + "retryMillis", DEFAULT_RETRY_MILLIS),
+             Long.getLong(PROP_PREFIX + "writeWaitMillis", DEFAULT_WRITE_WAIT_MILLIS));
+    }
+
+    /**
+     * Create a new mirror matching the default string and DN attributes, which does nothing
+     * until started.
+     */
+    public LdapMirror (String uri, String baseDN, String bindDN, String password,
+                       String[] substringAttributes, long retryMillis, long writeWaitMillis)
+        throws InvalidNameException
+    {
+        this(uri, baseDN, bindDN, password, substringAttributes,
+             DEFAULT_STRING_ATTRIBUTES.split(" "), DEFAULT_DN_ATTRIBUTES.split(" "), retryMillis,
+             writeWaitMillis);
+    }
+
+    /**
+     * Create a new mirror, which does nothing until started.
+     *
+     * @param substringAttributes String attributes whose values are indexed for substring
+     *        filters. Substring filters on others look at every entry with the attribute.
+     * @param stringAttributes Attributes matched as directory strings.
+     * @param dnAttributes Attributes matched as distinguished names.
+     * @param retryMillis How long to wait before reading the subtree again after the
+     *        connection fails.
+     * @param writeWaitMillis Longest time searches go to the server after a write, should the
+     *        change never come back.
+     */
+    public LdapMirror (String uri, String baseDN, String bindDN, String password,
+                       String[] substringAttributes, String[] stringAttributes,
+                       String[] dnAttributes, long retryMillis, long writeWaitMillis)
+        throws InvalidNameException
+    {
+        this._uri = uri;
+        this._server = toServer(uri);
+        this._baseDN = baseDN;
+        this._base = new LdapName(baseDN);
+        this._bindDN = bindDN;
+        this._password = password;
+        addAttributes(_substringAttributes, substringAttributes);
+        addAttributes(_stringAttributes, stringAttributes);
+        addAttributes(_dnAttributes, dnAttributes);
+        this._retryMillis = retryMillis;
+        this._writeWaitMillis = writeWaitMillis;
+    }
+
+    /**
+     * Return the mirrors shared by all LdapLinkResources, one for each LDAP URL, such as
+     * ldap://ldap.example.com/ou=People,dc=example,dc=com, in the urls system property. Base
+     * DNs are percent-encoded as in any URL. They all read their subtrees as bindDN. The mirrors
+     * are created and started when first asked for; bad URLs are logged and skipped.
+     */
+    public static synchronized List<LdapMirror> getShared ()
+    {
+        if (_shared == null) {
+            _shared = createShared();
+        }
+        return _shared;
+    }
+
+    /**
+     * Start reading the subtree and following its changes on a thread of the mirror's own.
+     * Searches go to the server until it has been read, see isReady().
+     */
+    public synchronized void start ()
+    {
+        if (_thread != null) {
+            return;
+        }
+        _running = true;
+        _thread = new Thread("LdapMirror " + _uri + " " + _baseDN) {
+            public void run () {
+                follow();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Stop following the subtree, abandoning the persistent search and dropping the entries.
+     */
+    public void stop ()
+    {
+        NamingEnumeration<SearchResult> feed;
+        LdapContext ctx;
+        synchronized (this) {
+            _running = false;
+            _thread = null;
+            feed = _feed;
+            ctx = _ctx;
+            notifyAll();
+        }
+        try {
+            if (feed != null) {
+                feed.close();
+            }
+            if (ctx != null) {
+                ctx.close();
+            }
+        } catch (NamingException e) {
+            // We're stopping anyway.
+        }
+        _index = null;
+    }
+
+    /**
+     * Return true if the mirror has read the whole subtree and is following its changes.
+     */
+    public boolean isReady ()
+    {
+        return _index != null;
+    }
+
+    /**
+     * Wait for the mirror to be ready.
+     *
+     * @return false if it isn't after the given time.
+     */
+    public synchronized boolean awaitReady (long millis)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        while (_index == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the mirror follows one of the given servers, so that writes to them show
+     * up in it.
+     */
+    public boolean follows (String[] uris)
+    {
+        for (String uri : uris) {
+            if (_server.equals(toServer(uri))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the attributes whose values the mirror reads as bytes, separated by spaces, the
+     * defaults of LdapOptions when it was created. Only links reading the same attributes as
+     * bytes can be answered from it.
+     */
+    public String getBinaryAttributes ()
+    {
+        return _binaryAttributes;
+    }
+
+    /**
+     * Return true if the mirror may answer the searches of a link bound to the given servers
+     * with the given DN.
+     */
+    public boolean answers (String[] uris, String bindDN)
+    {
+        if (!follows(uris)) {
+            return false;
+        }
+        if (bindDN.length() == 0 || _bindDN.length() == 0) {
+            return bindDN.length() == _bindDN.length();
+        }
+        try {
+            return new LdapName(bindDN).equals(new LdapName(_bindDN));
+        } catch (InvalidNameException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Answer a search from the mirror if it can be.
+     *
+     * @param filter The search filter, normalized.
+     * @return The matching entries in the order the mirror read them, or null if the search
+     *         has to go to the server.
+     */
+    public List<SearchResult> search (String baseDN, LdapFilter filter, SearchControls ctls)
+    {
+        LdapName base;
+        try {
+            base = new LdapName(baseDN);
+        } catch (InvalidNameException e) {
+            return null;
+        }
+        if (!base.startsWith(_base)) {
+            // Not our subtree, so neither a hit nor a miss.
+            return null;
+        }
+        Index index = _index;
+        Query query = (index == null || isWriting()) ? null : Query.compile(filter, index);
+        List<SearchResult> results = (query == null) ? null : index.search(base, ctls, query);
+        (results == null ? _misses : _hits).incrementAndGet();
+        return results;
+    }
+
+    /**
+     * Note that a link has written to an entry, so that searches go to the server until the
+     * change comes back.
+     */
+    public void expectChange (String dn)
+    {
+        LdapName name;
+        try {
+            name = new LdapName(dn);
+        } catch (InvalidNameException e) {
+            return;
+        }
+        if (name.startsWith(_base)) {
+            synchronized (_expected) {
+                _expected.put(name, System.currentTimeMillis() + _writeWaitMillis);
+            }
+        }
+    }
+
+    /** Return the URI of the server followed. */
+    public String getURI ()
+    {
+        return _uri;
+    }
+
+    /** Return the DN of the subtree mirrored. */
+    public String getBaseDN ()
+    {
+        return _baseDN;
+    }
+
+    /** Return the number of entries held, 0 if the mirror is not ready. */
+    public int size ()
+    {
+        Index index = _index;
+        return (index == null) ? 0 : index.size();
+    }
+
+    /** Return the number of searches of the subtree answered by the mirror. */
+    public long getHitCount ()
+    {
+        return _hits.get();
+    }
+
+    /** Return the number of searches of the subtree that had to go to the server. */
+    public long getMissCount ()
+    {
+        return _misses.get();
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        // Shared mirrors report together.
+        LdapMetrics.add(snapshot, "mirror.hits", getHitCount());
+        LdapMetrics.add(snapshot, "mirror.misses", getMissCount());
+        LdapMetrics.add(snapshot, "mirror.entries", size());
+    }
+
+    /** The entries of the subtree and their indexes. */
+    protected static class Index
+    {
+        public Index (Set<String> substringAttributes, Set<String> stringAttributes,
+                      Set<String> dnAttributes)
+        {
+            this._substringAttributes = substringAttributes;
+            this._stringAttributes = stringAttributes;
+            this._dnAttributes = dnAttributes;
+        }
+
+        /**
+         * Apply an entry sent by the persistent search.
+         *
+         * @param change How it changed, or null if it is one of the entries of the subtree as
+         *        the search started.
+         * @return false if the change renamed an entry with entries below it, which the server
+         *         doesn't send again under their new DNs, so the index can no longer be used.
+         */
+        public boolean apply (LdapName name, String dn, Attributes attributes,
+                              LdapPersistentSearchControl.Change change)
+            throws NamingException
+        {
+            _lock.writeLock().lock();
+            try {
+                if (change != null && change.type == LdapPersistentSearchControl.MODDN &&
+                    change.previousDN != null) {
+                    LdapName previous = new LdapName(change.previousDN);
+                    if (hasChildren(previous)) {
+                        return false;
+                    }
+                    remove(previous);
+                }
+                if (change != null && change.type == LdapPersistentSearchControl.DELETE) {
+                    remove(name);
+                    return true;
+                }
+                Item old = _entries.get(name);
+                if (old != null) {
+                    unindex(old);
+                }
+                // Changed entries keep their place.
+                Item item = new Item(dn, name, attributes, (old == null) ? _nextSeq++ : old.seq);
+                _entries.put(name, item);
+                index(item);
+                return true;
+            } finally {
+                _lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Find the entries in scope of a base that match a query.
+         *
+         * @return The entries, or null if the search has to go to the server: the base entry
+         *         doesn't exist, there are more entries than the size limit, or the query or
+         *         attributes asked for use attributes no entry has.
+         */
+        public List<SearchResult> search (LdapName base, SearchControls ctls, Query query)
+        {
+            _lock.readLock().lock();
+            try {
+                Item baseItem = _entries.get(base);
+                if (baseItem == null || !query.isAnswerable(this)) {
+                    return null;
+                }
+                // Null for all of them.
+                List<String> returning = null;
+                if (ctls.getReturningAttributes() != null) {
+                    returning = new ArrayList<String>();
+                    boolean all = false;
+                    for (String attribute : ctls.getReturningAttributes()) {
+                        String key = attribute.toLowerCase(Locale.ENGLISH);
+                        if (key.equals("*")) {
+                            // The others still have to be known, as they may be operational.
+                            all = true;
+                            continue;
+                        }
+                        if (key.equals("1.1") || key.equals("dn")) {
+                            continue;
+                        }
+                        if (!_present.containsKey(key)) {
+                            return null;
+                        }
+                        returning.add(attribute);
+                    }
+                    if (all) {
+                        returning = null;
+                    }
+                }
+                return search(base, ctls, query, baseItem, returning);
+            } finally {
+                _lock.readLock().unlock();
+            }
+        }
+
+        public int size ()
+        {
+            _lock.readLock().lock();
+            try {
+                return _entries.size();
+            } finally {
+                _lock.readLock().unlock();
+            }
+        }
+
+        /** Return true if some entry has the attribute. */
+        public boolean hasAttribute (String attribute)
+        {
+            return _present.containsKey(attribute);
+        }
+
+        /** Return true if the attribute's values are matched as directory strings. */
+        public boolean isString (String attribute)
+        {
+            return _stringAttributes.contains(attribute);
+        }
+
+        /** Return true if the attribute's values are matched as distinguished names. */
+        public boolean isDN (String attribute)
+        {
+            return _dnAttributes.contains(attribute);
+        }
+
+        /** Return true if some entry has a binary value of the attribute. */
+        public boolean isBinary (String attribute)
+        {
+            return _binary.contains(attribute);
+        }
+
+        /** Return the entries with the attribute. */
+        public Set<Item> getPresent (String attribute)
+        {
+            return get(_present, attribute);
+        }
+
+        /** Return the entries with a normalized text value of an attribute. */
+        public Set<Item> getEqual (String attribute, String value)
+        {
+            Map<String, Set<Item>> values = _equal.get(attribute);
+            return (values == null) ? Collections.<Item>emptySet() : get(values, value);
+        }
+
+        /**
+         * Return the entries with a value of an attribute containing a three character string,
+         * or null if the attribute's values are not indexed by them.
+         */
+        public Set<Item> getTrigram (String attribute, String trigram)
+        {
+            if (!_substringAttributes.contains(attribute) || !isString(attribute) ||
+                _binary.contains(attribute)) {
+                return null;
+            }
+            Map<String, Set<Item>> trigrams = _trigrams.get(attribute);
+            return (trigrams == null) ? Collections.<Item>emptySet() : get(trigrams, trigram);
+        }
+
+        protected List<SearchResult> search (LdapName base, SearchControls ctls, Query query,
+                                             Item baseItem, List<String> returning)
+        {
+            List<Item> matches = new ArrayList<Item>();
+            int scope = ctls.getSearchScope();
+            if (scope == SearchControls.OBJECT_SCOPE) {
+                if (query.matches(baseItem.attributes)) {
+                    matches.add(baseItem);
+                }
+            } else {
+                Set<Item> candidates = query.getCandidates(this);
+                Collection<Item> items = (candidates == null) ? _entries.values() : candidates;
+                for (Item item : items) {
+                    LdapName name = item.name;
+                    boolean inScope = name.startsWith(base) &&
+                        (scope == SearchControls.SUBTREE_SCOPE || name.size() == base.size() + 1);
+                    if (inScope && query.matches(item.attributes)) {
+                        matches.add(item);
+                    }
+                }
+                if (candidates != null) {
+                    Collections.sort(matches, SEQUENCE_ORDER);
+                }
+            }
+            if (ctls.getCountLimit() > 0 && matches.size() > ctls.getCountLimit()) {
+                // Let the server say the limit was exceeded.
+                return null;
+            }
+            List<SearchResult> results = new ArrayList<SearchResult>(matches.size());
+            for (Item item : matches) {
+                Attributes attributes = item.attributes;
+                if (returning != null) {
+                    attributes = new BasicAttributes(true);
+                    for (String attribute : returning) {
+                        Attribute attr = item.attributes.get(attribute);
+                        if (attr != null) {
+                            attributes.put(attr);
+                        }
+                    }
+                }
+                SearchResult result = new SearchResult(item.dn, null, attributes, false);
+                result.setNameInNamespace(item.dn);
+                results.add(result);
+            }
+            return results;
+        }
+
+        /**
+         * Return true if there are entries below the given one.
+         */
+        protected boolean hasChildren (LdapName name)
+        {
+            for (LdapName other : _entries.keySet()) {
+                if (other.size() > name.size() && other.startsWith(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected void remove (LdapName name)
+            throws NamingException
+        {
+            Item old = _entries.remove(name);
+            if (old != null) {
+                unindex(old);
+            }
+        }
+
+        protected void index (Item item)
+            throws NamingException
+        {
+            NamingEnumeration<? extends Attribute> attrs = item.attributes.getAll();
+            while (attrs.hasMore()) {
+                Attribute attr = attrs.next();
+                String attribute = attr.getID().toLowerCase(Locale.ENGLISH);
+                add(_present, attribute, item);
+                boolean dn = isDN(attribute);
+                for (int ii = 0; ii < attr.size(); ii++) {
+                    Object value = attr.get(ii);
+                    if (value instanceof byte[]) {
+                        _binary.add(attribute);
+                        continue;
+                    }
+                    if (!dn && !isString(attribute)) {
+                        continue;
+                    }
+                    String text = normalize(value.toString(), dn);
+                    add(getValues(_equal, attribute), text, item);
+                    if (_substringAttributes.contains(attribute) && !dn) {
+                        Map<String, Set<Item>> trigrams = getValues(_trigrams, attribute);
+                        for (String trigram : getTrigrams(text)) {
+                            add(trigrams, trigram, item);
+                        }
+                    }
+                }
+            }
+        }
+
+        protected void unindex (Item item)
+            throws NamingException
+        {
+            NamingEnumeration<? extends Attribute> attrs = item.attributes.getAll();
+            while (attrs.hasMore()) {
+                Attribute attr = attrs.next();
+                String attribute = attr.getID().toLowerCase(Locale.ENGLISH);
+                remove(_present, attribute, item);
+                boolean dn = isDN(attribute);
+                for (int ii = 0; ii < attr.size(); ii++) {
+                    Object value = attr.get(ii);
+                    if (value instanceof byte[] || (!dn && !isString(attribute))) {
+                        continue;
+                    }
+                    String text = normalize(value.toString(), dn);
+                    remove(_equal.get(attribute), text, item);
+                    if (_substringAttributes.contains(attribute) && !dn) {
+                        for (String trigram : getTrigrams(text)) {
+                            remove(_trigrams.get(attribute), trigram, item);
+                        }
+                    }
+                }
+            }
+        }
+
+        protected static Map<String, Set<Item>> getValues (
+            Map<String, Map<String, Set<Item>>> index, String attribute)
+        {
+            Map<String, Set<Item>> values = index.get(attribute);
+            if (values == null) {
+                values = new HashMap<String, Set<Item>>();
+                index.put(attribute, values);
+            }
+            return values;
+        }
+
+        protected static Set<Item> get (Map<String, Set<Item>> index, String key)
+        {
+            Set<Item> items = index.get(key);
+            return (items == null) ? Collections.<Item>emptySet() : items;
+        }
+
+        protected static void add (Map<String, Set<Item>> index, String key, Item item)
+        {
+            Set<Item> items = index.get(key);
+            if (items == null) {
+                items = new HashSet<Item>();
+                index.put(key, items);
+            }
+            items.add(item);
+        }
+
+        protected static void remove (Map<String, Set<Item>> index, String key, Item item)
+        {
+            Set<Item> items = (index == null) ? null : index.get(key);
+            if (items != null && items.remove(item) && items.isEmpty()) {
+                index.remove(key);
+            }
+        }
+
+        protected Set<String> _substringAttributes;
+        protected Set<String> _stringAttributes;
+        protected Set<String> _dnAttributes;
+
+        /** The entries by DN, in the order they were first read. */
+        protected LinkedHashMap<LdapName, Item> _entries = new LinkedHashMap<LdapName, Item>();
+        protected long _nextSeq;
+
+        /** Entries by attribute, and by attribute and normalized value or trigram of one. */
+        protected Map<String, Set<Item>> _present = new HashMap<String, Set<Item>>();
+        protected Map<String, Map<String, Set<Item>>> _equal =
+            new HashMap<String, Map<String, Set<Item>>>();
+        protected Map<String, Map<String, Set<Item>>> _trigrams =
+            new HashMap<String, Map<String, Set<Item>>>();
+
+        /** Attributes that have had binary values, which are not indexed. */
+        protected Set<String> _binary = new HashSet<String>();
+
+        protected ReadWriteLock _lock = new ReentrantReadWriteLock();
+    }
+
+    /** An entry of the subtree, replaced rather than changed when the entry changes. */
+    protected static class Item
+    {
+        public final String dn;
+        public final LdapName name;
+        public final Attributes attributes;
+
+        /** The order the entry was first read in. */
+        public final long seq;
+
+        public Item (String dn, LdapName name, Attributes attributes, long seq)
+        {
+            this.dn = dn;
+            this.name = name;
+            this.attributes = attributes;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * A filter the mirror can answer, which picks candidate entries from the indexes and then
+     * checks them.
+     */
+    protected abstract static class Query
+    {
+        /**
+         * Return the query for a normalized filter, or null if the mirror can't answer it, as
+         * it uses a kind of match or a matching rule the index doesn't know.
+         */
+        public static Query compile (LdapFilter filter, Index index)
+        {
+            if (filter instanceof LdapFilter.Composite) {
+                LdapFilter.Composite composite = (LdapFilter.Composite) filter;
+                List<Query> operands = new ArrayList<Query>();
+                for (LdapFilter operand : composite.getOperands()) {
+                    Query query = compile(operand, index);
+                    if (query == null) {
+                        return null;
+                    }
+                    operands.add(query);
+                }
+                return new Composite(composite.getOperator(), operands);
+            }
+            if (filter instanceof LdapFilter.Comparison) {
+                LdapFilter.Comparison comparison = (LdapFilter.Comparison) filter;
+                String attribute = comparison.getAttribute();
+                if (!comparison.getOperator().equals("=") ||
+                    !(index.isString(attribute) || index.isDN(attribute))) {
+                    return null;
+                }
+                return new Equality(attribute, comparison.getValue(), index.isDN(attribute));
+            }
+            if (filter instanceof LdapFilter.Present) {
+                return new Presence(((LdapFilter.Present) filter).getAttribute());
+            }
+            if (filter instanceof LdapFilter.Substring) {
+                LdapFilter.Substring substring = (LdapFilter.Substring) filter;
+                return index.isString(substring.getAttribute()) ? new Substring(substring) : null;
+            }
+            return null;
+        }
+
+        /**
+         * Return true if the index knows the attributes the query uses, so that it can't be
+         * missing entries the server would find.
+         */
+        public abstract boolean isAnswerable (Index index);
+
+        /**
+         * Return the entries that may match, or null if the query could match any entry.
+         */
+        public abstract Set<Item> getCandidates (Index index);
+
+        public abstract boolean matches (Attributes attributes);
+    }
+
+    /** The and, or and not of other queries. */
+    protected static class Composite extends Query
+    {
+        public Composite (char operator, List<Query> operands)
+        {
+            this._operator = operator;
+            this._operands = operands;
+        }
+
+        @Override
+        public boolean isAnswerable (Index index)
+        {
+            for (Query operand : _operands) {
+                if (!operand.isAnswerable(index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Set<Item> getCandidates (Index index)
+        {
+            if (_operator == LdapFilter.NOT) {
+                return null;
+            }
+            List<Set<Item>> sets = new ArrayList<Set<Item>>();
+            for (Query operand : _operands) {
+                Set<Item> candidates = operand.getCandidates(index);
+                if (candidates != null) {
+                    sets.add(candidates);
+                } else if (_operator == LdapFilter.OR) {
+                    return null;
+                }
+            }
+            if (sets.isEmpty()) {
+                return null;
+            }
+            if (_operator == LdapFilter.OR) {
+                Set<Item> union = new HashSet<Item>();
+                for (Set<Item> candidates : sets) {
+                    union.addAll(candidates);
+                }
+                return union;
+            }
+            // Start from the smallest set, checking its entries against the others.
+            Collections.sort(sets, SIZE_ORDER);
+            Set<Item> intersection = new HashSet<Item>();
+            for (Item item : sets.get(0)) {
+                boolean all = true;
+                for (int ii = 1; ii < sets.size() && all; ii++) {
+                    all = sets.get(ii).contains(item);
+                }
+                if (all) {
+                    intersection.add(item);
+                }
+            }
+            return intersection;
+        }
+
+        @Override
+        public boolean matches (Attributes attributes)
+        {
+            switch (_operator) {
+            case LdapFilter.AND:
+                for (Query operand : _operands) {
+                    if (!operand.matches(attributes)) {
+                        return false;
+                    }
+                }
+                return true;
+            case LdapFilter.OR:
+                for (Query operand : _operands) {
+                    if (operand.matches(attributes)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return !_operands.get(0).matches(attributes);
+            }
+        }
+
+        protected char _operator;
+        protected List<Query> _operands;
+    }
+
+    /** An equality match, (attribute=value). */
+    protected static class Equality extends Query
+    {
+        /**
+         * @param dn Whether the attribute's values are distinguished names.
+         */
+        public Equality (String attribute, byte[] value, boolean dn)
+        {
+            this._attribute = attribute;
+            this._value = value;
+            this._dn = dn;
+            this._text = normalize(toText(value), dn);
+        }
+
+        @Override
+        public boolean isAnswerable (Index index)
+        {
+            return index.hasAttribute(_attribute);
+        }
+
+        @Override
+        public Set<Item> getCandidates (Index index)
+        {
+            // Binary values aren't indexed, so any entry with the attribute may match.
+            return index.isBinary(_attribute) ? index.getPresent(_attribute) :
+                index.getEqual(_attribute, _text);
+        }
+
+        @Override
+        public boolean matches (Attributes attributes)
+        {
+            Attribute attr = attributes.get(_attribute);
+            try {
+                for (int ii = 0; attr != null && ii < attr.size(); ii++) {
+                    Object value = attr.get(ii);
+                    if ((value instanceof byte[]) ? Arrays.equals((byte[]) value, _value) :
+                        normalize(value.toString(), _dn).equals(_text)) {
+                        return true;
+                    }
+                }
+            } catch (NamingException e) {
+                // Values in memory can always be had.
+            }
+            return false;
+        }
+
+        protected String _attribute;
+        protected byte[] _value;
+        protected boolean _dn;
+        protected String _text;
+    }
+
+    /** A presence match, (attribute=*). */
+    protected static class Presence extends Query
+    {
+        public Presence (String attribute)
+        {
+            this._attribute = attribute;
+        }
+
+        @Override
+        public boolean isAnswerable (Index index)
+        {
+            // Attributes no entry has are present in none, unless they are operational.
+            return index.hasAttribute(_attribute);
+        }
+
+        @Override
+        public Set<Item> getCandidates (Index index)
+        {
+            return index.getPresent(_attribute);
+        }
+
+        @Override
+        public boolean matches (Attributes attributes)
+        {
+            Attribute attr = attributes.get(_attribute);
+            return attr != null && attr.size() > 0;
+        }
+
+        protected String _attribute;
+    }
+
+    /** A substring match, (attribute=initial*any*final). */
+    protected static class Substring extends Query
+    {
+        public Substring (LdapFilter.Substring filter)
+        {
+            this._attribute = filter.getAttribute();
+            byte[] initial = filter.getInitial();
+            byte[] fin = filter.getFinal();
+            this._initial = (initial == null) ? null : normalizePart(initial);
+            this._final = (fin == null) ? null : normalizePart(fin);
+            for (byte[] part : filter.getAny()) {
+                _any.add(normalizePart(part));
+            }
+        }
+
+        @Override
+        public boolean isAnswerable (Index index)
+        {
+            return index.hasAttribute(_attribute) && !index.isBinary(_attribute);
+        }
+
+        @Override
+        public Set<Item> getCandidates (Index index)
+        {
+            List<String> parts = new ArrayList<String>(_any);
+            if (_initial != null) {
+                parts.add(_initial);
+            }
+            if (_final != null) {
+                parts.add(_final);
+            }
+            // Only entries with every trigram of every part can match.
+            Set<Item> smallest = null;
+            List<Set<Item>> sets = new ArrayList<Set<Item>>();
+            for (String part : parts) {
+                for (String trigram : getTrigrams(part)) {
+                    Set<Item> items = index.getTrigram(_attribute, trigram);
+                    if (items == null) {
+                        return index.getPresent(_attribute);
+                    }
+                    sets.add(items);
+                    if (smallest == null || items.size() < smallest.size()) {
+                        smallest = items;
+                    }
+                }
+            }
+            if (smallest == null) {
+                // Parts too short to have trigrams.
+                return index.getPresent(_attribute);
+            }
+            Set<Item> candidates = new HashSet<Item>();
+            for (Item item : smallest) {
+                boolean all = true;
+                for (Iterator<Set<Item>> iter = sets.iterator(); iter.hasNext() && all; ) {
+                    all = iter.next().contains(item);
+                }
+                if (all) {
+                    candidates.add(item);
+                }
+            }
+            return candidates;
+        }
+
+        @Override
+        public boolean matches (Attributes attributes)
+        {
+            Attribute attr = attributes.get(_attribute);
+            try {
+                for (int ii = 0; attr != null && ii < attr.size(); ii++) {
+                    Object value = attr.get(ii);
+                    if (!(value instanceof byte[]) && matches(normalize(value.toString()))) {
+                        return true;
+                    }
+                }
+            } catch (NamingException e) {
+                // Values in memory can always be had.
+            }
+            return false;
+        }
+
+        protected boolean matches (String value)
+        {
+            int pos = 0;
+            if (_initial != null) {
+                if (!value.startsWith(_initial)) {
+                    return false;
+                }
+                pos = _initial.length();
+            }
+            for (String part : _any) {
+                int found = value.indexOf(part, pos);
+                if (found < 0) {
+                    return false;
+                }
+                pos = found + part.length();
+            }
+            return _final == null ||
+                (value.length() - _final.length() >= pos && value.endsWith(_final));
+        }
+
+        /**
+         * Lowercase a part and collapse its spaces, but keep those at its ends, which say where
+         * the words of the value break.
+         */
+        protected static String normalizePart (byte[] part)
+        {
+            return collapseSpaces(toText(part).toLowerCase(Locale.ENGLISH));
+        }
+
+        protected String _attribute;
+        protected String _initial;
+        protected List<String> _any = new ArrayList<String>();
+        protected String _final;
+    }
+
+    /**
+     * Read the subtree and follow its changes until stopped, starting over whenever the
+     * connection fails.
+     */
+    protected void follow ()
+    {
+        while (true) {
+            boolean failed = false;
+            try {
+                sync();
+            } catch (NamingException e) {
+                failed = true;
+                if (_running) {
+                    LdapMetrics.getShared().recordError(e);
+                }
+            }
+            _index = null;
+            synchronized (this) {
+                if (!_running) {
+                    return;
+                }
+                if (!failed) {
+                    // The subtree has to be read again, which the server is up for.
+                    continue;
+                }
+                try {
+                    wait(_retryMillis);
+                } catch (InterruptedException e) {
+                    // Try again now then.
+                }
+                if (!_running) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the subtree into a new index and apply its changes until the persistent search
+     * fails, or an entry with entries below it is renamed, after which the subtree has to be
+     * read again. The mirror is ready once every entry that existed when the search started has
+     * been read.
+     */
+    protected void sync ()
+        throws NamingException
+    {
+        LdapContext ctx = new InitialLdapContext(createEnvironment(), null);
+        NamingEnumeration<SearchResult> feed;
+        try {
+            // Entries that exist are sent first, then the changes, each with its notification.
+            ctx.setRequestControls(new Control[] { new LdapPersistentSearchControl(
+                LdapPersistentSearchControl.ANY, false, true, true) });
+            feed = ctx.search(_baseDN, "(objectClass=*)", new SearchControls(
+                SearchControls.SUBTREE_SCOPE, 0, 0, null, false, false));
+            ctx.setRequestControls(null);
+        } catch (NamingException e) {
+            ctx.close();
+            throw e;
+        }
+        synchronized (this) {
+            _ctx = ctx;
+            _feed = feed;
+        }
+        try {
+            if (!_running) {
+                return;
+            }
+            // The search is registered by the time the server answers it, so every entry a
+            // search finds from now on is among the first entries or will be sent as a change.
+            Set<LdapName> unread = listEntries(ctx);
+            Index index = new Index(_substringAttributes, _stringAttributes, _dnAttributes);
+            while (feed.hasMore()) {
+                SearchResult result = feed.next();
+                LdapPersistentSearchControl.Change change = (result instanceof HasControls) ?
+                    LdapPersistentSearchControl.getChange(((HasControls) result).getControls()) :
+                    null;
+                LdapName name = new LdapName(result.getNameInNamespace());
+                if (!index.apply(name, result.getNameInNamespace(), result.getAttributes(),
+                                 change)) {
+                    return;
+                }
+                if (change != null) {
+                    synchronized (_expected) {
+                        _expected.remove(name);
+                    }
+                }
+                if (unread != null) {
+                    unread.remove(name);
+                    if (change != null && change.previousDN != null) {
+                        unread.remove(new LdapName(change.previousDN));
+                    }
+                    if (unread.isEmpty()) {
+                        unread = null;
+                        synchronized (this) {
+                            _index = index;
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+            throw new NamingException("The server ended the persistent search of " + _baseDN);
+        } finally {
+            synchronized (this) {
+                _ctx = null;
+                _feed = null;
+            }
+            feed.close();
+            ctx.close();
+        }
+    }
+
+    /**
+     * Return the DNs of the entries of the subtree, reading them a page at a time.
+     */
+    protected Set<LdapName> listEntries (LdapContext ctx)
+        throws NamingException
+    {
+        Set<LdapName> names = new HashSet<LdapName>();
+        LdapContext lister = ctx.newInstance(null);
+        try {
+            NamingEnumeration answer = new LdapPagedEnumeration(
+                lister, _baseDN, "(objectClass=*)", new SearchControls(
+                    SearchControls.SUBTREE_SCOPE, 0, 0, NO_ATTRIBUTES, false, false),
+                LIST_PAGE_SIZE, false);
+            try {
+                while (answer.hasMore()) {
+                    names.add(new LdapName(((SearchResult) answer.next()).getNameInNamespace()));
+                }
+            } finally {
+                answer.close();
+            }
+        } finally {
+            lister.close();
+        }
+        return names;
+    }
+
+    protected Hashtable<String, String> createEnvironment ()
+    {
+        Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.PROVIDER_URL, _uri);
+        // Referral objects are mirrored as they are.
+        env.put(Context.REFERRAL, "ignore");
+        if (_bindDN.length() > 0) {
+            env.put(Context.SECURITY_AUTHENTICATION, "simple");
+            env.put(Context.SECURITY_PRINCIPAL, _bindDN);
+            env.put(Context.SECURITY_CREDENTIALS, _password);
+        }
+        if (_binaryAttributes.length() > 0) {
+            env.put(LdapLinkResource.BINARY_ATTRIBUTES, _binaryAttributes);
+        }
+        return env;
+    }
+
+    /**
+     * Return true if links have written to entries whose changes haven't come back yet.
+     */
+    protected boolean isWriting ()
+    {
+        synchronized (_expected) {
+            if (_expected.isEmpty()) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<Long> iter = _expected.values().iterator(); iter.hasNext(); ) {
+                if (iter.next() <= now) {
+                    iter.remove();
+                }
+            }
+            return !_expected.isEmpty();
+        }
+    }
+
+    /**
+     * Return a text value in the form values are compared in: lowercased, with leading and
+     * trailing spaces removed and the others collapsed to one.
+     */
+    protected static String normalize (String value)
+    {
+        return collapseSpaces(value.toLowerCase(Locale.ENGLISH)).trim();
+    }
+
+    /**
+     * Return a value in the form values are compared in, as a distinguished name if dn is set:
+     * each RDN with its attribute types lowercased and its values normalized, in a fixed order,
+     * so that equal DNs written differently compare equal. Values that aren't DNs are
+     * normalized as text.
+     */
+    protected static String normalize (String value, boolean dn)
+    {
+        if (!dn) {
+            return normalize(value);
+        }
+        try {
+            StringBuilder buf = new StringBuilder();
+            for (Rdn rdn : new LdapName(value).getRdns()) {
+                List<String> parts = new ArrayList<String>();
+                NamingEnumeration<? extends Attribute> attrs = rdn.toAttributes().getAll();
+                while (attrs.hasMore()) {
+                    Attribute attr = attrs.next();
+                    for (int ii = 0; ii < attr.size(); ii++) {
+                        parts.add(attr.getID().toLowerCase(Locale.ENGLISH) + "=" +
+                                  Rdn.escapeValue(normalize(String.valueOf(attr.get(ii)))));
+                    }
+                }
+                Collections.sort(parts);
+                for (int ii = 0; ii < parts.size(); ii++) {
+                    buf.append((ii == 0) ? (buf.length() == 0 ? "" : ",") : "+");
+                    buf.append(parts.get(ii));
+                }
+            }
+            return buf.toString();
+        } catch (NamingException e) {
+            return normalize(value);
+        }
+    }
+
+    protected static String collapseSpaces (String value)
+    {
+        if (value.indexOf("  ") < 0) {
+            return value;
+        }
+        StringBuilder buf = new StringBuilder(value.length());
+        for (int ii = 0; ii < value.length(); ii++) {
+            char c = value.charAt(ii);
+            if (c != ' ' || buf.length() == 0 || buf.charAt(buf.length() - 1) != ' ') {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    protected static String toText (byte[] value)
+    {
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Return the three character substrings of a normalized value. */
+    protected static Set<String> getTrigrams (String value)
+    {
+        Set<String> trigrams = new HashSet<String>();
+        for (int ii = 0; ii + 3 <= value.length(); ii++) {
+            trigrams.add(value.substring(ii, ii + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Return the attributes listed in a system property, or by default.
+     */
+    protected static String[] getList (String property, String defaults)
+    {
+        return System.getProperty(PROP_PREFIX + property, defaults).trim().split("\\s+");
+    }
+
+    /**
+     * Add attribute names to a set, lowercased as filters and the index have them.
+     */
+    protected static void addAttributes (Set<String> set, String[] attributes)
+    {
+        for (String attribute : attributes) {
+            if (attribute.length() > 0) {
+                set.add(attribute.toLowerCase(Locale.ENGLISH));
+            }
+        }
+    }
+
+    /**
+     * Return the scheme, host and port of a server URI, lowercased, to compare servers by.
+     */
+    protected static String toServer (String uri)
+    {
+        try {
+            URI parsed = new URI(uri.trim());
+            String scheme = String.valueOf(parsed.getScheme()).toLowerCase(Locale.ENGLISH);
+            int port = parsed.getPort();
+            if (port < 0) {
+                port = scheme.equals("ldaps") ? 636 : 389;
+            }
+            return scheme + "://" + String.valueOf(parsed.getHost()).toLowerCase(Locale.ENGLISH) +
+                ":" + port;
+        } catch (URISyntaxException e) {
+            return uri.trim().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Create and start the shared mirrors from the system properties, logging and skipping any
+     * whose URL is bad.
+     */
+    protected static List<LdapMirror> createShared ()
+    {
+        List<LdapMirror> mirrors = new ArrayList<LdapMirror>();
+        String urls = System.getProperty(PROP_PREFIX + "urls", "").trim();
+        if (urls.length() == 0) {
+            return mirrors;
+        }
+        String bindDN = System.getProperty(PROP_PREFIX + "bindDN", "");
+        String password = System.getProperty(PROP_PREFIX + "password", "");
+        for (String url : urls.split("\\s+")) {
+            try {
+                URI parsed = new URI(url);
+                String path = parsed.getPath();
+                String uri = parsed.getScheme() + "://" + parsed.getRawAuthority();
+                LdapMirror mirror = new LdapMirror(
+                    uri, (path == null || path.length() < 1) ? "" : path.substring(1), bindDN,
+                    password);
+                mirror.start();
+                mirrors.add(mirror);
+                LdapMetrics.getShared().addSource(mirror);
+            } catch (URISyntaxException e) {
+                _log.warning("Bad LDAP URL to mirror, skipping it: " + url);
+            } catch (InvalidNameException e) {
+                _log.warning("Bad base DN to mirror, skipping it: " + url);
+            }
+        }
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    /** The server followed, as given and as compared with those of links. */
+    protected String _uri;
+    protected String _server;
+
+    protected String _baseDN;
+    protected LdapName _base;
+    protected String _bindDN;
+    protected String _password;
+    protected Set<String> _substringAttributes = new HashSet<String>();
+    protected Set<String> _stringAttributes = new HashSet<String>();
+    protected Set<String> _dnAttributes = new HashSet<String>();
+    protected long _retryMillis;
+    protected long _writeWaitMillis;
+    protected String _binaryAttributes = new LdapOptions().getBinaryAttributes();
+
+    /** The entries and their indexes, or null if the mirror is not ready. */
+    protected volatile Index _index;
+
+    /** Entries written to by links, with when to stop waiting for their changes. */
+    protected Map<LdapName, Long> _expected = new HashMap<LdapName, Long>();
+
+    protected volatile boolean _running;
+    protected Thread _thread;
+
+    /** The connection and persistent search being followed, to close when stopping. */
+    protected LdapContext _ctx;
+    protected NamingEnumeration<SearchResult> _feed;
+
+    protected AtomicLong _hits = new AtomicLong();
+    protected AtomicLong _misses = new AtomicLong();
+
+    /** Prefix of the system properties used to configure the shared mirrors. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.mirror.";
+
+    public static final String DEFAULT_SUBSTRING_ATTRIBUTES = "cn sn givenName uid mail";
+    public static final String DEFAULT_STRING_ATTRIBUTES =
+        "objectClass cn sn givenName displayName uid mail ou o l description title";
+    public static final String DEFAULT_DN_ATTRIBUTES =
+        "member uniqueMember owner manager seeAlso roleOccupant memberOf";
+    public static final long DEFAULT_RETRY_MILLIS = 30 * 1000L;
+    public static final long DEFAULT_WRITE_WAIT_MILLIS = 5 * 1000L;
+
+    protected static final String[] NO_ATTRIBUTES = { "1.1" };
+    protected static final int LIST_PAGE_SIZE = 1000;
+
+    /** Orders entries the way they were first read. */
+    protected static final Comparator<Item> SEQUENCE_ORDER = new Comparator<Item>() {
+        public int compare (Item i1, Item i2) {
+            return (i1.seq < i2.seq) ? -1 : ((i1.seq == i2.seq) ? 0 : 1);
+        }
+    };
+
+    /** Orders sets of candidates smallest first. */
+    protected static final Comparator<Set<Item>> SIZE_ORDER = new Comparator<Set<Item>>() {
+        public int compare (Set<Item> s1, Set<Item> s2) {
+            return s1.size() - s2.size();
+        }
+    };
+
+    /** The shared mirrors, created by the first call to getShared(). */
+    protected static List<LdapMirror> _shared;
+
+    protected static final Logger _log = Logger.getLogger(LdapMirror.class.getName());
+}
@@ -15,52 +15,162 @@
 
 package com.threerings.quercus.lib.ldap;
 
-import java.lang.reflect.Field;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import javax.naming.InvalidNameException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InvalidSearchControlsException;
+import javax.naming.directory.InvalidSearchFilterException;
 import javax.naming.directory.SearchControls;
 import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
+import javax.naming.ldap.SortResponseControl;
 
 import com.caucho.quercus.annotation.Optional;
+import com.caucho.quercus.annotation.Reference;
 import com.caucho.quercus.annotation.ReturnNullAsFalse;
 import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
 import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.StringValueImpl;
+import com.caucho.quercus.env.Value;
 import com.caucho.quercus.module.AbstractQuercusModule;
-import com.caucho.quercus.UnimplementedException;
 
 /**
  * A (partial) implementation of PHP's LDAP module.
  *
- * Most methods in this class are not yet implemented. In fact, many PHP LDAP functions and
- * constants have not even been added to this class. Right now pretty much all that is supported is
- * binding to an LDAP server, and unbinding. This is usually good enough for just doing LDAP
- * authentication.
+ * Many PHP LDAP functions and constants have not been added to this class yet. What is supported
+ * is binding, searching, adding, modifying and deleting entries, and unbinding, plus some
+ * functions of our own for batched, asynchronous and bulk operations and LDIF import and export.
  */
 public class LdapModule extends AbstractQuercusModule
 {
+    /*
+     * Options for ldap_set_option() and ldap_get_option(), numbered as in PHP. Each link has its
+     * own copy of the options, see LdapOptions.
+     */
+
+    /** How aliases are dereferenced, one of the LDAP_DEREF_* constants (default NEVER). */
+    public static final int LDAP_OPT_DEREF              = LdapOptions.DEREF;
+
+    /** Most entries returned by searches that don't give a size limit, 0 (default) for none. */
+    public static final int LDAP_OPT_SIZELIMIT          = LdapOptions.SIZELIMIT;
+
+    /** Most seconds spent on searches that don't give a time limit, 0 (default) for none. */
+    public static final int LDAP_OPT_TIMELIMIT          = LdapOptions.TIMELIMIT;
+
     /** If set to 0 (default), referrals will be ignored. If 1, they will be followed. */
-    public static int LDAP_OPT_REFERRALS                = 0;
+    public static final int LDAP_OPT_REFERRALS          = LdapOptions.REFERRALS;
 
     /** LDAP protocol version to use. Can be set to 3 (default) or 2. */
-    public static int LDAP_OPT_PROTOCOL_VERSION         = 3;
+    public static final int LDAP_OPT_PROTOCOL_VERSION   = LdapOptions.PROTOCOL_VERSION;
+
+    /**
+     * Most seconds to wait for the server to answer, 0 to wait forever. Defaults to 30, or the
+     * com.threerings.quercus.ldap.options.timeout system property.
+     */
+    public static final int LDAP_OPT_TIMEOUT            = LdapOptions.TIMEOUT;
 
-    // Alias dereferencing behaviors. These can not be changed with ldap_set_option().
+    /**
+     * Most seconds to wait for a connection to the server, 0 to wait forever. Defaults to 5, or
+     * the com.threerings.quercus.ldap.options.networkTimeout system property.
+     */
+    public static final int LDAP_OPT_NETWORK_TIMEOUT    = LdapOptions.NETWORK_TIMEOUT;
+
+    /**
+     * If set to 0 (default), ldap_search() and ldap_read() read the whole result before
+     * returning. If 1, entries are read from the server as the script asks for them, and dropped
+     * once ldap_next_entry() has moved past them, after which ldap_get_entries() fails. Not part
+     * of PHP's LDAP module.
+     */
+    public static final int LDAP_OPT_STREAM_RESULTS     = LdapOptions.STREAM_RESULTS;
+
+    /**
+     * If greater than 0, searches are run with the simple paged results control, asking the
+     * server for this many entries at a time. Together with LDAP_OPT_STREAM_RESULTS this lets a
+     * script walk a result of any size in bounded memory. Not part of PHP's LDAP module.
+     */
+    public static final int LDAP_OPT_PAGE_SIZE          = LdapOptions.PAGE_SIZE;
+
+    /**
+     * Seconds to keep the results of ldap_search() and ldap_read() in the search cache, if it is
+     * enabled. -1 (default) uses the cache's own TTL and 0 bypasses the cache. Not part of PHP's
+     * LDAP module.
+     */
+    public static final int LDAP_OPT_SEARCH_CACHE_TTL   = LdapOptions.SEARCH_CACHE_TTL;
+
+    /**
+     * Attributes whose values are read as bytes rather than text, separated by spaces, besides
+     * those the JVM's LDAP provider knows to be binary. Takes effect at the next bind. Not part
+     * of PHP's LDAP module.
+     */
+    public static final int LDAP_OPT_BINARY_ATTRIBUTES  = LdapOptions.BINARY_ATTRIBUTES;
+
+    // Alias dereferencing behaviors, for LDAP_OPT_DEREF and the deref argument of searches.
     public static final int LDAP_DEREF_NEVER            = 0;
     public static final int LDAP_DEREF_SEARCHING        = 1;
     public static final int LDAP_DEREF_FINDING          = 2;
     public static final int LDAP_DEREF_ALWAYS           = 3;
 
+    // Flags of ldap_escape(), choosing the characters to escape.
+    public static final int LDAP_ESCAPE_FILTER          = LdapFilter.ESCAPE_FILTER;
+    public static final int LDAP_ESCAPE_DN              = LdapFilter.ESCAPE_DN;
+
+    // Controls understood by the controls argument of ldap_search() and ldap_read(), and sent
+    // back by ldap_parse_result().
+    public static final String LDAP_CONTROL_PAGEDRESULTS  = "1.2.840.113556.1.4.319";
+    public static final String LDAP_CONTROL_SORTREQUEST   = SortControl.OID;
+    public static final String LDAP_CONTROL_SORTRESPONSE  = SortResponseControl.OID;
+    public static final String LDAP_CONTROL_VLVREQUEST    = LdapVirtualListControl.OID;
+    public static final String LDAP_CONTROL_VLVRESPONSE   = LdapVirtualListControl.RESPONSE_OID;
+
     /**
      * Add entry to LDAP directory.
      *
      * @param linkIdentifier LdapLinkResource returned by ldap_connect().
      * @param dn The distinguished name of an LDAP entry.
-     * @param entry Map associating LDAP attributes to their values.
+     * @param entry Array associating LDAP attributes to their values, a string or an array of
+     *        strings each.
      * @return BooleanValue.TRUE if successful, BooleanValue.FALSE otherwise.
      */
-    public static BooleanValue ldap_add (LdapLinkResource linkIdentifier, String dn, Map entry)
+    public static BooleanValue ldap_add (LdapLinkResource linkIdentifier, String dn,
+                                         ArrayValue entry)
     {
-        throw new UnimplementedException("ldap_add");
+        if (linkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        return BooleanValue.create(linkIdentifier.add(dn, LdapWrite.toAttributes(entry)));
+    }
+
+    /**
+     * Check a user's password by finding the only entry below a base DN that matches a filter
+     * and binding as it. The link must be bound with an identity allowed to search for users,
+     * and stays bound as it; the DN found is remembered for later logins. Not part of PHP's
+     * LDAP module.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect() and bound.
+     * @param baseDN The base DN to search for the user under.
+     * @param filter Filter matching the user, such as "(uid=john)", with the user name escaped.
+     * @param password The password to check.
+     * @return The DN of the user if the password is right, false otherwise.
+     */
+    @ReturnNullAsFalse
+    public static String ldap_authenticate (LdapLinkResource linkIdentifier, String baseDN,
+                                            String filter, String password)
+    {
+        if (linkIdentifier == null) {
+            return null;
+        }
+        return linkIdentifier.authenticate(baseDN, filter, password);
     }
 
     /**
@@ -79,40 +189,327 @@ public class LdapModule extends AbstractQuercusModule
     }
 
     /**
-     * Connect to an LDAP server.
+     * Add an entry as part of a bulk write, without waiting for the server to answer. Not part
+     * of PHP's LDAP module.
+     *
+     * @param bulkIdentifier LdapBulkWrite returned by ldap_bulk_start().
+     * @param dn The distinguished name of the entry.
+     * @param entry Array associating LDAP attributes to their values, as for ldap_add().
+     * @return True if the add was sent, false if the DN is invalid or the bulk write finished.
+     */
+    public static BooleanValue ldap_bulk_add (LdapBulkWrite bulkIdentifier, String dn,
+                                              ArrayValue entry)
+    {
+        if (bulkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        try {
+            return BooleanValue.create(
+                bulkIdentifier.submit(LdapWrite.add(dn, LdapWrite.toAttributes(entry))));
+        } catch (InvalidNameException e) {
+            return BooleanValue.create(false);
+        }
+    }
+
+    /**
+     * Wait for the writes of a bulk write to finish. Not part of PHP's LDAP module.
+     *
+     * @param bulkIdentifier LdapBulkWrite returned by ldap_bulk_start().
+     * @return Array mapping the DN of each write that failed to the server's error message,
+     *         empty if all succeeded.
+     */
+    public static ArrayValue ldap_bulk_finish (LdapBulkWrite bulkIdentifier)
+    {
+        ArrayValue failures = new ArrayValueImpl();
+        if (bulkIdentifier != null) {
+            for (Map.Entry<String, String> failure : bulkIdentifier.finish().entrySet()) {
+                failures.put(StringValueImpl.create(failure.getKey()),
+                             StringValueImpl.create(String.valueOf(failure.getValue())));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Replace attributes of an entry as part of a bulk write, as ldap_modify() does, without
+     * waiting for the server to answer. Not part of PHP's LDAP module.
      *
-     * @param hostname Host name of the LDAP server. Can also be an ldap:// or ldaps:// URI.
+     * @param bulkIdentifier LdapBulkWrite returned by ldap_bulk_start().
+     * @param dn The distinguished name of the entry.
+     * @param entry Array associating LDAP attributes to their new values.
+     * @return True if the modify was sent, false if the DN is invalid or the bulk write finished.
+     */
+    public static BooleanValue ldap_bulk_modify (LdapBulkWrite bulkIdentifier, String dn,
+                                                 ArrayValue entry)
+    {
+        if (bulkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        try {
+            return BooleanValue.create(bulkIdentifier.submit(LdapWrite.modify(
+                dn, LdapWrite.toModifications(entry, DirContext.REPLACE_ATTRIBUTE))));
+        } catch (InvalidNameException e) {
+            return BooleanValue.create(false);
+        }
+    }
+
+    /**
+     * Start a bulk write, which sends the adds and modifies given to ldap_bulk_add() and
+     * ldap_bulk_modify() over the link's connection without waiting for each to be answered, so
+     * that large imports take a fraction of the round trips. Writes to an entry still wait for
+     * earlier writes to it or its parent. Not part of PHP's LDAP module.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect() and bound. It must not be
+     *        unbound until ldap_bulk_finish() is called.
+     * @param maxInFlight Most writes to have outstanding at once, 16 if omitted.
+     * @return LdapBulkWrite identifier, or false if the link is not bound.
+     */
+    @ReturnNullAsFalse
+    public static LdapBulkWrite ldap_bulk_start (LdapLinkResource linkIdentifier,
+                                                 @Optional("16") int maxInFlight)
+    {
+        if (linkIdentifier == null) {
+            return null;
+        }
+        return linkIdentifier.startBulk(maxInFlight);
+    }
+
+    /**
+     * Connect to an LDAP server, or to one of several equivalent servers.
+     *
+     * @param env The script's environment, passed in by Quercus. Its path is noted for the
+     *        slow query log, and the link is unbound when its request ends.
+     * @param hostname Host name of the LDAP server. Can also be an ldap:// or ldaps:// URI, or
+     *        several host names or URIs separated by spaces, as with OpenLDAP. Binds then go to
+     *        the server LdapBalancer picks and fail over to the others.
      * @param port TCP port LDAP server runs on. If omitted defaults to 389, or 636 if hostname is
-     *        is an ldaps:// URI.
-     * @return LdapLinkResource object, or null if unable to connect to host.
+     *        is an ldaps:// URI. Ignored for URIs that give their own port.
+     * @return LdapLinkResource object, or null if all the servers are known to be down.
      */
     @ReturnNullAsFalse
-    public static LdapLinkResource ldap_connect (String hostname, @Optional String port)
+    public static LdapLinkResource ldap_connect (Env env, String hostname,
+                                                 @Optional String port)
     {
         // PHP apparently expects this to work with leading and/or trailing whitespace. Gah.
-        String uri = hostname.trim();
-        // If port is unspecified, set it to 389. Or 636 if hostname implies we want SSL.
-        if (port == "") {
-            if (uri.startsWith("ldaps://")) {
-                port = "636";
-            } else {
-                port = "389";
+        StringBuilder uris = new StringBuilder();
+        boolean up = false;
+        for (String host : hostname.trim().split("\\s+")) {
+            String uri = toURI(host, port);
+            // As in PHP, servers are only contacted by ldap_bind(). But if they are all known to
+            // be down, fail now rather than have the script wait for its bind to fail too.
+            up = up || !LdapServerHealth.getShared().isDown(uri);
+            if (uris.length() > 0) {
+                uris.append(' ');
             }
+            uris.append(uri);
+        }
+        if (!up) {
+            return null;
         }
-        uri = uri + ":" + port;
+        LdapLinkResource link = new LdapLinkResource(uris.toString());
+        if (env != null) {
+            // Return the link's connection to the pool when the request ends.
+            env.addCleanup(link);
+            if (env.getSelfPath() != null) {
+                link.setScript(env.getSelfPath().getPath());
+            }
+        }
+        return link;
+    }
 
-        /* Prepend ldap:// (or ldaps:// if port is 636) if those aren't already at the beginning of
-         * the hostname. */
-        if (!(uri.startsWith("ldaps://")) && !(uri.startsWith("ldap://"))) {
-            if (port == "636") {
-                uri = "ldaps://" + uri;
-            } else {
-                uri = "ldap://" + uri;
+    /**
+     * Send the simple paged results control with the next search on the given link.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param pageSize Number of entries the server should return in the page.
+     * @param isCritical If true, the search fails on servers that do not support paging. If
+     *        omitted, such servers return the whole result.
+     * @param cookie Cookie from ldap_control_paged_result_response() for the previous page. Omit
+     *        or pass an empty string for the first page.
+     * @return True if successful, false otherwise.
+     */
+    public static BooleanValue ldap_control_paged_result (LdapLinkResource linkIdentifier,
+                                                          int pageSize,
+                                                          @Optional boolean isCritical,
+                                                          @Optional String cookie)
+    {
+        if (linkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        try {
+            byte[] cookieBytes = (cookie == null || cookie.length() == 0) ? null :
+                cookie.getBytes(BINARY_CHARSET);
+            linkIdentifier.setPagedResultsControl(pageSize, isCritical, cookieBytes);
+        } catch (UnsupportedEncodingException e) {
+            return BooleanValue.create(false);
+        } catch (NamingException e) {
+            return BooleanValue.create(false);
+        }
+        return BooleanValue.create(true);
+    }
+
+    /**
+     * Get the paging cookie and estimated result size from a search run after
+     * ldap_control_paged_result().
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultIdentifier Result of the paged search.
+     * @param cookie Set to the cookie for the next page, or an empty string after the last page.
+     * @param estimated Set to the server's estimate of the total number of entries, or 0.
+     * @return True if the result carried a paged results response, false otherwise.
+     */
+    public static BooleanValue ldap_control_paged_result_response (
+        LdapLinkResource linkIdentifier, LdapResultResource resultIdentifier,
+        @Optional @Reference Value cookie, @Optional @Reference Value estimated)
+    {
+        if (resultIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        byte[] cookieBytes = resultIdentifier.getPagedResultsCookie();
+        if (cookieBytes == null) {
+            return BooleanValue.create(false);
+        }
+        try {
+            if (cookie != null) {
+                cookie.set(StringValueImpl.create(new String(cookieBytes, BINARY_CHARSET)));
             }
+        } catch (UnsupportedEncodingException e) {
+            return BooleanValue.create(false);
         }
+        if (estimated != null) {
+            estimated.set(LongValue.create(resultIdentifier.getPagedResultsEstimate()));
+        }
+        return BooleanValue.create(true);
+    }
 
-        // XXX: should make sure ldap server is there, and return null if it's not.
-        return new LdapLinkResource(uri);
+    /**
+     * Count the entries of a search result. A streaming result is read to its end.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultIdentifier LdapResultResource returned by ldap_search() or ldap_read().
+     * @return The number of entries, or false on error.
+     */
+    public static Value ldap_count_entries (LdapLinkResource linkIdentifier,
+                                           LdapResultResource resultIdentifier)
+    {
+        if (resultIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        try {
+            return LongValue.create(resultIdentifier.countEntries());
+        } catch (NamingException e) {
+            return BooleanValue.create(false);
+        }
+    }
+
+    /**
+     * Delete an entry from the LDAP directory. Unlike PHP, deleting an entry that doesn't exist
+     * but whose parent does succeeds, as Sun's provider considers the job done.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param dn The distinguished name of the entry to delete.
+     * @return True on success, false otherwise.
+     */
+    public static BooleanValue ldap_delete (LdapLinkResource linkIdentifier, String dn)
+    {
+        if (linkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        return BooleanValue.create(linkIdentifier.delete(dn));
+    }
+
+    /**
+     * Escape a string for use as a value in a search filter or DN, writing each character to
+     * escape as a backslash and its hex code, or those of its UTF-8 bytes.
+     *
+     * @param value The string to escape.
+     * @param ignore Characters not to escape.
+     * @param flags LDAP_ESCAPE_FILTER to escape the characters special in filters,
+     *        LDAP_ESCAPE_DN those special in DNs, along with leading and trailing spaces. With
+     *        neither, every character is escaped.
+     * @return The escaped string.
+     */
+    public static String ldap_escape (String value, @Optional String ignore,
+                                      @Optional int flags)
+    {
+        return LdapFilter.escape(value, ignore, flags);
+    }
+
+    /**
+     * Write the entries below a base DN that match a filter to an LDIF file, one at a time as
+     * the server returns them, so that subtrees of any size can be dumped without reading them
+     * into PHP arrays. Not part of PHP's LDAP module.
+     *
+     * @param env The script's environment, passed in by Quercus. Relative file names are
+     *        resolved against its working directory.
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param filename The file to write, replaced if it exists.
+     * @param baseDN Base DN of the subtree.
+     * @param filter LDAP search filter.
+     * @param attributes Attributes to write for each entry. All are written if omitted.
+     * @return The number of entries written, or false on error.
+     */
+    public static Value ldap_export_ldif (Env env, LdapLinkResource linkIdentifier,
+                                         String filename, String baseDN, String filter,
+                                         @Optional List<String> attributes)
+    {
+        int count = (linkIdentifier == null) ? -1 :
+            linkIdentifier.exportLdif(toFile(env, filename), baseDN, filter, attributes);
+        return (count < 0) ? (Value) BooleanValue.create(false) : LongValue.create(count);
+    }
+
+    /**
+     * Return the first entry of a search result, to walk the result one entry at a time with
+     * ldap_next_entry() instead of converting all of it with ldap_get_entries().
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultIdentifier LdapResultResource returned by ldap_search() or ldap_read().
+     * @return LdapResultEntry identifier of the entry, or false if the result is empty or on
+     *         error.
+     */
+    @ReturnNullAsFalse
+    public static LdapResultEntry ldap_first_entry (LdapLinkResource linkIdentifier,
+                                                   LdapResultResource resultIdentifier)
+    {
+        if (resultIdentifier == null) {
+            return null;
+        }
+        try {
+            return resultIdentifier.firstEntry();
+        } catch (NamingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the attributes of one entry of a search result.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultEntryIdentifier LdapResultEntry returned by ldap_first_entry() or
+     *        ldap_next_entry().
+     * @return ArrayValue like an entry of ldap_get_entries(), except that it has no "dn" and
+     *         attribute names keep the case the server gave them, or false on error.
+     */
+    @ReturnNullAsFalse
+    public static ArrayValue ldap_get_attributes (LdapLinkResource linkIdentifier,
+                                                  LdapResultEntry resultEntryIdentifier)
+    {
+        return (resultEntryIdentifier == null) ? null : resultEntryIdentifier.getAttributes();
+    }
+
+    /**
+     * Get the DN of one entry of a search result.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultEntryIdentifier LdapResultEntry returned by ldap_first_entry() or
+     *        ldap_next_entry().
+     * @return The DN, or false on error.
+     */
+    @ReturnNullAsFalse
+    public static String ldap_get_dn (LdapLinkResource linkIdentifier,
+                                      LdapResultEntry resultEntryIdentifier)
+    {
+        return (resultEntryIdentifier == null) ? null : resultEntryIdentifier.getDN();
     }
 
     /**
@@ -131,6 +528,11 @@ public class LdapModule extends AbstractQuercusModule
      *         return_val[i][j] :               Name of jth attribute in ith entry.
      *         return_val[i]["attr"]["count"] : Number of values for attr in ith entry.
      *         return_val[i]["attr"][j] :       jth value of attr in ith entry.
+     *
+     *         Values of binary attributes, see LDAP_OPT_BINARY_ATTRIBUTES, are binary
+     *         strings of their bytes. A result read with LDAP_OPT_STREAM_RESULTS set can only be
+     *         converted before ldap_next_entry() has moved past its first entry; after that this
+     *         fails rather than return the remaining entries as if they were all of them.
      */
     @ReturnNullAsFalse
     public static ArrayValue ldap_get_entries (LdapLinkResource linkIdentifier,
@@ -151,17 +553,246 @@ public class LdapModule extends AbstractQuercusModule
     }
 
     /**
-     * Modify an LDAP entry.
+     * Get an option of a link, or the default for new links if linkIdentifier is null.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect(), or null.
+     * @param option One of the LDAP_OPT_* constants, or its name.
+     * @param retval Set to the value of the option.
+     * @return True if successful, false if the option is unknown.
+     */
+    public static BooleanValue ldap_get_option (LdapLinkResource linkIdentifier, Value option,
+                                                @Reference Value retval)
+    {
+        int id = toOption(option);
+        if (!LdapOptions.isOption(id)) {
+            return BooleanValue.create(false);
+        }
+        LdapOptions options = (linkIdentifier == null) ? new LdapOptions() :
+            linkIdentifier.getOptions();
+        if (id == LdapOptions.BINARY_ATTRIBUTES) {
+            retval.set(StringValueImpl.create(options.getBinaryAttributes()));
+        } else {
+            retval.set(LongValue.create(options.get(id)));
+        }
+        return BooleanValue.create(true);
+    }
+
+    /**
+     * Get the values of one attribute of an entry of a search result.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultEntryIdentifier LdapResultEntry returned by ldap_first_entry() or
+     *        ldap_next_entry().
+     * @param attribute Name of the attribute, in any case.
+     * @return ArrayValue of the values with their "count", or false if the entry doesn't have
+     *         the attribute.
+     */
+    @ReturnNullAsFalse
+    public static ArrayValue ldap_get_values (LdapLinkResource linkIdentifier,
+                                              LdapResultEntry resultEntryIdentifier,
+                                              String attribute)
+    {
+        return getValues(resultEntryIdentifier, attribute, false);
+    }
+
+    /**
+     * Get the values of one attribute of an entry of a search result as binary strings of their
+     * bytes, text values being encoded as UTF-8. Values ldap_get_values() returns for binary
+     * attributes like jpegPhoto are the same binary strings.
+     *
+     * @see #ldap_get_values
+     */
+    @ReturnNullAsFalse
+    public static ArrayValue ldap_get_values_len (LdapLinkResource linkIdentifier,
+                                                  LdapResultEntry resultEntryIdentifier,
+                                                  String attribute)
+    {
+        return getValues(resultEntryIdentifier, attribute, true);
+    }
+
+    /**
+     * Apply the records of an LDIF file, as written by ldap_export_ldif() or another tool, one
+     * at a time with a bulk write as ldap_bulk_start() does. Content records add entries, and
+     * change records add, modify or delete them. Not part of PHP's LDAP module.
+     *
+     * @param env The script's environment, passed in by Quercus. Relative file names are
+     *        resolved against its working directory.
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect() and bound.
+     * @param filename The file to read.
+     * @param maxInFlight Most writes to have outstanding at once, 16 if omitted.
+     * @return Array mapping the DN of each write that failed to the server's error message, as
+     *         ldap_bulk_finish() returns, or false if the link is not bound or the file can't be
+     *         opened. Reading stops at a record that is not valid LDIF, after applying the ones
+     *         before it, and its error is returned under "line N", where the record starts.
+     */
+    public static Value ldap_import_ldif (Env env, LdapLinkResource linkIdentifier,
+                                         String filename, @Optional("16") int maxInFlight)
+    {
+        Map<String, String> failures = (linkIdentifier == null) ? null :
+            linkIdentifier.importLdif(toFile(env, filename), maxInFlight);
+        if (failures == null) {
+            return BooleanValue.create(false);
+        }
+        ArrayValue result = new ArrayValueImpl();
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            result.put(StringValueImpl.create(failure.getKey()),
+                       StringValueImpl.create(String.valueOf(failure.getValue())));
+        }
+        return result;
+    }
+
+    /**
+     * Add values to attributes of an LDAP entry.
      *
      * @param linkIdentifier LdapLinkResource returned by ldap_connect().
      * @param dn The distinguished name of an LDAP entry to modify.
-     * @param entry Map of LDAP attributes and their values, same as used in ldap_add().
+     * @param entry Array of LDAP attributes and the values to add to them.
+     * @return True on success, false otherwise.
+     */
+    public static BooleanValue ldap_mod_add (LdapLinkResource linkIdentifier, String dn,
+                                             ArrayValue entry)
+    {
+        return modify(linkIdentifier, dn, entry, DirContext.ADD_ATTRIBUTE);
+    }
+
+    /**
+     * Remove values from attributes of an LDAP entry.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param dn The distinguished name of an LDAP entry to modify.
+     * @param entry Array of LDAP attributes and the values to remove from them. An attribute
+     *        given an empty array is removed entirely.
+     * @return True on success, false otherwise.
+     */
+    public static BooleanValue ldap_mod_del (LdapLinkResource linkIdentifier, String dn,
+                                             ArrayValue entry)
+    {
+        return modify(linkIdentifier, dn, entry, DirContext.REMOVE_ATTRIBUTE);
+    }
+
+    /**
+     * Replace the values of attributes of an LDAP entry.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param dn The distinguished name of an LDAP entry to modify.
+     * @param entry Array of LDAP attributes and their new values. An attribute given an empty
+     *        array is removed.
+     * @return True on success, false otherwise.
+     */
+    public static BooleanValue ldap_mod_replace (LdapLinkResource linkIdentifier, String dn,
+                                                 ArrayValue entry)
+    {
+        return modify(linkIdentifier, dn, entry, DirContext.REPLACE_ATTRIBUTE);
+    }
+
+    /**
+     * Modify an LDAP entry, replacing the values of the attributes given, like
+     * ldap_mod_replace().
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param dn The distinguished name of an LDAP entry to modify.
+     * @param entry Array of LDAP attributes and their values, same as used in ldap_add().
      * @return True on success, false otherwise.
      */
     public static BooleanValue ldap_modify (LdapLinkResource linkIdentifier, String dn,
-                                            Map entry)
+                                            ArrayValue entry)
     {
-        throw new UnimplementedException("ldap_modify");
+        return modify(linkIdentifier, dn, entry, DirContext.REPLACE_ATTRIBUTE);
+    }
+
+    /**
+     * Return the entry of a search result after the given one.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultEntryIdentifier LdapResultEntry returned by ldap_first_entry() or
+     *        ldap_next_entry().
+     * @return LdapResultEntry identifier of the next entry, or false at the end of the result or
+     *         on error.
+     */
+    @ReturnNullAsFalse
+    public static LdapResultEntry ldap_next_entry (LdapLinkResource linkIdentifier,
+                                                  LdapResultEntry resultEntryIdentifier)
+    {
+        if (resultEntryIdentifier == null) {
+            return null;
+        }
+        try {
+            return resultEntryIdentifier.next();
+        } catch (NamingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the canonical form of a search filter, which is the same for filters that only
+     * differ in the order of the operands of ANDs and ORs, the case of attribute names or how
+     * values are escaped, as searches use to share cached results. Not part of PHP's LDAP
+     * module.
+     *
+     * @param filter LDAP search filter.
+     * @return The canonical filter, or false if the filter is malformed.
+     */
+    @ReturnNullAsFalse
+    public static String ldap_normalize_filter (String filter)
+    {
+        try {
+            return LdapFilterCache.getShared().get(filter).toString();
+        } catch (InvalidSearchFilterException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the outcome of a search and the controls the server sent back with it, such as the
+     * position of a virtual list view's target and the size of the whole result. Failed
+     * searches return no result, so the code is always 0 and there is no message, matched DN or
+     * referral.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param resultIdentifier Result of the search.
+     * @param errorCode Set to the LDAP result code.
+     * @param matchedDN Set to the matched DN.
+     * @param errorMessage Set to the server's message.
+     * @param referrals Set to an array of referral URLs.
+     * @param controls Set to an array of the controls sent back, by OID, each an array of its
+     *        "oid", "iscritical" and "value". The value of LDAP_CONTROL_SORTRESPONSE has
+     *        "errcode" and maybe "attribute", that of LDAP_CONTROL_VLVRESPONSE "target",
+     *        "count", "errcode" and maybe "context", and that of LDAP_CONTROL_PAGEDRESULTS "size"
+     *        and "cookie".
+     * @return True if successful, false otherwise.
+     */
+    public static BooleanValue ldap_parse_result (LdapLinkResource linkIdentifier,
+                                                  LdapResultResource resultIdentifier,
+                                                  @Reference Value errorCode,
+                                                  @Optional @Reference Value matchedDN,
+                                                  @Optional @Reference Value errorMessage,
+                                                  @Optional @Reference Value referrals,
+                                                  @Optional @Reference Value controls)
+    {
+        if (resultIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        errorCode.set(LongValue.create(0));
+        if (matchedDN != null) {
+            matchedDN.set(StringValueImpl.create(""));
+        }
+        if (errorMessage != null) {
+            errorMessage.set(StringValueImpl.create(""));
+        }
+        if (referrals != null) {
+            referrals.set(new ArrayValueImpl());
+        }
+        if (controls != null) {
+            ArrayValue array = new ArrayValueImpl();
+            Control[] response = resultIdentifier.getResponseControls();
+            if (response != null) {
+                for (Control control : response) {
+                    array.put(StringValueImpl.create(control.getID()), toArrayValue(control));
+                }
+            }
+            controls.set(array);
+        }
+        return BooleanValue.create(true);
     }
 
     /**
@@ -174,28 +805,69 @@ public class LdapModule extends AbstractQuercusModule
      *        DN is always included. All attributes are fetched if omitted.
      * @param attrsOnly Retrieve only attribute types if true, values and types if false. If
      *        omitted types and values are fetched.
-     * @param sizeLimit Limit the number of entries fetched. Setting to 0 means no limit, which is
-     *        the default behavior if argument is omitted.
-     * @param timeLimit Maximum number of seconds to spend on the search. No limit if set to 0,
-     *        which is the default behavior if argument is omitted.
-     * @param deref Specifies how aliases should be handled during the search. If omitted aliases
-     *        are never dereferenced.
+     * @param sizeLimit Limit the number of entries fetched. Setting to 0 means no limit. If
+     *        omitted the link's LDAP_OPT_SIZELIMIT is used.
+     * @param timeLimit Maximum number of seconds to spend on the search. No limit if set to 0. If
+     *        omitted the link's LDAP_OPT_TIMELIMIT is used.
+     * @param deref Specifies how aliases should be handled during the search. If omitted the
+     *        link's LDAP_OPT_DEREF is used.
+     * @param controls Array of controls to send with the search, each an array of its "oid",
+     *        "iscritical" and "value", as in PHP 7.3. LDAP_CONTROL_SORTREQUEST, whose value is
+     *        an array of sort keys each with an "attr" and optionally an ordering rule "oid"
+     *        and "reverse", returns the entries in order. LDAP_CONTROL_VLVREQUEST, whose value
+     *        has "before", "after" and either "offset" and "count" or "attrvalue", and maybe
+     *        "context", then returns only the entries around a target. With servers that don't
+     *        support them, the entries are sorted and picked here, see LdapView; a size limit
+     *        then gives the first entries in order rather than failing. LDAP_CONTROL_PAGEDRESULTS
+     *        works as ldap_control_paged_result() does. Other controls are ignored unless
+     *        critical, which fails the search.
      * @return LdapResultResource identifier of the search result, or null on error.
      */
     @ReturnNullAsFalse
     public static LdapResultResource ldap_read (LdapLinkResource linkIdentifier, String baseDN,
                                                 String filter, @Optional List<String> attributes,
                                                 @Optional("0") int attrsOnly,
-                                                @Optional("0") long sizeLimit,
-                                                @Optional("0") int timeLimit,
-                                                @Optional("0") int deref)
+                                                @Optional("-1") long sizeLimit,
+                                                @Optional("-1") int timeLimit,
+                                                @Optional("-1") int deref,
+                                                @Optional ArrayValue controls)
     {
         // Fail instead of NPE if someone tries to search before connecting.
         if (linkIdentifier == null) {
             return null;
         }
+        LdapView view;
+        try {
+            view = toView(linkIdentifier, controls);
+        } catch (NamingException e) {
+            return null;
+        }
         return linkIdentifier.search(baseDN, filter, attributes, attrsOnly, sizeLimit, timeLimit,
-            deref, SearchControls.OBJECT_SCOPE);
+            deref, SearchControls.OBJECT_SCOPE, view);
+    }
+
+    /**
+     * Read many entries at once, rather than calling ldap_read() for each. DNs that share a
+     * parent, like the members of a group, are read with one search for every hundred of them,
+     * and those searches run at the same time. Not part of PHP's LDAP module.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param dns DNs of the entries to read.
+     * @param attributes Attributes to fetch from each entry. All are fetched if omitted.
+     * @param attrsOnly Retrieve only attribute types if 1, values and types if 0 or omitted.
+     * @return LdapResultResource with the entries that exist, in the order of dns, or null on
+     *         error.
+     */
+    @ReturnNullAsFalse
+    public static LdapResultResource ldap_read_batch (LdapLinkResource linkIdentifier,
+                                                      List<String> dns,
+                                                      @Optional List<String> attributes,
+                                                      @Optional("0") int attrsOnly)
+    {
+        if (linkIdentifier == null) {
+            return null;
+        }
+        return linkIdentifier.readBatch(dns, attributes, attrsOnly);
     }
 
     /**
@@ -208,68 +880,138 @@ public class LdapModule extends AbstractQuercusModule
      *        DN is always included. All attributes are fetched if omitted.
      * @param attrsOnly Retrieve only attribute types if 1, values and types if 0. If omitted types
      *        and values are fetched.
-     * @param sizeLimit Limit the number of entries fetched. Setting to 0 means no limit, which is
-     *        the default behavior if argument is omitted.
-     * @param timeLimit Maximum number of seconds to spend on the search. No limit if set to 0,
-     *        which is the default behavior if argument is omitted.
-     * @param deref Specifies how aliases should be handled during the search. If omitted aliases
-     *        are never dereferenced.
+     * @param sizeLimit Limit the number of entries fetched. Setting to 0 means no limit. If
+     *        omitted the link's LDAP_OPT_SIZELIMIT is used.
+     * @param timeLimit Maximum number of seconds to spend on the search. No limit if set to 0. If
+     *        omitted the link's LDAP_OPT_TIMELIMIT is used.
+     * @param deref Specifies how aliases should be handled during the search. If omitted the
+     *        link's LDAP_OPT_DEREF is used.
+     * @param controls Array of controls to send with the search, each an array of its "oid",
+     *        "iscritical" and "value", as in PHP 7.3. LDAP_CONTROL_SORTREQUEST, whose value is
+     *        an array of sort keys each with an "attr" and optionally an ordering rule "oid"
+     *        and "reverse", returns the entries in order. LDAP_CONTROL_VLVREQUEST, whose value
+     *        has "before", "after" and either "offset" and "count" or "attrvalue", and maybe
+     *        "context", then returns only the entries around a target. With servers that don't
+     *        support them, the entries are sorted and picked here, see LdapView; a size limit
+     *        then gives the first entries in order rather than failing. LDAP_CONTROL_PAGEDRESULTS
+     *        works as ldap_control_paged_result() does. Other controls are ignored unless
+     *        critical, which fails the search.
      * @return LdapResultResource identifier of the search result, or null on error.
      */
     @ReturnNullAsFalse
     public static LdapResultResource ldap_search (LdapLinkResource linkIdentifier, String baseDN,
                                                   String filter, @Optional List<String> attributes,
                                                   @Optional("0") int attrsOnly,
-                                                  @Optional("0") long sizeLimit,
-                                                  @Optional("0") int timeLimit,
-                                                  @Optional("0") int deref)
+                                                  @Optional("-1") long sizeLimit,
+                                                  @Optional("-1") int timeLimit,
+                                                  @Optional("-1") int deref,
+                                                  @Optional ArrayValue controls)
     {
         // Fail instead of NPE if someone tries to search before connecting.
         if (linkIdentifier == null) {
             return null;
         }
+        LdapView view;
+        try {
+            view = toView(linkIdentifier, controls);
+        } catch (NamingException e) {
+            return null;
+        }
         return linkIdentifier.search(baseDN, filter, attributes, attrsOnly, sizeLimit, timeLimit,
-            deref, SearchControls.SUBTREE_SCOPE);
+            deref, SearchControls.SUBTREE_SCOPE, view);
     }
 
     /**
-     * Set the value of the given static class field representing an LDAP option to a new value.
-     * These fields can actually be set directly with an assignment, but this method is provided for
-     * compatibility.
+     * Start a search like ldap_search() without waiting for the answer. Searches started this
+     * way run concurrently, and their results are collected with ldap_wait() or ldap_wait_all().
+     * Not part of PHP's LDAP module.
      *
      * @param linkIdentifier LdapLinkResource returned by ldap_connect().
-     * @param option Name of the field to change.
-     * @param newVal New value to set.
-     * @return True if successful, false otherwise.
+     * @return LdapPendingResult identifier of the search, or null on error. Errors with the
+     *         search itself only show up when waiting for it.
+     * @see #ldap_search
      */
-    public static BooleanValue ldap_set_option (LdapLinkResource linkIdentifier, String option,
-                                                int newVal)
+    @ReturnNullAsFalse
+    public static LdapPendingResult ldap_search_async (LdapLinkResource linkIdentifier,
+                                                       String baseDN, String filter,
+                                                       @Optional List<String> attributes,
+                                                       @Optional("0") int attrsOnly,
+                                                       @Optional("-1") long sizeLimit,
+                                                       @Optional("-1") int timeLimit,
+                                                       @Optional("-1") int deref)
     {
-        /* XXX: what is the linkIdentifier argument for? Does php-ldap actually set these constants
-         * on a per connection basis? */
+        if (linkIdentifier == null) {
+            return null;
+        }
+        return linkIdentifier.searchAsync(baseDN, filter, attributes, attrsOnly, sizeLimit,
+            timeLimit, deref, SearchControls.SUBTREE_SCOPE);
+    }
 
-        // Use reflection to change the value of the field named option to newVal.
-        Class myClass = LdapModule.class;
-        try {
-            Field f = myClass.getField(option);
-            f.setInt(myClass, newVal);
-        } catch (Exception e) {
-            /* The above could throw an IllegalAccessException or NoSuchFieldException. Either way,
-             * we have failed. */
+    /**
+     * Find the entries below baseDN whose attribute has any of the given values, such as a list
+     * of uids, with one search for every hundred values. Not part of PHP's LDAP module.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param baseDN Base DN for the directory.
+     * @param attribute Attribute to match the values against.
+     * @param values Values to look for. They are escaped, so they match literally.
+     * @param attributes Attributes to fetch from each entry. All are fetched if omitted.
+     * @param attrsOnly Retrieve only attribute types if 1, values and types if 0 or omitted.
+     * @return LdapResultResource with every entry found, or null on error.
+     */
+    @ReturnNullAsFalse
+    public static LdapResultResource ldap_search_batch (LdapLinkResource linkIdentifier,
+                                                        String baseDN, String attribute,
+                                                        List<String> values,
+                                                        @Optional List<String> attributes,
+                                                        @Optional("0") int attrsOnly)
+    {
+        if (linkIdentifier == null) {
+            return null;
+        }
+        return linkIdentifier.searchBatch(baseDN, attribute, values, attributes, attrsOnly,
+            SearchControls.SUBTREE_SCOPE);
+    }
+
+    /**
+     * Set an option of a link. Unlike in PHP, a null link is refused rather than changing the
+     * defaults, which are shared by every script in the JVM.
+     *
+     * @param linkIdentifier LdapLinkResource returned by ldap_connect().
+     * @param option One of the LDAP_OPT_* constants. The name of the constant is also accepted,
+     *        as scripts used to have to pass it.
+     * @param newVal New value to set: a string for LDAP_OPT_BINARY_ATTRIBUTES, a number for
+     *        the others.
+     * @return True if successful, false if the link is null, the option is unknown or the value
+     *         not allowed.
+     */
+    public static BooleanValue ldap_set_option (LdapLinkResource linkIdentifier, Value option,
+                                                Value newVal)
+    {
+        if (linkIdentifier == null) {
             return BooleanValue.create(false);
         }
-        return BooleanValue.create(true);
+        int id = toOption(option);
+        if (id == LdapOptions.BINARY_ATTRIBUTES) {
+            linkIdentifier.getOptions().setBinaryAttributes(newVal.toString());
+            return BooleanValue.create(true);
+        }
+        return BooleanValue.create(linkIdentifier.getOptions().set(id, newVal.toInt()));
     }
 
     /**
-     * Start TLS for the given connection.
+     * Start TLS for the given connection. The connection is actually secured by the next
+     * ldap_bind(), which fails if TLS can't be negotiated.
      *
      * @param linkIdentifier LdapLinkResource returned by ldap_connect().
      * @return True if successful, false otherwise.
      */
     public static BooleanValue ldap_start_tls (LdapLinkResource linkIdentifier)
     {
-        throw new UnimplementedException("ldap_start_tls");
+        if (linkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        return BooleanValue.create(linkIdentifier.startTLS());
     }
 
     /**
@@ -287,4 +1029,290 @@ public class LdapModule extends AbstractQuercusModule
         boolean success = linkIdentifier.unbind();
         return BooleanValue.create(success);
     }
+
+    /**
+     * Wait for a search started by ldap_search_async() to finish. Not part of PHP's LDAP module.
+     *
+     * @param pendingIdentifier LdapPendingResult returned by ldap_search_async().
+     * @param timeout Most seconds to wait. Waits as long as it takes if negative or omitted.
+     * @return LdapResultResource identifier of the search result, or null if the search failed or
+     *         did not finish in time. A search that timed out can be waited for again.
+     */
+    @ReturnNullAsFalse
+    public static LdapResultResource ldap_wait (LdapPendingResult pendingIdentifier,
+                                                @Optional("-1") double timeout)
+    {
+        if (pendingIdentifier == null) {
+            return null;
+        }
+        return pendingIdentifier.get(toMillis(timeout));
+    }
+
+    /**
+     * Wait for several searches started by ldap_search_async() to finish. Not part of PHP's LDAP
+     * module.
+     *
+     * @param pendingIdentifiers Array of LdapPendingResults returned by ldap_search_async().
+     * @param timeout Most seconds to wait for all of them together. Waits as long as it takes if
+     *        negative or omitted.
+     * @return Array with the same keys as pendingIdentifiers, holding the LdapResultResource of
+     *         each search, or false for those that failed or did not finish in time.
+     */
+    public static ArrayValue ldap_wait_all (ArrayValue pendingIdentifiers,
+                                            @Optional("-1") double timeout)
+    {
+        long timeoutMillis = toMillis(timeout);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        ArrayValue results = new ArrayValueImpl(pendingIdentifiers.getSize());
+        for (Map.Entry<Value, Value> entry : pendingIdentifiers.entrySet()) {
+            Value pending = entry.getValue().toValue();
+            LdapResultResource result = null;
+            if (pending instanceof LdapPendingResult) {
+                // Everything is already running, so waiting in order costs nothing extra.
+                long wait = (timeoutMillis < 0) ? -1 :
+                    Math.max(0, deadline - System.currentTimeMillis());
+                result = ((LdapPendingResult) pending).get(wait);
+            }
+            results.put(entry.getKey(),
+                (result == null) ? (Value) BooleanValue.create(false) : result);
+        }
+        return results;
+    }
+
+    /**
+     * Apply the same modification to every attribute in entry.
+     */
+    protected static BooleanValue modify (LdapLinkResource linkIdentifier, String dn,
+                                          ArrayValue entry, int operation)
+    {
+        if (linkIdentifier == null) {
+            return BooleanValue.create(false);
+        }
+        return BooleanValue.create(
+            linkIdentifier.modify(dn, LdapWrite.toModifications(entry, operation)));
+    }
+
+    /**
+     * Does the work of ldap_get_values() and ldap_get_values_len().
+     */
+    protected static ArrayValue getValues (LdapResultEntry entry, String attribute,
+                                           boolean binary)
+    {
+        return (entry == null) ? null : entry.getValues(attribute, binary);
+    }
+
+    /**
+     * Read the controls argument of a search. A paged results control is set on the link, and
+     * sort and virtual list view controls become the view to ask for.
+     *
+     * @return The view, or null if the search isn't sorted.
+     * @throws NamingException if a critical control is not supported, or a virtual list view
+     *         is asked for without sorting.
+     */
+    protected static LdapView toView (LdapLinkResource link, ArrayValue controls)
+        throws NamingException
+    {
+        if (controls == null) {
+            return null;
+        }
+        SortKey[] keys = null;
+        Value vlv = null;
+        for (Value control : controls.values()) {
+            String oid = control.get(OID_KEY).toString();
+            boolean critical = control.get(CRITICAL_KEY).toBoolean();
+            Value value = control.get(VALUE_KEY);
+            if (oid.equals(LDAP_CONTROL_SORTREQUEST)) {
+                keys = toSortKeys(value);
+            } else if (oid.equals(LDAP_CONTROL_VLVREQUEST)) {
+                vlv = value;
+            } else if (oid.equals(LDAP_CONTROL_PAGEDRESULTS)) {
+                String cookie = value.get(COOKIE_KEY).toString();
+                link.setPagedResultsControl(value.get(SIZE_KEY).toInt(), critical,
+                                            (cookie.length() == 0) ? null : toBytes(cookie));
+            } else if (critical) {
+                throw new OperationNotSupportedException("Unsupported critical control " + oid);
+            }
+        }
+        if (keys == null) {
+            if (vlv != null) {
+                throw new InvalidSearchControlsException(
+                    "A virtual list view needs a sort control");
+            }
+            return null;
+        }
+        if (vlv == null) {
+            return new LdapView(keys);
+        }
+        int before = vlv.get(BEFORE_KEY).toInt();
+        int after = vlv.get(AFTER_KEY).toInt();
+        Value context = vlv.get(CONTEXT_KEY);
+        byte[] contextBytes = context.isNull() ? null : toBytes(context.toString());
+        Value attrValue = vlv.get(ATTRVALUE_KEY);
+        if (!attrValue.isNull()) {
+            return new LdapView(keys, before, after, attrValue.toString(), contextBytes);
+        }
+        return new LdapView(keys, before, after, vlv.get(OFFSET_KEY).toInt(),
+                            vlv.get(COUNT_KEY).toInt(), contextBytes);
+    }
+
+    /**
+     * Convert the sort keys of a sort request control as PHP gives them.
+     */
+    protected static SortKey[] toSortKeys (Value value)
+        throws NamingException
+    {
+        if (!value.isArray() || ((ArrayValue) value).getSize() == 0) {
+            throw new InvalidSearchControlsException("A sort control needs sort keys");
+        }
+        ArrayValue array = (ArrayValue) value;
+        SortKey[] keys = new SortKey[array.getSize()];
+        int ii = 0;
+        for (Value key : array.values()) {
+            Value rule = key.get(OID_KEY);
+            keys[ii++] = new SortKey(key.get(ATTR_KEY).toString(),
+                                     !key.get(REVERSE_KEY).toBoolean(),
+                                     rule.isNull() ? null : rule.toString());
+        }
+        return keys;
+    }
+
+    /**
+     * Convert a control sent back by the server to the format of ldap_parse_result().
+     */
+    protected static ArrayValue toArrayValue (Control control)
+    {
+        ArrayValue array = new ArrayValueImpl();
+        array.put(OID_KEY, StringValueImpl.create(control.getID()));
+        array.put(CRITICAL_KEY, BooleanValue.create(control.isCritical()));
+        ArrayValue value = new ArrayValueImpl();
+        if (control instanceof SortResponseControl) {
+            SortResponseControl sort = (SortResponseControl) control;
+            value.put(ERRCODE_KEY, LongValue.create(sort.getResultCode()));
+            if (sort.getAttributeID() != null) {
+                value.put(ATTRIBUTE_KEY, StringValueImpl.create(sort.getAttributeID()));
+            }
+        } else if (control instanceof PagedResultsResponseControl) {
+            PagedResultsResponseControl paged = (PagedResultsResponseControl) control;
+            byte[] cookie = paged.getCookie();
+            value.put(SIZE_KEY, LongValue.create(paged.getResultSize()));
+            value.put(COOKIE_KEY, toBinaryString((cookie == null) ? new byte[0] : cookie));
+        } else {
+            LdapVirtualListControl.Response vlv =
+                LdapVirtualListControl.getResponse(new Control[] { control });
+            if (vlv == null) {
+                byte[] encoded = control.getEncodedValue();
+                array.put(VALUE_KEY, toBinaryString((encoded == null) ? new byte[0] : encoded));
+                return array;
+            }
+            value.put(TARGET_KEY, LongValue.create(vlv.targetPosition));
+            value.put(COUNT_KEY, LongValue.create(vlv.contentCount));
+            value.put(ERRCODE_KEY, LongValue.create(vlv.resultCode));
+            if (vlv.contextID != null) {
+                value.put(CONTEXT_KEY, toBinaryString(vlv.contextID));
+            }
+        }
+        array.put(VALUE_KEY, value);
+        return array;
+    }
+
+    /**
+     * Return the bytes of a PHP binary string.
+     */
+    protected static byte[] toBytes (String value)
+    {
+        try {
+            return value.getBytes(BINARY_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return bytes as a PHP binary string.
+     */
+    protected static Value toBinaryString (byte[] value)
+    {
+        try {
+            return StringValueImpl.create(new String(value, BINARY_CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Resolve a file name given by a script against its working directory.
+     */
+    protected static File toFile (Env env, String filename)
+    {
+        if (env == null || env.getPwd() == null) {
+            return new File(filename);
+        }
+        return new File(env.getPwd().lookup(filename).getNativePath());
+    }
+
+    /**
+     * Turn one of the hosts given to ldap_connect() into a URI with a port.
+     */
+    protected static String toURI (String host, String port)
+    {
+        if (PORT_PATTERN.matcher(host).lookingAt()) {
+            return host;
+        }
+        // If port is unspecified, set it to 389. Or 636 if hostname implies we want SSL.
+        if (port.length() == 0) {
+            port = host.startsWith("ldaps://") ? "636" : "389";
+        }
+        String uri = host + ":" + port;
+
+        /* Prepend ldap:// (or ldaps:// if port is 636) if those aren't already at the beginning of
+         * the hostname. */
+        if (!(uri.startsWith("ldaps://")) && !(uri.startsWith("ldap://"))) {
+            if (port.equals("636")) {
+                uri = "ldaps://" + uri;
+            } else {
+                uri = "ldap://" + uri;
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Return the LdapOptions number of an option given as a number or as a constant name.
+     */
+    protected static int toOption (Value option)
+    {
+        int id = LdapOptions.forName(option.toString());
+        return (id == LdapOptions.UNKNOWN) ? option.toInt() : id;
+    }
+
+    /** Convert a PHP timeout in seconds to milliseconds, keeping negative as forever. */
+    protected static long toMillis (double seconds)
+    {
+        return (seconds < 0) ? -1 : (long) (seconds * 1000);
+    }
+
+    /** Matches hosts that already give a port, such as ldap://host:389/. */
+    protected static final Pattern PORT_PATTERN =
+        Pattern.compile("(ldaps?://)?(\\[[^\\]]*\\]|[^/:\\[]*):[0-9]+(/|$)");
+
+    /** Maps each byte of binary data like paging cookies to one char of a PHP string. */
+    protected static final String BINARY_CHARSET = "ISO-8859-1";
+
+    // Keys of the arrays describing controls, as in PHP 7.3.
+    protected static final Value OID_KEY = StringValueImpl.create("oid");
+    protected static final Value CRITICAL_KEY = StringValueImpl.create("iscritical");
+    protected static final Value VALUE_KEY = StringValueImpl.create("value");
+    protected static final Value ATTR_KEY = StringValueImpl.create("attr");
+    protected static final Value REVERSE_KEY = StringValueImpl.create("reverse");
+    protected static final Value BEFORE_KEY = StringValueImpl.create("before");
+    protected static final Value AFTER_KEY = StringValueImpl.create("after");
+    protected static final Value OFFSET_KEY = StringValueImpl.create("offset");
+    protected static final Value COUNT_KEY = StringValueImpl.create("count");
+    protected static final Value ATTRVALUE_KEY = StringValueImpl.create("attrvalue");
+    protected static final Value CONTEXT_KEY = StringValueImpl.create("context");
+    protected static final Value TARGET_KEY = StringValueImpl.create("target");
+    protected static final Value ERRCODE_KEY = StringValueImpl.create("errcode");
+    protected static final Value ATTRIBUTE_KEY = StringValueImpl.create("attribute");
+    protected static final Value SIZE_KEY = StringValueImpl.create("size");
+    protected static final Value COOKIE_KEY = StringValueImpl.create("cookie");
 }
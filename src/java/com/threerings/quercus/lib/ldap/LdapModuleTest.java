@@ -15,13 +15,30 @@
 
 package com.threerings.quercus.lib.ldap;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.caucho.quercus.env.ArrayValue;
 import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.BinaryBuilderValue;
 import com.caucho.quercus.env.BooleanValue;
 import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.StringValueImpl;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.env.Var;
+
+import com.threerings.quercus.lib.ldap.server.Entry;
+import com.threerings.quercus.lib.ldap.server.LdapServer;
+import com.threerings.quercus.lib.ldap.server.TestServer;
 
 import org.junit.After;
 import org.junit.Before;
@@ -35,19 +52,20 @@ import junit.framework.JUnit4TestAdapter;
 
 public class LdapModuleTest
 {
-    /** Get LDAP server port from test.properties, and instantiate connection. */
+    /** Get the port of the in-process test LDAP server, and instantiate connection. */
     @Before public void setUp ()
     {
-        _port = System.getProperty("slapd_port");
-        _connection = LdapModule.ldap_connect("localhost", _port);
+        _port = TestServer.getPort();
+        _connection = LdapModule.ldap_connect(null, "localhost", _port);
     }
 
-    /** Unbind from server. If we're not bound, nothing will happen. Reset constants to defaults. */
+    /** Unbind from server. If we're not bound, nothing will happen. */
     @After public void tearDown ()
     {
         _connection.unbind();
-        LdapModule.LDAP_OPT_REFERRALS = 0;
-        LdapModule.LDAP_OPT_PROTOCOL_VERSION = 3;
+        for (LdapServer server : _servers) {
+            server.stop();
+        }
     }
 
     @Test public void anonymousBind ()
@@ -60,18 +78,25 @@ public class LdapModuleTest
 
     @Test public void anonymousBindURIHostname ()
     {
-        _connection = LdapModule.ldap_connect("ldap://localhost", _port);
+        _connection = LdapModule.ldap_connect(null, "ldap://localhost", _port);
         BooleanValue result = LdapModule.ldap_bind(_connection, "", "");
         assertTrue("Anonymous bind using ldap:// URI", result.toBoolean());
     }
 
     @Test public void anonymousBindWhitespaceURI ()
     {
-        _connection = LdapModule.ldap_connect(" ldap://localhost", _port);
+        _connection = LdapModule.ldap_connect(null, " ldap://localhost", _port);
         BooleanValue result = LdapModule.ldap_bind(_connection, "", "");
         assertTrue("Anonymous bind using URI with leading whitespace", result.toBoolean());
     }
 
+    @Test public void anonymousBindSeveralHosts ()
+    {
+        _connection = LdapModule.ldap_connect(null, "ldap://localhost:1 localhost", _port);
+        BooleanValue result = LdapModule.ldap_bind(_connection, "", "");
+        assertTrue("Anonymous bind should fail over to the working host", result.toBoolean());
+    }
+
     @Test public void passwordlessBind ()
     {
         BooleanValue result = LdapModule.ldap_bind(_connection, "cn=foo,dc=example,dc=com", "");
@@ -104,22 +129,84 @@ public class LdapModuleTest
         assertFalse("Unbinding should fail when link identifier is null", result.toBoolean());
     }
 
+    @Test public void startTLSNull ()
+    {
+        assertFalse("Starting TLS should fail when link identifier is null",
+                    LdapModule.ldap_start_tls(null).toBoolean());
+    }
+
     @Test public void changeProtocolVersion ()
     {
-        BooleanValue result = LdapModule.ldap_set_option(_connection, "LDAP_OPT_PROTOCOL_VERSION",
-            2);
+        BooleanValue result = LdapModule.ldap_set_option(_connection,
+            StringValueImpl.create("LDAP_OPT_PROTOCOL_VERSION"), LongValue.create(2));
         assertTrue("Changing LDAP protocol version", result.toBoolean());
+        assertEquals("The change should only affect this link", 3,
+            new LdapLinkResource("ldap://localhost").getOptions().getProtocolVersion());
+
+        assertFalse("Scripts can't change the defaults", LdapModule.ldap_set_option(null,
+            StringValueImpl.create("LDAP_OPT_PROTOCOL_VERSION"), LongValue.create(2)).toBoolean());
+        assertEquals(3, new LdapLinkResource("ldap://localhost").getOptions()
+                     .getProtocolVersion());
+    }
+
+    @Test public void getAndSetOption ()
+    {
+        Var retval = new Var();
+        assertTrue("Reading the size limit", LdapModule.ldap_get_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_SIZELIMIT), retval).toBoolean());
+        assertEquals(0, retval.toInt());
+        assertTrue("Setting an option by its number", LdapModule.ldap_set_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_SIZELIMIT), LongValue.create(1)).toBoolean());
+        LdapModule.ldap_get_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_SIZELIMIT), retval);
+        assertEquals(1, retval.toInt());
+        assertFalse("Bad values should be refused", LdapModule.ldap_set_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_DEREF), LongValue.create(10)).toBoolean());
+
+        // The link's size limit now applies to searches that don't give one.
+        LdapModule.ldap_bind(_connection, "", "");
+        LdapResultResource searchResult = LdapModule.ldap_search(_connection,
+            "ou=Groups,dc=example,dc=com", "objectClass=groupOfUniqueNames", null, 0, -1, -1, -1,
+            null);
+        assertNull("Two groups are over the link's size limit", searchResult);
+    }
+
+    @Test public void binaryAttributesOption ()
+    {
+        Var retval = new Var();
+        assertTrue(LdapModule.ldap_get_option(_connection,
+            StringValueImpl.create("LDAP_OPT_BINARY_ATTRIBUTES"), retval).toBoolean());
+        assertEquals(LdapOptions.DEFAULT_BINARY_ATTRIBUTES, retval.toString());
+        assertTrue(LdapModule.ldap_set_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_BINARY_ATTRIBUTES),
+            StringValueImpl.create("objectGUID description")).toBoolean());
+        LdapModule.ldap_get_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_BINARY_ATTRIBUTES), retval);
+        assertEquals("objectGUID description", retval.toString());
+
+        // Only this link reads descriptions as bytes.
+        String dn = "uid=john,ou=People,dc=example,dc=com";
+        LdapModule.ldap_bind(_connection, "", "");
+        assertTrue(readDescription(_connection, dn) instanceof BinaryBuilderValue);
+        LdapLinkResource other = LdapModule.ldap_connect(null, "localhost", _port);
+        LdapModule.ldap_bind(other, "", "");
+        Value text = readDescription(other, dn);
+        assertFalse(text instanceof BinaryBuilderValue);
+        assertEquals("John the Example Person", text.toString());
+        LdapModule.ldap_unbind(other);
     }
 
     @Test public void changeConstant ()
     {
-        BooleanValue result = LdapModule.ldap_set_option(_connection, "LDAP_DEREF_NEVER", 10);
+        BooleanValue result = LdapModule.ldap_set_option(_connection,
+            StringValueImpl.create("LDAP_DEREF_NEVER"), LongValue.create(10));
         assertFalse("Trying to change LDAP_DEREF_NEVER should fail", result.toBoolean());
     }
 
     @Test public void changeInvalidOption ()
     {
-        BooleanValue result = LdapModule.ldap_set_option(_connection, "LDAP_INVALID_OPTION", 10);
+        BooleanValue result = LdapModule.ldap_set_option(_connection,
+            StringValueImpl.create("LDAP_INVALID_OPTION"), LongValue.create(10));
         assertFalse("Trying to change non-existent option should fail", result.toBoolean());
     }
 
@@ -127,12 +214,13 @@ public class LdapModuleTest
     {
         // Make sure we fail right away if not bound.
         LdapResultResource searchResult = LdapModule.ldap_search(_connection,
-            "ou=Groups,dc=example,dc=com", "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0);
+            "ou=Groups,dc=example,dc=com", "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0,
+            null);
         assertNull("Search when not bound should fail", searchResult);
 
         LdapModule.ldap_bind(_connection, "", "");
         searchResult = LdapModule.ldap_search(_connection, "ou=Groups,dc=example,dc=com",
-            "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0);
+            "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0, null);
         assertNotNull("Search for objectClass=groupOfUniqueNames should not return null",
             searchResult);
 
@@ -142,10 +230,54 @@ public class LdapModuleTest
         assertEquals(2, resultArray.get(StringValueImpl.create("count")).toInt());
     }
 
+    @Test public void entryCursor ()
+    {
+        LdapModule.ldap_bind(_connection, "", "");
+        LdapResultResource result = LdapModule.ldap_search(_connection,
+            "ou=Groups,dc=example,dc=com", "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0,
+            null);
+        assertEquals(LongValue.create(2), LdapModule.ldap_count_entries(_connection, result));
+
+        ArrayList<String> dns = new ArrayList<String>();
+        for (LdapResultEntry entry = LdapModule.ldap_first_entry(_connection, result);
+             entry != null; entry = LdapModule.ldap_next_entry(_connection, entry)) {
+            dns.add(LdapModule.ldap_get_dn(_connection, entry));
+            ArrayValue cn = LdapModule.ldap_get_values(_connection, entry, "CN");
+            assertEquals(1, cn.get(StringValueImpl.create("count")).toInt());
+            assertEquals("cn=" + cn.get(LongValue.create(0)) + ",ou=Groups,dc=example,dc=com",
+                         dns.get(dns.size() - 1));
+            assertNull(LdapModule.ldap_get_values(_connection, entry, "mail"));
+
+            ArrayValue attributes = LdapModule.ldap_get_attributes(_connection, entry);
+            int count = attributes.get(StringValueImpl.create("count")).toInt();
+            assertTrue(count > 0);
+            assertTrue("No dn, unlike ldap_get_entries()",
+                       attributes.get(StringValueImpl.create("dn")).isNull());
+            for (int ii = 0; ii < count; ii++) {
+                assertTrue(attributes.get(attributes.get(LongValue.create(ii))).isArray());
+            }
+        }
+        assertEquals(2, dns.size());
+
+        // A streaming result is read as the script moves along, and can still be counted.
+        LdapModule.ldap_set_option(_connection,
+            LongValue.create(LdapModule.LDAP_OPT_STREAM_RESULTS), LongValue.create(1));
+        result = LdapModule.ldap_search(_connection, "ou=Groups,dc=example,dc=com",
+            "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0, null);
+        LdapResultEntry first = LdapModule.ldap_first_entry(_connection, result);
+        assertEquals(dns.get(0), LdapModule.ldap_get_dn(_connection, first));
+        LdapResultEntry second = LdapModule.ldap_next_entry(_connection, first);
+        assertEquals(dns.get(1), LdapModule.ldap_get_dn(_connection, second));
+        assertNull(LdapModule.ldap_next_entry(_connection, second));
+        assertNull("The first entry has been dropped",
+                   LdapModule.ldap_first_entry(_connection, result));
+        assertEquals(LongValue.create(2), LdapModule.ldap_count_entries(_connection, result));
+    }
+
     @Test public void readJohn () {
         // Make sure we fail right away if not bound.
         LdapResultResource readResult = LdapModule.ldap_read(_connection,
-            "uid=John,ou=People,dc=example,dc=com", "uid=john", null, 0, 0, 0, 0);
+            "uid=John,ou=People,dc=example,dc=com", "uid=john", null, 0, 0, 0, 0, null);
         assertNull("Search when not bound should fail", readResult);
 
         LdapModule.ldap_bind(_connection, "", "");
@@ -154,7 +286,7 @@ public class LdapModuleTest
         attributes.add("mail");
         attributes.add("cn");
         readResult = LdapModule.ldap_read(_connection, "uid=John,ou=People,dc=example,dc=com",
-            "uid=john", attributes, 1, 0, 0, 0);
+            "uid=john", attributes, 1, 0, 0, 0, null);
         assertNotNull("Search for uid=john should not return null", readResult);
 
         ArrayValue resultArray = LdapModule.ldap_get_entries(_connection, readResult);
@@ -175,11 +307,524 @@ public class LdapModuleTest
             johnMail.get(StringValueImpl.create("count")).toInt());
     }
 
+    @Test public void searchAsync ()
+    {
+        assertNull("Search when not bound should fail", LdapModule.ldap_search_async(
+            _connection, "ou=Groups,dc=example,dc=com", "objectClass=*", null, 0, 0, 0, 0));
+
+        LdapModule.ldap_bind(_connection, "", "");
+        ArrayValue pending = new ArrayValueImpl();
+        pending.put(StringValueImpl.create("groups"), LdapModule.ldap_search_async(_connection,
+            "ou=Groups,dc=example,dc=com", "objectClass=groupOfUniqueNames", null, 0, 0, 0, 0));
+        pending.put(StringValueImpl.create("sally"), LdapModule.ldap_search_async(_connection,
+            "ou=People,dc=example,dc=com", "uid=sally", null, 0, 0, 0, 0));
+        pending.put(StringValueImpl.create("bogus"), LdapModule.ldap_search_async(_connection,
+            "ou=Nowhere,dc=example,dc=com", "objectClass=*", null, 0, 0, 0, 0));
+
+        ArrayValue results = LdapModule.ldap_wait_all(pending, 10);
+        ArrayValue groups = LdapModule.ldap_get_entries(_connection,
+            (LdapResultResource) results.get(StringValueImpl.create("groups")));
+        assertEquals(2, groups.get(StringValueImpl.create("count")).toInt());
+        ArrayValue sally = LdapModule.ldap_get_entries(_connection,
+            (LdapResultResource) results.get(StringValueImpl.create("sally")));
+        assertEquals(1, sally.get(StringValueImpl.create("count")).toInt());
+        assertFalse("A failed search should come back as false",
+                    results.get(StringValueImpl.create("bogus")).toBoolean());
+    }
+
+    @Test public void readBatch ()
+    {
+        LdapModule.ldap_bind(_connection, "", "");
+        ArrayList<String> dns = new ArrayList<String>();
+        dns.add("uid=sally,ou=People,dc=example,dc=com");
+        dns.add("cn=developers,ou=Groups,dc=example,dc=com");
+        dns.add("uid=nobody,ou=People,dc=example,dc=com");
+        dns.add("uid=John,ou=People,dc=example,dc=com");
+        dns.add("uid=nobody,ou=Nowhere,dc=example,dc=com");
+        ArrayValue resultArray = LdapModule.ldap_get_entries(_connection,
+            LdapModule.ldap_read_batch(_connection, dns, null, 0));
+        assertEquals("Only the entries that exist should come back", 3,
+            resultArray.get(StringValueImpl.create("count")).toInt());
+        String[] expected = { "uid=sally,ou=People,dc=example,dc=com",
+                              "cn=developers,ou=Groups,dc=example,dc=com",
+                              "uid=john,ou=People,dc=example,dc=com" };
+        for (int ii = 0; ii < expected.length; ii++) {
+            assertEquals("Entries should come back in the order asked for", expected[ii],
+                resultArray.get(LongValue.create(ii)).get(StringValueImpl.create("dn"))
+                .toString());
+        }
+    }
+
+    @Test public void searchBatch ()
+    {
+        LdapModule.ldap_bind(_connection, "", "");
+        ArrayList<String> uids = new ArrayList<String>();
+        uids.add("john");
+        uids.add("sally");
+        uids.add("nobody)(uid=*");
+        ArrayValue resultArray = LdapModule.ldap_get_entries(_connection,
+            LdapModule.ldap_search_batch(_connection, "dc=example,dc=com", "uid", uids, null, 0));
+        assertEquals("Values should be escaped", 2,
+            resultArray.get(StringValueImpl.create("count")).toInt());
+    }
+
+    @Test public void addModifyDelete ()
+        throws Exception
+    {
+        // Write to a server of our own, so the other tests see the usual entries.
+        LdapServer server = startServer();
+        String dn = "uid=fred,ou=People,dc=example,dc=com";
+        ArrayValue entry = new ArrayValueImpl();
+        ArrayValue objectClass = new ArrayValueImpl();
+        objectClass.append(StringValueImpl.create("top"));
+        objectClass.append(StringValueImpl.create("inetOrgPerson"));
+        entry.put(StringValueImpl.create("objectClass"), objectClass);
+        entry.put(StringValueImpl.create("uid"), StringValueImpl.create("fred"));
+        entry.put(StringValueImpl.create("cn"), StringValueImpl.create("Fred"));
+        entry.put(StringValueImpl.create("sn"), StringValueImpl.create("Flintstone"));
+
+        LdapModule.ldap_bind(_connection, "", "");
+        assertFalse("Anonymous users can't write",
+                    LdapModule.ldap_add(_connection, dn, entry).toBoolean());
+        LdapModule.ldap_bind(_connection, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        assertTrue(LdapModule.ldap_add(_connection, dn, entry).toBoolean());
+        assertFalse("The entry is already there",
+                    LdapModule.ldap_add(_connection, dn, entry).toBoolean());
+        assertEquals("Fred", readValue(dn, "cn"));
+
+        assertTrue(LdapModule.ldap_mod_add(
+            _connection, dn, modification("mail", "fred@example.com")).toBoolean());
+        assertEquals("fred@example.com", readValue(dn, "mail"));
+        assertTrue(LdapModule.ldap_mod_replace(
+            _connection, dn, modification("mail", "fred@rock.com")).toBoolean());
+        assertEquals("fred@rock.com", readValue(dn, "mail"));
+        assertFalse("Removing a value that isn't there fails", LdapModule.ldap_mod_del(
+            _connection, dn, modification("mail", "wilma@rock.com")).toBoolean());
+        ArrayValue removal = new ArrayValueImpl();
+        removal.put(StringValueImpl.create("mail"), new ArrayValueImpl());
+        assertTrue(LdapModule.ldap_mod_del(_connection, dn, removal).toBoolean());
+        assertNull(readValue(dn, "mail"));
+        assertTrue(LdapModule.ldap_modify(_connection, dn,
+                                          modification("cn", "Freddy")).toBoolean());
+        assertEquals("Freddy", readValue(dn, "cn"));
+
+        assertFalse("Entries with children can't be deleted", LdapModule.ldap_delete(
+            _connection, "ou=People,dc=example,dc=com").toBoolean());
+        assertTrue(LdapModule.ldap_delete(_connection, dn).toBoolean());
+        assertNull(server.getDirectory().get(dn));
+    }
+
+    @Test public void authenticate ()
+        throws Exception
+    {
+        startServer();
+        LdapAuthenticator auth = new LdapAuthenticator(8, 100, 60000);
+        _connection._authenticator = auth;
+        String base = "ou=People,dc=example,dc=com";
+        assertNull("An unbound link can't search for users",
+                   LdapModule.ldap_authenticate(_connection, base, "(uid=john)", "secret"));
+
+        LdapModule.ldap_bind(_connection, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        String dn = "uid=john,ou=People,dc=example,dc=com";
+        ArrayValue change = new ArrayValueImpl();
+        change.put(StringValueImpl.create("userPassword"), StringValueImpl.create("secret"));
+        assertTrue(LdapModule.ldap_mod_add(_connection, dn, change).toBoolean());
+
+        assertEquals(dn, LdapModule.ldap_authenticate(_connection, base, "(uid=john)",
+                                                      "secret"));
+        assertNull(LdapModule.ldap_authenticate(_connection, base, "(uid=john)", "wrong"));
+        assertNull(LdapModule.ldap_authenticate(_connection, base, "(uid=john)", ""));
+        assertNull(LdapModule.ldap_authenticate(_connection, base, "(uid=nobody)", "secret"));
+        assertNull("Several matches are refused", LdapModule.ldap_authenticate(
+            _connection, base, "(objectClass=person)", "secret"));
+        assertEquals(dn, LdapModule.ldap_authenticate(_connection, base, "(uid=john)",
+                                                      "secret"));
+        assertTrue("Later logins skip the search", auth.getDNHitCount() >= 2);
+        assertTrue("Password checks reuse connections", auth.getPool().getHitCount() >= 2);
+
+        // The link is still bound as the administrator.
+        change.put(StringValueImpl.create("userPassword"), StringValueImpl.create("other"));
+        assertTrue(LdapModule.ldap_mod_add(_connection, dn, change).toBoolean());
+    }
+
+    @Test public void filters ()
+        throws Exception
+    {
+        assertEquals("a\\2a\\28b\\29\\5c\\00", LdapModule.ldap_escape("a*(b)\\\u0000", null,
+            LdapModule.LDAP_ESCAPE_FILTER));
+        assertEquals("\\20Doe\\2c John\\20", LdapModule.ldap_escape(" Doe, John ", null,
+            LdapModule.LDAP_ESCAPE_DN));
+        assertEquals("\\6a*\\e2\\82\\ac", LdapModule.ldap_escape("j*\u20ac", "*", 0));
+        assertEquals("Escaped values stay escaped", "(cn=a\\2a\\28b\\29)",
+            LdapModule.ldap_normalize_filter("(cn=" + LdapModule.ldap_escape(
+                "a*(b)", "", LdapModule.LDAP_ESCAPE_FILTER) + ")"));
+
+        String canonical = "(&(objectclass=groupOfUniqueNames)(|(cn=a*)(cn=b)))";
+        assertEquals(canonical, LdapModule.ldap_normalize_filter(
+            "(&(objectClass=groupOfUniqueNames)(|(cn=a*)(cn=b)))"));
+        assertEquals(canonical, LdapModule.ldap_normalize_filter(
+            " (&(|(CN=b)(cn=\\61*)(!(!(cn=b))))(&(OBJECTCLASS=groupOfUniqueNames))) "));
+        assertEquals("(uid=john)", LdapModule.ldap_normalize_filter("UID=john"));
+        assertEquals("(cn:caseexactmatch:=x)", LdapModule.ldap_normalize_filter(
+            "(cn:caseExactMatch:=x)"));
+        assertEquals("(&(cn=a)(cn=b))", LdapModule.ldap_normalize_filter("(&(cn=a) (cn=b))"));
+        assertEquals("(&(cn=a)(cn=b))", LdapModule.ldap_normalize_filter("(& (cn=a)(cn=b) )"));
+        assertEquals("(!(cn=a))", LdapModule.ldap_normalize_filter("(!\t(cn=a))"));
+        for (String bad : new String[] { "", "(cn=a", "(cn=a)(cn=b)", "(&(cn=a)", "(cn=a(b))",
+                                         "(!(cn=a)(cn=b))", "(c n=a)", "(cn=a\\)", "(=a)" }) {
+            assertNull(bad, LdapModule.ldap_normalize_filter(bad));
+        }
+
+        LdapServer server = startServer();
+        LdapSearchCache cache = new LdapSearchCache(1024 * 1024, 60000);
+        _connection._searchCache = cache;
+        LdapModule.ldap_bind(_connection, "", "");
+        String base = "ou=Groups,dc=example,dc=com";
+        assertNull("Malformed filters are refused", LdapModule.ldap_search(
+            _connection, base, "(&(cn=a)", null, 0, 0, 0, 0, null));
+        assertEquals(0, server.getSearchCount());
+
+        // Equivalent filters share cached results.
+        LdapResultResource result = LdapModule.ldap_search(_connection, base,
+            "(&(objectClass=groupOfUniqueNames)(cn=*))", null, 0, 0, 0, 0, null);
+        assertEquals(2, result.getEntries().size());
+        result = LdapModule.ldap_search(_connection, base,
+            "(&(CN=*)(objectclass=groupOfUniqueNames))", null, 0, 0, 0, 0, null);
+        assertEquals(2, result.getEntries().size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, server.getSearchCount());
+    }
+
+    @Test public void sortedViews ()
+        throws Exception
+    {
+        // Servers that sort and window results themselves, and those that leave it to us.
+        for (boolean supported : new boolean[] { true, false }) {
+            LdapServer server = startServer();
+            server.setSortSupported(supported);
+            LdapModule.ldap_bind(_connection, "", "");
+            String base = "ou=Groups,dc=example,dc=com";
+            ArrayValue sort = controls(sortControl("cn", true), null);
+            assertEquals(Arrays.asList("sally", "john", "developers", "administrators"),
+                         getCNs(LdapModule.ldap_search(_connection, base, "(cn=*)", null, 0,
+                                                       -1, -1, -1, sort)));
+
+            // The first entries in order, without the size limit failing the search.
+            sort = controls(sortControl("cn", false), null);
+            assertEquals(Arrays.asList("administrators", "developers"),
+                         getCNs(LdapModule.ldap_search(_connection, base, "(cn=*)", null, 0,
+                                                       2, -1, -1, sort)));
+
+            // A window by position, leaving out the sort key.
+            ArrayValue window = new ArrayValueImpl();
+            window.put(StringValueImpl.create("before"), LongValue.create(1));
+            window.put(StringValueImpl.create("after"), LongValue.create(1));
+            window.put(StringValueImpl.create("offset"), LongValue.create(2));
+            window.put(StringValueImpl.create("count"), LongValue.create(0));
+            LdapResultResource result = LdapModule.ldap_search(
+                _connection, base, "(cn=*)",
+                new ArrayList<String>(Arrays.asList("objectClass")), 0, -1, -1, -1,
+                controls(sortControl("cn", false), window));
+            assertEquals(Arrays.asList("administrators", "developers", "john"),
+                         getCNs(result));
+            assertFalse("The sort key isn't returned unless asked for",
+                        LdapModule.ldap_get_entries(_connection, result).get(
+                            LongValue.create(0)).get(StringValueImpl.create("cn")).isArray());
+            Var code = new Var();
+            Var controls = new Var();
+            assertTrue(LdapModule.ldap_parse_result(_connection, result, code, null, null,
+                                                    null, controls).toBoolean());
+            assertEquals(0, code.toLong());
+            Value vlv = controls.toValue().get(StringValueImpl.create(
+                LdapModule.LDAP_CONTROL_VLVRESPONSE)).get(StringValueImpl.create("value"));
+            assertEquals(2, vlv.get(StringValueImpl.create("target")).toLong());
+            assertEquals(4, vlv.get(StringValueImpl.create("count")).toLong());
+
+            // A window around a value.
+            window = new ArrayValueImpl();
+            window.put(StringValueImpl.create("before"), LongValue.create(1));
+            window.put(StringValueImpl.create("after"), LongValue.create(0));
+            window.put(StringValueImpl.create("attrvalue"), StringValueImpl.create("j"));
+            result = LdapModule.ldap_search(_connection, base, "(cn=*)", null, 0, -1, -1, -1,
+                                            controls(sortControl("cn", false), window));
+            assertEquals(Arrays.asList("developers", "john"), getCNs(result));
+            LdapModule.ldap_parse_result(_connection, result, code, null, null, null,
+                                         controls);
+            vlv = controls.toValue().get(StringValueImpl.create(
+                LdapModule.LDAP_CONTROL_VLVRESPONSE)).get(StringValueImpl.create("value"));
+            assertEquals(3, vlv.get(StringValueImpl.create("target")).toLong());
+
+            assertNull("A window needs sorting", LdapModule.ldap_search(
+                _connection, base, "(cn=*)", null, 0, -1, -1, -1, controls(null, window)));
+        }
+    }
+
+    @Test public void windowPastTheEnd ()
+        throws Exception
+    {
+        for (boolean supported : new boolean[] { true, false }) {
+            LdapServer server = startServer();
+            server.setSortSupported(supported);
+            String base = "ou=Numbers,dc=example,dc=com";
+            server.getDirectory().add(new Entry(base).add("objectClass", "organizationalUnit")
+                                      .add("ou", "Numbers"));
+            for (int ii = 1; ii <= 10; ii++) {
+                String cn = (ii < 10) ? "n0" + ii : "n" + ii;
+                server.getDirectory().add(new Entry("cn=" + cn + "," + base)
+                                          .add("objectClass", "device").add("cn", cn));
+            }
+            LdapModule.ldap_bind(_connection, "", "");
+
+            // An offset past the end targets the last entry.
+            ArrayValue window = new ArrayValueImpl();
+            window.put(StringValueImpl.create("before"), LongValue.create(2));
+            window.put(StringValueImpl.create("after"), LongValue.create(0));
+            window.put(StringValueImpl.create("offset"), LongValue.create(20));
+            window.put(StringValueImpl.create("count"), LongValue.create(0));
+            LdapResultResource result = LdapModule.ldap_search(
+                _connection, base, "(cn=*)", null, 0, -1, -1, -1,
+                controls(sortControl("cn", false), window));
+            assertEquals(Arrays.asList("n08", "n09", "n10"), getCNs(result));
+            Var controls = new Var();
+            LdapModule.ldap_parse_result(_connection, result, new Var(), null, null, null,
+                                         controls);
+            Value vlv = controls.toValue().get(StringValueImpl.create(
+                LdapModule.LDAP_CONTROL_VLVRESPONSE)).get(StringValueImpl.create("value"));
+            assertEquals(10, vlv.get(StringValueImpl.create("target")).toLong());
+            assertEquals(10, vlv.get(StringValueImpl.create("count")).toLong());
+        }
+    }
+
+    @Test public void binaryValues ()
+        throws Exception
+    {
+        byte[] photo = new byte[256];
+        for (int ii = 0; ii < photo.length; ii++) {
+            photo[ii] = (byte) ii;
+        }
+        LdapServer server = startServer();
+        LdapModule.ldap_bind(_connection, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        String dn = "uid=john,ou=People,dc=example,dc=com";
+        ArrayValue change = new ArrayValueImpl();
+        change.put(StringValueImpl.create("jpegPhoto"), new BinaryBuilderValue(photo));
+        assertTrue(LdapModule.ldap_mod_add(_connection, dn, change).toBoolean());
+        assertTrue("The server got the bytes as they were", Arrays.equals(photo,
+            server.getDirectory().get(dn).get("jpegPhoto").getValues().get(0)));
+
+        LdapResultResource result = LdapModule.ldap_read(
+            _connection, dn, "(objectClass=*)", null, 0, -1, -1, -1, null);
+        ArrayValue entries = LdapModule.ldap_get_entries(_connection, result);
+        Value value = entries.get(LongValue.create(0)).get(
+            StringValueImpl.create("jpegphoto")).get(LongValue.create(0));
+        assertTrue(value instanceof BinaryBuilderValue);
+        assertEquals(new String(photo, "ISO-8859-1"), value.toString());
+
+        LdapResultEntry entry = LdapModule.ldap_first_entry(_connection, result);
+        value = LdapModule.ldap_get_values_len(_connection, entry, "jpegPhoto").get(
+            LongValue.create(0));
+        assertEquals(new String(photo, "ISO-8859-1"), value.toString());
+        value = LdapModule.ldap_get_values_len(_connection, entry, "cn").get(
+            LongValue.create(0));
+        assertTrue("Text values are returned as their bytes too",
+                   value instanceof BinaryBuilderValue);
+    }
+
+    @Test public void ldifImportExport ()
+        throws Exception
+    {
+        File ldif = File.createTempFile("import", ".ldif");
+        ldif.deleteOnExit();
+        File exported = File.createTempFile("export", ".ldif");
+        exported.deleteOnExit();
+        String zoe = "uid=zoe,ou=Imported,dc=example,dc=com";
+        writeFile(ldif,
+            "version: 1\n\n" +
+            "# Content records\n" +
+            "dn: ou=Imported,dc=example,dc=com\n" +
+            "objectClass: top\nobjectClass: organizationalUnit\nou: Imported\n\n" +
+            "dn: " + zoe + "\n" +
+            "objectClass: top\nobjectClass: inetOrgPerson\nuid: zoe\n" +
+            "cn:: Wm/DqyBEdXBvbnQ=\nsn: Dupont\n" +
+            "description: a description long enough that the export has to fold it over two\n" +
+            "  lines, as this one is\n\n" +
+            "# Change records\n" +
+            "dn: uid=max,ou=Imported,dc=example,dc=com\nchangetype: add\n" +
+            "objectClass: top\nobjectClass: inetOrgPerson\nuid: max\ncn: Max\nsn: Power\n\n" +
+            "dn: " + zoe + "\nchangetype: modify\n" +
+            "add: mail\nmail: zoe@example.com\n-\nreplace: sn\nsn: Dupond\n-\n\n" +
+            "dn: uid=max,ou=Imported,dc=example,dc=com\nchangetype: delete\n\n" +
+            "dn: ou=Imported,dc=example,dc=com\n" +
+            "objectClass: top\nobjectClass: organizationalUnit\nou: Imported\n");
+
+        LdapServer server = startServer();
+        LdapModule.ldap_bind(_connection, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        Value failures = LdapModule.ldap_import_ldif(null, _connection, ldif.getPath(), 4);
+        assertTrue(failures.isArray());
+        assertEquals("Only the second add of ou=Imported fails", 1,
+                     ((ArrayValue) failures).getSize());
+        assertTrue(failures.get(
+            StringValueImpl.create("ou=Imported,dc=example,dc=com")).toBoolean());
+        assertEquals("Dupond", readValue(zoe, "sn"));
+        assertEquals("zoe@example.com", readValue(zoe, "mail"));
+        assertNull(server.getDirectory().get("uid=max,ou=Imported,dc=example,dc=com"));
+
+        assertEquals(LongValue.create(2), LdapModule.ldap_export_ldif(
+            null, _connection, exported.getPath(), "ou=Imported,dc=example,dc=com",
+            "(objectClass=*)", null));
+        String text = readFile(exported);
+        assertTrue(text.startsWith("version: 1\n\n"));
+        assertTrue("Non-ASCII values are base64", text.indexOf("cn:: Wm/DqyBEdXBvbnQ=\n") >= 0);
+        for (String line : text.split("\n")) {
+            assertTrue("Lines are folded: " + line, line.length() <= 76);
+        }
+
+        // Load the export into a directory that doesn't have the entries yet.
+        server = startServer();
+        LdapModule.ldap_bind(_connection, TestServer.ROOT_DN, TestServer.ROOT_PASSWORD);
+        failures = LdapModule.ldap_import_ldif(null, _connection, exported.getPath(), 16);
+        assertEquals(0, ((ArrayValue) failures).getSize());
+        assertEquals("Zo\u00eb Dupont", readValue(zoe, "cn"));
+        assertEquals("a description long enough that the export has to fold it over two " +
+                     "lines, as this one is", readValue(zoe, "description"));
+
+        // Reading stops at a bad record, keeping the failures before it.
+        writeFile(ldif,
+            "dn: ou=Imported,dc=example,dc=com\n" +
+            "objectClass: top\nobjectClass: organizationalUnit\nou: Imported\n\n" +
+            "dn: " + zoe + "\nchangetype: modrdn\nnewrdn: uid=zoey\n\n" +
+            "dn: uid=max,ou=Imported,dc=example,dc=com\n" +
+            "objectClass: top\nobjectClass: inetOrgPerson\nuid: max\ncn: Max\nsn: Power\n");
+        failures = LdapModule.ldap_import_ldif(null, _connection, ldif.getPath(), 16);
+        assertEquals(2, ((ArrayValue) failures).getSize());
+        assertTrue(failures.get(
+            StringValueImpl.create("ou=Imported,dc=example,dc=com")).toBoolean());
+        assertTrue("Renames aren't supported", failures.get(
+            StringValueImpl.create("line 6")).toString().indexOf("modrdn") >= 0);
+        assertNull(server.getDirectory().get("uid=max,ou=Imported,dc=example,dc=com"));
+        assertFalse(LdapModule.ldap_import_ldif(
+            null, _connection, ldif.getPath() + ".missing", 16).toBoolean());
+    }
+
     public static junit.framework.Test suite ()
     {
         return new JUnit4TestAdapter(LdapModuleTest.class);
     }
 
+    /**
+     * Start a server of the test's own, for tests that change its entries or settings, and
+     * connect _connection to it instead. The server is stopped by tearDown().
+     */
+    protected LdapServer startServer ()
+        throws IOException
+    {
+        LdapServer server = TestServer.start();
+        _servers.add(server);
+        _connection.unbind();
+        _connection = LdapModule.ldap_connect(null, "localhost",
+                                              Integer.toString(server.getPort()));
+        return server;
+    }
+
+    /** Return an array changing one attribute to one value. */
+    protected static ArrayValue modification (String attribute, String value)
+    {
+        ArrayValue change = new ArrayValueImpl();
+        change.put(StringValueImpl.create(attribute), StringValueImpl.create(value));
+        return change;
+    }
+
+    /** Return a sort control for one attribute. */
+    protected static ArrayValue sortControl (String attribute, boolean reverse)
+    {
+        ArrayValue key = new ArrayValueImpl();
+        key.put(StringValueImpl.create("attr"), StringValueImpl.create(attribute));
+        key.put(StringValueImpl.create("reverse"), BooleanValue.create(reverse));
+        ArrayValue keys = new ArrayValueImpl();
+        keys.append(key);
+        ArrayValue control = new ArrayValueImpl();
+        control.put(StringValueImpl.create("oid"),
+                    StringValueImpl.create(LdapModule.LDAP_CONTROL_SORTREQUEST));
+        control.put(StringValueImpl.create("value"), keys);
+        return control;
+    }
+
+    /** Return the controls argument of a search, with a virtual list view if window is set. */
+    protected static ArrayValue controls (ArrayValue sort, ArrayValue window)
+    {
+        ArrayValue controls = new ArrayValueImpl();
+        if (sort != null) {
+            controls.append(sort);
+        }
+        if (window != null) {
+            ArrayValue vlv = new ArrayValueImpl();
+            vlv.put(StringValueImpl.create("oid"),
+                    StringValueImpl.create(LdapModule.LDAP_CONTROL_VLVREQUEST));
+            vlv.put(StringValueImpl.create("value"), window);
+            controls.append(vlv);
+        }
+        return controls;
+    }
+
+    /** Return the values of the naming attribute of each entry of a result, in order. */
+    protected List<String> getCNs (LdapResultResource result)
+    {
+        List<String> cns = new ArrayList<String>();
+        for (LdapResultEntry entry = LdapModule.ldap_first_entry(_connection, result);
+             entry != null; entry = LdapModule.ldap_next_entry(_connection, entry)) {
+            String dn = LdapModule.ldap_get_dn(_connection, entry);
+            cns.add(dn.substring(dn.indexOf('=') + 1, dn.indexOf(',')));
+        }
+        return cns;
+    }
+
+    /** Return the first value of an attribute of an entry, or null if it has none. */
+    protected Value readDescription (LdapLinkResource link, String dn)
+    {
+        ArrayValue entries = LdapModule.ldap_get_entries(link, LdapModule.ldap_read(
+            link, dn, "(objectClass=*)", null, 0, -1, -1, -1, null));
+        return entries.get(LongValue.create(0)).get(StringValueImpl.create("description")).get(
+            LongValue.create(0));
+    }
+
+    protected String readValue (String dn, String attribute)
+    {
+        ArrayValue entries = LdapModule.ldap_get_entries(_connection, LdapModule.ldap_read(
+            _connection, dn, "(objectClass=*)", null, 0, -1, -1, -1, null));
+        Value values = entries.get(LongValue.create(0)).get(StringValueImpl.create(attribute));
+        return values.isArray() ? values.get(LongValue.create(0)).toString() : null;
+    }
+
+    protected static void writeFile (File file, String text)
+        throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected static String readFile (File file)
+        throws IOException
+    {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        } finally {
+            in.close();
+        }
+    }
+
     protected LdapLinkResource _connection;
     protected String _port;
+
+    /** Servers of the running test's own, see startServer(). */
+    protected List<LdapServer> _servers = new ArrayList<LdapServer>();
 }
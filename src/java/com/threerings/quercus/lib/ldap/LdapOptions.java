@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.HashMap;
+
+/**
+ * The options of one LdapLinkResource, as set by ldap_set_option(). Options are identified by the
+ * same numbers as in PHP's LDAP module, which are the values of the LDAP_OPT_* constants in
+ * LdapModule. Every link starts with a copy of the defaults, which are configured from system
+ * properties and can't be changed by scripts, so that scripts no longer change each other's
+ * options.
+ *
+ * Links are only used from one request thread at a time, so options are not synchronized. Only
+ * the shared defaults are.
+ */
+public class LdapOptions
+{
+    // Options and the numbers PHP gives them.
+    public static final int DEREF               = 0x02;
+    public static final int SIZELIMIT           = 0x03;
+    public static final int TIMELIMIT           = 0x04;
+    public static final int REFERRALS           = 0x08;
+    public static final int PROTOCOL_VERSION    = 0x11;
+    public static final int TIMEOUT             = 0x5002;
+    public static final int NETWORK_TIMEOUT     = 0x5005;
+
+    // Options of our own, numbered in OpenLDAP's range for private extensions.
+    public static final int STREAM_RESULTS      = 0x7001;
+    public static final int PAGE_SIZE           = 0x7002;
+    public static final int SEARCH_CACHE_TTL    = 0x7003;
+    public static final int BINARY_ATTRIBUTES   = 0x7004;
+
+    /** Returned by forName() for names that are not options. */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Create options with the current defaults.
+     */
+    public LdapOptions ()
+    {
+        synchronized (_defaults) {
+            System.arraycopy(_defaults._values, 0, _values, 0, SLOTS);
+            _binaryAttributes = _defaults._binaryAttributes;
+        }
+    }
+
+    /**
+     * Create options with the given values, by slot, without consulting the defaults.
+     */
+    protected LdapOptions (int[] values, String binaryAttributes)
+    {
+        System.arraycopy(values, 0, _values, 0, SLOTS);
+        _binaryAttributes = binaryAttributes;
+    }
+
+    /**
+     * Return the shared defaults new links start with. They must only be changed while
+     * synchronized on the returned object, as setDefault() does.
+     */
+    public static LdapOptions getDefaults ()
+    {
+        return _defaults;
+    }
+
+    /**
+     * Change the default for an option, for all links created afterwards in this JVM. Scripts
+     * can't, as ldap_set_option() refuses a null link.
+     *
+     * @return false if the option is unknown or the value not allowed.
+     */
+    public static boolean setDefault (int option, int value)
+    {
+        synchronized (_defaults) {
+            return _defaults.set(option, value);
+        }
+    }
+
+    /**
+     * Change the default binary attributes, for all links created afterwards in this JVM.
+     */
+    public static void setDefaultBinaryAttributes (String attributes)
+    {
+        synchronized (_defaults) {
+            _defaults.setBinaryAttributes(attributes);
+        }
+    }
+
+    /**
+     * Return the option with the given constant name, such as "LDAP_OPT_REFERRALS", or UNKNOWN.
+     * This lets scripts written against the old reflection based ldap_set_option() keep passing
+     * option names.
+     */
+    public static int forName (String name)
+    {
+        Integer option = _names.get(name);
+        return (option == null) ? UNKNOWN : option.intValue();
+    }
+
+    /**
+     * Return true if option is one we know.
+     */
+    public static boolean isOption (int option)
+    {
+        return slot(option) >= 0 || option == BINARY_ATTRIBUTES;
+    }
+
+    /**
+     * Return the value of an option that is a number, which all but BINARY_ATTRIBUTES are.
+     *
+     * @throws IllegalArgumentException if option is unknown or not a number.
+     */
+    public int get (int option)
+    {
+        int slot = slot(option);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown LDAP option " + option);
+        }
+        return _values[slot];
+    }
+
+    /**
+     * Set an option.
+     *
+     * @return false if the option is unknown or not a number or the value not allowed, in which
+     *         case nothing changes.
+     */
+    public boolean set (int option, int value)
+    {
+        int slot = slot(option);
+        if (slot < 0 || !isValid(option, value)) {
+            return false;
+        }
+        _values[slot] = value;
+        return true;
+    }
+
+    /** Return how aliases are dereferenced, one of the LDAP_DEREF_* constants. */
+    public int getDeref ()
+    {
+        return _values[DEREF_SLOT];
+    }
+
+    /** Return the most entries a search returns, 0 for no limit. */
+    public int getSizeLimit ()
+    {
+        return _values[SIZELIMIT_SLOT];
+    }
+
+    /** Return the most seconds the server may spend on a search, 0 for no limit. */
+    public int getTimeLimit ()
+    {
+        return _values[TIMELIMIT_SLOT];
+    }
+
+    /** Return true if referrals are followed. */
+    public boolean followReferrals ()
+    {
+        return _values[REFERRALS_SLOT] != 0;
+    }
+
+    /** Return the LDAP protocol version, 2 or 3. */
+    public int getProtocolVersion ()
+    {
+        return _values[PROTOCOL_VERSION_SLOT];
+    }
+
+    /** Return the most seconds to wait for the server to answer, 0 for no limit. */
+    public int getTimeout ()
+    {
+        return _values[TIMEOUT_SLOT];
+    }
+
+    /** Return the most seconds to wait for a connection to the server, 0 for no limit. */
+    public int getNetworkTimeout ()
+    {
+        return _values[NETWORK_TIMEOUT_SLOT];
+    }
+
+    /** Return true if search results are read from the server as the script asks for them. */
+    public boolean streamResults ()
+    {
+        return _values[STREAM_RESULTS_SLOT] != 0;
+    }
+
+    /** Return the number of entries to ask for a page at a time, 0 to not page searches. */
+    public int getPageSize ()
+    {
+        return _values[PAGE_SIZE_SLOT];
+    }
+
+    /** Return the seconds to cache search results, -1 for the cache's own TTL, 0 for never. */
+    public int getSearchCacheTTL ()
+    {
+        return _values[SEARCH_CACHE_TTL_SLOT];
+    }
+
+    /**
+     * Return the attributes whose values are read as bytes rather than text, separated by
+     * spaces, besides those Sun's provider always reads so, such as userPassword, jpegPhoto and
+     * userCertificate. The default is given by the binaryAttributes system property.
+     */
+    public String getBinaryAttributes ()
+    {
+        return _binaryAttributes;
+    }
+
+    /**
+     * Set the attributes whose values are read as bytes, separated by spaces. Links use them
+     * from their next bind on.
+     */
+    public void setBinaryAttributes (String attributes)
+    {
+        _binaryAttributes = attributes.trim();
+    }
+
+    /**
+     * Return where an option is kept in _values, or -1 if it is not an option.
+     */
+    protected static int slot (int option)
+    {
+        switch (option) {
+        case DEREF: return DEREF_SLOT;
+        case SIZELIMIT: return SIZELIMIT_SLOT;
+        case TIMELIMIT: return TIMELIMIT_SLOT;
+        case REFERRALS: return REFERRALS_SLOT;
+        case PROTOCOL_VERSION: return PROTOCOL_VERSION_SLOT;
+        case TIMEOUT: return TIMEOUT_SLOT;
+        case NETWORK_TIMEOUT: return NETWORK_TIMEOUT_SLOT;
+        case STREAM_RESULTS: return STREAM_RESULTS_SLOT;
+        case PAGE_SIZE: return PAGE_SIZE_SLOT;
+        case SEARCH_CACHE_TTL: return SEARCH_CACHE_TTL_SLOT;
+        default: return -1;
+        }
+    }
+
+    protected static boolean isValid (int option, int value)
+    {
+        switch (option) {
+        case DEREF:
+            return (value >= LdapModule.LDAP_DEREF_NEVER && value <= LdapModule.LDAP_DEREF_ALWAYS);
+        case REFERRALS:
+        case STREAM_RESULTS:
+            return (value == 0 || value == 1);
+        case PROTOCOL_VERSION:
+            return (value == 2 || value == 3);
+        case SEARCH_CACHE_TTL:
+            return (value >= -1);
+        default:
+            return (value >= 0);
+        }
+    }
+
+    protected int[] _values = new int[SLOTS];
+    protected String _binaryAttributes;
+
+    protected static final int DEREF_SLOT = 0;
+    protected static final int SIZELIMIT_SLOT = 1;
+    protected static final int TIMELIMIT_SLOT = 2;
+    protected static final int REFERRALS_SLOT = 3;
+    protected static final int PROTOCOL_VERSION_SLOT = 4;
+    protected static final int TIMEOUT_SLOT = 5;
+    protected static final int NETWORK_TIMEOUT_SLOT = 6;
+    protected static final int STREAM_RESULTS_SLOT = 7;
+    protected static final int PAGE_SIZE_SLOT = 8;
+    protected static final int SEARCH_CACHE_TTL_SLOT = 9;
+    protected static final int SLOTS = 10;
+
+    /** Prefix of the system properties giving the default timeouts and binary attributes. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.options.";
+
+    /** Seconds to wait for an answer unless configured otherwise, so hung servers free threads. */
+    public static final int DEFAULT_TIMEOUT = 30;
+
+    /** Seconds to wait for a connection unless configured otherwise. */
+    public static final int DEFAULT_NETWORK_TIMEOUT = 5;
+
+    /** Binary attributes of Active Directory, which Sun's provider doesn't know about. */
+    public static final String DEFAULT_BINARY_ATTRIBUTES = "objectGUID objectSid";
+
+    /** Values options have until changed, by slot. */
+    protected static final int[] BUILTIN = {
+        LdapModule.LDAP_DEREF_NEVER, 0, 0,
+        0, // referrals are ignored
+        3, // protocol version
+        Integer.getInteger(PROP_PREFIX + "timeout", DEFAULT_TIMEOUT),
+        Integer.getInteger(PROP_PREFIX + "networkTimeout", DEFAULT_NETWORK_TIMEOUT),
+        0, 0, -1 };
+
+    protected static final LdapOptions _defaults = new LdapOptions(BUILTIN,
+        System.getProperty(PROP_PREFIX + "binaryAttributes", DEFAULT_BINARY_ATTRIBUTES).trim());
+
+    protected static final HashMap<String, Integer> _names = new HashMap<String, Integer>();
+    static {
+        _names.put("LDAP_OPT_DEREF", DEREF);
+        _names.put("LDAP_OPT_SIZELIMIT", SIZELIMIT);
+        _names.put("LDAP_OPT_TIMELIMIT", TIMELIMIT);
+        _names.put("LDAP_OPT_REFERRALS", REFERRALS);
+        _names.put("LDAP_OPT_PROTOCOL_VERSION", PROTOCOL_VERSION);
+        _names.put("LDAP_OPT_TIMEOUT", TIMEOUT);
+        _names.put("LDAP_OPT_NETWORK_TIMEOUT", NETWORK_TIMEOUT);
+        _names.put("LDAP_OPT_STREAM_RESULTS", STREAM_RESULTS);
+        _names.put("LDAP_OPT_PAGE_SIZE", PAGE_SIZE);
+        _names.put("LDAP_OPT_SEARCH_CACHE_TTL", SEARCH_CACHE_TTL);
+        _names.put("LDAP_OPT_BINARY_ATTRIBUTES", BINARY_ATTRIBUTES);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Runs a search using the simple paged results control (RFC 2696), issuing the search for the
+ * next page only once the previous page has been read. Wrapped in a streaming
+ * LdapResultResource, this walks a result of any size while holding at most one page.
+ */
+public class LdapPagedEnumeration
+    implements NamingEnumeration<SearchResult>
+{
+    /**
+     * Start a paged search. The first page is requested right away, so that errors with the
+     * search itself are thrown from here.
+     *
+     * @param ctx Connection to search on. It must not be used for other operations while a page
+     *        is being read.
+     * @param pageSize Number of entries to ask the server for at a time.
+     * @param critical Whether the server must refuse the search if it does not support paging.
+     */
+    public LdapPagedEnumeration (LdapContext ctx, String baseDN, String filter,
+                                 SearchControls ctls, int pageSize, boolean critical)
+        throws NamingException
+    {
+        this._ctx = ctx;
+        this._baseDN = baseDN;
+        this._filter = filter;
+        this._ctls = ctls;
+        this._pageSize = pageSize;
+        this._critical = critical;
+        fetchPage();
+    }
+
+    /**
+     * Return the number of pages requested from the server so far.
+     */
+    public int getPageCount ()
+    {
+        return _pages;
+    }
+
+    // from interface NamingEnumeration
+    public boolean hasMore ()
+        throws NamingException
+    {
+        while (_page != null && !_page.hasMore()) {
+            _page = null;
+            readCookie();
+            if (_cookie != null) {
+                fetchPage();
+            }
+        }
+        return (_page != null);
+    }
+
+    // from interface NamingEnumeration
+    public SearchResult next ()
+        throws NamingException
+    {
+        if (!hasMore()) {
+            throw new NoSuchElementException();
+        }
+        return _page.next();
+    }
+
+    // from interface Enumeration
+    public boolean hasMoreElements ()
+    {
+        try {
+            return hasMore();
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    // from interface Enumeration
+    public SearchResult nextElement ()
+    {
+        try {
+            return next();
+        } catch (NamingException e) {
+            throw new NoSuchElementException(e.toString());
+        }
+    }
+
+    // from interface NamingEnumeration
+    public void close ()
+        throws NamingException
+    {
+        // Closing the page in progress abandons it, and the server drops its paging state with it.
+        if (_page != null) {
+            _page.close();
+            _page = null;
+        }
+        _cookie = null;
+    }
+
+    /**
+     * Ask the server for the next page of entries.
+     */
+    protected void fetchPage ()
+        throws NamingException
+    {
+        try {
+            _ctx.setRequestControls(new Control[] {
+                new PagedResultsControl(_pageSize, _cookie, _critical) });
+        } catch (IOException e) {
+            NamingException ne = new NamingException("Unable to encode paged results control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+        try {
+            _page = _ctx.search(_baseDN, _filter, _ctls);
+            _pages++;
+        } finally {
+            // The context may be used for other operations between pages.
+            _ctx.setRequestControls(null);
+        }
+    }
+
+    /**
+     * Pick up the cookie for the next page from the controls returned with the page just read.
+     * It is left null if this was the last page.
+     */
+    protected void readCookie ()
+        throws NamingException
+    {
+        _cookie = null;
+        Control[] controls = _ctx.getResponseControls();
+        if (controls == null) {
+            return;
+        }
+        for (Control control : controls) {
+            if (control instanceof PagedResultsResponseControl) {
+                byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                if (cookie != null && cookie.length > 0) {
+                    _cookie = cookie;
+                }
+            }
+        }
+    }
+
+    protected LdapContext _ctx;
+    protected String _baseDN;
+    protected String _filter;
+    protected SearchControls _ctls;
+    protected int _pageSize;
+    protected boolean _critical;
+
+    /** The page currently being read, or null once the last page is done. */
+    protected NamingEnumeration<SearchResult> _page;
+
+    /** Server's cookie for the next page, or null if there is none. */
+    protected byte[] _cookie;
+
+    protected int _pages;
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.Context;
+import javax.naming.NamingException;
+
+import com.caucho.quercus.env.ResourceValue;
+
+/**
+ * A search started by ldap_search_async() that may still be running. Searches run on a shared,
+ * bounded pool of threads, so a script can have several in flight at once and wait for them
+ * together. When the pool's queue is full, the search runs on the calling thread instead, so a
+ * busy server degrades to ordinary blocking searches rather than failing them.
+ *
+ * Searches are cancelled when the link that started them is unbound or its request ends.
+ *
+ * The pool is configured with the maxThreads and maxQueued system properties under PROP_PREFIX.
+ */
+public class LdapPendingResult extends ResourceValue
+{
+    /**
+     * Wrap a search that has been submitted to the executor, or already run.
+     */
+    public LdapPendingResult (Future<LdapResultResource> future)
+    {
+        this._future = future;
+    }
+
+    /**
+     * Start a search on the shared executor.
+     *
+     * @param search Runs the search, returning the result or throwing on error.
+     * @param ctx The context the search runs on, closed once it finishes or is cancelled,
+     *        whether or not it got to run.
+     */
+    public static LdapPendingResult submit (Callable<LdapResultResource> search,
+                                            final Context ctx)
+    {
+        FutureTask<LdapResultResource> task = new FutureTask<LdapResultResource>(search) {
+            @Override protected void done () {
+                try {
+                    ctx.close();
+                } catch (NamingException e) {
+                    // We're done with it either way.
+                }
+            }
+        };
+        _executor.execute(task);
+        return new LdapPendingResult(task);
+    }
+
+    /**
+     * Return the executor searches are run on, for other work that should share its bounds.
+     */
+    public static ExecutorService getExecutor ()
+    {
+        return _executor;
+    }
+
+    /**
+     * Wrap a result that is already available, such as one from the search cache.
+     */
+    public static LdapPendingResult completed (LdapResultResource result)
+    {
+        FutureTask<LdapResultResource> done =
+            new FutureTask<LdapResultResource>(new Runnable() {
+                public void run () {
+                    // Nothing to do, the result is already here.
+                }
+            }, result);
+        done.run();
+        return new LdapPendingResult(done);
+    }
+
+    /**
+     * Return true if the search has finished, successfully or not.
+     */
+    public boolean isDone ()
+    {
+        return _future.isDone();
+    }
+
+    /**
+     * Wait for the search to finish.
+     *
+     * @param timeoutMillis How long to wait, or a negative number to wait as long as it takes.
+     * @return The result, or null if the search failed, was cancelled or did not finish in
+     *         time. A search that timed out keeps running, and can be waited for again.
+     */
+    public LdapResultResource get (long timeoutMillis)
+    {
+        try {
+            if (timeoutMillis < 0) {
+                return _future.get();
+            }
+            return _future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Stop waiting for the search. It is interrupted if it has not finished yet, and its
+     * context closed.
+     */
+    public void cancel ()
+    {
+        _future.cancel(true);
+    }
+
+    protected Future<LdapResultResource> _future;
+
+    /** Prefix of the system properties used to configure the executor. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.async.";
+
+    public static final int DEFAULT_MAX_THREADS = 16;
+    public static final int DEFAULT_MAX_QUEUED = 256;
+
+    protected static final ExecutorService _executor;
+    static {
+        int maxThreads = Integer.getInteger(PROP_PREFIX + "maxThreads", DEFAULT_MAX_THREADS);
+        int maxQueued = Integer.getInteger(PROP_PREFIX + "maxQueued", DEFAULT_MAX_QUEUED);
+        // Idle threads are kept, since letting core threads time out needs Java 6.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+                public Thread newThread (Runnable task) {
+                    Thread thread = new Thread(task, "LDAP search " + _threads.incrementAndGet());
+                    // Don't keep the JVM alive for searches nobody will wait for.
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                protected AtomicInteger _threads = new AtomicInteger();
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        _executor = executor;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * The persistent search control (draft-ietf-ldapext-psearch), which turns a search into one that
+ * never ends: after the entries it matches, the server sends each entry that changes for as long
+ * as the search runs, with an entry change notification control saying how it changed. JNDI
+ * only has internal classes for these, so they are encoded here with the helpers of
+ * LdapVirtualListControl.
+ */
+public class LdapPersistentSearchControl extends BasicControl
+{
+    /** The persistent search control and the entry change notification control. */
+    public static final String OID = "2.16.840.1.113730.3.4.3";
+    public static final String ENTRY_CHANGE_OID = "2.16.840.1.113730.3.4.7";
+
+    // The types of change, which may be or'ed together to follow several.
+    public static final int ADD = 1;
+    public static final int DELETE = 2;
+    public static final int MODIFY = 4;
+    public static final int MODDN = 8;
+    public static final int ANY = ADD | DELETE | MODIFY | MODDN;
+
+    /** How an entry sent by a persistent search changed. */
+    public static class Change
+    {
+        /** One of ADD, DELETE, MODIFY or MODDN. */
+        public final int type;
+
+        /** The DN of a renamed entry before the change, or null. */
+        public final String previousDN;
+
+        public Change (int type, String previousDN)
+        {
+            this.type = type;
+            this.previousDN = previousDN;
+        }
+    }
+
+    /**
+     * @param changeTypes The types of change to be sent.
+     * @param changesOnly Whether to skip the entries the search matches when it starts.
+     * @param returnECs Whether to send entry change notifications with the changed entries.
+     */
+    public LdapPersistentSearchControl (int changeTypes, boolean changesOnly, boolean returnECs,
+                                        boolean critical)
+    {
+        super(OID, critical, encode(changeTypes, changesOnly, returnECs));
+    }
+
+    /**
+     * Find and decode the entry change notification among the controls sent with an entry.
+     *
+     * @return The change, or null if there is none, as for the entries sent when the search
+     *         starts, or it can't be decoded.
+     */
+    public static Change getChange (Control[] controls)
+    {
+        if (controls == null) {
+            return null;
+        }
+        for (Control control : controls) {
+            if (ENTRY_CHANGE_OID.equals(control.getID())) {
+                return decodeChange(control.getEncodedValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode the value of an entry change notification: SEQUENCE { changeType ENUMERATED,
+     * previousDN OCTET STRING OPTIONAL, changeNumber INTEGER OPTIONAL }.
+     *
+     * @return The change, or null if it is malformed.
+     */
+    protected static Change decodeChange (byte[] value)
+    {
+        if (value == null) {
+            return null;
+        }
+        int[] pos = { 0 };
+        if (LdapVirtualListControl.readTag(value, pos) != LdapVirtualListControl.SEQUENCE) {
+            return null;
+        }
+        int end = LdapVirtualListControl.readLength(value, pos);
+        if (end < 0 || (end += pos[0]) > value.length) {
+            return null;
+        }
+        long type = LdapVirtualListControl.readInteger(
+            value, pos, end, LdapVirtualListControl.ENUMERATED);
+        if (type == Long.MIN_VALUE) {
+            return null;
+        }
+        String previousDN = null;
+        if (pos[0] < end &&
+            LdapVirtualListControl.readTag(value, pos) == LdapVirtualListControl.OCTET_STRING) {
+            int length = LdapVirtualListControl.readLength(value, pos);
+            if (length < 0 || pos[0] + length > end) {
+                return null;
+            }
+            try {
+                previousDN = new String(value, pos[0], length, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return new Change((int) type, previousDN);
+    }
+
+    /**
+     * Encode the value of the request: SEQUENCE { changeTypes INTEGER, changesOnly BOOLEAN,
+     * returnECs BOOLEAN }.
+     */
+    protected static byte[] encode (int changeTypes, boolean changesOnly, boolean returnECs)
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        LdapVirtualListControl.writeInteger(body, LdapVirtualListControl.INTEGER, changeTypes);
+        LdapVirtualListControl.writeElement(body, BOOLEAN, toBoolean(changesOnly));
+        LdapVirtualListControl.writeElement(body, BOOLEAN, toBoolean(returnECs));
+        return LdapVirtualListControl.toSequence(body);
+    }
+
+    protected static byte[] toBoolean (boolean value)
+    {
+        return new byte[] { (byte) (value ? 0xFF : 0x00) };
+    }
+
+    protected static final int BOOLEAN = 0x01;
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import javax.naming.NamingException;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ResourceValue;
+
+/**
+ * One entry of a search result, as returned by ldap_first_entry() and ldap_next_entry(). Nothing
+ * is converted for PHP until the script asks for the entry's attributes or values, and then
+ * only what it asks for, so walking a result for its DNs or stopping at the first match costs
+ * little. Entries of a streaming result are read from the server as the script moves to them.
+ */
+public class LdapResultEntry extends ResourceValue
+{
+    /**
+     * Create a cursor on the entry at the given position of a result.
+     */
+    public LdapResultEntry (LdapResultResource result, int index, LdapEntryStore.Entry entry)
+    {
+        this._result = result;
+        this._index = index;
+        this._entry = entry;
+    }
+
+    /**
+     * Return the entry after this one.
+     *
+     * @return The entry, or null if this is the last.
+     * @throws NamingException if reading from the server fails, or if a streaming result has
+     *         already been read past the next entry.
+     */
+    public LdapResultEntry next ()
+        throws NamingException
+    {
+        LdapEntryStore.Entry entry = _result.getEntry(_index + 1);
+        return (entry == null) ? null : new LdapResultEntry(_result, _index + 1, entry);
+    }
+
+    /** Return the DN of the entry. */
+    public String getDN ()
+    {
+        return _entry.getDN();
+    }
+
+    /**
+     * Return the attributes of the entry in the format of ldap_get_attributes().
+     */
+    public ArrayValue getAttributes ()
+    {
+        return _result.attributesToArrayValue(_entry);
+    }
+
+    /**
+     * Return the values of one attribute in the format of ldap_get_values(), or null if the
+     * entry doesn't have it.
+     *
+     * @param binary If true, return the bytes of each value, as ldap_get_values_len() does.
+     */
+    public ArrayValue getValues (String attribute, boolean binary)
+    {
+        return _result.valuesToArrayValue(_entry, attribute, binary);
+    }
+
+    protected LdapResultResource _result;
+    protected int _index;
+    protected LdapEntryStore.Entry _entry;
+}
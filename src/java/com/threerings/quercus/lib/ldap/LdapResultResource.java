@@ -15,20 +15,19 @@
 
 package com.threerings.quercus.lib.ldap;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
+import java.util.List;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 
 import com.caucho.quercus.env.ArrayValue;
 import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.BinaryBuilderValue;
 import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.ResourceValue;
+import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.StringValueImpl;
 import com.caucho.quercus.env.Value;
 
@@ -45,12 +44,181 @@ public class LdapResultResource extends ResourceValue
      */
     public LdapResultResource (NamingEnumeration results, boolean attrTypesOnly)
         throws NamingException
+    {
+        this(results, attrTypesOnly, false);
+    }
+
+    /**
+     * Create new LdapResultResource the results of an LDAP search.
+     *
+     * @param results NamingEnumeration that is the result of an IntialDirContext.search().
+     * @param attrTypesOnly If true, toArrayValue will only set return attribute types in entries,
+     *        not their values.
+     * @param streaming If false, all of results is read before the constructor returns. If true,
+     *        entries are only read from the server as they are asked for, and entries the caller
+     *        has moved past with getEntry() are dropped, so that a large result can be walked in
+     *        bounded memory. The connection results came from must then stay open until the
+     *        result has been read.
+     * @throws NamingException when there are errors iterating over the results NamingEnumeration,
+     *         possibly due to something like an incomplete response from the LDAP server.
+     */
+    public LdapResultResource (NamingEnumeration results, boolean attrTypesOnly, boolean streaming)
+        throws NamingException
+    {
+        this._attrTypesOnly = attrTypesOnly;
+        this._streaming = streaming;
+        this._entries = new LdapEntryStore();
+        this._results = results;
+        if (streaming) {
+            // Read the first entry now so that errors with the search itself still show up here.
+            fetchNext();
+        } else {
+            fetchAll();
+        }
+    }
+
+    /**
+     * Create an LdapResultResource for entries that have already been read, such as a sorted
+     * view. The entries are copied into a compact store and not modified.
+     *
+     * @param entries Entries of the result, in order.
+     * @param attrTypesOnly If true, toArrayValue will only set return attribute types in entries,
+     *        not their values.
+     */
+    public LdapResultResource (List<SearchResult> entries, boolean attrTypesOnly)
+        throws NamingException
     {
         this._attrTypesOnly = attrTypesOnly;
-        this._entries = new ArrayList<SearchResult>();
-        while (results.hasMore()) {
-            _entries.add((SearchResult) results.next());
+        this._entries = new LdapEntryStore();
+        for (SearchResult entry : entries) {
+            _entries.append(entry);
         }
+        _entries.trim();
+    }
+
+    /**
+     * Create an LdapResultResource for the entries of a complete result, such as one from the
+     * search cache, which are shared rather than copied.
+     *
+     * @param attrTypesOnly If true, toArrayValue will only set return attribute types in entries,
+     *        not their values.
+     */
+    public LdapResultResource (LdapEntryStore entries, boolean attrTypesOnly)
+    {
+        this._attrTypesOnly = attrTypesOnly;
+        this._entries = entries;
+    }
+
+    /**
+     * Return the entry at the given position in the result, reading from the server as needed.
+     * In streaming mode every entry before index is dropped, so they can not be asked for again.
+     *
+     * @param index Zero-based position of the entry.
+     * @return The entry, or null if the result has fewer than index + 1 entries.
+     * @throws NamingException if reading from the server fails, or if the entry was already
+     *         dropped by a streaming result.
+     */
+    public LdapEntryStore.Entry getEntry (int index)
+        throws NamingException
+    {
+        if (index < _offset) {
+            throw new NamingException("Entry " + index + " has already been read past");
+        }
+        while (index - _offset >= _entries.size()) {
+            if (!fetchNext()) {
+                return null;
+            }
+        }
+        if (_streaming && index > _offset) {
+            // Views of the dropped entries keep the old store, and nothing else does.
+            _entries = _entries.tail(index - _offset);
+            _offset = index;
+        }
+        return _entries.getEntry(index - _offset);
+    }
+
+    /**
+     * Return true if every entry has been read from the server, or the result was closed.
+     */
+    public boolean isComplete ()
+    {
+        return (_results == null);
+    }
+
+    /**
+     * Return every entry of a complete, non-streaming result, for instance to cache it.
+     */
+    public LdapEntryStore getEntries ()
+    {
+        return _entries;
+    }
+
+    /**
+     * Stop reading from the server, abandoning any entries not yet read. Entries already read
+     * remain available.
+     */
+    public void close ()
+    {
+        if (_results == null) {
+            return;
+        }
+        try {
+            _results.close();
+        } catch (NamingException e) {
+            // We're abandoning it anyway.
+        }
+        _results = null;
+        _entries.trim();
+    }
+
+    /**
+     * Keep the controls the server sent back at the end of the search.
+     */
+    public void setResponseControls (Control[] controls)
+    {
+        _responseControls = controls;
+    }
+
+    /**
+     * Return the controls the server sent back at the end of the search, or null.
+     */
+    public Control[] getResponseControls ()
+    {
+        return _responseControls;
+    }
+
+    /**
+     * Have the search that produced this result written to the slow query log if converting
+     * the result takes it over the threshold.
+     */
+    public void setSlowLogQuery (LdapSlowLog log, LdapSlowLog.Query query)
+    {
+        _slowLog = log;
+        _slowQuery = query;
+    }
+
+    /**
+     * Return the cookie the server sent to ask for the next page of a paged search, an empty
+     * array if this was the last page, or null if the server sent no paged results control.
+     */
+    public byte[] getPagedResultsCookie ()
+    {
+        PagedResultsResponseControl paged = getPagedResultsResponse();
+        if (paged == null) {
+            return null;
+        }
+        byte[] cookie = paged.getCookie();
+        return (cookie == null) ? new byte[0] : cookie;
+    }
+
+    /**
+     * Return the server's estimate of the total number of entries in a paged search, or 0 if it
+     * did not give one.
+     */
+    public int getPagedResultsEstimate ()
+    {
+        PagedResultsResponseControl paged = getPagedResultsResponse();
+        return (paged == null) ? 0 : paged.getResultSize();
     }
 
     /**
@@ -58,80 +226,289 @@ public class LdapResultResource extends ResourceValue
      *
      * @return ArrayValue with format specified by PHP's ldap_get_entries return value.
      * @throws NamingException when there is a problem iterating over NamingEnumerations of
-     *         attributes or their values.
+     *         attributes or their values, or if a streaming result has already dropped some of
+     *         its entries, since the array would be missing them.
      */
     public ArrayValue toArrayValue () throws NamingException
     {
-        ArrayValue entriesArray = new ArrayValueImpl();
+        long start = System.nanoTime();
+        if (_offset > 0) {
+            throw new NamingException("Entries 0 to " + (_offset - 1) +
+                                      " of the streaming result have already been read past");
+        }
+        // A streaming result gets pulled in full here.
+        fetchAll();
+
+        int count = _entries.size();
+        ArrayValue entriesArray = new ArrayValueImpl(count + 1);
         // PHP entriesArray["count"] as the number of entries.
-        entriesArray.put(StringValueImpl.create("count"), LongValue.create(_entries.size()));
-
-        Iterator<SearchResult> entriesIter = _entries.iterator();
-        SearchResult entry;
-        BasicAttributes attrs;
-        ArrayValue entryAttrs;
-        int entriesIdx = 0;
-
-        NamingEnumeration<Attribute> attrsEnum;
-        BasicAttribute attr;
-        ArrayValue attrValues;
-        Value attrName;
-        int attrIdx;
-
-        NamingEnumeration valuesEnum;
-        int valueIdx;
-
-        while (entriesIter.hasNext()) {
-            entry = entriesIter.next();
-            attrs = (BasicAttributes) entry.getAttributes();
-            entryAttrs = new ArrayValueImpl();
-            // PHP entriesArray[i]["count"] gets the number of attributes for entry number i.
-            entryAttrs.put(StringValueImpl.create("count"), LongValue.create(attrs.size()));
-
-            // PHP entriesArray[i]["dn"] gets the dn for entry number i.
-            entryAttrs.put(StringValueImpl.create("dn"),
-                StringValueImpl.create(entry.getNameInNamespace()));
-
-            attrsEnum = attrs.getAll();
-            attrIdx = 0;
-            while (attrsEnum.hasMore()) {
-                attr = (BasicAttribute) attrsEnum.next();
-                attrName = StringValueImpl.create(attr.getID().toLowerCase());
-                attrValues = new ArrayValueImpl();
-
-                // Don't put in values and their count if attrsOnly was set to 1 during search.
-                if (!_attrTypesOnly) {
-                    // PHP entriesArray[i]["attr"]["count"] is the number of values in entry i.
-                    attrValues.put(StringValueImpl.create("count"), LongValue.create(attr.size()));
-
-                    valuesEnum = attr.getAll();
-                    valueIdx = 0;
-                    while (valuesEnum.hasMore()) {
-                        // PHP entriesArray[i]["attr"][j] is the jth value of attr in entry i.
-                        attrValues.put(LongValue.create(valueIdx),
-                            StringValueImpl.create(valuesEnum.next().toString()));
-                        valueIdx++;
-                    }
-                } else {
-                    // When attrsOnly is 0, put in a value count of 0.
-                    attrValues.put(StringValueImpl.create("count"), LongValue.create(0));
+        entriesArray.put(COUNT_KEY, LongValue.create(count));
+
+        // Every entry usually has the same handful of attributes, so only lowercase each name once.
+        Value[] names = new Value[_entries.getNameCount()];
+        _convertedChars = 0;
+        for (int ii = 0; ii < count; ii++) {
+            // PHP entriesArray[i] is an array of attributes for the ith entry.
+            entriesArray.put(LongValue.create(ii),
+                             entryToArrayValue(_entries.getEntry(ii), names));
+        }
+        LdapMetrics.getShared().recordConversion(count, _convertedChars);
+        if (_slowQuery != null) {
+            _slowLog.converted(_slowQuery, count, System.nanoTime() - start);
+            _slowQuery = null;
+        }
+        return entriesArray;
+    }
+
+    /**
+     * Return the first entry of the result as a cursor for ldap_next_entry().
+     *
+     * @return The entry, or null if the result is empty.
+     * @throws NamingException if reading from the server fails, or if a streaming result has
+     *         already been read past its first entry.
+     */
+    public LdapResultEntry firstEntry ()
+        throws NamingException
+    {
+        LdapEntryStore.Entry entry = getEntry(0);
+        return (entry == null) ? null : new LdapResultEntry(this, 0, entry);
+    }
+
+    /**
+     * Return the number of entries in the result, reading the rest from the server. Entries a
+     * streaming result has dropped still count.
+     */
+    public int countEntries ()
+        throws NamingException
+    {
+        fetchAll();
+        return _offset + _entries.size();
+    }
+
+    /**
+     * Convert the attributes of one entry to the format of PHP's ldap_get_attributes return
+     * value, which is that of an element of ldap_get_entries without the DN and with attribute
+     * names as the server sent them.
+     */
+    public ArrayValue attributesToArrayValue (LdapEntryStore.Entry entry)
+    {
+        int attrCount = entry.getAttributeCount();
+        ArrayValue entryAttrs = new ArrayValueImpl(2 * attrCount + 1);
+        entryAttrs.put(COUNT_KEY, LongValue.create(attrCount));
+        _convertedChars = 0;
+        putAttributes(entryAttrs, entry, null);
+        LdapMetrics.getShared().recordConversion(1, _convertedChars);
+        return entryAttrs;
+    }
+
+    /**
+     * Convert the values of one attribute of an entry to the format of PHP's ldap_get_values
+     * return value.
+     *
+     * @param attribute Name of the attribute, in any case.
+     * @param binary If true, each value is a PHP string of its bytes, as for
+     *        ldap_get_values_len(), rather than of its characters.
+     * @return The values, or null if the entry has no such attribute.
+     */
+    public ArrayValue valuesToArrayValue (LdapEntryStore.Entry entry, String attribute,
+                                          boolean binary)
+    {
+        int attr = entry.findAttribute(attribute);
+        if (attr < 0) {
+            return null;
+        }
+        LdapEntryStore store = entry.getStore();
+        int first = entry.getFirstValue(attr);
+        _convertedChars = 0;
+        ArrayValue values;
+        if (binary && !_attrTypesOnly) {
+            int valueCount = store.getValueCount(attr);
+            values = new ArrayValueImpl(valueCount + 1);
+            values.put(COUNT_KEY, LongValue.create(valueCount));
+            for (int jj = 0; jj < valueCount; jj++) {
+                // Text is kept as its UTF-8 bytes, which are what we want here.
+                byte[] bytes = store.getBytes(first + jj);
+                _convertedChars += bytes.length;
+                values.put(LongValue.create(jj), new BinaryBuilderValue(bytes));
+            }
+        } else {
+            values = attributeToArrayValue(store, attr, first);
+        }
+        LdapMetrics.getShared().recordConversion(1, _convertedChars);
+        return values;
+    }
+
+    /**
+     * Convert one entry to the format of an element of PHP's ldap_get_entries return value.
+     *
+     * @param names Lowercased attribute names already created, by their number in the store's
+     *        dictionary. Names created for this entry are added to it.
+     */
+    protected ArrayValue entryToArrayValue (LdapEntryStore.Entry entry, Value[] names)
+    {
+        int attrCount = entry.getAttributeCount();
+        // Each attribute appears twice, by name and by position, plus the count and dn.
+        ArrayValue entryAttrs = new ArrayValueImpl(2 * attrCount + 2);
+        // PHP entriesArray[i]["count"] gets the number of attributes for entry number i.
+        entryAttrs.put(COUNT_KEY, LongValue.create(attrCount));
+
+        // PHP entriesArray[i]["dn"] gets the dn for entry number i.
+        entryAttrs.put(DN_KEY, StringValueImpl.create(entry.getDN()));
+
+        putAttributes(entryAttrs, entry, names);
+        return entryAttrs;
+    }
+
+    /**
+     * Add each attribute of an entry to its array twice, by name and by position.
+     *
+     * @param names Lowercased attribute names already created, by their number in the store's
+     *        dictionary, to which new ones are added; or null to keep the names as they are.
+     */
+    protected void putAttributes (ArrayValue entryAttrs, LdapEntryStore.Entry entry,
+                                  Value[] names)
+    {
+        LdapEntryStore store = entry.getStore();
+        int attrCount = entry.getAttributeCount();
+        // The values of each attribute follow those of the one before.
+        int value = entry.getFirstValue(entry.getAttribute(0));
+        for (int ii = 0; ii < attrCount; ii++) {
+            int attr = entry.getAttribute(ii);
+            Value attrName;
+            if (names == null) {
+                attrName = StringValueImpl.create(store.getName(attr));
+            } else {
+                int id = store.getNameId(attr);
+                attrName = names[id];
+                if (attrName == null) {
+                    attrName = StringValueImpl.create(store.getName(attr).toLowerCase());
+                    names[id] = attrName;
                 }
+            }
 
-                // PHP entriesArray[i]["attr"] is an array of values for attribute attr in entry i.
-                entryAttrs.put(attrName, attrValues);
+            // PHP entriesArray[i]["attr"] is an array of values for attribute attr in entry i.
+            entryAttrs.put(attrName, attributeToArrayValue(store, attr, value));
 
-                // PHP entriesArray[i][j] is the name of the jth attribute in the ith entry.
-                entryAttrs.put(LongValue.create(attrIdx), attrName);
-                attrIdx++;
+            // PHP entriesArray[i][j] is the name of the jth attribute in the ith entry.
+            entryAttrs.put(LongValue.create(ii), attrName);
+            value += store.getValueCount(attr);
+        }
+    }
+
+    /**
+     * Convert the values of one attribute to PHP's array of values with a "count" element.
+     *
+     * @param attribute Position of the attribute in the store.
+     * @param firstValue Position of its first value in the store.
+     */
+    protected ArrayValue attributeToArrayValue (LdapEntryStore store, int attribute,
+                                                int firstValue)
+    {
+        // Don't put in values and their count if attrsOnly was set to 1 during search.
+        if (_attrTypesOnly) {
+            ArrayValue attrValues = new ArrayValueImpl(1);
+            // When attrsOnly is 0, put in a value count of 0.
+            attrValues.put(COUNT_KEY, LongValue.create(0));
+            return attrValues;
+        }
+
+        int valueCount = store.getValueCount(attribute);
+        ArrayValue attrValues = new ArrayValueImpl(valueCount + 1);
+        // PHP entriesArray[i]["attr"]["count"] is the number of values in entry i.
+        attrValues.put(COUNT_KEY, LongValue.create(valueCount));
+
+        // PHP entriesArray[i]["attr"][j] is the jth value of attr in entry i.
+        boolean binary = store.isBinary(attribute);
+        for (int jj = 0; jj < valueCount; jj++) {
+            attrValues.put(LongValue.create(jj), convertValue(store, firstValue + jj, binary));
+        }
+        return attrValues;
+    }
+
+    /**
+     * Convert one attribute value for PHP. Values the provider read as bytes, see
+     * LdapOptions.getBinaryAttributes(), become binary strings of a copy of their bytes, and the
+     * others are decoded from UTF-8.
+     */
+    protected Value convertValue (LdapEntryStore store, int value, boolean binary)
+    {
+        if (binary) {
+            byte[] bytes = store.getBytes(value);
+            _convertedChars += bytes.length;
+            return new BinaryBuilderValue(bytes);
+        }
+        String text = store.getText(value);
+        _convertedChars += text.length();
+        return StringValueImpl.create(text);
+    }
+
+    /**
+     * Return the paged results response control sent back with this result, if any.
+     */
+    protected PagedResultsResponseControl getPagedResultsResponse ()
+    {
+        if (_responseControls == null) {
+            return null;
+        }
+        for (Control control : _responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                return (PagedResultsResponseControl) control;
             }
+        }
+        return null;
+    }
 
-            // PHP entriesArray[i] is an array of attributes for the ith entry.
-            entriesArray.put(LongValue.create(entriesIdx), entryAttrs);
-            entriesIdx++;
+    /**
+     * Read the next entry from the server into _entries.
+     *
+     * @return false if there are no more entries.
+     */
+    protected boolean fetchNext ()
+        throws NamingException
+    {
+        if (_results == null) {
+            return false;
+        }
+        if (!_results.hasMore()) {
+            close();
+            return false;
+        }
+        _entries.append((SearchResult) _results.next());
+        return true;
+    }
+
+    /**
+     * Read all remaining entries from the server into _entries.
+     */
+    protected void fetchAll ()
+        throws NamingException
+    {
+        while (fetchNext()) {
+            // Keep going.
         }
-        return entriesArray;
     }
 
-    protected ArrayList<SearchResult> _entries;
+    /** Entries read from the server and not yet dropped. The first is entry number _offset. */
+    protected LdapEntryStore _entries;
+    protected int _offset;
+
+    /** Where further entries come from, or null once everything has been read. */
+    protected NamingEnumeration _results;
+
     protected boolean _attrTypesOnly;
+    protected boolean _streaming;
+
+    /** Controls sent back by the server at the end of the search, or null. */
+    protected Control[] _responseControls;
+
+    /** Length of the values converted by the toArrayValue() in progress, for LdapMetrics. */
+    protected long _convertedChars;
+
+    /** The search to log if converting it turns out slow, or null. */
+    protected LdapSlowLog.Query _slowQuery;
+    protected LdapSlowLog _slowLog;
+
+    /** Keys shared by every array we create, rather than one copy per entry and attribute. */
+    protected static final StringValue COUNT_KEY = StringValueImpl.create("count");
+    protected static final StringValue DN_KEY = StringValueImpl.create("dn");
 }
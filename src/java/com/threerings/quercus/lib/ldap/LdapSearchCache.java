@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.naming.directory.SearchControls;
+
+/**
+ * Keeps the entries returned by recent searches, so that pages asking the same question of the
+ * directory on every request can be answered without a round trip. Results are shared by every
+ * link and Quercus request in the JVM, but only between links bound with the same identity, since
+ * what a search returns depends on who asks.
+ *
+ * Each result expires after its TTL. The cache is bounded by an estimate of the memory its
+ * results take up, and evicts the least recently used results to stay under it. Setting the
+ * maximum weight to 0 disables the cache.
+ */
+public class LdapSearchCache
+    implements LdapMetrics.Source
+{
+    /**
+     * Everything that decides what a search returns.
+     */
+    public static class Key
+    {
+        public Key (LdapConnectionPool.Key identity, String baseDN, String filter,
+                    SearchControls ctls, boolean attrTypesOnly)
+        {
+            this._identity = identity;
+            this._baseDN = baseDN;
+            this._filter = filter;
+            this._scope = ctls.getSearchScope();
+            this._attributes = ctls.getReturningAttributes();
+            this._attrTypesOnly = attrTypesOnly;
+            this._sizeLimit = ctls.getCountLimit();
+            this._deref = ctls.getDerefLinkFlag();
+            this._hashCode = ((((identity.hashCode() * 31 + baseDN.hashCode()) * 31 +
+                                filter.hashCode()) * 31 + _scope) * 31 +
+                              Arrays.hashCode(_attributes)) * 31 + (int) _sizeLimit;
+        }
+
+        /** Return the URI of the server searched. */
+        public String getURI ()
+        {
+            return _identity.getURI();
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key okey = (Key) other;
+            return (_hashCode == okey._hashCode) && (_scope == okey._scope) &&
+                (_sizeLimit == okey._sizeLimit) && (_attrTypesOnly == okey._attrTypesOnly) &&
+                (_deref == okey._deref) && _baseDN.equals(okey._baseDN) &&
+                _filter.equals(okey._filter) && Arrays.equals(_attributes, okey._attributes) &&
+                _identity.equals(okey._identity);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return _hashCode;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return _identity + " " + _baseDN + " " + _filter;
+        }
+
+        protected LdapConnectionPool.Key _identity;
+        protected String _baseDN;
+        protected String _filter;
+        protected int _scope;
+        protected String[] _attributes;
+        protected boolean _attrTypesOnly;
+        protected long _sizeLimit;
+        protected boolean _deref;
+        protected int _hashCode;
+    }
+
+    /**
+     * Create a cache configured from system properties, falling back to the defaults below.
+     */
+    public LdapSearchCache ()
+    {
+        this(Long.getLong(PROP_PREFIX + "maxWeight", DEFAULT_MAX_WEIGHT),
+             Long.getLong(PROP_PREFIX + "ttlMillis", DEFAULT_TTL_MILLIS));
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxWeight Roughly the most bytes the cached results may take up. 0 disables the
+     *        cache.
+     * @param ttlMillis How long results are kept unless a different TTL is given to put().
+     */
+    public LdapSearchCache (long maxWeight, long ttlMillis)
+    {
+        this._maxWeight = maxWeight;
+        this._ttl = ttlMillis;
+    }
+
+    /**
+     * Return the cache shared by all LdapLinkResources that were not given one explicitly.
+     */
+    public static LdapSearchCache getShared ()
+    {
+        return _shared;
+    }
+
+    /** Return true if results are cached at all. */
+    public boolean isEnabled ()
+    {
+        return (_maxWeight > 0);
+    }
+
+    /**
+     * Return the entries of an unexpired result for the search, or null if there is none. The
+     * entries are shared.
+     */
+    public synchronized LdapEntryStore get (Key key)
+    {
+        Cached cached = _results.get(key);
+        if (cached != null && System.currentTimeMillis() >= cached.expires) {
+            remove(key);
+            cached = null;
+        }
+        if (cached == null) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return cached.entries;
+    }
+
+    /**
+     * Cache the entries of a search for the default TTL.
+     */
+    public void put (Key key, LdapEntryStore entries)
+    {
+        put(key, entries, _ttl);
+    }
+
+    /**
+     * Cache the entries of a complete search, which are shared from then on.
+     *
+     * @param ttlMillis How long to keep this result, or a negative number for the default TTL.
+     *        Nothing is cached if this is 0.
+     */
+    public void put (Key key, LdapEntryStore entries, long ttlMillis)
+    {
+        if (ttlMillis < 0) {
+            ttlMillis = _ttl;
+        }
+        if (!isEnabled() || ttlMillis <= 0) {
+            return;
+        }
+        long weight = weigh(key, entries);
+        if (weight > _maxWeight) {
+            // Would push out everything else and still not fit.
+            return;
+        }
+        Cached cached = new Cached(entries, System.currentTimeMillis() + ttlMillis, weight);
+        synchronized (this) {
+            remove(key);
+            _results.put(key, cached);
+            _weight += weight;
+            Iterator<Cached> iter = _results.values().iterator();
+            while (_weight > _maxWeight && iter.hasNext()) {
+                // Least recently used first.
+                _weight -= iter.next().weight;
+                iter.remove();
+                _evictions++;
+            }
+        }
+    }
+
+    /**
+     * Drop every result from the given server, for instance after writing to it.
+     */
+    public synchronized void invalidate (String uri)
+    {
+        Iterator<Map.Entry<Key, Cached>> iter = _results.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key, Cached> entry = iter.next();
+            if (entry.getKey().getURI().equals(uri)) {
+                _weight -= entry.getValue().weight;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    public synchronized void invalidateAll ()
+    {
+        _results.clear();
+        _weight = 0;
+    }
+
+    /** Return the number of searches answered from the cache. */
+    public synchronized long getHitCount ()
+    {
+        return _hits;
+    }
+
+    /** Return the number of searches that had to go to the server. */
+    public synchronized long getMissCount ()
+    {
+        return _misses;
+    }
+
+    /** Return the number of results dropped to make room for others. */
+    public synchronized long getEvictionCount ()
+    {
+        return _evictions;
+    }
+
+    /** Return the number of results cached. */
+    public synchronized int size ()
+    {
+        return _results.size();
+    }
+
+    /** Return the estimated number of bytes taken up by the cached results. */
+    public synchronized long getWeight ()
+    {
+        return _weight;
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("searchCache.hits", getHitCount());
+        snapshot.put("searchCache.misses", getMissCount());
+        snapshot.put("searchCache.weight", getWeight());
+    }
+
+    protected void remove (Key key)
+    {
+        Cached cached = _results.remove(key);
+        if (cached != null) {
+            _weight -= cached.weight;
+        }
+    }
+
+    /**
+     * Estimate the bytes taken by a result: its key's strings at two bytes a character, the
+     * compact entries and a fixed overhead. This only has to be good enough to bound the cache.
+     */
+    protected static long weigh (Key key, LdapEntryStore entries)
+    {
+        return OBJECT_OVERHEAD + 2 * (key._baseDN.length() + key._filter.length()) +
+            entries.getWeight();
+    }
+
+    /** A cached result. */
+    protected static class Cached
+    {
+        public final LdapEntryStore entries;
+        public final long expires;
+        public final long weight;
+
+        public Cached (LdapEntryStore entries, long expires, long weight)
+        {
+            this.entries = entries;
+            this.expires = expires;
+            this.weight = weight;
+        }
+    }
+
+    /** Cached results, in order from least to most recently used. */
+    protected LinkedHashMap<Key, Cached> _results = new LinkedHashMap<Key, Cached>(16, 0.75f, true);
+    protected long _weight;
+
+    protected long _maxWeight;
+    protected long _ttl;
+
+    protected long _hits;
+    protected long _misses;
+    protected long _evictions;
+
+    /** Prefix of the system properties used to configure the shared cache. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.searchcache.";
+
+    public static final long DEFAULT_MAX_WEIGHT = 0;
+    public static final long DEFAULT_TTL_MILLIS = 30 * 1000L;
+
+    /** Rough size of an object header plus the references to it. */
+    protected static final int OBJECT_OVERHEAD = 48;
+
+    protected static final LdapSearchCache _shared = new LdapSearchCache();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+/**
+ * Tracks which LDAP servers are failing, so that links stop waiting on a server that is down.
+ * After failureThreshold failures in a row to reach or hear from a server, it is considered down
+ * for cooldownMillis, during which binds to it fail right away instead of tying up a request
+ * thread until the connection times out. Once the cooldown is over a single bind is let through
+ * to try the server again: if it works the server is up again, if not the cooldown starts over.
+ *
+ * Only failures of the server itself count, not refused passwords or bad searches. Setting
+ * failureThreshold to 0 disables tracking.
+ */
+public class LdapServerHealth
+    implements LdapMetrics.Source
+{
+    /**
+     * Create a tracker configured from system properties, falling back to the defaults below.
+     */
+    public LdapServerHealth ()
+    {
+        this(Integer.getInteger(PROP_PREFIX + "failureThreshold", DEFAULT_FAILURE_THRESHOLD),
+             Long.getLong(PROP_PREFIX + "cooldownMillis", DEFAULT_COOLDOWN_MILLIS));
+    }
+
+    /**
+     * Create a new tracker.
+     *
+     * @param failureThreshold Failures in a row after which a server is considered down, 0 to
+     *        never consider servers down.
+     * @param cooldownMillis How long to fail fast before trying a server that is down again.
+     */
+    public LdapServerHealth (int failureThreshold, long cooldownMillis)
+    {
+        this._threshold = failureThreshold;
+        this._cooldown = cooldownMillis;
+    }
+
+    /**
+     * Return the tracker shared by all LdapLinkResources that were not given one explicitly.
+     */
+    public static LdapServerHealth getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Return true if the exception means the server could not be reached or did not answer in
+     * time, rather than that it refused the operation.
+     */
+    public static boolean isServerFailure (NamingException e)
+    {
+        if (e instanceof CommunicationException || e instanceof ServiceUnavailableException) {
+            return true;
+        }
+        // Sockets that failed or timed out, such as a SocketTimeoutException, however deeply
+        // they were wrapped.
+        for (Throwable cause = e.getRootCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        // Sun's provider reports read timeouts, and requests cut off by the connection closing,
+        // with a bare NamingException. The only results a server can return that it maps the
+        // same way are "other", which servers use for their internal errors, and alias problems.
+        // Our own errors are subclasses or have a cause.
+        return (e.getClass() == NamingException.class) && (e.getRootCause() == null);
+    }
+
+    /**
+     * Return true if the server is not known to be down, so that it is worth waiting on. Once the
+     * cooldown of a server that is down is over, this returns true to a single caller, who is
+     * expected to report how trying the server went.
+     */
+    public boolean allow (String uri)
+    {
+        State state = (_threshold > 0) ? _states.get(uri) : null;
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (state.failures < _threshold) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < state.retryAt) {
+                _rejected.incrementAndGet();
+                return false;
+            }
+            // Let this caller try the server while everyone else keeps failing fast.
+            state.retryAt = now + _cooldown;
+            return true;
+        }
+    }
+
+    /**
+     * Return true if the server is down and not yet due to be tried again.
+     */
+    public boolean isDown (String uri)
+    {
+        State state = (_threshold > 0) ? _states.get(uri) : null;
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            return (state.failures >= _threshold) &&
+                (System.currentTimeMillis() < state.retryAt);
+        }
+    }
+
+    /**
+     * Note that the server answered.
+     */
+    public void succeeded (String uri)
+    {
+        State state = (_threshold > 0) ? _states.get(uri) : null;
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.failures = 0;
+        }
+    }
+
+    /**
+     * Note that a connection to the server was made. This brings back a server that is down, as
+     * the caller let through after its cooldown reports, but otherwise leaves its failures be:
+     * a server that accepts connections may still not answer operations in time, and its
+     * timeouts should add up even though the link reconnects after each.
+     */
+    public void connected (String uri)
+    {
+        State state = (_threshold > 0) ? _states.get(uri) : null;
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.failures >= _threshold) {
+                state.failures = 0;
+            }
+        }
+    }
+
+    /**
+     * Note that the server could not be reached or did not answer in time.
+     */
+    public void failed (String uri)
+    {
+        if (_threshold <= 0) {
+            return;
+        }
+        State state = _states.get(uri);
+        if (state == null) {
+            State created = new State();
+            state = _states.putIfAbsent(uri, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        synchronized (state) {
+            state.failures++;
+            if (state.failures == _threshold) {
+                _downs.incrementAndGet();
+            }
+            if (state.failures >= _threshold) {
+                state.retryAt = System.currentTimeMillis() + _cooldown;
+            }
+        }
+    }
+
+    /** Return the number of times a server has been found to be down. */
+    public long getDownCount ()
+    {
+        return _downs.get();
+    }
+
+    /** Return the number of operations failed fast because their server was down. */
+    public long getRejectedCount ()
+    {
+        return _rejected.get();
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("health.rejected", getRejectedCount());
+    }
+
+    /** What we know about one server. Guarded by its own monitor. */
+    protected static class State
+    {
+        /** Failures in a row. */
+        public int failures;
+
+        /** When a server that is down may be tried again. */
+        public long retryAt;
+    }
+
+    protected ConcurrentHashMap<String, State> _states = new ConcurrentHashMap<String, State>();
+
+    protected int _threshold;
+    protected long _cooldown;
+
+    protected AtomicLong _downs = new AtomicLong();
+    protected AtomicLong _rejected = new AtomicLong();
+
+    /** Prefix of the system properties used to configure the shared tracker. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.health.";
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_COOLDOWN_MILLIS = 30 * 1000L;
+
+    protected static final LdapServerHealth _shared = new LdapServerHealth();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
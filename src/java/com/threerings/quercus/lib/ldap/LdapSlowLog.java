@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.directory.SearchControls;
+
+/**
+ * Writes searches that take longer than a threshold to a log file, one line each, with what
+ * is needed to find the filters the directory has trouble with: base, scope, filter, attributes
+ * asked for, entries found, the time the server took and the time ldap_get_entries() took to
+ * convert the entries, and the script that searched.
+ *
+ * A search is written as soon as it has taken longer than the threshold by itself, without a
+ * conversion time, or else once converting its result takes it over. Only sampleRate of the slow
+ * searches are written, so that a directory having a bad day doesn't also fill the disk. The
+ * file is rotated when it grows past maxBytes, keeping maxFiles old ones as file.1 and so on.
+ * The shared log is only enabled if a file is configured.
+ *
+ * Searching threads only format their line and queue it; a thread of the log's own writes,
+ * flushes and rotates the file. If that thread falls more than MAX_QUEUED lines behind, further
+ * lines are dropped and counted rather than holding up searches.
+ */
+public class LdapSlowLog
+    implements LdapMetrics.Source
+{
+    /**
+     * One search, as remembered until its result is converted.
+     */
+    public static class Query
+    {
+        public final String uri;
+        public final String baseDN;
+        public final String filter;
+        public final int scope;
+        public final List<String> attributes;
+        public final String script;
+        public final long searchNanos;
+
+        public Query (String uri, String baseDN, String filter, int scope,
+                      List<String> attributes, String script, long searchNanos)
+        {
+            this.uri = uri;
+            this.baseDN = baseDN;
+            this.filter = filter;
+            this.scope = scope;
+            this.attributes = attributes;
+            this.script = script;
+            this.searchNanos = searchNanos;
+        }
+    }
+
+    /**
+     * Create a log configured from system properties. It is disabled unless a file is given.
+     */
+    public LdapSlowLog ()
+    {
+        this(getFile(), Long.getLong(PROP_PREFIX + "thresholdMillis", DEFAULT_THRESHOLD_MILLIS),
+             Double.parseDouble(System.getProperty(PROP_PREFIX + "sampleRate",
+                                                   String.valueOf(DEFAULT_SAMPLE_RATE))),
+             Long.getLong(PROP_PREFIX + "maxBytes", DEFAULT_MAX_BYTES),
+             Integer.getInteger(PROP_PREFIX + "maxFiles", DEFAULT_MAX_FILES));
+    }
+
+    /**
+     * Create a new log.
+     *
+     * @param file File to write to, or null to disable the log.
+     * @param thresholdMillis Searches taking at least this long are written.
+     * @param sampleRate Fraction of the slow searches written, from 0 to 1.
+     * @param maxBytes Size past which the file is rotated.
+     * @param maxFiles Number of rotated files kept.
+     */
+    public LdapSlowLog (File file, long thresholdMillis, double sampleRate, long maxBytes,
+                        int maxFiles)
+    {
+        this._file = file;
+        this._thresholdNanos = thresholdMillis * 1000000L;
+        this._sampleRate = sampleRate;
+        this._maxBytes = maxBytes;
+        this._maxFiles = maxFiles;
+    }
+
+    /**
+     * Return the log shared by all LdapLinkResources.
+     */
+    public static LdapSlowLog getShared ()
+    {
+        return _shared;
+    }
+
+    /** Return true if searches are logged at all. */
+    public boolean isEnabled ()
+    {
+        return (_file != null);
+    }
+
+    /**
+     * Note a finished search.
+     *
+     * @param entries Entries found, or -1 if not known yet, as for streaming results.
+     * @return The query to hand to converted() once its result is converted, or null if there is
+     *         nothing left to log for it.
+     */
+    public Query searched (Query query, int entries)
+    {
+        if (query.searchNanos < _thresholdNanos) {
+            return query;
+        }
+        if (sample()) {
+            write(query, entries, -1);
+        }
+        return null;
+    }
+
+    /**
+     * Note that the result of a search that was not slow by itself has been converted.
+     */
+    public void converted (Query query, int entries, long convertNanos)
+    {
+        if (query.searchNanos + convertNanos >= _thresholdNanos && sample()) {
+            write(query, entries, convertNanos);
+        }
+    }
+
+    /**
+     * Wait until the lines queued so far have been written, or the writer has been stopped.
+     */
+    public synchronized void flush ()
+    {
+        long queued = _queued.get();
+        try {
+            while (_written < queued && _writer != null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write what is queued, stop the writer and close the file. Both are started again if
+     * anything more is logged.
+     */
+    public void close ()
+    {
+        Thread writer;
+        synchronized (this) {
+            flush();
+            writer = _writer;
+            _writer = null;
+            closeFile();
+        }
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    /** Return the number of lines dropped because the writer fell behind. */
+    public long getDroppedCount ()
+    {
+        return _dropped.get();
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("slowLog.dropped", getDroppedCount());
+    }
+
+    protected boolean sample ()
+    {
+        if (_sampleRate >= 1) {
+            return true;
+        }
+        synchronized (_random) {
+            return _random.nextDouble() < _sampleRate;
+        }
+    }
+
+    protected void write (Query query, int entries, long convertNanos)
+    {
+        StringBuilder line = new StringBuilder(256);
+        line.append(" search=").append(query.searchNanos / 1000000).append("ms");
+        line.append(" convert=");
+        if (convertNanos < 0) {
+            line.append('-');
+        } else {
+            line.append(convertNanos / 1000000).append("ms");
+        }
+        line.append(" entries=");
+        if (entries < 0) {
+            line.append('-');
+        } else {
+            line.append(entries);
+        }
+        line.append(" scope=").append((query.scope >= 0 && query.scope < SCOPES.length) ?
+                                      SCOPES[query.scope] : String.valueOf(query.scope));
+        appendQuoted(line.append(" base="), query.baseDN);
+        appendQuoted(line.append(" filter="), query.filter);
+        line.append(" attrs=");
+        if (query.attributes == null || query.attributes.size() == 0) {
+            line.append('*');
+        } else {
+            for (int ii = 0; ii < query.attributes.size(); ii++) {
+                line.append((ii == 0) ? "" : ",").append(query.attributes.get(ii));
+            }
+        }
+        line.append(" server=").append(query.uri);
+        appendQuoted(line.append(" script="), (query.script == null) ? "" : query.script);
+        line.append('\n');
+        write(line);
+    }
+
+    /**
+     * Hand a line to the writer, starting it if need be.
+     */
+    protected void write (StringBuilder line)
+    {
+        if (!_queue.offer(new Line(System.currentTimeMillis(), line.toString()))) {
+            _dropped.incrementAndGet();
+            return;
+        }
+        _queued.incrementAndGet();
+        synchronized (this) {
+            if (_writer == null) {
+                _writer = new Thread("LDAP slow log " + _file) {
+                    public void run () {
+                        writeQueued();
+                    }
+                };
+                _writer.setDaemon(true);
+                _writer.start();
+            }
+        }
+    }
+
+    /**
+     * Write lines as they are queued, flushing once for all the lines that are waiting, until
+     * the writer is interrupted by close().
+     */
+    protected void writeQueued ()
+    {
+        List<Line> lines = new ArrayList<Line>();
+        try {
+            while (true) {
+                lines.add(_queue.take());
+                _queue.drainTo(lines);
+                synchronized (this) {
+                    writeLines(lines);
+                    _written += lines.size();
+                    notifyAll();
+                }
+                lines.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopped by close().
+        }
+    }
+
+    /**
+     * Write some lines to the file and flush it, rotating it as it grows. Called with the lock
+     * held.
+     */
+    protected void writeLines (List<Line> lines)
+    {
+        try {
+            for (Line line : lines) {
+                if (_out == null) {
+                    _out = new OutputStreamWriter(new FileOutputStream(_file, true), "UTF-8");
+                    _size = _file.length();
+                }
+                String text = _format.format(new Date(line.time)) + line.text;
+                _out.write(text);
+                // Close enough for deciding when to rotate.
+                _size += text.length();
+                if (_size >= _maxBytes) {
+                    rotate();
+                }
+            }
+            if (_out != null) {
+                _out.flush();
+            }
+        } catch (IOException e) {
+            // Losing the slow log shouldn't break searches. Try again with the next lines.
+            closeFile();
+        }
+    }
+
+    /**
+     * Close the file, if it is open. Called with the lock held.
+     */
+    protected void closeFile ()
+    {
+        if (_out != null) {
+            try {
+                _out.close();
+            } catch (IOException e) {
+                // Nothing more to lose.
+            }
+            _out = null;
+        }
+    }
+
+    /**
+     * Shift the old files up one, dropping the oldest, and move the current one to file.1.
+     * Called with the lock held.
+     */
+    protected void rotate ()
+    {
+        closeFile();
+        String path = _file.getPath();
+        new File(path + "." + _maxFiles).delete();
+        for (int ii = _maxFiles - 1; ii >= 1; ii--) {
+            new File(path + "." + ii).renameTo(new File(path + "." + (ii + 1)));
+        }
+        if (_maxFiles > 0) {
+            _file.renameTo(new File(path + ".1"));
+        } else {
+            _file.delete();
+        }
+    }
+
+    /**
+     * Quote a value that may hold spaces, escaping quotes, backslashes and line breaks.
+     */
+    protected static void appendQuoted (StringBuilder buf, String value)
+    {
+        buf.append('"');
+        for (int ii = 0; ii < value.length(); ii++) {
+            char c = value.charAt(ii);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c == '\n') {
+                buf.append("\\n");
+            } else if (c == '\r') {
+                buf.append("\\r");
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+
+    protected static File getFile ()
+    {
+        String path = System.getProperty(PROP_PREFIX + "file");
+        return (path == null || path.length() == 0) ? null : new File(path);
+    }
+
+    /** A line waiting to be written, and when it was logged. */
+    protected static class Line
+    {
+        public final long time;
+        public final String text;
+
+        public Line (long time, String text)
+        {
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    protected File _file;
+    protected long _thresholdNanos;
+    protected double _sampleRate;
+    protected long _maxBytes;
+    protected int _maxFiles;
+
+    /** Lines waiting for the writer. */
+    protected LinkedBlockingQueue<Line> _queue = new LinkedBlockingQueue<Line>(MAX_QUEUED);
+
+    /** The thread writing queued lines, or null. Guarded by this. */
+    protected Thread _writer;
+
+    /** Lines queued so far, and written so far, the latter guarded by this. */
+    protected AtomicLong _queued = new AtomicLong();
+    protected long _written;
+
+    protected AtomicLong _dropped = new AtomicLong();
+
+    /** The open file, or null. Guarded by this. */
+    protected Writer _out;
+
+    /** Roughly how many bytes the open file holds. */
+    protected long _size;
+
+    /** Guarded by this, as SimpleDateFormat isn't thread safe. */
+    protected SimpleDateFormat _format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    protected Random _random = new Random();
+
+    /** Prefix of the system properties used to configure the shared log. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.slowlog.";
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 1000L;
+    public static final double DEFAULT_SAMPLE_RATE = 1.0;
+    public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024L;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    /** Most lines waiting to be written before more are dropped. */
+    public static final int MAX_QUEUED = 1000;
+
+    /** Names of the SearchControls scopes, by value. */
+    protected static final String[] SCOPES = new String[3];
+    static {
+        SCOPES[SearchControls.OBJECT_SCOPE] = "base";
+        SCOPES[SearchControls.ONELEVEL_SCOPE] = "one";
+        SCOPES[SearchControls.SUBTREE_SCOPE] = "sub";
+    }
+
+    protected static final LdapSlowLog _shared = new LdapSlowLog();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
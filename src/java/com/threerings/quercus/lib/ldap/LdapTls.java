@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Opens LDAP connections secured with the StartTLS extended operation, for links on which
+ * ldap_start_tls() was called. All connections share one SSLContext, whose client session cache
+ * lets a new connection to a server resume the TLS session of an earlier one instead of going
+ * through a full handshake; with a pool of connections to a handful of servers, nearly every
+ * connection after the first is resumed.
+ *
+ * The context trusts the JVM's default trust store unless another is configured. Server names
+ * are checked against their certificates as Sun's provider always does.
+ */
+public class LdapTls
+    implements LdapMetrics.Source
+{
+    /**
+     * Create an opener whose SSLContext is configured from system properties the first time it
+     * is needed.
+     */
+    public LdapTls ()
+    {
+        this(null);
+    }
+
+    /**
+     * Create an opener that uses the given SSLContext, which must already be initialized.
+     */
+    public LdapTls (SSLContext context)
+    {
+        this._context = context;
+    }
+
+    /**
+     * Return the opener shared by all connection pools that were not given one explicitly.
+     */
+    public static LdapTls getShared ()
+    {
+        return _shared;
+    }
+
+    /**
+     * Connect with the given environment, switch the connection to TLS and only then bind with
+     * the principal and credentials in it, so that the password never crosses the network in the
+     * clear.
+     *
+     * @throws NamingException if the server can't be reached, refuses StartTLS, fails the
+     *         handshake or the bind.
+     */
+    public LdapContext open (Hashtable<String, String> env)
+        throws NamingException
+    {
+        // Connect anonymously, the real bind comes once the connection is secure.
+        Hashtable<String, String> plain = new Hashtable<String, String>(env);
+        plain.put(Context.SECURITY_AUTHENTICATION, "none");
+        plain.remove(Context.SECURITY_PRINCIPAL);
+        plain.remove(Context.SECURITY_CREDENTIALS);
+        LdapContext ctx = new InitialLdapContext(plain, null);
+        try {
+            StartTlsResponse tls = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
+            noteSession(tls.negotiate(getSocketFactory()));
+            String dn = env.get(Context.SECURITY_PRINCIPAL);
+            if (dn != null) {
+                ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION,
+                                     env.get(Context.SECURITY_AUTHENTICATION));
+                ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+                ctx.addToEnvironment(Context.SECURITY_CREDENTIALS,
+                                     env.get(Context.SECURITY_CREDENTIALS));
+                // Rebinds on the same connection, since it is LDAPv3 and only we use it.
+                ctx.reconnect(null);
+            }
+            return ctx;
+        } catch (IOException e) {
+            LdapConnectionPool.close(ctx);
+            NamingException ne = new NamingException("TLS negotiation failed: " + e.getMessage());
+            ne.setRootCause(e);
+            throw ne;
+        } catch (NamingException e) {
+            LdapConnectionPool.close(ctx);
+            throw e;
+        }
+    }
+
+    /** Return the number of connections that went through a full TLS handshake. */
+    public long getHandshakeCount ()
+    {
+        return _handshakes.get();
+    }
+
+    /** Return the number of connections that resumed an earlier TLS session. */
+    public long getResumedCount ()
+    {
+        return _resumed.get();
+    }
+
+    // from interface LdapMetrics.Source
+    public void addMetrics (Map<String, Number> snapshot)
+    {
+        snapshot.put("tls.handshakes", getHandshakeCount());
+        snapshot.put("tls.resumed", getResumedCount());
+    }
+
+    /**
+     * Return the socket factory of our SSLContext, creating the context if need be.
+     */
+    protected synchronized SSLSocketFactory getSocketFactory ()
+        throws NamingException
+    {
+        if (_factory == null) {
+            if (_context == null) {
+                try {
+                    _context = createContext();
+                } catch (GeneralSecurityException e) {
+                    NamingException ne = new NamingException("Unable to set up TLS: " + e);
+                    ne.setRootCause(e);
+                    throw ne;
+                } catch (IOException e) {
+                    NamingException ne = new NamingException("Unable to read trust store: " + e);
+                    ne.setRootCause(e);
+                    throw ne;
+                }
+            }
+            _factory = _context.getSocketFactory();
+        }
+        return _factory;
+    }
+
+    /**
+     * Count a negotiated session as resumed if it is the one last used with the same server.
+     */
+    protected void noteSession (SSLSession session)
+    {
+        String server = session.getPeerHost() + ":" + session.getPeerPort();
+        byte[] last = _lastSessions.put(server, session.getId());
+        if (last != null && Arrays.equals(last, session.getId())) {
+            _resumed.incrementAndGet();
+        } else {
+            _handshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Create an SSLContext from the system properties, falling back to the defaults below.
+     */
+    protected static SSLContext createContext ()
+        throws GeneralSecurityException, IOException
+    {
+        // Null trust managers mean the JVM's default trust store.
+        TrustManager[] trust = null;
+        String trustStore = System.getProperty(PROP_PREFIX + "trustStore");
+        if (trustStore != null) {
+            KeyStore store = KeyStore.getInstance(
+                System.getProperty(PROP_PREFIX + "trustStoreType", KeyStore.getDefaultType()));
+            String password = System.getProperty(PROP_PREFIX + "trustStorePassword");
+            FileInputStream in = new FileInputStream(trustStore);
+            try {
+                store.load(in, (password == null) ? null : password.toCharArray());
+            } finally {
+                in.close();
+            }
+            TrustManagerFactory factory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(store);
+            trust = factory.getTrustManagers();
+        }
+
+        SSLContext context =
+            SSLContext.getInstance(System.getProperty(PROP_PREFIX + "protocol", DEFAULT_PROTOCOL));
+        context.init(null, trust, null);
+        SSLSessionContext sessions = context.getClientSessionContext();
+        sessions.setSessionCacheSize(
+            Integer.getInteger(PROP_PREFIX + "sessionCacheSize", DEFAULT_SESSION_CACHE_SIZE));
+        sessions.setSessionTimeout(
+            Integer.getInteger(PROP_PREFIX + "sessionTimeoutSeconds", DEFAULT_SESSION_TIMEOUT));
+        return context;
+    }
+
+    protected SSLContext _context;
+    protected SSLSocketFactory _factory;
+
+    /** The ID of the session last negotiated with each server, by host:port. */
+    protected ConcurrentHashMap<String, byte[]> _lastSessions =
+        new ConcurrentHashMap<String, byte[]>();
+
+    protected AtomicLong _handshakes = new AtomicLong();
+    protected AtomicLong _resumed = new AtomicLong();
+
+    /** Prefix of the system properties used to configure the shared SSLContext. */
+    public static final String PROP_PREFIX = "com.threerings.quercus.ldap.tls.";
+
+    /**
+     * Environment property the link sets to have its connections use StartTLS. It is ours, not
+     * Sun's provider's, and keeps TLS and plain connections apart in the pool.
+     */
+    public static final String START_TLS = "com.threerings.quercus.ldap.startTLS";
+
+    public static final String DEFAULT_PROTOCOL = "TLS";
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+    public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+    protected static final LdapTls _shared = new LdapTls();
+    static {
+        LdapMetrics.getShared().addSource(_shared);
+    }
+}
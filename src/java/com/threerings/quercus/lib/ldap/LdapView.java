@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
+import javax.naming.ldap.SortResponseControl;
+
+/**
+ * A sorted view of a search: the order to return entries in and, optionally, the window of them
+ * to return, as in an address book showing one screen of a directory at a time. Servers that
+ * support them are sent the server side sort control (RFC 2891) and the virtual list view
+ * control, so that only the window comes back. For other servers select() picks the window out
+ * of the whole result as it is read, keeping no more entries than the window needs: the
+ * offset plus the entries after it, or the entries before and after a value. Sorting without a
+ * window or size limit keeps the whole result, as it all goes back to the script anyway.
+ *
+ * The fallback compares the first value of each sort key ignoring case, or byte by byte for
+ * binary values, with entries lacking the attribute last, which is how most servers order
+ * directory strings; ordering rules are only passed on to servers. It takes offsets as exact
+ * positions, whatever content count the script gave. A view holds the state of one search.
+ */
+public class LdapView
+{
+    /**
+     * Create a view that only sorts.
+     */
+    public LdapView (SortKey[] keys)
+    {
+        this._keys = keys;
+    }
+
+    /**
+     * Create a view of the entries around the one at a one-based position of the sorted result.
+     *
+     * @param contentCount The script's idea of the size of the result, or 0.
+     * @param context Context from the previous response, or null.
+     */
+    public LdapView (SortKey[] keys, int before, int after, int offset, int contentCount,
+                     byte[] context)
+    {
+        this(keys);
+        this._window = true;
+        this._before = Math.max(0, before);
+        this._after = Math.max(0, after);
+        this._offset = offset;
+        this._contentCount = contentCount;
+        this._context = context;
+    }
+
+    /**
+     * Create a view of the entries around the first one whose first sort key is at least a
+     * value, or at most if that key is reversed.
+     */
+    public LdapView (SortKey[] keys, int before, int after, String value, byte[] context)
+    {
+        this(keys, before, after, 0, 0, context);
+        this._value = value;
+    }
+
+    /** Return the keys to sort by, most significant first. */
+    public SortKey[] getKeys ()
+    {
+        return _keys;
+    }
+
+    /** Return true if the view is a window rather than the whole sorted result. */
+    public boolean isWindow ()
+    {
+        return _window;
+    }
+
+    /**
+     * Return the controls to send with the search to have the server sort it and cut out the
+     * window.
+     */
+    public Control[] createControls (boolean critical)
+        throws NamingException
+    {
+        SortControl sort;
+        try {
+            sort = new SortControl(_keys, critical);
+        } catch (IOException e) {
+            NamingException ne = new NamingException("Unable to encode sort control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+        if (!_window) {
+            return new Control[] { sort };
+        }
+        Control vlv = (_value == null) ?
+            new LdapVirtualListControl(_before, _after, _offset, _contentCount, _context,
+                                       critical) :
+            new LdapVirtualListControl(_before, _after, _value, _context, critical);
+        return new Control[] { sort, vlv };
+    }
+
+    /**
+     * Read a whole unsorted result and return the entries of the view, in order. Only as many
+     * entries as the view needs are held at any time.
+     *
+     * @param sizeLimit For a view without a window, the most entries to return, or 0 for all.
+     */
+    public List<SearchResult> select (NamingEnumeration answer, long sizeLimit)
+        throws NamingException
+    {
+        _count = 0;
+        List<SearchResult> selected;
+        try {
+            if (!_window) {
+                selected = selectFirst(answer, (sizeLimit > 0) ? sizeLimit : Long.MAX_VALUE);
+            } else if (_value == null) {
+                // Entries up to the target and those after it, the target being the last entry
+                // if there are fewer than the offset.
+                long offset = Math.max(1, _offset);
+                selected = selectFirst(answer, offset + _after);
+                _target = (int) Math.min(offset, Math.max(1, _count));
+                int start = Math.max(0, _target - 1 - _before);
+                int end = Math.min(selected.size(), _target + _after);
+                selected = new ArrayList<SearchResult>(
+                    selected.subList(start, Math.max(start, end)));
+            } else {
+                selected = selectAround(answer);
+            }
+        } finally {
+            answer.close();
+        }
+        return selected;
+    }
+
+    /**
+     * Return the controls a server would have sent back with the view select() made: a sort
+     * response and, for a window, a virtual list view response giving where its target is.
+     */
+    public Control[] getResponseControls ()
+    {
+        Control sort;
+        try {
+            // SEQUENCE { sortResult ENUMERATED success }
+            sort = new SortResponseControl(SortResponseControl.OID, false,
+                                           new byte[] { 0x30, 0x03, 0x0A, 0x01, 0x00 });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (!_window) {
+            return new Control[] { sort };
+        }
+        LdapVirtualListControl.Response vlv = new LdapVirtualListControl.Response(
+            _target, _count, 0, null);
+        return new Control[] { sort, vlv.toControl() };
+    }
+
+    /**
+     * Return the first limit entries of the sorted result, keeping only that many while reading.
+     */
+    protected List<SearchResult> selectFirst (NamingEnumeration answer, long limit)
+        throws NamingException
+    {
+        // The largest of the entries kept is at the head, ready to make way for a smaller one.
+        PriorityQueue<Ranked> kept = new PriorityQueue<Ranked>(
+            (int) Math.min(limit, INITIAL_CAPACITY), Collections.reverseOrder(_order));
+        while (answer.hasMore()) {
+            Ranked entry = new Ranked((SearchResult) answer.next(), _count++);
+            if (kept.size() < limit) {
+                kept.add(entry);
+            } else if (_order.compare(entry, kept.peek()) < 0) {
+                kept.poll();
+                kept.add(entry);
+            }
+        }
+        return toSortedList(kept);
+    }
+
+    /**
+     * Return the window around the first entry at least _value: the _before largest entries
+     * below it and the _after + 1 smallest from it on.
+     */
+    protected List<SearchResult> selectAround (NamingEnumeration answer)
+        throws NamingException
+    {
+        Comparator<Ranked> reverse = Collections.reverseOrder(_order);
+        PriorityQueue<Ranked> below = new PriorityQueue<Ranked>(_before + 1, _order);
+        PriorityQueue<Ranked> from = new PriorityQueue<Ranked>(_after + 2, reverse);
+        int countBelow = 0;
+        while (answer.hasMore()) {
+            Ranked entry = new Ranked((SearchResult) answer.next(), _count++);
+            if (isBelowValue(entry.result)) {
+                countBelow++;
+                // Smallest at the head, to make way for a larger one.
+                below.add(entry);
+                if (below.size() > _before) {
+                    below.poll();
+                }
+            } else {
+                from.add(entry);
+                if (from.size() > _after + 1) {
+                    from.poll();
+                }
+            }
+        }
+        _target = countBelow + 1;
+        List<SearchResult> selected = toSortedList(below);
+        selected.addAll(toSortedList(from));
+        return selected;
+    }
+
+    /**
+     * Return true if an entry sorts before the first one at least _value.
+     */
+    protected boolean isBelowValue (SearchResult entry)
+        throws NamingException
+    {
+        SortKey key = _keys[0];
+        Object value = getSortValue(entry, key.getAttributeID());
+        if (value == null) {
+            return false;
+        }
+        int cmp = compareValues(value, _value);
+        return key.isAscending() ? (cmp < 0) : (cmp > 0);
+    }
+
+    protected List<SearchResult> toSortedList (PriorityQueue<Ranked> queue)
+    {
+        List<Ranked> ranked = new ArrayList<Ranked>(queue);
+        Collections.sort(ranked, _order);
+        List<SearchResult> results = new ArrayList<SearchResult>(ranked.size());
+        for (Ranked entry : ranked) {
+            results.add(entry.result);
+        }
+        return results;
+    }
+
+    /**
+     * Compare two entries by each sort key in turn, falling back to the order they arrived in
+     * so that equal entries keep the server's order.
+     */
+    protected int compare (Ranked r1, Ranked r2)
+    {
+        try {
+            for (SortKey key : _keys) {
+                Object v1 = getSortValue(r1.result, key.getAttributeID());
+                Object v2 = getSortValue(r2.result, key.getAttributeID());
+                int cmp;
+                if (v1 == null || v2 == null) {
+                    // Missing values come last whichever way the key sorts.
+                    cmp = (v1 == null) ? ((v2 == null) ? 0 : 1) : -1;
+                } else {
+                    cmp = compareValues(v1, v2);
+                    if (!key.isAscending()) {
+                        cmp = -cmp;
+                    }
+                }
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+        } catch (NamingException e) {
+            // Values already read can't fail to be fetched, so this doesn't happen.
+        }
+        return (r1.index < r2.index) ? -1 : ((r1.index == r2.index) ? 0 : 1);
+    }
+
+    /**
+     * Return the first value of an attribute of an entry, or null if it has none.
+     */
+    protected static Object getSortValue (SearchResult entry, String attribute)
+        throws NamingException
+    {
+        Attribute attr = entry.getAttributes().get(attribute);
+        return (attr == null || attr.size() == 0) ? null : attr.get(0);
+    }
+
+    /**
+     * Compare two values ignoring case, or byte by byte if both are binary.
+     */
+    protected static int compareValues (Object v1, Object v2)
+    {
+        if (v1 instanceof byte[] && v2 instanceof byte[]) {
+            byte[] b1 = (byte[]) v1;
+            byte[] b2 = (byte[]) v2;
+            for (int ii = 0; ii < b1.length && ii < b2.length; ii++) {
+                int cmp = (b1[ii] & 0xFF) - (b2[ii] & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return b1.length - b2.length;
+        }
+        return toText(v1).compareToIgnoreCase(toText(v2));
+    }
+
+    protected static String toText (Object value)
+    {
+        if (!(value instanceof byte[])) {
+            return value.toString();
+        }
+        try {
+            return new String((byte[]) value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** An entry of the result and the position it arrived in. */
+    protected static class Ranked
+    {
+        public final SearchResult result;
+        public final int index;
+
+        public Ranked (SearchResult result, int index)
+        {
+            this.result = result;
+            this.index = index;
+        }
+    }
+
+    protected SortKey[] _keys;
+
+    /** Whether the view is a window, and how it is placed. */
+    protected boolean _window;
+    protected int _before;
+    protected int _after;
+    protected int _offset;
+    protected int _contentCount;
+    protected String _value;
+    protected byte[] _context;
+
+    /** The size of the last result select() read, and the position of its target. */
+    protected int _count;
+    protected int _target;
+
+    protected Comparator<Ranked> _order = new Comparator<Ranked>() {
+        public int compare (Ranked r1, Ranked r2) {
+            return LdapView.this.compare(r1, r2);
+        }
+    };
+
+    protected static final int INITIAL_CAPACITY = 64;
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * The virtual list view request control (draft-ietf-ldapext-ldapv3-vlv), which asks the server
+ * for a window of a sorted result: some entries before and after a target, given by its
+ * position or as the first entry whose first sort key is at least a value. The server must also
+ * be sent a server side sort control. JNDI has no class for it, so it and its response are
+ * encoded here.
+ */
+public class LdapVirtualListControl extends BasicControl
+{
+    /** The virtual list view request and response controls. */
+    public static final String OID = "2.16.840.1.113730.3.4.9";
+    public static final String RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+    /**
+     * What the server sent back about the window: where the target is in the full result, how
+     * big the result is, and a result code that is 0 if the window could be given.
+     */
+    public static class Response
+    {
+        public final int targetPosition;
+        public final int contentCount;
+        public final int resultCode;
+
+        /** Context for the next request, or null. */
+        public final byte[] contextID;
+
+        public Response (int targetPosition, int contentCount, int resultCode, byte[] contextID)
+        {
+            this.targetPosition = targetPosition;
+            this.contentCount = contentCount;
+            this.resultCode = resultCode;
+            this.contextID = contextID;
+        }
+
+        /**
+         * Encode the response as the server would, for results windowed on our side.
+         */
+        public Control toControl ()
+        {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writeInteger(body, INTEGER, targetPosition);
+            writeInteger(body, INTEGER, contentCount);
+            writeInteger(body, ENUMERATED, resultCode);
+            if (contextID != null) {
+                writeElement(body, OCTET_STRING, contextID);
+            }
+            return new BasicControl(RESPONSE_OID, false, toSequence(body));
+        }
+    }
+
+    /**
+     * Ask for the entries around the one at a position of the result.
+     *
+     * @param offset One-based position of the target.
+     * @param contentCount The client's idea of the size of the result, by which the server
+     *        scales offset if it is wrong, or 0 to take offset as it is.
+     * @param context Context from the server's response to the previous request, or null.
+     */
+    public LdapVirtualListControl (int before, int after, int offset, int contentCount,
+                                   byte[] context, boolean critical)
+    {
+        super(OID, critical, encode(before, after, offset, contentCount, null, context));
+    }
+
+    /**
+     * Ask for the entries around the first one whose first sort key is at least a value.
+     */
+    public LdapVirtualListControl (int before, int after, String value, byte[] context,
+                                   boolean critical)
+    {
+        super(OID, critical, encode(before, after, 0, 0, value, context));
+    }
+
+    /**
+     * Find and decode the virtual list view response among the controls sent back with a
+     * search.
+     *
+     * @return The response, or null if there is none or it can't be decoded.
+     */
+    public static Response getResponse (Control[] controls)
+    {
+        if (controls == null) {
+            return null;
+        }
+        for (Control control : controls) {
+            if (RESPONSE_OID.equals(control.getID())) {
+                return decodeResponse(control.getEncodedValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode the value of a virtual list view response.
+     *
+     * @return The response, or null if it is malformed.
+     */
+    protected static Response decodeResponse (byte[] value)
+    {
+        if (value == null) {
+            return null;
+        }
+        // The reader works on the contents of the outer sequence.
+        int[] pos = { 0 };
+        if (readTag(value, pos) != SEQUENCE) {
+            return null;
+        }
+        int end = readLength(value, pos);
+        if (end < 0 || (end += pos[0]) > value.length) {
+            return null;
+        }
+        long target = readInteger(value, pos, end, INTEGER);
+        long count = readInteger(value, pos, end, INTEGER);
+        long code = readInteger(value, pos, end, ENUMERATED);
+        if (target == Long.MIN_VALUE || count == Long.MIN_VALUE || code == Long.MIN_VALUE) {
+            return null;
+        }
+        byte[] context = null;
+        if (pos[0] < end && readTag(value, pos) == OCTET_STRING) {
+            int length = readLength(value, pos);
+            if (length >= 0 && pos[0] + length <= end) {
+                context = new byte[length];
+                System.arraycopy(value, pos[0], context, 0, length);
+            }
+        }
+        return new Response((int) target, (int) count, (int) code, context);
+    }
+
+    /**
+     * Encode the value of a request, by offset if value is null and by value otherwise.
+     */
+    protected static byte[] encode (int before, int after, int offset, int contentCount,
+                                    String value, byte[] context)
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeInteger(body, INTEGER, before);
+        writeInteger(body, INTEGER, after);
+        if (value == null) {
+            ByteArrayOutputStream byOffset = new ByteArrayOutputStream();
+            writeInteger(byOffset, INTEGER, offset);
+            writeInteger(byOffset, INTEGER, contentCount);
+            writeElement(body, BY_OFFSET, byOffset.toByteArray());
+        } else {
+            try {
+                writeElement(body, GREATER_OR_EQUAL, value.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (context != null) {
+            writeElement(body, OCTET_STRING, context);
+        }
+        return toSequence(body);
+    }
+
+    protected static byte[] toSequence (ByteArrayOutputStream body)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeElement(out, SEQUENCE, body.toByteArray());
+        return out.toByteArray();
+    }
+
+    protected static void writeInteger (ByteArrayOutputStream out, int tag, long value)
+    {
+        // Two's complement, big endian, in as few bytes as keep the sign.
+        int length = 1;
+        while (length < 8 && (value >> (8 * length - 1)) != 0 &&
+               (value >> (8 * length - 1)) != -1) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int ii = 0; ii < length; ii++) {
+            bytes[ii] = (byte) (value >> (8 * (length - 1 - ii)));
+        }
+        writeElement(out, tag, bytes);
+    }
+
+    protected static void writeElement (ByteArrayOutputStream out, int tag, byte[] contents)
+    {
+        out.write(tag);
+        int length = contents.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (length > 0xFFFFFF) ? 4 : (length > 0xFFFF) ? 3 : (length > 0xFF) ? 2 : 1;
+            out.write(0x80 | bytes);
+            for (int ii = bytes - 1; ii >= 0; ii--) {
+                out.write(length >> (8 * ii));
+            }
+        }
+        out.write(contents, 0, length);
+    }
+
+    protected static int readTag (byte[] buf, int[] pos)
+    {
+        return (pos[0] < buf.length) ? (buf[pos[0]++] & 0xFF) : -1;
+    }
+
+    /**
+     * Read a definite length, or return -1 if there is none.
+     */
+    protected static int readLength (byte[] buf, int[] pos)
+    {
+        if (pos[0] >= buf.length) {
+            return -1;
+        }
+        int first = buf[pos[0]++] & 0xFF;
+        if (first < 0x80) {
+            return first;
+        }
+        int bytes = first & 0x7F;
+        if (bytes == 0 || bytes > 4 || pos[0] + bytes > buf.length) {
+            return -1;
+        }
+        int length = 0;
+        for (int ii = 0; ii < bytes; ii++) {
+            length = (length << 8) | (buf[pos[0]++] & 0xFF);
+        }
+        return length;
+    }
+
+    /**
+     * Read an integer element with the given tag, or return Long.MIN_VALUE if the next element
+     * isn't one.
+     */
+    protected static long readInteger (byte[] buf, int[] pos, int end, int tag)
+    {
+        if (pos[0] >= end || readTag(buf, pos) != tag) {
+            return Long.MIN_VALUE;
+        }
+        int length = readLength(buf, pos);
+        if (length < 1 || length > 8 || pos[0] + length > end) {
+            return Long.MIN_VALUE;
+        }
+        long value = buf[pos[0]++];
+        for (int ii = 1; ii < length; ii++) {
+            value = (value << 8) | (buf[pos[0]++] & 0xFF);
+        }
+        return value;
+    }
+
+    // BER tags of the elements of the controls.
+    protected static final int INTEGER = 0x02;
+    protected static final int OCTET_STRING = 0x04;
+    protected static final int ENUMERATED = 0x0A;
+    protected static final int SEQUENCE = 0x30;
+    protected static final int BY_OFFSET = 0xA0;
+    protected static final int GREATER_OR_EQUAL = 0x81;
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.BinaryBuilderValue;
+import com.caucho.quercus.env.Value;
+
+/**
+ * One add, modify or delete of an entry, ready to be applied to a connection by a link or by an
+ * LdapBulkWrite. Also turns the entry arrays scripts pass to ldap_add() and ldap_modify() into
+ * JNDI attributes.
+ */
+public class LdapWrite
+{
+    /**
+     * Create a write that adds an entry.
+     *
+     * @throws InvalidNameException if dn is not a valid DN.
+     */
+    public static LdapWrite add (String dn, Attributes attributes)
+        throws InvalidNameException
+    {
+        return new LdapWrite(LdapMetrics.ADD, dn, attributes, null);
+    }
+
+    /**
+     * Create a write that changes the attributes of an entry.
+     *
+     * @throws InvalidNameException if dn is not a valid DN.
+     */
+    public static LdapWrite modify (String dn, ModificationItem[] modifications)
+        throws InvalidNameException
+    {
+        return new LdapWrite(LdapMetrics.MODIFY, dn, null, modifications);
+    }
+
+    /**
+     * Create a write that deletes an entry.
+     *
+     * @throws InvalidNameException if dn is not a valid DN.
+     */
+    public static LdapWrite delete (String dn)
+        throws InvalidNameException
+    {
+        return new LdapWrite(LdapMetrics.DELETE, dn, null, null);
+    }
+
+    /**
+     * Convert an entry array as given to ldap_add(), which maps each attribute name to a value
+     * or an array of values, to JNDI attributes.
+     */
+    public static Attributes toAttributes (ArrayValue entry)
+    {
+        BasicAttributes attributes = new BasicAttributes(true);
+        for (Map.Entry<Value, Value> attr : entry.entrySet()) {
+            attributes.put(toAttribute(attr.getKey(), attr.getValue()));
+        }
+        return attributes;
+    }
+
+    /**
+     * Convert an entry array as given to ldap_modify() to one modification of each attribute.
+     *
+     * @param operation DirContext.ADD_ATTRIBUTE, REPLACE_ATTRIBUTE or REMOVE_ATTRIBUTE. An
+     *        attribute given an empty array is removed entirely by REPLACE_ATTRIBUTE and
+     *        REMOVE_ATTRIBUTE.
+     */
+    public static ModificationItem[] toModifications (ArrayValue entry, int operation)
+    {
+        ModificationItem[] modifications = new ModificationItem[entry.getSize()];
+        int ii = 0;
+        for (Map.Entry<Value, Value> attr : entry.entrySet()) {
+            modifications[ii++] =
+                new ModificationItem(operation, toAttribute(attr.getKey(), attr.getValue()));
+        }
+        return modifications;
+    }
+
+    /** Return the DN of the entry written. */
+    public LdapName getName ()
+    {
+        return _name;
+    }
+
+    /** Return the DN of the entry written, as it was given. */
+    public String getDN ()
+    {
+        return _dn;
+    }
+
+    /** Return the attributes of the entry added, or null if this write isn't an add. */
+    public Attributes getAttributes ()
+    {
+        return _attributes;
+    }
+
+    /** Return which write this is, as the LdapMetrics operation it is timed under. */
+    public String getOperation ()
+    {
+        return _operation;
+    }
+
+    /**
+     * Apply the write to a connection.
+     */
+    public void apply (DirContext ctx)
+        throws NamingException
+    {
+        if (_operation.equals(LdapMetrics.ADD)) {
+            ctx.createSubcontext(_name, _attributes).close();
+        } else if (_operation.equals(LdapMetrics.MODIFY)) {
+            ctx.modifyAttributes(_name, _modifications);
+        } else {
+            ctx.destroySubcontext(_name);
+        }
+    }
+
+    protected LdapWrite (String operation, String dn, Attributes attributes,
+                         ModificationItem[] modifications)
+        throws InvalidNameException
+    {
+        this._operation = operation;
+        this._dn = dn;
+        this._name = new LdapName(dn);
+        this._attributes = attributes;
+        this._modifications = modifications;
+    }
+
+    /**
+     * Convert one attribute of an entry array, whose value is a string or an array of them.
+     */
+    protected static BasicAttribute toAttribute (Value name, Value value)
+    {
+        // Ordered attributes don't look for duplicates on every add, which is quadratic for the
+        // thousands of members of a big group. The server rejects duplicates anyway.
+        BasicAttribute attr = new BasicAttribute(name.toString(), true);
+        value = value.toValue();
+        if (value.isArray()) {
+            for (Map.Entry<Value, Value> element : ((ArrayValue) value).entrySet()) {
+                attr.add(toJava(element.getValue().toValue()));
+            }
+        } else {
+            attr.add(toJava(value));
+        }
+        return attr;
+    }
+
+    /**
+     * Convert one value for JNDI: bytes for binary strings, such as a photo read with
+     * file_get_contents(), so that the provider sends them unchanged, and text for the rest.
+     */
+    protected static Object toJava (Value value)
+    {
+        if (!(value instanceof BinaryBuilderValue)) {
+            return value.toString();
+        }
+        try {
+            return value.toString().getBytes(LdapModule.BINARY_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected String _operation;
+    protected String _dn;
+    protected LdapName _name;
+    protected Attributes _attributes;
+    protected ModificationItem[] _modifications;
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.InvalidNameException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+/**
+ * Reads an LDIF file (RFC 2849) from a channel one record at a time, turning each into the
+ * LdapWrite that applies it, so that importing a file of any size only ever holds one entry.
+ * Content records and change records that add, modify or delete entries are supported; renames,
+ * controls and values given by URL are not.
+ *
+ * Values given in base64 are kept as bytes, which the server gets exactly as they were exported,
+ * and the others as strings.
+ */
+public class LdifReader
+{
+    public LdifReader (ReadableByteChannel in)
+    {
+        this._in = new BufferedReader(Channels.newReader(in, "UTF-8"), BUFFER_SIZE);
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return The write it asks for, or null at the end of the input.
+     * @throws IOException if the input can't be read or isn't valid LDIF.
+     */
+    public LdapWrite next ()
+        throws IOException
+    {
+        List<String> lines = readRecord();
+        if (lines == null) {
+            return null;
+        }
+        int ii = 0;
+        if (getName(lines.get(0)).equalsIgnoreCase("version")) {
+            if (lines.size() == 1) {
+                return next();
+            }
+            ii++;
+        }
+        if (!getName(lines.get(ii)).equalsIgnoreCase("dn")) {
+            throw error("the record doesn't start with a dn");
+        }
+        String dn = toString(getValue(lines.get(ii++)));
+
+        String changeType = "add";
+        if (ii < lines.size()) {
+            String name = getName(lines.get(ii));
+            if (name.equalsIgnoreCase("control")) {
+                throw error("controls are not supported");
+            }
+            if (name.equalsIgnoreCase("changetype")) {
+                changeType = toString(getValue(lines.get(ii++))).trim();
+            }
+        }
+        try {
+            if (changeType.equalsIgnoreCase("add")) {
+                return LdapWrite.add(dn, readAttributes(lines, ii));
+            } else if (changeType.equalsIgnoreCase("modify")) {
+                return LdapWrite.modify(dn, readModifications(lines, ii));
+            } else if (changeType.equalsIgnoreCase("delete")) {
+                return LdapWrite.delete(dn);
+            }
+        } catch (InvalidNameException e) {
+            throw error("bad dn " + dn);
+        }
+        throw error("changetype " + changeType + " is not supported");
+    }
+
+    /**
+     * Read the attributes of an entry to add, from the given line of its record on.
+     */
+    protected BasicAttributes readAttributes (List<String> lines, int start)
+        throws IOException
+    {
+        BasicAttributes attributes = new BasicAttributes(true);
+        for (int ii = start; ii < lines.size(); ii++) {
+            String line = lines.get(ii);
+            String name = getName(line);
+            BasicAttribute attr = (BasicAttribute) attributes.get(name);
+            if (attr == null) {
+                // Ordered, as for LdapWrite.toAttributes(), so big groups are read in linear time.
+                attr = new BasicAttribute(name, true);
+                attributes.put(attr);
+            }
+            attr.add(getValue(line));
+        }
+        return attributes;
+    }
+
+    /**
+     * Read the changes of a modify record, from the given line of it on. Each change is a line
+     * naming the operation and attribute, the values, if any, and a line with a single dash.
+     */
+    protected ModificationItem[] readModifications (List<String> lines, int start)
+        throws IOException
+    {
+        List<ModificationItem> modifications = new ArrayList<ModificationItem>();
+        int ii = start;
+        while (ii < lines.size()) {
+            String line = lines.get(ii++);
+            String op = getName(line);
+            int operation;
+            if (op.equalsIgnoreCase("add")) {
+                operation = DirContext.ADD_ATTRIBUTE;
+            } else if (op.equalsIgnoreCase("delete")) {
+                operation = DirContext.REMOVE_ATTRIBUTE;
+            } else if (op.equalsIgnoreCase("replace")) {
+                operation = DirContext.REPLACE_ATTRIBUTE;
+            } else {
+                throw error("unknown modification " + line);
+            }
+            String name = toString(getValue(line)).trim();
+            BasicAttribute attr = new BasicAttribute(name, true);
+            for (; ii < lines.size() && !lines.get(ii).trim().equals("-"); ii++) {
+                if (!getName(lines.get(ii)).equalsIgnoreCase(name)) {
+                    throw error("modification of " + name + " has a value of another attribute");
+                }
+                attr.add(getValue(lines.get(ii)));
+            }
+            ii++;
+            modifications.add(new ModificationItem(operation, attr));
+        }
+        return modifications.toArray(new ModificationItem[modifications.size()]);
+    }
+
+    /**
+     * Return the line the last record read starts on, counting from one.
+     */
+    public int getRecordLine ()
+    {
+        return _recordLine;
+    }
+
+    /**
+     * Read the unfolded lines of the next record, skipping comments.
+     *
+     * @return The lines, or null at the end of the input.
+     */
+    protected List<String> readRecord ()
+        throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        boolean inComment = false;
+        String line;
+        while ((line = _in.readLine()) != null) {
+            _lineNumber++;
+            if (line.length() == 0) {
+                if (!lines.isEmpty()) {
+                    return lines;
+                }
+                inComment = false;
+                continue;
+            }
+            if (line.charAt(0) == ' ') {
+                // A continuation of the previous line, or of a comment.
+                if (!inComment && !lines.isEmpty()) {
+                    int last = lines.size() - 1;
+                    lines.set(last, lines.get(last) + line.substring(1));
+                }
+                continue;
+            }
+            inComment = (line.charAt(0) == '#');
+            if (!inComment) {
+                if (lines.isEmpty()) {
+                    _recordLine = _lineNumber;
+                }
+                lines.add(line);
+            }
+        }
+        return lines.isEmpty() ? null : lines;
+    }
+
+    /**
+     * Return the attribute name, or keyword, of a line.
+     */
+    protected String getName (String line)
+        throws IOException
+    {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw error("bad line " + line);
+        }
+        return line.substring(0, colon);
+    }
+
+    /**
+     * Return the value of a line: bytes if it was base64 encoded, a string if not.
+     */
+    protected Object getValue (String line)
+        throws IOException
+    {
+        int colon = line.indexOf(':');
+        if (line.startsWith("::", colon)) {
+            try {
+                return Base64.decode(line, colon + 2);
+            } catch (IllegalArgumentException e) {
+                throw error(e.getMessage());
+            }
+        } else if (line.startsWith(":<", colon)) {
+            throw error("values by URL are not supported");
+        }
+        int start = colon + 1;
+        while (start < line.length() && line.charAt(start) == ' ') {
+            start++;
+        }
+        return line.substring(start);
+    }
+
+    /**
+     * Return a value as a string, decoding it as UTF-8 if it was base64 encoded.
+     */
+    protected static String toString (Object value)
+        throws IOException
+    {
+        return (value instanceof byte[]) ? new String((byte[]) value, "UTF-8") : (String) value;
+    }
+
+    /**
+     * Create the exception thrown for a record that isn't valid LDIF.
+     */
+    protected IOException error (String message)
+    {
+        return new IOException("Bad LDIF record at line " + _recordLine + ": " + message);
+    }
+
+    protected BufferedReader _in;
+    protected int _lineNumber;
+
+    /** The line the record being read starts on. */
+    protected int _recordLine;
+
+    /** Characters read from the channel at once. */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+/**
+ * Writes entries to a channel as the content records of an LDIF file (RFC 2849), one at a time,
+ * so that exporting a subtree of any size only ever holds one entry. Values that aren't plain
+ * ASCII, or that LDIF can't hold as they are, are base64 encoded, so everything written is ASCII
+ * and goes straight into the buffer without a character encoder. Lines are folded at 76
+ * characters.
+ */
+public class LdifWriter
+{
+    /**
+     * Create a writer. Nothing reaches the channel until the buffer fills or flush() is called.
+     */
+    public LdifWriter (WritableByteChannel out)
+    {
+        this._out = out;
+    }
+
+    /**
+     * Write one entry.
+     *
+     * @param dn The entry's full DN.
+     * @param attributes Its attributes, whose values are strings or byte arrays.
+     */
+    public void write (String dn, Attributes attributes)
+        throws IOException, NamingException
+    {
+        startFile();
+        putLine("dn", dn);
+        NamingEnumeration<? extends Attribute> attrs = attributes.getAll();
+        try {
+            while (attrs.hasMore()) {
+                Attribute attr = attrs.next();
+                for (int ii = 0; ii < attr.size(); ii++) {
+                    putLine(attr.getID(), attr.get(ii));
+                }
+            }
+        } finally {
+            attrs.close();
+        }
+        newLine();
+        _count++;
+    }
+
+    /** Return the number of entries written. */
+    public int getCount ()
+    {
+        return _count;
+    }
+
+    /**
+     * Write out everything buffered.
+     */
+    public void flush ()
+        throws IOException
+    {
+        startFile();
+        drain();
+    }
+
+    /**
+     * Start the file with its version line, if that hasn't been done yet.
+     */
+    protected void startFile ()
+        throws IOException
+    {
+        if (!_started) {
+            _started = true;
+            putAscii("version: 1");
+            newLine();
+            newLine();
+        }
+    }
+
+    /**
+     * Write the buffer to the channel.
+     */
+    protected void drain ()
+        throws IOException
+    {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _out.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    /**
+     * Return true if LDIF can hold the value as it is, rather than base64 encoded.
+     */
+    public static boolean isSafe (String value)
+    {
+        int length = value.length();
+        if (length == 0) {
+            return true;
+        }
+        char first = value.charAt(0);
+        if (first == ' ' || first == ':' || first == '<') {
+            return false;
+        }
+        for (int ii = 0; ii < length; ii++) {
+            char c = value.charAt(ii);
+            if (c == 0 || c == '\n' || c == '\r' || c > 0x7F) {
+                return false;
+            }
+        }
+        // Readers drop trailing spaces more often than not.
+        return value.charAt(length - 1) != ' ';
+    }
+
+    /**
+     * Write one attribute value, or the DN.
+     */
+    protected void putLine (String name, Object value)
+        throws IOException
+    {
+        putAscii(name);
+        if (value instanceof byte[]) {
+            putAscii(":: ");
+            putBase64((byte[]) value);
+        } else {
+            String text = String.valueOf(value);
+            if (text.length() == 0) {
+                putAscii(":");
+            } else if (isSafe(text)) {
+                putAscii(": ");
+                putAscii(text);
+            } else {
+                putAscii(":: ");
+                putBase64(text.getBytes("UTF-8"));
+            }
+        }
+        newLine();
+    }
+
+    /**
+     * Write characters known to be ASCII.
+     */
+    protected void putAscii (String text)
+        throws IOException
+    {
+        for (int ii = 0, nn = text.length(); ii < nn; ii++) {
+            put((byte) text.charAt(ii));
+        }
+    }
+
+    /**
+     * Write bytes as base64.
+     */
+    protected void putBase64 (byte[] data)
+        throws IOException
+    {
+        for (byte b : Base64.encode(data)) {
+            put(b);
+        }
+    }
+
+    /**
+     * Write one byte of a line, folding the line first if it is full.
+     */
+    protected void put (byte b)
+        throws IOException
+    {
+        if (_column == MAX_LINE_LENGTH) {
+            putRaw((byte) '\n');
+            putRaw((byte) ' ');
+            _column = 1;
+        }
+        putRaw(b);
+        _column++;
+    }
+
+    /**
+     * End the current line.
+     */
+    protected void newLine ()
+        throws IOException
+    {
+        putRaw((byte) '\n');
+        _column = 0;
+    }
+
+    protected void putRaw (byte b)
+        throws IOException
+    {
+        if (!_buffer.hasRemaining()) {
+            drain();
+        }
+        _buffer.put(b);
+    }
+
+    protected WritableByteChannel _out;
+    protected ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    protected int _column;
+    protected int _count;
+    protected boolean _started;
+
+    /** Bytes written to the channel at once. */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Longest line written before folding, as RFC 2849 recommends. */
+    protected static final int MAX_LINE_LENGTH = 76;
+}
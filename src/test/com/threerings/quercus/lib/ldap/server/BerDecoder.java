@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the subset of ASN.1 BER used by LDAP: single byte tags, definite lengths, and
+ * integer, boolean, octet string and constructed values.
+ */
+public class BerDecoder
+{
+    /**
+     * Read one complete BER element (normally an LDAPMessage) from the stream.
+     *
+     * @return The encoded element including its tag and length, or null if the stream ended
+     *         cleanly before the element started.
+     */
+    public static byte[] readElement (InputStream in)
+        throws IOException
+    {
+        int tag = in.read();
+        if (tag < 0) {
+            return null;
+        }
+        int first = readByte(in);
+        int length;
+        byte[] header;
+        if ((first & 0x80) == 0) {
+            length = first;
+            header = new byte[] { (byte) tag, (byte) first };
+        } else {
+            int count = first & 0x7F;
+            if (count == 0 || count > 4) {
+                throw new IOException("Unsupported BER length encoding: " + first);
+            }
+            header = new byte[2 + count];
+            header[0] = (byte) tag;
+            header[1] = (byte) first;
+            length = 0;
+            for (int ii = 0; ii < count; ii++) {
+                int b = readByte(in);
+                header[2 + ii] = (byte) b;
+                length = (length << 8) | b;
+            }
+            if (length < 0 || length > MAX_ELEMENT_LENGTH) {
+                throw new IOException("BER element too long: " + length);
+            }
+        }
+        byte[] element = new byte[header.length + length];
+        System.arraycopy(header, 0, element, 0, header.length);
+        int pos = header.length;
+        while (pos < element.length) {
+            int read = in.read(element, pos, element.length - pos);
+            if (read < 0) {
+                throw new EOFException("Stream ended inside a BER element");
+            }
+            pos += read;
+        }
+        return element;
+    }
+
+    public BerDecoder (byte[] buf)
+    {
+        this(buf, 0, buf.length, -1);
+    }
+
+    protected BerDecoder (byte[] buf, int pos, int end, int tag)
+    {
+        this._buf = buf;
+        this._pos = pos;
+        this._end = end;
+        this._tag = tag;
+    }
+
+    /** Return the tag of the element this decoder reads the contents of, or -1 at top level. */
+    public int getTag ()
+    {
+        return _tag;
+    }
+
+    /** Return true if there are more elements to read. */
+    public boolean hasMore ()
+    {
+        return _pos < _end;
+    }
+
+    /** Return the tag of the next element without consuming it. */
+    public int peekTag ()
+        throws IOException
+    {
+        if (_pos >= _end) {
+            throw new EOFException("No more BER elements");
+        }
+        return _buf[_pos] & 0xFF;
+    }
+
+    /**
+     * Consume the next element and return a decoder over its contents.
+     *
+     * @param tag Tag the element must have, or -1 to accept any.
+     */
+    public BerDecoder read (int tag)
+        throws IOException
+    {
+        int actual = peekTag();
+        if (tag != -1 && actual != tag) {
+            throw new IOException("Expected BER tag 0x" + Integer.toHexString(tag) +
+                                  " but found 0x" + Integer.toHexString(actual));
+        }
+        _pos++;
+        if (_pos >= _end) {
+            throw new EOFException("BER element has no length");
+        }
+        int first = _buf[_pos++] & 0xFF;
+        int length = first;
+        if ((first & 0x80) != 0) {
+            int count = first & 0x7F;
+            length = 0;
+            for (int ii = 0; ii < count; ii++) {
+                if (_pos >= _end) {
+                    throw new EOFException("BER length is truncated");
+                }
+                length = (length << 8) | (_buf[_pos++] & 0xFF);
+            }
+        }
+        if (length < 0 || _pos + length > _end) {
+            throw new IOException("BER element overruns its container");
+        }
+        BerDecoder contents = new BerDecoder(_buf, _pos, _pos + length, actual);
+        _pos += length;
+        return contents;
+    }
+
+    /** Skip over the next element. */
+    public void skip ()
+        throws IOException
+    {
+        read(-1);
+    }
+
+    /** Read an integer or enumerated element with the given tag. */
+    public long readInteger (int tag)
+        throws IOException
+    {
+        return read(tag).toInteger();
+    }
+
+    /** Read a boolean element with the given tag. */
+    public boolean readBoolean (int tag)
+        throws IOException
+    {
+        return read(tag).toInteger() != 0;
+    }
+
+    /** Read an octet string element with the given tag. */
+    public byte[] readOctets (int tag)
+        throws IOException
+    {
+        return read(tag).toBytes();
+    }
+
+    /** Read an octet string element with the given tag as UTF-8 text. */
+    public String readString (int tag)
+        throws IOException
+    {
+        return read(tag).toText();
+    }
+
+    /** Return the remaining contents as bytes. */
+    public byte[] toBytes ()
+    {
+        byte[] bytes = new byte[_end - _pos];
+        System.arraycopy(_buf, _pos, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /** Return the remaining contents as UTF-8 text. */
+    public String toText ()
+    {
+        try {
+            return new String(_buf, _pos, _end - _pos, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Return the remaining contents as a two's complement integer. */
+    public long toInteger ()
+        throws IOException
+    {
+        int length = _end - _pos;
+        if (length == 0 || length > 8) {
+            throw new IOException("Bad BER integer length: " + length);
+        }
+        long value = _buf[_pos]; // Sign extends the leading byte.
+        for (int ii = _pos + 1; ii < _end; ii++) {
+            value = (value << 8) | (_buf[ii] & 0xFF);
+        }
+        return value;
+    }
+
+    protected static int readByte (InputStream in)
+        throws IOException
+    {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Stream ended inside a BER element");
+        }
+        return b;
+    }
+
+    protected byte[] _buf;
+    protected int _pos;
+    protected int _end;
+    protected int _tag;
+
+    /** Refuse elements larger than this rather than trying to allocate them. */
+    protected static final int MAX_ELEMENT_LENGTH = 16 * 1024 * 1024;
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes the subset of ASN.1 BER used by LDAP. Constructed elements are opened with
+ * beginSequence() and closed with endSequence(), at which point their length is filled in.
+ */
+public class BerEncoder
+{
+    /** Start a constructed element with the given tag. */
+    public BerEncoder beginSequence (int tag)
+    {
+        writeByte(tag);
+        if (_depth == _starts.length) {
+            int[] starts = new int[_depth * 2];
+            System.arraycopy(_starts, 0, starts, 0, _depth);
+            _starts = starts;
+        }
+        _starts[_depth++] = _length;
+        return this;
+    }
+
+    /** Finish the most recently started constructed element. */
+    public BerEncoder endSequence ()
+    {
+        int start = _starts[--_depth];
+        int contentLength = _length - start;
+        int lengthBytes = lengthSize(contentLength);
+        ensureCapacity(lengthBytes);
+        // Shift the contents along to make room for the length in front of them.
+        System.arraycopy(_buf, start, _buf, start + lengthBytes, contentLength);
+        _length += lengthBytes;
+        writeLength(start, contentLength, lengthBytes);
+        return this;
+    }
+
+    /** Write an integer (or, with the enumerated tag, an enumerated) element. */
+    public BerEncoder writeInteger (int tag, long value)
+    {
+        int size = 1;
+        while (size < 8) {
+            long shifted = value >> (size * 8 - 1);
+            if (shifted == 0 || shifted == -1) {
+                break;
+            }
+            size++;
+        }
+        writeByte(tag);
+        writeLengthHere(size);
+        ensureCapacity(size);
+        for (int ii = size - 1; ii >= 0; ii--) {
+            _buf[_length++] = (byte) (value >> (ii * 8));
+        }
+        return this;
+    }
+
+    /** Write a boolean element. */
+    public BerEncoder writeBoolean (int tag, boolean value)
+    {
+        writeByte(tag);
+        writeByte(1);
+        writeByte(value ? 0xFF : 0);
+        return this;
+    }
+
+    /** Write an octet string element. */
+    public BerEncoder writeOctets (int tag, byte[] value)
+    {
+        writeByte(tag);
+        writeLengthHere(value.length);
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, _buf, _length, value.length);
+        _length += value.length;
+        return this;
+    }
+
+    /** Write an octet string element holding the UTF-8 encoding of value. */
+    public BerEncoder writeString (int tag, String value)
+    {
+        return writeOctets(tag, utf8(value));
+    }
+
+    /** Return the number of bytes written so far. */
+    public int size ()
+    {
+        return _length;
+    }
+
+    /** Return a copy of everything written so far. */
+    public byte[] toByteArray ()
+    {
+        byte[] bytes = new byte[_length];
+        System.arraycopy(_buf, 0, bytes, 0, _length);
+        return bytes;
+    }
+
+    /** Write everything written so far to the stream. */
+    public void writeTo (OutputStream out)
+        throws IOException
+    {
+        out.write(_buf, 0, _length);
+    }
+
+    /** Discard everything written so far, keeping the buffer for reuse. */
+    public void reset ()
+    {
+        _length = 0;
+        _depth = 0;
+    }
+
+    /** Return the UTF-8 encoding of a string. */
+    public static byte[] utf8 (String value)
+    {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected void writeByte (int b)
+    {
+        ensureCapacity(1);
+        _buf[_length++] = (byte) b;
+    }
+
+    protected void writeLengthHere (int length)
+    {
+        int lengthBytes = lengthSize(length);
+        ensureCapacity(lengthBytes);
+        writeLength(_length, length, lengthBytes);
+        _length += lengthBytes;
+    }
+
+    protected void writeLength (int pos, int length, int lengthBytes)
+    {
+        if (lengthBytes == 1) {
+            _buf[pos] = (byte) length;
+            return;
+        }
+        _buf[pos] = (byte) (0x80 | (lengthBytes - 1));
+        for (int ii = 1; ii < lengthBytes; ii++) {
+            _buf[pos + ii] = (byte) (length >> ((lengthBytes - 1 - ii) * 8));
+        }
+    }
+
+    protected static int lengthSize (int length)
+    {
+        if (length < 0x80) {
+            return 1;
+        } else if (length < 0x100) {
+            return 2;
+        } else if (length < 0x10000) {
+            return 3;
+        } else if (length < 0x1000000) {
+            return 4;
+        }
+        return 5;
+    }
+
+    protected void ensureCapacity (int extra)
+    {
+        if (_length + extra > _buf.length) {
+            byte[] buf = new byte[Math.max(_buf.length * 2, _length + extra)];
+            System.arraycopy(_buf, 0, buf, 0, _length);
+            _buf = buf;
+        }
+    }
+
+    protected byte[] _buf = new byte[512];
+    protected int _length;
+    protected int[] _starts = new int[8];
+    protected int _depth;
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+/**
+ * Tags of the BER elements that make up LDAP messages (RFC 4511).
+ */
+public class BerTags
+{
+    // Universal types.
+    public static final int BOOLEAN = 0x01;
+    public static final int INTEGER = 0x02;
+    public static final int OCTET_STRING = 0x04;
+    public static final int ENUMERATED = 0x0A;
+    public static final int SEQUENCE = 0x30;
+    public static final int SET = 0x31;
+
+    // Protocol operations.
+    public static final int BIND_REQUEST = 0x60;
+    public static final int BIND_RESPONSE = 0x61;
+    public static final int UNBIND_REQUEST = 0x42;
+    public static final int SEARCH_REQUEST = 0x63;
+    public static final int SEARCH_RESULT_ENTRY = 0x64;
+    public static final int SEARCH_RESULT_DONE = 0x65;
+    public static final int SEARCH_RESULT_REFERENCE = 0x73;
+    public static final int MODIFY_REQUEST = 0x66;
+    public static final int MODIFY_RESPONSE = 0x67;
+    public static final int ADD_REQUEST = 0x68;
+    public static final int ADD_RESPONSE = 0x69;
+    public static final int DELETE_REQUEST = 0x4A;
+    public static final int DELETE_RESPONSE = 0x6B;
+    public static final int MODIFY_DN_REQUEST = 0x6C;
+    public static final int MODIFY_DN_RESPONSE = 0x6D;
+    public static final int COMPARE_REQUEST = 0x6E;
+    public static final int COMPARE_RESPONSE = 0x6F;
+    public static final int ABANDON_REQUEST = 0x50;
+    public static final int EXTENDED_REQUEST = 0x77;
+    public static final int EXTENDED_RESPONSE = 0x78;
+
+    // Context specific elements.
+    public static final int CONTROLS = 0xA0;
+    public static final int SIMPLE_AUTH = 0x80;
+    public static final int EXTENDED_REQUEST_NAME = 0x80;
+    public static final int EXTENDED_REQUEST_VALUE = 0x81;
+    public static final int EXTENDED_RESPONSE_NAME = 0x8A;
+    public static final int EXTENDED_RESPONSE_VALUE = 0x8B;
+    public static final int REFERRAL = 0xA3;
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory tree of {@link Entry}s, searched by {@link LdapServer}.
+ */
+public class Directory
+{
+    /** Search only the base entry. */
+    public static final int SCOPE_BASE = 0;
+
+    /** Search the immediate children of the base entry. */
+    public static final int SCOPE_ONE = 1;
+
+    /** Search the base entry and everything below it. */
+    public static final int SCOPE_SUBTREE = 2;
+
+    /** Told of each change to the directory, as with persistent searches. */
+    public interface Listener
+    {
+        /**
+         * Called with the directory locked against other changes, so listeners hear of changes
+         * in the order they were made, and must not block.
+         *
+         * @param before The entry before the change, or null if it was added.
+         * @param after The entry after the change, or null if it was removed.
+         */
+        void changed (Entry before, Entry after);
+    }
+
+    /**
+     * Add an entry, replacing any entry with the same DN.
+     */
+    public void add (Entry entry)
+    {
+        _lock.writeLock().lock();
+        try {
+            Entry before = _entries.put(entry.getNormalizedDN(), entry);
+            notifyListeners(before, entry);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add an entry unless there already is one with the same DN.
+     *
+     * @return false if there already was one.
+     */
+    public boolean create (Entry entry)
+    {
+        _lock.writeLock().lock();
+        try {
+            if (_entries.containsKey(entry.getNormalizedDN())) {
+                return false;
+            }
+            _entries.put(entry.getNormalizedDN(), entry);
+            notifyListeners(null, entry);
+            return true;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the entry with the given DN.
+     *
+     * @return The removed entry, or null if there was none.
+     */
+    public Entry remove (String dn)
+    {
+        _lock.writeLock().lock();
+        try {
+            Entry removed = _entries.remove(normalizeDN(dn));
+            if (removed != null) {
+                notifyListeners(removed, null);
+            }
+            return removed;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Tell a listener of every change from now on.
+     */
+    public void addListener (Listener listener)
+    {
+        _listeners.add(listener);
+    }
+
+    public void removeListener (Listener listener)
+    {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Return the entry with the given DN, or null if there is none.
+     */
+    public Entry get (String dn)
+    {
+        _lock.readLock().lock();
+        try {
+            return _entries.get(normalizeDN(dn));
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return true if any entry is immediately below the given DN.
+     */
+    public boolean hasChildren (String dn)
+    {
+        String parent = normalizeDN(dn);
+        _lock.readLock().lock();
+        try {
+            for (String child : _entries.keySet()) {
+                if (child.length() > 0 && parent.equals(parentDN(child))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of entries.
+     */
+    public int size ()
+    {
+        _lock.readLock().lock();
+        try {
+            return _entries.size();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the entries within scope of the base DN that match the filter.
+     *
+     * @return The matching entries, or null if the base entry does not exist.
+     */
+    public List<Entry> search (String baseDN, int scope, Filter filter)
+    {
+        String base = normalizeDN(baseDN);
+        List<Entry> matches = new ArrayList<Entry>();
+        _lock.readLock().lock();
+        try {
+            Entry baseEntry = _entries.get(base);
+            if (baseEntry == null) {
+                return null;
+            }
+            if (scope == SCOPE_BASE) {
+                if (filter.matches(baseEntry)) {
+                    matches.add(baseEntry);
+                }
+                return matches;
+            }
+            for (Entry entry : _entries.values()) {
+                if (inScope(base, scope, entry.getNormalizedDN()) && filter.matches(entry)) {
+                    matches.add(entry);
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return matches;
+    }
+
+    /**
+     * Return every entry that matches the filter, regardless of where it is in the tree.
+     */
+    public List<Entry> searchAll (Filter filter)
+    {
+        List<Entry> matches = new ArrayList<Entry>();
+        _lock.readLock().lock();
+        try {
+            for (Entry entry : _entries.values()) {
+                if (filter.matches(entry)) {
+                    matches.add(entry);
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return matches;
+    }
+
+    /**
+     * Return a DN in the form used to compare DNs: lowercased, with the spaces around the
+     * separators removed.
+     */
+    public static String normalizeDN (String dn)
+    {
+        StringBuilder buf = new StringBuilder(dn.length());
+        boolean escaped = false;
+        for (int ii = 0; ii < dn.length(); ii++) {
+            char c = dn.charAt(ii);
+            if (escaped) {
+                buf.append(c);
+                escaped = false;
+                continue;
+            }
+            if (c == '\\') {
+                escaped = true;
+                buf.append(c);
+            } else if (c == ',' || c == '=' || c == '+') {
+                // Drop spaces before the separator, and skip those after it.
+                trimTrailingSpaces(buf);
+                buf.append(c);
+                while (ii + 1 < dn.length() && dn.charAt(ii + 1) == ' ') {
+                    ii++;
+                }
+            } else {
+                buf.append(Character.toLowerCase(c));
+            }
+        }
+        trimTrailingSpaces(buf);
+        // Leading spaces are skipped too.
+        int start = 0;
+        while (start < buf.length() && buf.charAt(start) == ' ') {
+            start++;
+        }
+        return buf.substring(start);
+    }
+
+    /**
+     * Return true if a normalized DN is within scope of a normalized base DN.
+     */
+    public static boolean inScope (String base, int scope, String dn)
+    {
+        switch (scope) {
+        case SCOPE_BASE:
+            return dn.equals(base);
+        case SCOPE_ONE:
+            return base.equals(parentDN(dn));
+        default:
+            return dn.equals(base) || base.length() == 0 || dn.endsWith("," + base);
+        }
+    }
+
+    /**
+     * Return the DN of the parent of a normalized DN, or an empty string for a top level entry.
+     */
+    public static String parentDN (String dn)
+    {
+        for (int ii = 0; ii < dn.length(); ii++) {
+            char c = dn.charAt(ii);
+            if (c == '\\') {
+                ii++;
+            } else if (c == ',') {
+                return dn.substring(ii + 1);
+            }
+        }
+        return "";
+    }
+
+    protected void notifyListeners (Entry before, Entry after)
+    {
+        for (Listener listener : _listeners) {
+            listener.changed(before, after);
+        }
+    }
+
+    protected static void trimTrailingSpaces (StringBuilder buf)
+    {
+        int length = buf.length();
+        while (length > 0 && buf.charAt(length - 1) == ' ' &&
+               (length < 2 || buf.charAt(length - 2) != '\\')) {
+            length--;
+        }
+        buf.setLength(length);
+    }
+
+    /** Entries by normalized DN, in the order they were added so parents come first. */
+    protected LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>();
+    protected ReadWriteLock _lock = new ReentrantReadWriteLock();
+    protected List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+}
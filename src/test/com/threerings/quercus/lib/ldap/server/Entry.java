@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An entry held by a {@link Directory}: a DN and its attributes, each with one or more values.
+ * Attribute names are matched without regard to case.
+ */
+public class Entry
+{
+    /** One attribute of an entry and its values, kept both as raw bytes and as text. */
+    public static class Attribute
+    {
+        public Attribute (String name)
+        {
+            this._name = name;
+        }
+
+        /** Return the attribute name as it was first given to the entry. */
+        public String getName ()
+        {
+            return _name;
+        }
+
+        /** Return the raw values. */
+        public List<byte[]> getValues ()
+        {
+            return _values;
+        }
+
+        /** Return the values decoded as UTF-8 text. */
+        public List<String> getStrings ()
+        {
+            return _strings;
+        }
+
+        /** Add a value. */
+        public void add (byte[] value)
+        {
+            _values.add(value);
+            try {
+                _strings.add(new String(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Remove a value.
+         *
+         * @return false if the attribute did not have it.
+         */
+        public boolean remove (byte[] value)
+        {
+            for (int ii = 0; ii < _values.size(); ii++) {
+                if (Arrays.equals(_values.get(ii), value)) {
+                    _values.remove(ii);
+                    _strings.remove(ii);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Return true if the attribute has the value. */
+        public boolean contains (byte[] value)
+        {
+            for (byte[] have : _values) {
+                if (Arrays.equals(have, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Return the number of values. */
+        public int size ()
+        {
+            return _values.size();
+        }
+
+        protected String _name;
+        protected ArrayList<byte[]> _values = new ArrayList<byte[]>(2);
+        protected ArrayList<String> _strings = new ArrayList<String>(2);
+    }
+
+    public Entry (String dn)
+    {
+        this._dn = dn;
+        this._normalizedDN = Directory.normalizeDN(dn);
+    }
+
+    /** Return the DN as given when the entry was created. */
+    public String getDN ()
+    {
+        return _dn;
+    }
+
+    /** Return the DN in the normalized form used to look entries up. */
+    public String getNormalizedDN ()
+    {
+        return _normalizedDN;
+    }
+
+    /** Add a text value to the named attribute, creating it if need be. */
+    public Entry add (String name, String value)
+    {
+        return add(name, BerEncoder.utf8(value));
+    }
+
+    /** Add a raw value to the named attribute, creating it if need be. */
+    public Entry add (String name, byte[] value)
+    {
+        String key = name.toLowerCase();
+        Attribute attr = _attrs.get(key);
+        if (attr == null) {
+            attr = new Attribute(name);
+            _attrs.put(key, attr);
+        }
+        attr.add(value);
+        return this;
+    }
+
+    /**
+     * Return a copy of this entry, to change without disturbing those reading this one.
+     */
+    public Entry copy ()
+    {
+        Entry copy = new Entry(_dn);
+        for (Attribute attr : _attrs.values()) {
+            for (byte[] value : attr.getValues()) {
+                copy.add(attr.getName(), value);
+            }
+        }
+        return copy;
+    }
+
+    /** Remove the named attribute entirely. */
+    public void remove (String name)
+    {
+        _attrs.remove(name.toLowerCase());
+    }
+
+    /** Return the named attribute, or null if the entry does not have it. */
+    public Attribute get (String name)
+    {
+        return _attrs.get(name.toLowerCase());
+    }
+
+    /** Return all attributes in the order they were added. */
+    public Collection<Attribute> getAttributes ()
+    {
+        return _attrs.values();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return _dn;
+    }
+
+    protected String _dn;
+    protected String _normalizedDN;
+    protected LinkedHashMap<String, Attribute> _attrs = new LinkedHashMap<String, Attribute>();
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A decoded LDAP search filter (RFC 4511 section 4.5.1) that can be evaluated against entries.
+ * Attribute aliases and case exact matching rules come from the schema; other values are
+ * compared without regard to case, and ordering comparisons are numeric when both sides are
+ * numbers.
+ */
+public abstract class Filter
+{
+    /** Return true if the entry matches this filter. */
+    public abstract boolean matches (Entry entry);
+
+    /**
+     * Decode the next filter from a search request, with no schema.
+     */
+    public static Filter decode (BerDecoder in)
+        throws IOException
+    {
+        return decode(in, EMPTY_SCHEMA);
+    }
+
+    /**
+     * Decode the next filter from a search request.
+     */
+    public static Filter decode (BerDecoder in, Schema schema)
+        throws IOException
+    {
+        BerDecoder element = in.read(-1);
+        int tag = element.getTag();
+        switch (tag) {
+        case AND:
+        case OR:
+            List<Filter> parts = new ArrayList<Filter>();
+            while (element.hasMore()) {
+                parts.add(decode(element, schema));
+            }
+            return (tag == AND) ? new And(parts) : new Or(parts);
+
+        case NOT:
+            return new Not(decode(element, schema));
+
+        case EQUALITY:
+        case GREATER_OR_EQUAL:
+        case LESS_OR_EQUAL:
+        case APPROX:
+            String attr = element.readString(BerTags.OCTET_STRING);
+            String value = element.readString(BerTags.OCTET_STRING);
+            if (tag == GREATER_OR_EQUAL) {
+                return new Ordering(schema, attr, value, 1);
+            } else if (tag == LESS_OR_EQUAL) {
+                return new Ordering(schema, attr, value, -1);
+            }
+            return new Equality(schema, attr, value);
+
+        case SUBSTRINGS:
+            String subAttr = element.readString(BerTags.OCTET_STRING);
+            BerDecoder subs = element.read(BerTags.SEQUENCE);
+            String initial = null, fin = null;
+            List<String> any = new ArrayList<String>();
+            while (subs.hasMore()) {
+                BerDecoder sub = subs.read(-1);
+                switch (sub.getTag()) {
+                case SUB_INITIAL: initial = sub.toText(); break;
+                case SUB_ANY: any.add(sub.toText()); break;
+                case SUB_FINAL: fin = sub.toText(); break;
+                default: throw new IOException("Bad substring filter component");
+                }
+            }
+            return new Substring(schema, subAttr, initial, any, fin);
+
+        case PRESENT:
+            return new Present(schema, element.toText());
+
+        case EXTENSIBLE:
+            // Matching rules aren't supported, so fall back to plain equality on the type.
+            String type = null, extValue = null;
+            while (element.hasMore()) {
+                BerDecoder part = element.read(-1);
+                if (part.getTag() == 0x82) {
+                    type = part.toText();
+                } else if (part.getTag() == 0x83) {
+                    extValue = part.toText();
+                }
+            }
+            if (type == null || extValue == null) {
+                throw new IOException("Unsupported extensible match filter");
+            }
+            return new Equality(schema, type, extValue);
+
+        default:
+            throw new IOException("Unknown filter type 0x" + Integer.toHexString(tag));
+        }
+    }
+
+    /** Matches entries that match all of its parts. */
+    public static class And extends Filter
+    {
+        public And (List<Filter> parts)
+        {
+            this._parts = parts;
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            for (Filter part : _parts) {
+                if (!part.matches(entry)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected List<Filter> _parts;
+    }
+
+    /** Matches entries that match any of its parts. */
+    public static class Or extends Filter
+    {
+        public Or (List<Filter> parts)
+        {
+            this._parts = parts;
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            for (Filter part : _parts) {
+                if (part.matches(entry)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected List<Filter> _parts;
+    }
+
+    /** Matches entries that do not match its part. */
+    public static class Not extends Filter
+    {
+        public Not (Filter part)
+        {
+            this._part = part;
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            return !_part.matches(entry);
+        }
+
+        protected Filter _part;
+    }
+
+    /** Base for filters that test the values of one attribute. */
+    public abstract static class AttributeFilter extends Filter
+    {
+        public AttributeFilter (Schema schema, String attr)
+        {
+            this._attr = attr;
+            this._names = schema.getNames(attr);
+            this._caseExact = schema.isCaseExact(attr);
+        }
+
+        /** Return the attribute this filter tests. */
+        public String getAttribute ()
+        {
+            return _attr;
+        }
+
+        /** Return the entry's values for our attribute under any of its names, or null. */
+        protected Entry.Attribute lookup (Entry entry)
+        {
+            for (String name : _names) {
+                Entry.Attribute attr = entry.get(name);
+                if (attr != null) {
+                    return attr;
+                }
+            }
+            return null;
+        }
+
+        protected String _attr;
+        protected List<String> _names;
+        protected boolean _caseExact;
+    }
+
+    /** Matches entries with an attribute value equal to the given one. */
+    public static class Equality extends AttributeFilter
+    {
+        public Equality (Schema schema, String attr, String value)
+        {
+            super(schema, attr);
+            this._value = value;
+        }
+
+        /** Return the value compared against. */
+        public String getValue ()
+        {
+            return _value;
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            Entry.Attribute attr = lookup(entry);
+            if (attr == null) {
+                return false;
+            }
+            for (String value : attr.getStrings()) {
+                if (_caseExact ? value.equals(_value) : value.equalsIgnoreCase(_value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected String _value;
+    }
+
+    /** Matches entries with an attribute value at least (or at most) the given one. */
+    public static class Ordering extends AttributeFilter
+    {
+        /**
+         * @param sign 1 for greater than or equal, -1 for less than or equal.
+         */
+        public Ordering (Schema schema, String attr, String value, int sign)
+        {
+            super(schema, attr);
+            this._value = value;
+            this._sign = sign;
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            Entry.Attribute attr = lookup(entry);
+            if (attr == null) {
+                return false;
+            }
+            for (String value : attr.getStrings()) {
+                if (compare(value, _value) * _sign >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected static int compare (String a, String b)
+        {
+            try {
+                long la = Long.parseLong(a.trim()), lb = Long.parseLong(b.trim());
+                return (la < lb) ? -1 : ((la == lb) ? 0 : 1);
+            } catch (NumberFormatException e) {
+                return a.compareToIgnoreCase(b);
+            }
+        }
+
+        protected String _value;
+        protected int _sign;
+    }
+
+    /** Matches entries with an attribute value matching initial*any*...*final. */
+    public static class Substring extends AttributeFilter
+    {
+        public Substring (Schema schema, String attr, String initial, List<String> any,
+                          String fin)
+        {
+            super(schema, attr);
+            this._initial = (initial == null) ? null : initial.toLowerCase();
+            this._any = new ArrayList<String>(any.size());
+            for (String part : any) {
+                _any.add(part.toLowerCase());
+            }
+            this._final = (fin == null) ? null : fin.toLowerCase();
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            Entry.Attribute attr = lookup(entry);
+            if (attr == null) {
+                return false;
+            }
+            for (String value : attr.getStrings()) {
+                if (matches(value.toLowerCase())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected boolean matches (String value)
+        {
+            int pos = 0;
+            int end = value.length();
+            if (_initial != null) {
+                if (!value.startsWith(_initial)) {
+                    return false;
+                }
+                pos = _initial.length();
+            }
+            if (_final != null) {
+                if (!value.endsWith(_final) || end - _final.length() < pos) {
+                    return false;
+                }
+                end -= _final.length();
+            }
+            for (String part : _any) {
+                int found = value.indexOf(part, pos);
+                if (found < 0 || found + part.length() > end) {
+                    return false;
+                }
+                pos = found + part.length();
+            }
+            return true;
+        }
+
+        protected String _initial;
+        protected List<String> _any;
+        protected String _final;
+    }
+
+    /** Matches entries that have the attribute at all. */
+    public static class Present extends AttributeFilter
+    {
+        public Present (Schema schema, String attr)
+        {
+            super(schema, attr);
+        }
+
+        @Override
+        public boolean matches (Entry entry)
+        {
+            // Every entry has an objectClass, and (objectClass=*) is how clients ask for anything.
+            return _attr.equalsIgnoreCase("objectClass") || lookup(entry) != null;
+        }
+    }
+
+    /** Used when decoding without a schema: no aliases, and everything ignores case. */
+    protected static final Schema EMPTY_SCHEMA = new Schema();
+
+    // Context specific tags of the filter CHOICE.
+    protected static final int AND = 0xA0;
+    protected static final int OR = 0xA1;
+    protected static final int NOT = 0xA2;
+    protected static final int EQUALITY = 0xA3;
+    protected static final int SUBSTRINGS = 0xA4;
+    protected static final int GREATER_OR_EQUAL = 0xA5;
+    protected static final int LESS_OR_EQUAL = 0xA6;
+    protected static final int PRESENT = 0x87;
+    protected static final int APPROX = 0xA8;
+    protected static final int EXTENSIBLE = 0xA9;
+
+    // Context specific tags of the SubstringFilter components.
+    protected static final int SUB_INITIAL = 0x80;
+    protected static final int SUB_ANY = 0x81;
+    protected static final int SUB_FINAL = 0x82;
+}
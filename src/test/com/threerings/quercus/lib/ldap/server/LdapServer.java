@@ -0,0 +1,1454 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A small LDAPv3 server that answers from an in-memory {@link Directory}, so that tests and
+ * benchmarks can talk to a real LDAP socket without an external slapd. It supports simple binds,
+ * searches, adds, modifies, deletes and unbinds; other operations are refused with
+ * unwillingToPerform. Only the root DN may write, as with slapd's default ACLs. Searches honor the
+ * simple paged results control, and entries with the referral object class are returned as
+ * referrals unless the ManageDsaIT control is sent. Given an SSLContext, it also answers the
+ * StartTLS extended operation. It can be told to support server side sorting and virtual list
+ * views too, which slapd does with the sssvlv overlay. Persistent searches are supported, as
+ * by 389 Directory Server, so that clients can follow changes to the directory.
+ *
+ * To test clients against slower or more restrictive servers, a latency can be added to every
+ * request and the number of entries returned per search can be capped.
+ *
+ * The server listens on the loopback interface only, and runs a daemon thread per connection
+ * plus one per search or write being answered.
+ */
+public class LdapServer
+{
+    // LDAP result codes.
+    public static final int SUCCESS = 0;
+    public static final int OPERATIONS_ERROR = 1;
+    public static final int PROTOCOL_ERROR = 2;
+    public static final int SIZE_LIMIT_EXCEEDED = 4;
+    public static final int REFERRAL = 10;
+    public static final int UNAVAILABLE_CRITICAL_EXTENSION = 12;
+    public static final int NO_SUCH_ATTRIBUTE = 16;
+    public static final int ATTRIBUTE_OR_VALUE_EXISTS = 20;
+    public static final int NO_SUCH_OBJECT = 32;
+    public static final int INVALID_CREDENTIALS = 49;
+    public static final int SORT_CONTROL_MISSING = 60;
+    public static final int OFFSET_RANGE_ERROR = 61;
+    public static final int INSUFFICIENT_ACCESS_RIGHTS = 50;
+    public static final int UNAVAILABLE = 52;
+    public static final int UNWILLING_TO_PERFORM = 53;
+    public static final int NOT_ALLOWED_ON_NON_LEAF = 66;
+    public static final int ENTRY_ALREADY_EXISTS = 68;
+
+    // Operations of the changes in a modify request.
+    protected static final int MOD_ADD = 0;
+    protected static final int MOD_DELETE = 1;
+    protected static final int MOD_REPLACE = 2;
+
+    // Context specific elements of the sort and virtual list view controls.
+    protected static final int SORT_REVERSE = 0x81;
+    protected static final int VLV_BY_OFFSET = 0xA0;
+    protected static final int VLV_GREATER_OR_EQUAL = 0x81;
+
+    /** How often persistent searches check whether they have been abandoned. */
+    protected static final long CHANGE_POLL_MILLIS = 100;
+
+    /** The simple paged results control, RFC 2696. */
+    public static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+    /** The ManageDsaIT control, RFC 3296, which turns referral objects into plain entries. */
+    public static final String MANAGE_DSA_IT_OID = "2.16.840.1.113730.3.4.2";
+
+    /** The server side sort request and response controls, RFC 2891. */
+    public static final String SORT_OID = "1.2.840.113556.1.4.473";
+    public static final String SORT_RESPONSE_OID = "1.2.840.113556.1.4.474";
+
+    /** The virtual list view request and response controls, draft-ietf-ldapext-ldapv3-vlv. */
+    public static final String VLV_OID = "2.16.840.1.113730.3.4.9";
+    public static final String VLV_RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+    /** The StartTLS extended operation, RFC 4511. */
+    public static final String START_TLS_OID = "1.3.6.1.4.1.1466.20037";
+
+    /**
+     * The persistent search control and the entry change notification control sent with the
+     * changed entries, draft-ietf-ldapext-psearch.
+     */
+    public static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+    public static final String ENTRY_CHANGE_OID = "2.16.840.1.113730.3.4.7";
+
+    // The types of change a persistent search can follow.
+    public static final int CHANGE_ADD = 1;
+    public static final int CHANGE_DELETE = 2;
+    public static final int CHANGE_MODIFY = 4;
+    public static final int CHANGE_MODDN = 8;
+
+    /** A control sent with a request. */
+    public static class Control
+    {
+        public final String oid;
+        public final boolean critical;
+        public final byte[] value;
+
+        public Control (String oid, boolean critical, byte[] value)
+        {
+            this.oid = oid;
+            this.critical = critical;
+            this.value = value;
+        }
+    }
+
+    /** One key of a server side sort control. */
+    protected static class SortKey
+    {
+        public final String attr;
+        public final boolean reverse;
+
+        public SortKey (String attr, boolean reverse)
+        {
+            this.attr = attr;
+            this.reverse = reverse;
+        }
+    }
+
+    /** One change to the directory, as seen by a persistent search. */
+    protected static class Change
+    {
+        public final int type;
+        public final Entry entry;
+
+        public Change (int type, Entry entry)
+        {
+            this.type = type;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * A persistent search, queueing the changes it follows until its thread sends them.
+     */
+    protected static class PersistentSearch
+        implements Directory.Listener
+    {
+        public final boolean changesOnly;
+        public final boolean returnECs;
+
+        /**
+         * @param value The value of the persistent search control.
+         */
+        public PersistentSearch (String base, int scope, Filter filter, byte[] value)
+            throws IOException
+        {
+            BerDecoder request = new BerDecoder(value).read(BerTags.SEQUENCE);
+            _changeTypes = (int) request.readInteger(BerTags.INTEGER);
+            changesOnly = request.readBoolean(BerTags.BOOLEAN);
+            returnECs = request.readBoolean(BerTags.BOOLEAN);
+            _base = Directory.normalizeDN(base);
+            _scope = scope;
+            _filter = filter;
+        }
+
+        public void changed (Entry before, Entry after)
+        {
+            int type = (before == null) ? CHANGE_ADD :
+                ((after == null) ? CHANGE_DELETE : CHANGE_MODIFY);
+            // Removed entries are sent as they were.
+            Entry entry = (after == null) ? before : after;
+            if ((_changeTypes & type) != 0 &&
+                Directory.inScope(_base, _scope, entry.getNormalizedDN()) &&
+                _filter.matches(entry)) {
+                _changes.add(new Change(type, entry));
+            }
+        }
+
+        /**
+         * Return the next change, waiting up to the given time for one.
+         *
+         * @return The change, or null if there was none in time.
+         */
+        public Change next (long millis)
+        {
+            try {
+                return _changes.poll(millis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        /** Stop the search, once its thread next wakes up. */
+        public void cancel ()
+        {
+            _cancelled = true;
+        }
+
+        public boolean isCancelled ()
+        {
+            return _cancelled;
+        }
+
+        protected String _base;
+        protected int _scope;
+        protected Filter _filter;
+        protected int _changeTypes;
+        protected volatile boolean _cancelled;
+        protected BlockingQueue<Change> _changes = new LinkedBlockingQueue<Change>();
+    }
+
+    public LdapServer (Directory directory)
+    {
+        this(directory, null);
+    }
+
+    /**
+     * Create a server whose search filters and attribute lists know the aliases and matching
+     * rules defined in the given schema.
+     */
+    public LdapServer (Directory directory, Schema schema)
+    {
+        this._directory = directory;
+        this._schema = (schema == null) ? new Schema() : schema;
+    }
+
+    /** Return the directory this server answers from. */
+    public Directory getDirectory ()
+    {
+        return _directory;
+    }
+
+    /**
+     * Set the DN and password of the administrator, who can bind without having an entry.
+     */
+    public void setRootDN (String dn, String password)
+    {
+        _rootDN = Directory.normalizeDN(dn);
+        _rootPassword = password;
+    }
+
+    /**
+     * Wait this long before answering each request, to simulate a remote or overloaded server.
+     */
+    public void setLatency (long millis)
+    {
+        _latency = millis;
+    }
+
+    /**
+     * Hold searches until the latch opens, or ten seconds pass. Each search counts the latch
+     * down before waiting on it, so a latch of N opens once N searches are in flight at once.
+     * Null, the default, holds nothing.
+     */
+    public void setSearchBarrier (CountDownLatch barrier)
+    {
+        _barrier = barrier;
+    }
+
+    /**
+     * Return at most this many entries from each search, like slapd's sizelimit. Longer results
+     * end with sizeLimitExceeded, and paged searches get pages no bigger than this. 0, the
+     * default, is no limit.
+     */
+    public void setSizeLimit (int limit)
+    {
+        _sizeLimit = limit;
+    }
+
+    /**
+     * Sort the results of searches sent the server side sort control, and cut out the windows
+     * asked for with the virtual list view control. Servers ignore both by default, as slapd
+     * does without the sssvlv overlay. Values are compared ignoring case, and entries without
+     * the attribute come last.
+     */
+    public void setSortSupported (boolean supported)
+    {
+        _sortSupported = supported;
+    }
+
+    /**
+     * Answer StartTLS requests by switching the connection to TLS with the given context, or
+     * refuse them if it is null, the default.
+     */
+    public void setTLS (SSLContext context)
+    {
+        _tls = context;
+    }
+
+    /**
+     * Add a referral object, which sends clients searching at or below dn to the given LDAP URLs
+     * instead.
+     */
+    public void addReferral (String dn, String... urls)
+    {
+        Entry entry = new Entry(dn);
+        entry.add("objectClass", "referral");
+        entry.add("objectClass", "extensibleObject");
+        for (String url : urls) {
+            entry.add("ref", url);
+        }
+        _directory.add(entry);
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @return The port listened on.
+     */
+    public int start ()
+        throws IOException
+    {
+        return start(0);
+    }
+
+    /**
+     * Start listening on the given port of the loopback interface.
+     *
+     * @param port Port to listen on, or 0 for any free port.
+     * @return The port listened on.
+     */
+    public synchronized int start (int port)
+        throws IOException
+    {
+        if (_socket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        // Bind to whatever clients will get when they resolve "localhost".
+        _socket = new ServerSocket(port, 50, InetAddress.getByName("localhost"));
+        Thread acceptor = new Thread("LdapServer acceptor " + _socket.getLocalPort()) {
+            public void run () {
+                acceptConnections();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return _socket.getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections and close those that are open.
+     */
+    public void stop ()
+    {
+        List<Socket> open;
+        synchronized (this) {
+            if (_socket == null) {
+                return;
+            }
+            try {
+                _socket.close();
+            } catch (IOException e) {
+                // We're stopping anyway.
+            }
+            _socket = null;
+            open = new ArrayList<Socket>(_open);
+        }
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ditto.
+            }
+        }
+    }
+
+    /** Return the port listened on, or -1 if not started. */
+    public synchronized int getPort ()
+    {
+        return (_socket == null) ? -1 : _socket.getLocalPort();
+    }
+
+    /** Return an ldap:// URI for the server. */
+    public String getURI ()
+    {
+        return "ldap://localhost:" + getPort();
+    }
+
+    /** Return the number of connections accepted so far. */
+    public int getConnectionCount ()
+    {
+        return _connections.get();
+    }
+
+    /** Return the number of bind requests handled so far. */
+    public int getBindCount ()
+    {
+        return _binds.get();
+    }
+
+    /** Return the number of add, modify and delete requests handled so far. */
+    public int getWriteCount ()
+    {
+        return _writes.get();
+    }
+
+    /** Return the number of connections switched to TLS so far. */
+    public int getStartTLSCount ()
+    {
+        return _startTLS.get();
+    }
+
+    /** Return the number of search requests handled so far. */
+    public int getSearchCount ()
+    {
+        return _searches.get();
+    }
+
+    protected void acceptConnections ()
+    {
+        while (true) {
+            ServerSocket server;
+            synchronized (this) {
+                server = _socket;
+            }
+            if (server == null) {
+                return;
+            }
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                // Closed by stop(), or something we can't recover from.
+                return;
+            }
+            _connections.incrementAndGet();
+            synchronized (this) {
+                _open.add(socket);
+            }
+            Thread handler = new Thread("LdapServer connection " + socket.getPort()) {
+                public void run () {
+                    try {
+                        new Connection(socket).run();
+                    } finally {
+                        synchronized (LdapServer.this) {
+                            _open.remove(socket);
+                        }
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /** The state of one client connection. */
+    protected class Connection
+    {
+        public Connection (Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        public void run ()
+        {
+            try {
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                byte[] message;
+                while ((message = BerDecoder.readElement(in)) != null) {
+                    if (!handle(message)) {
+                        break;
+                    }
+                }
+            } catch (SocketException e) {
+                // The client went away.
+            } catch (IOException e) {
+                // Garbage from the client, or it went away. Either way, drop it.
+            } finally {
+                for (PersistentSearch search : persistentSearches.values()) {
+                    search.cancel();
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing more to do.
+                }
+            }
+        }
+
+        /**
+         * Handle one LDAPMessage.
+         *
+         * @return false if the connection should be closed.
+         */
+        protected boolean handle (byte[] message)
+            throws IOException
+        {
+            BerDecoder msg = new BerDecoder(message).read(BerTags.SEQUENCE);
+            int id = (int) msg.readInteger(BerTags.INTEGER);
+            BerDecoder op = msg.read(-1);
+            List<Control> controls = new ArrayList<Control>();
+            if (msg.hasMore() && msg.peekTag() == BerTags.CONTROLS) {
+                BerDecoder ctls = msg.read(BerTags.CONTROLS);
+                while (ctls.hasMore()) {
+                    BerDecoder ctl = ctls.read(BerTags.SEQUENCE);
+                    String oid = ctl.readString(BerTags.OCTET_STRING);
+                    boolean critical = false;
+                    byte[] value = null;
+                    if (ctl.hasMore() && ctl.peekTag() == BerTags.BOOLEAN) {
+                        critical = ctl.readBoolean(BerTags.BOOLEAN);
+                    }
+                    if (ctl.hasMore()) {
+                        value = ctl.readOctets(BerTags.OCTET_STRING);
+                    }
+                    controls.add(new Control(oid, critical, value));
+                }
+            }
+
+            int tag = op.getTag();
+            if (tag != BerTags.UNBIND_REQUEST && tag != BerTags.ABANDON_REQUEST &&
+                tag != BerTags.SEARCH_REQUEST && !isWrite(tag)) {
+                delay();
+            }
+
+            switch (tag) {
+            case BerTags.UNBIND_REQUEST:
+                return false;
+
+            case BerTags.ABANDON_REQUEST:
+                // Only persistent searches last long enough to be abandoned.
+                PersistentSearch search = persistentSearches.remove((int) op.toInteger());
+                if (search != null) {
+                    search.cancel();
+                }
+                return true;
+
+            case BerTags.BIND_REQUEST:
+                _binds.incrementAndGet();
+                handleBind(id, op);
+                break;
+
+            case BerTags.SEARCH_REQUEST:
+                _searches.incrementAndGet();
+                startAsync(id, tag, op, controls);
+                return true;
+
+            case BerTags.MODIFY_REQUEST:
+            case BerTags.ADD_REQUEST:
+            case BerTags.DELETE_REQUEST:
+                _writes.incrementAndGet();
+                startAsync(id, tag, op, controls);
+                return true;
+
+            case BerTags.MODIFY_DN_REQUEST:
+                writeResult(id, BerTags.MODIFY_DN_RESPONSE, UNWILLING_TO_PERFORM, "Read only");
+                break;
+
+            case BerTags.COMPARE_REQUEST:
+                writeResult(id, BerTags.COMPARE_RESPONSE, UNWILLING_TO_PERFORM,
+                            "Compare is not supported");
+                break;
+
+            case BerTags.EXTENDED_REQUEST:
+                String name = op.readString(BerTags.EXTENDED_REQUEST_NAME);
+                if (!START_TLS_OID.equals(name)) {
+                    writeResult(id, BerTags.EXTENDED_RESPONSE, PROTOCOL_ERROR,
+                                "Unsupported extended operation");
+                } else if (_tls == null) {
+                    writeResult(id, BerTags.EXTENDED_RESPONSE, UNAVAILABLE,
+                                "TLS is not configured");
+                } else {
+                    startTLS(id);
+                }
+                break;
+
+            default:
+                // Not something we understand, so the client and we are out of sync.
+                return false;
+            }
+            flush();
+            return true;
+        }
+
+        /**
+         * Acknowledge a StartTLS request and switch the connection to TLS. The client sends
+         * nothing until it has our answer, so nothing is left unread in the plain stream.
+         */
+        protected void startTLS (int id)
+            throws IOException
+        {
+            synchronized (this) {
+                enc.reset();
+                enc.beginSequence(BerTags.SEQUENCE);
+                enc.writeInteger(BerTags.INTEGER, id);
+                enc.beginSequence(BerTags.EXTENDED_RESPONSE);
+                enc.writeInteger(BerTags.ENUMERATED, SUCCESS);
+                enc.writeString(BerTags.OCTET_STRING, "");
+                enc.writeString(BerTags.OCTET_STRING, "");
+                enc.writeString(BerTags.EXTENDED_RESPONSE_NAME, START_TLS_OID);
+                enc.endSequence();
+                enc.endSequence();
+                enc.writeTo(out);
+                out.flush();
+            }
+            SSLSocket ssl = (SSLSocket) _tls.getSocketFactory().createSocket(
+                socket, socket.getInetAddress().getHostName(), socket.getPort(), true);
+            ssl.setUseClientMode(false);
+            ssl.startHandshake();
+            socket = ssl;
+            in = new BufferedInputStream(ssl.getInputStream());
+            out = new BufferedOutputStream(ssl.getOutputStream());
+            _startTLS.incrementAndGet();
+        }
+
+        /**
+         * Answer a search or write on its own thread, as a real server would, so that several
+         * operations sent on one connection overlap.
+         */
+        protected void startAsync (final int id, final int tag, final BerDecoder op,
+                                   final List<Control> controls)
+        {
+            Thread searcher = new Thread("LdapServer operation " + id) {
+                public void run () {
+                    delay();
+                    try {
+                        switch (tag) {
+                        case BerTags.SEARCH_REQUEST:
+                            awaitBarrier();
+                            handleSearch(id, op, controls);
+                            break;
+                        case BerTags.ADD_REQUEST:
+                            handleAdd(id, op);
+                            break;
+                        case BerTags.MODIFY_REQUEST:
+                            handleModify(id, op);
+                            break;
+                        default:
+                            handleDelete(id, op);
+                            break;
+                        }
+                        flush();
+                    } catch (IOException e) {
+                        // Garbage from the client, or it went away. Either way, drop it.
+                        try {
+                            socket.close();
+                        } catch (IOException ioe) {
+                            // Nothing more to do.
+                        }
+                    }
+                }
+            };
+            searcher.setDaemon(true);
+            searcher.start();
+        }
+
+        protected synchronized void flush ()
+            throws IOException
+        {
+            out.flush();
+        }
+
+        protected void handleBind (int id, BerDecoder op)
+            throws IOException
+        {
+            op.readInteger(BerTags.INTEGER); // version
+            String dn = op.readString(BerTags.OCTET_STRING);
+            if (op.peekTag() != BerTags.SIMPLE_AUTH) {
+                writeResult(id, BerTags.BIND_RESPONSE, UNWILLING_TO_PERFORM,
+                            "Only simple binds are supported");
+                return;
+            }
+            String password = op.readString(BerTags.SIMPLE_AUTH);
+            boolean valid = checkCredentials(dn, password);
+            boundDN = valid ? Directory.normalizeDN(dn) : "";
+            writeResult(id, BerTags.BIND_RESPONSE, valid ? SUCCESS : INVALID_CREDENTIALS, "");
+        }
+
+        protected void handleAdd (int id, BerDecoder op)
+            throws IOException
+        {
+            Entry entry = new Entry(op.readString(BerTags.OCTET_STRING));
+            BerDecoder attrs = op.read(BerTags.SEQUENCE);
+            while (attrs.hasMore()) {
+                BerDecoder attr = attrs.read(BerTags.SEQUENCE);
+                String name = attr.readString(BerTags.OCTET_STRING);
+                BerDecoder values = attr.read(BerTags.SET);
+                while (values.hasMore()) {
+                    entry.add(name, values.readOctets(BerTags.OCTET_STRING));
+                }
+            }
+            int code;
+            if (!canWrite()) {
+                code = INSUFFICIENT_ACCESS_RIGHTS;
+            } else if (!hasParent(entry.getNormalizedDN())) {
+                code = NO_SUCH_OBJECT;
+            } else {
+                code = _directory.create(entry) ? SUCCESS : ENTRY_ALREADY_EXISTS;
+            }
+            writeResult(id, BerTags.ADD_RESPONSE, code, "");
+        }
+
+        protected void handleModify (int id, BerDecoder op)
+            throws IOException
+        {
+            String dn = op.readString(BerTags.OCTET_STRING);
+            BerDecoder changes = op.read(BerTags.SEQUENCE);
+            if (!canWrite()) {
+                writeResult(id, BerTags.MODIFY_RESPONSE, INSUFFICIENT_ACCESS_RIGHTS, "");
+                return;
+            }
+            int code = SUCCESS;
+            // Writers take turns, so that concurrent modifies of an entry don't lose changes.
+            synchronized (_directory) {
+                Entry entry = _directory.get(dn);
+                if (entry == null) {
+                    code = NO_SUCH_OBJECT;
+                } else {
+                    entry = entry.copy();
+                    while (changes.hasMore() && code == SUCCESS) {
+                        code = applyChange(entry, changes.read(BerTags.SEQUENCE));
+                    }
+                    if (code == SUCCESS) {
+                        _directory.add(entry);
+                    }
+                }
+            }
+            writeResult(id, BerTags.MODIFY_RESPONSE, code, "");
+        }
+
+        /**
+         * Apply one change of a modify request to an entry.
+         *
+         * @return The result code, SUCCESS if the change applied.
+         */
+        protected int applyChange (Entry entry, BerDecoder change)
+            throws IOException
+        {
+            int operation = (int) change.readInteger(BerTags.ENUMERATED);
+            BerDecoder attr = change.read(BerTags.SEQUENCE);
+            String name = attr.readString(BerTags.OCTET_STRING);
+            List<byte[]> values = new ArrayList<byte[]>();
+            BerDecoder set = attr.read(BerTags.SET);
+            while (set.hasMore()) {
+                values.add(set.readOctets(BerTags.OCTET_STRING));
+            }
+            Entry.Attribute existing = entry.get(name);
+            switch (operation) {
+            case MOD_ADD:
+                for (byte[] value : values) {
+                    if (existing != null && existing.contains(value)) {
+                        return ATTRIBUTE_OR_VALUE_EXISTS;
+                    }
+                    entry.add(name, value);
+                }
+                return SUCCESS;
+
+            case MOD_DELETE:
+                if (existing == null) {
+                    return NO_SUCH_ATTRIBUTE;
+                }
+                if (values.isEmpty()) {
+                    entry.remove(name);
+                    return SUCCESS;
+                }
+                for (byte[] value : values) {
+                    if (!existing.remove(value)) {
+                        return NO_SUCH_ATTRIBUTE;
+                    }
+                }
+                if (existing.size() == 0) {
+                    entry.remove(name);
+                }
+                return SUCCESS;
+
+            case MOD_REPLACE:
+                entry.remove(name);
+                for (byte[] value : values) {
+                    entry.add(name, value);
+                }
+                return SUCCESS;
+
+            default:
+                return PROTOCOL_ERROR;
+            }
+        }
+
+        protected void handleDelete (int id, BerDecoder op)
+            throws IOException
+        {
+            String dn = op.toText();
+            int code;
+            if (!canWrite()) {
+                code = INSUFFICIENT_ACCESS_RIGHTS;
+            } else if (_directory.hasChildren(dn)) {
+                code = NOT_ALLOWED_ON_NON_LEAF;
+            } else {
+                code = (_directory.remove(dn) != null) ? SUCCESS : NO_SUCH_OBJECT;
+            }
+            writeResult(id, BerTags.DELETE_RESPONSE, code, "");
+        }
+
+        /**
+         * Return true if the parent of a new entry exists, or none of its ancestors do, in which
+         * case it starts a new naming context.
+         */
+        protected boolean hasParent (String dn)
+        {
+            String parent = Directory.parentDN(dn);
+            if (parent.length() == 0 || _directory.get(parent) != null) {
+                return true;
+            }
+            for (String above = Directory.parentDN(parent); above.length() > 0;
+                 above = Directory.parentDN(above)) {
+                if (_directory.get(above) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Return true if the client is bound as someone allowed to change the directory. */
+        protected boolean canWrite ()
+        {
+            return _rootDN.length() > 0 && _rootDN.equals(boundDN);
+        }
+
+        protected void handleSearch (int id, BerDecoder op, List<Control> controls)
+            throws IOException
+        {
+            String base = op.readString(BerTags.OCTET_STRING);
+            int scope = (int) op.readInteger(BerTags.ENUMERATED);
+            op.readInteger(BerTags.ENUMERATED); // derefAliases, we have no aliases
+            int sizeLimit = (int) op.readInteger(BerTags.INTEGER);
+            op.readInteger(BerTags.INTEGER); // timeLimit, we are always quick enough
+            boolean typesOnly = op.readBoolean(BerTags.BOOLEAN);
+            Filter filter = Filter.decode(op, _schema);
+            BerDecoder attrList = op.read(BerTags.SEQUENCE);
+            List<String> attrs = new ArrayList<String>();
+            while (attrList.hasMore()) {
+                attrs.add(attrList.readString(BerTags.OCTET_STRING));
+            }
+
+            Control paged = null;
+            Control sort = null;
+            Control vlv = null;
+            Control psearch = null;
+            boolean manageDsaIT = false;
+            for (Control control : controls) {
+                if (control.oid.equals(PAGED_RESULTS_OID)) {
+                    paged = control;
+                } else if (control.oid.equals(MANAGE_DSA_IT_OID)) {
+                    manageDsaIT = true;
+                } else if (control.oid.equals(SORT_OID) && _sortSupported) {
+                    sort = control;
+                } else if (control.oid.equals(VLV_OID) && _sortSupported) {
+                    vlv = control;
+                } else if (control.oid.equals(PERSISTENT_SEARCH_OID)) {
+                    psearch = control;
+                } else if (control.critical) {
+                    writeResult(id, BerTags.SEARCH_RESULT_DONE, UNAVAILABLE_CRITICAL_EXTENSION,
+                                "Unsupported control " + control.oid, null, null);
+                    return;
+                }
+            }
+
+            if (!manageDsaIT) {
+                Entry referral = findReferral(base);
+                if (referral != null) {
+                    writeResult(id, BerTags.SEARCH_RESULT_DONE, REFERRAL, "Referral",
+                                referral.get("ref").getStrings(), null);
+                    return;
+                }
+            }
+
+            PersistentSearch persistent = null;
+            if (psearch != null) {
+                persistent = new PersistentSearch(base, scope, filter, psearch.value);
+                // Listen before looking, so that no change falls between the entries and the
+                // changes sent after them.
+                _directory.addListener(persistent);
+                persistentSearches.put(id, persistent);
+            }
+
+            List<Entry> matches;
+            if (persistent != null && persistent.changesOnly) {
+                matches = new ArrayList<Entry>();
+            } else if (Directory.normalizeDN(base).length() == 0 &&
+                       scope == Directory.SCOPE_BASE) {
+                matches = new ArrayList<Entry>();
+                Entry rootDSE = getRootDSE();
+                if (filter.matches(rootDSE)) {
+                    matches.add(rootDSE);
+                }
+            } else {
+                matches = _directory.search(base, scope, filter);
+            }
+            if (matches == null) {
+                if (persistent != null) {
+                    _directory.removeListener(persistent);
+                    persistentSearches.remove(id);
+                }
+                writeResult(id, BerTags.SEARCH_RESULT_DONE, NO_SUCH_OBJECT, "No such object",
+                            null, null);
+                return;
+            }
+
+            List<Control> responses = new ArrayList<Control>();
+            if (sort != null) {
+                final List<SortKey> keys = decodeSortKeys(sort.value);
+                matches = new ArrayList<Entry>(matches);
+                Collections.sort(matches, new Comparator<Entry>() {
+                    public int compare (Entry e1, Entry e2) {
+                        return compareEntries(keys, e1, e2);
+                    }
+                });
+                BerEncoder value = new BerEncoder();
+                value.beginSequence(BerTags.SEQUENCE);
+                value.writeInteger(BerTags.ENUMERATED, SUCCESS);
+                value.endSequence();
+                responses.add(new Control(SORT_RESPONSE_OID, false, value.toByteArray()));
+                if (vlv != null) {
+                    int[] window = selectWindow(vlv.value, keys.get(0), matches);
+                    value = new BerEncoder();
+                    value.beginSequence(BerTags.SEQUENCE);
+                    value.writeInteger(BerTags.INTEGER, window[2]);
+                    value.writeInteger(BerTags.INTEGER, matches.size());
+                    value.writeInteger(BerTags.ENUMERATED, SUCCESS);
+                    value.endSequence();
+                    responses.add(new Control(VLV_RESPONSE_OID, false, value.toByteArray()));
+                    matches = matches.subList(window[0], window[1]);
+                }
+            } else if (vlv != null) {
+                writeResult(id, BerTags.SEARCH_RESULT_DONE, SORT_CONTROL_MISSING,
+                            "Virtual list views need sorting", null, null);
+                return;
+            }
+
+            // Work out which slice of the matches to send, and what limits that.
+            int offset = 0;
+            int limit = matches.size();
+            int pageSize = 0;
+            if (paged != null) {
+                BerDecoder value = new BerDecoder(paged.value).read(BerTags.SEQUENCE);
+                pageSize = (int) value.readInteger(BerTags.INTEGER);
+                offset = decodeCookie(value.readOctets(BerTags.OCTET_STRING));
+                limit = Math.min(offset + pageSize, limit);
+            }
+            if (sizeLimit > 0) {
+                limit = Math.min(offset + sizeLimit, limit);
+            }
+            if (_sizeLimit > 0) {
+                limit = Math.min(offset + _sizeLimit, limit);
+            }
+
+            AttributeSelector selector = new AttributeSelector(_schema, attrs, typesOnly);
+            for (int ii = offset; ii < limit; ii++) {
+                Entry entry = matches.get(ii);
+                Entry.Attribute refs = manageDsaIT ? null : getReferralURLs(entry);
+                if (refs != null) {
+                    writeReference(id, refs.getStrings());
+                } else {
+                    writeEntry(id, entry, selector);
+                }
+            }
+
+            if (persistent != null) {
+                // The search never ends, sending changes until it is abandoned.
+                flush();
+                sendChanges(id, persistent, selector);
+                return;
+            }
+            if (paged != null) {
+                // A page size of 0 abandons the search, otherwise the cookie is where the next
+                // page starts, or empty once everything has been sent.
+                byte[] cookie = (pageSize == 0 || limit >= matches.size()) ?
+                    new byte[0] : BerEncoder.utf8(Integer.toString(limit));
+                BerEncoder value = new BerEncoder();
+                value.beginSequence(BerTags.SEQUENCE);
+                value.writeInteger(BerTags.INTEGER, matches.size());
+                value.writeOctets(BerTags.OCTET_STRING, cookie);
+                value.endSequence();
+                responses.add(new Control(PAGED_RESULTS_OID, false, value.toByteArray()));
+                writeResult(id, BerTags.SEARCH_RESULT_DONE, SUCCESS, "", null, responses);
+            } else {
+                int code = (limit < matches.size()) ? SIZE_LIMIT_EXCEEDED : SUCCESS;
+                writeResult(id, BerTags.SEARCH_RESULT_DONE, code, "", null, responses);
+            }
+        }
+
+        /**
+         * Send the changes a persistent search follows as they happen, until it is abandoned or
+         * the connection closed.
+         */
+        protected void sendChanges (int id, PersistentSearch search, AttributeSelector selector)
+            throws IOException
+        {
+            try {
+                while (!search.isCancelled()) {
+                    Change change = search.next(CHANGE_POLL_MILLIS);
+                    if (change == null) {
+                        continue;
+                    }
+                    List<Control> controls = null;
+                    if (search.returnECs) {
+                        // SEQUENCE { changeType ENUMERATED }, as entries are never renamed.
+                        BerEncoder value = new BerEncoder();
+                        value.beginSequence(BerTags.SEQUENCE);
+                        value.writeInteger(BerTags.ENUMERATED, change.type);
+                        value.endSequence();
+                        controls = Collections.singletonList(
+                            new Control(ENTRY_CHANGE_OID, false, value.toByteArray()));
+                    }
+                    writeEntry(id, change.entry, selector, controls);
+                    flush();
+                }
+            } finally {
+                _directory.removeListener(search);
+                persistentSearches.remove(id);
+            }
+        }
+
+        protected synchronized void writeReference (int id, List<String> urls)
+            throws IOException
+        {
+            enc.reset();
+            enc.beginSequence(BerTags.SEQUENCE);
+            enc.writeInteger(BerTags.INTEGER, id);
+            enc.beginSequence(BerTags.SEARCH_RESULT_REFERENCE);
+            for (String url : urls) {
+                enc.writeString(BerTags.OCTET_STRING, url);
+            }
+            enc.endSequence();
+            enc.endSequence();
+            enc.writeTo(out);
+        }
+
+        protected void writeEntry (int id, Entry entry, AttributeSelector selector)
+            throws IOException
+        {
+            writeEntry(id, entry, selector, null);
+        }
+
+        /**
+         * Write a search result entry, with controls if they are not null or empty.
+         */
+        protected synchronized void writeEntry (int id, Entry entry, AttributeSelector selector,
+                                                List<Control> controls)
+            throws IOException
+        {
+            enc.reset();
+            enc.beginSequence(BerTags.SEQUENCE);
+            enc.writeInteger(BerTags.INTEGER, id);
+            enc.beginSequence(BerTags.SEARCH_RESULT_ENTRY);
+            enc.writeString(BerTags.OCTET_STRING, entry.getDN());
+            enc.beginSequence(BerTags.SEQUENCE);
+            for (Entry.Attribute attr : entry.getAttributes()) {
+                if (!selector.includes(attr.getName())) {
+                    continue;
+                }
+                enc.beginSequence(BerTags.SEQUENCE);
+                enc.writeString(BerTags.OCTET_STRING, attr.getName());
+                enc.beginSequence(BerTags.SET);
+                if (!selector.typesOnly) {
+                    for (byte[] value : attr.getValues()) {
+                        enc.writeOctets(BerTags.OCTET_STRING, value);
+                    }
+                }
+                enc.endSequence();
+                enc.endSequence();
+            }
+            enc.endSequence();
+            enc.endSequence();
+            writeControls(controls);
+            enc.endSequence();
+            enc.writeTo(out);
+        }
+
+        protected void writeResult (int id, int tag, int code, String message)
+            throws IOException
+        {
+            writeResult(id, tag, code, message, null, null);
+        }
+
+        /**
+         * Write an LDAPResult, with the URLs to follow for a referral and response controls if
+         * they are not null or empty.
+         */
+        protected synchronized void writeResult (int id, int tag, int code, String message,
+                                                 List<String> referrals, List<Control> controls)
+            throws IOException
+        {
+            enc.reset();
+            enc.beginSequence(BerTags.SEQUENCE);
+            enc.writeInteger(BerTags.INTEGER, id);
+            enc.beginSequence(tag);
+            enc.writeInteger(BerTags.ENUMERATED, code);
+            enc.writeString(BerTags.OCTET_STRING, "");
+            enc.writeString(BerTags.OCTET_STRING, message);
+            if (referrals != null) {
+                enc.beginSequence(BerTags.REFERRAL);
+                for (String url : referrals) {
+                    enc.writeString(BerTags.OCTET_STRING, url);
+                }
+                enc.endSequence();
+            }
+            enc.endSequence();
+            writeControls(controls);
+            enc.endSequence();
+            enc.writeTo(out);
+        }
+
+        /**
+         * Encode the controls of a message, if there are any.
+         */
+        protected void writeControls (List<Control> controls)
+        {
+            if (controls == null || controls.isEmpty()) {
+                return;
+            }
+            enc.beginSequence(BerTags.CONTROLS);
+            for (Control control : controls) {
+                enc.beginSequence(BerTags.SEQUENCE);
+                enc.writeString(BerTags.OCTET_STRING, control.oid);
+                if (control.critical) {
+                    enc.writeBoolean(BerTags.BOOLEAN, true);
+                }
+                enc.writeOctets(BerTags.OCTET_STRING, control.value);
+                enc.endSequence();
+            }
+            enc.endSequence();
+        }
+
+        protected Socket socket;
+
+        /** The normalized DN the client last bound as, empty if anonymous. */
+        protected volatile String boundDN = "";
+
+        /** The persistent searches running on the connection, by message ID. */
+        protected Map<Integer, PersistentSearch> persistentSearches =
+            new ConcurrentHashMap<Integer, PersistentSearch>();
+
+        protected InputStream in;
+        protected OutputStream out;
+        protected BerEncoder enc = new BerEncoder();
+    }
+
+    /** Decides which attributes of an entry go back to the client. */
+    protected static class AttributeSelector
+    {
+        public final boolean typesOnly;
+
+        public AttributeSelector (Schema schema, List<String> attrs, boolean typesOnly)
+        {
+            this.typesOnly = typesOnly;
+            for (String attr : attrs) {
+                if (attr.equals("*")) {
+                    _all = true;
+                } else if (!attr.equals("1.1") && !attr.equals("+")) {
+                    // Asking for "cn" should also return values stored as "commonName".
+                    _names.addAll(schema.getNames(attr));
+                }
+            }
+            // No attributes at all means all of them, but "1.1" on its own means none.
+            if (attrs.isEmpty()) {
+                _all = true;
+            }
+        }
+
+        public boolean includes (String name)
+        {
+            return _all || _names.contains(name.toLowerCase());
+        }
+
+        protected boolean _all;
+        protected Set<String> _names = new HashSet<String>();
+    }
+
+    /**
+     * Return true if the DN and password may bind. An empty DN binds anonymously.
+     */
+    protected boolean checkCredentials (String dn, String password)
+    {
+        String normalized = Directory.normalizeDN(dn);
+        if (normalized.length() == 0) {
+            return true;
+        }
+        if (password.length() == 0) {
+            // An unauthenticated bind, which we don't allow.
+            return false;
+        }
+        if (normalized.equals(_rootDN)) {
+            return password.equals(_rootPassword);
+        }
+        Entry entry = _directory.get(dn);
+        Entry.Attribute userPassword = (entry == null) ? null : entry.get("userPassword");
+        return (userPassword != null) && userPassword.getStrings().contains(password);
+    }
+
+    /**
+     * Return the root DSE, describing the server.
+     */
+    protected Entry getRootDSE ()
+    {
+        Entry rootDSE = new Entry("");
+        rootDSE.add("objectClass", "top");
+        rootDSE.add("supportedLDAPVersion", "3");
+        rootDSE.add("supportedControl", PAGED_RESULTS_OID);
+        rootDSE.add("supportedControl", MANAGE_DSA_IT_OID);
+        rootDSE.add("supportedControl", PERSISTENT_SEARCH_OID);
+        if (_sortSupported) {
+            rootDSE.add("supportedControl", SORT_OID);
+            rootDSE.add("supportedControl", VLV_OID);
+        }
+        if (_tls != null) {
+            rootDSE.add("supportedExtension", START_TLS_OID);
+        }
+        for (String context : getNamingContexts()) {
+            rootDSE.add("namingContexts", context);
+        }
+        return rootDSE;
+    }
+
+    /**
+     * Return the DNs of the top level entries of the directory.
+     */
+    protected List<String> getNamingContexts ()
+    {
+        List<String> contexts = new ArrayList<String>();
+        Filter any = new Filter.Present(_schema, "objectClass");
+        for (Entry entry : _directory.searchAll(any)) {
+            String parent = Directory.parentDN(entry.getNormalizedDN());
+            if (parent.length() == 0 || _directory.get(parent) == null) {
+                contexts.add(entry.getDN());
+            }
+        }
+        return contexts;
+    }
+
+    /**
+     * Return the referral object at or above dn, or null if there is none.
+     */
+    protected Entry findReferral (String dn)
+    {
+        for (String name = Directory.normalizeDN(dn); name.length() > 0;
+             name = Directory.parentDN(name)) {
+            Entry entry = _directory.get(name);
+            if (entry != null && getReferralURLs(entry) != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the URLs of an entry if it is a referral object, or null if it is a plain entry.
+     */
+    protected static Entry.Attribute getReferralURLs (Entry entry)
+    {
+        Entry.Attribute classes = entry.get("objectClass");
+        if (classes == null) {
+            return null;
+        }
+        for (String name : classes.getStrings()) {
+            if (name.equalsIgnoreCase("referral")) {
+                return entry.get("ref");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the offset encoded in a paged results cookie. Cookies are just the offset in
+     * decimal, so paging needs no state on the server but may skip or repeat entries if the
+     * directory changes in between pages.
+     */
+    /**
+     * Decode the value of a server side sort control: a sequence of attribute names, each with
+     * an optional ordering rule, which we ignore, and whether to reverse the order.
+     */
+    protected static List<SortKey> decodeSortKeys (byte[] value)
+        throws IOException
+    {
+        List<SortKey> keys = new ArrayList<SortKey>();
+        BerDecoder list = new BerDecoder(value).read(BerTags.SEQUENCE);
+        while (list.hasMore()) {
+            BerDecoder key = list.read(BerTags.SEQUENCE);
+            String attr = key.readString(BerTags.OCTET_STRING);
+            boolean reverse = false;
+            while (key.hasMore()) {
+                if (key.peekTag() == SORT_REVERSE) {
+                    reverse = key.readBoolean(SORT_REVERSE);
+                } else {
+                    key.skip();
+                }
+            }
+            keys.add(new SortKey(attr, reverse));
+        }
+        if (keys.isEmpty()) {
+            throw new IOException("Empty sort key list");
+        }
+        return keys;
+    }
+
+    /**
+     * Compare two entries by the first value of each sort key in turn, ignoring case, with
+     * entries lacking the attribute last.
+     */
+    protected static int compareEntries (List<SortKey> keys, Entry e1, Entry e2)
+    {
+        for (SortKey key : keys) {
+            String v1 = getSortValue(e1, key.attr);
+            String v2 = getSortValue(e2, key.attr);
+            int cmp;
+            if (v1 == null || v2 == null) {
+                // Missing values come last whichever way the key sorts.
+                cmp = (v1 == null) ? ((v2 == null) ? 0 : 1) : -1;
+            } else {
+                cmp = v1.compareToIgnoreCase(v2);
+                if (key.reverse) {
+                    cmp = -cmp;
+                }
+            }
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    protected static String getSortValue (Entry entry, String attr)
+    {
+        Entry.Attribute values = entry.get(attr);
+        return (values == null || values.size() == 0) ? null : values.getStrings().get(0);
+    }
+
+    /**
+     * Work out the window of sorted matches a virtual list view control asks for.
+     *
+     * @return The start and end of the window in matches, and the one-based position of its
+     *         target.
+     */
+    protected static int[] selectWindow (byte[] value, SortKey key, List<Entry> matches)
+        throws IOException
+    {
+        BerDecoder request = new BerDecoder(value).read(BerTags.SEQUENCE);
+        int before = (int) request.readInteger(BerTags.INTEGER);
+        int after = (int) request.readInteger(BerTags.INTEGER);
+        int size = matches.size();
+        int target;
+        if (request.peekTag() == VLV_BY_OFFSET) {
+            BerDecoder byOffset = request.read(VLV_BY_OFFSET);
+            int offset = (int) byOffset.readInteger(BerTags.INTEGER);
+            int count = (int) byOffset.readInteger(BerTags.INTEGER);
+            // Scale the offset if the client's idea of the size is out of date.
+            target = (count == 0 || count == size) ? offset :
+                (int) Math.round((double) offset * size / count);
+            // An offset past the end targets the last entry.
+            target = Math.max(1, Math.min(target, size));
+        } else {
+            String assertion = new String(request.readOctets(VLV_GREATER_OR_EQUAL), "UTF-8");
+            target = 1;
+            while (target <= size) {
+                String v = getSortValue(matches.get(target - 1), key.attr);
+                int cmp = (v == null) ? 1 : v.compareToIgnoreCase(assertion);
+                if (key.reverse ? cmp <= 0 : cmp >= 0) {
+                    break;
+                }
+                target++;
+            }
+        }
+        int start = Math.max(0, target - 1 - before);
+        int end = Math.min(size, target + after);
+        return new int[] { start, Math.max(start, end), target };
+    }
+
+    protected static int decodeCookie (byte[] cookie)
+        throws IOException
+    {
+        if (cookie.length == 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(new String(cookie, "UTF-8"));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad paged results cookie");
+        }
+    }
+
+    /** Return true if the tag is that of an add, modify or delete request. */
+    protected static boolean isWrite (int tag)
+    {
+        return (tag == BerTags.ADD_REQUEST || tag == BerTags.MODIFY_REQUEST ||
+                tag == BerTags.DELETE_REQUEST);
+    }
+
+    /** Sleep for the configured latency, if any. */
+    protected void delay ()
+    {
+        long latency = _latency;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                // Answer early then.
+            }
+        }
+    }
+
+    /** Wait for the search barrier, if any, to open. */
+    protected void awaitBarrier ()
+    {
+        CountDownLatch barrier = _barrier;
+        if (barrier != null) {
+            barrier.countDown();
+            try {
+                barrier.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Answer early then.
+            }
+        }
+    }
+
+    protected Directory _directory;
+    protected Schema _schema;
+    protected volatile long _latency;
+    protected volatile CountDownLatch _barrier;
+    protected volatile int _sizeLimit;
+    protected volatile boolean _sortSupported;
+    protected volatile SSLContext _tls;
+    protected String _rootDN = "";
+    protected String _rootPassword = "";
+
+    protected ServerSocket _socket;
+    protected Set<Socket> _open = new HashSet<Socket>();
+
+    protected AtomicInteger _connections = new AtomicInteger();
+    protected AtomicInteger _binds = new AtomicInteger();
+    protected AtomicInteger _searches = new AtomicInteger();
+    protected AtomicInteger _writes = new AtomicInteger();
+    protected AtomicInteger _startTLS = new AtomicInteger();
+}
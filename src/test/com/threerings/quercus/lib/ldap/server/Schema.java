@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The attribute types and object class names read from OpenLDAP schema files. Only what the
+ * server needs is kept: the names of each attribute type, how its values are compared and
+ * whether they are binary.
+ */
+public class Schema
+{
+    /** The parts of an attributetype definition that we use. */
+    public static class AttributeType
+    {
+        /** Lowercased names, the first being the primary one. */
+        public final List<String> names = new ArrayList<String>();
+
+        /** Name of the supertype, or null. */
+        public String sup;
+
+        /** Name of the equality matching rule, or null to inherit it from the supertype. */
+        public String equality;
+
+        /** OID of the syntax, without any length bound, or null to inherit it. */
+        public String syntax;
+
+        public boolean singleValue;
+    }
+
+    /**
+     * Read every *.schema file in a directory.
+     */
+    public void loadDirectory (File dir)
+        throws IOException
+    {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list schema directory " + dir);
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".schema")) {
+                load(file);
+            }
+        }
+    }
+
+    /**
+     * Read the attributetype and objectclass definitions in a schema file.
+     */
+    public void load (File file)
+        throws IOException
+    {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            load(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the attributetype and objectclass definitions from slapd.conf style schema text.
+     * Definitions continue onto following lines that start with whitespace.
+     */
+    public void load (Reader reader)
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(reader);
+        StringBuilder definition = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            if (line.length() > 0 && Character.isWhitespace(line.charAt(0))) {
+                if (definition != null) {
+                    definition.append(' ').append(line.trim());
+                }
+                continue;
+            }
+            if (definition != null) {
+                define(definition.toString());
+            }
+            definition = (line.trim().length() == 0) ? null : new StringBuilder(line.trim());
+        }
+        if (definition != null) {
+            define(definition.toString());
+        }
+    }
+
+    /**
+     * Return the attribute type with the given name or alias, or null if it is not known.
+     */
+    public AttributeType getAttributeType (String name)
+    {
+        return _types.get(name.toLowerCase());
+    }
+
+    /**
+     * Return the names an attribute may be stored under: every alias of its type, or just the
+     * lowercased name if the type is unknown.
+     */
+    public List<String> getNames (String name)
+    {
+        AttributeType type = getAttributeType(name);
+        if (type != null) {
+            return type.names;
+        }
+        List<String> names = new ArrayList<String>(1);
+        names.add(name.toLowerCase());
+        return names;
+    }
+
+    /**
+     * Return the equality matching rule of an attribute, following supertypes, or null.
+     */
+    public String getEquality (String name)
+    {
+        for (AttributeType type = getAttributeType(name); type != null;
+             type = (type.sup == null) ? null : getAttributeType(type.sup)) {
+            if (type.equality != null) {
+                return type.equality;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the syntax OID of an attribute, following supertypes, or null.
+     */
+    public String getSyntax (String name)
+    {
+        for (AttributeType type = getAttributeType(name); type != null;
+             type = (type.sup == null) ? null : getAttributeType(type.sup)) {
+            if (type.syntax != null) {
+                return type.syntax;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if values of the attribute are compared exactly rather than ignoring case.
+     */
+    public boolean isCaseExact (String name)
+    {
+        String equality = getEquality(name);
+        return (equality != null) && (equality.equalsIgnoreCase("caseExactMatch") ||
+            equality.equalsIgnoreCase("caseExactIA5Match") ||
+            equality.equalsIgnoreCase("octetStringMatch"));
+    }
+
+    /**
+     * Return true if values of the attribute are binary data rather than text.
+     */
+    public boolean isBinary (String name)
+    {
+        return BINARY_SYNTAXES.contains(getSyntax(name));
+    }
+
+    /**
+     * Return true if an object class with this name was defined.
+     */
+    public boolean hasObjectClass (String name)
+    {
+        return _objectClasses.contains(name.toLowerCase());
+    }
+
+    protected void define (String definition)
+    {
+        List<String> tokens = tokenize(definition);
+        if (tokens.size() < 3 || !tokens.get(1).equals("(")) {
+            return;
+        }
+        String kind = tokens.get(0).toLowerCase();
+        if (kind.equals("attributetype")) {
+            defineAttributeType(tokens);
+        } else if (kind.equals("objectclass")) {
+            for (String name : readNames(tokens)) {
+                _objectClasses.add(name);
+            }
+        }
+    }
+
+    protected void defineAttributeType (List<String> tokens)
+    {
+        AttributeType type = new AttributeType();
+        type.names.addAll(readNames(tokens));
+        for (int ii = 3; ii < tokens.size() - 1; ii++) {
+            String keyword = tokens.get(ii).toUpperCase();
+            String next = tokens.get(ii + 1);
+            if (keyword.equals("SUP")) {
+                type.sup = next;
+            } else if (keyword.equals("EQUALITY")) {
+                type.equality = next;
+            } else if (keyword.equals("SYNTAX")) {
+                int brace = next.indexOf('{');
+                type.syntax = (brace < 0) ? next : next.substring(0, brace);
+            } else if (keyword.equals("SINGLE-VALUE")) {
+                type.singleValue = true;
+            }
+        }
+        for (String name : type.names) {
+            _types.put(name, type);
+        }
+    }
+
+    /**
+     * Return the lowercased values of the NAME clause, which is either one quoted name or a
+     * parenthesized list of them.
+     */
+    protected static List<String> readNames (List<String> tokens)
+    {
+        List<String> names = new ArrayList<String>();
+        int idx = tokens.indexOf("NAME");
+        if (idx < 0 || idx + 1 >= tokens.size()) {
+            return names;
+        }
+        if (tokens.get(idx + 1).equals("(")) {
+            for (int ii = idx + 2; ii < tokens.size() && !tokens.get(ii).equals(")"); ii++) {
+                names.add(unquote(tokens.get(ii)).toLowerCase());
+            }
+        } else {
+            names.add(unquote(tokens.get(idx + 1)).toLowerCase());
+        }
+        return names;
+    }
+
+    /**
+     * Split a definition into parentheses, quoted strings (kept with their quotes) and words.
+     */
+    protected static List<String> tokenize (String definition)
+    {
+        List<String> tokens = new ArrayList<String>();
+        int ii = 0;
+        int length = definition.length();
+        while (ii < length) {
+            char c = definition.charAt(ii);
+            if (Character.isWhitespace(c)) {
+                ii++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                ii++;
+            } else if (c == '\'') {
+                int end = definition.indexOf('\'', ii + 1);
+                if (end < 0) {
+                    end = length - 1;
+                }
+                tokens.add(definition.substring(ii, end + 1));
+                ii = end + 1;
+            } else {
+                int start = ii;
+                while (ii < length && !Character.isWhitespace(definition.charAt(ii)) &&
+                       definition.charAt(ii) != '(' && definition.charAt(ii) != ')') {
+                    ii++;
+                }
+                tokens.add(definition.substring(start, ii));
+            }
+        }
+        return tokens;
+    }
+
+    protected static String unquote (String token)
+    {
+        if (token.length() >= 2 && token.startsWith("'") && token.endsWith("'")) {
+            return token.substring(1, token.length() - 1);
+        }
+        return token;
+    }
+
+    protected HashMap<String, AttributeType> _types = new HashMap<String, AttributeType>();
+    protected Set<String> _objectClasses = new HashSet<String>();
+
+    /** Syntaxes whose values are not text: binary, certificates, JPEG, octet string and so on. */
+    protected static final Set<String> BINARY_SYNTAXES = new HashSet<String>();
+    static {
+        BINARY_SYNTAXES.add("1.3.6.1.4.1.1466.115.121.1.5");
+        BINARY_SYNTAXES.add("1.3.6.1.4.1.1466.115.121.1.8");
+        BINARY_SYNTAXES.add("1.3.6.1.4.1.1466.115.121.1.9");
+        BINARY_SYNTAXES.add("1.3.6.1.4.1.1466.115.121.1.10");
+        BINARY_SYNTAXES.add("1.3.6.1.4.1.1466.115.121.1.28");
+        BINARY_SYNTAXES.add("1.3.6.1.4.1.1466.115.121.1.40");
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2007 Three Rings Design, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License version 2 as amended with additional clauses defined in the file
+ * LICENSE in the main source directory.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the the
+ * file LICENSE for additional details.
+ */
+
+package com.threerings.quercus.lib.ldap.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.threerings.quercus.lib.ldap.LdapWrite;
+import com.threerings.quercus.lib.ldap.LdifReader;
+
+/**
+ * The server the unit tests run against, loaded from the schema files and test.ldif in the
+ * directory named by the openldap.dir system property (test/openldap by default), with the same
+ * suffix and root DN as the slapd configuration that used to be used. It is started once per JVM
+ * the first time it is asked for.
+ *
+ * The server answers StartTLS with the certificate for localhost in server.jks, which is trusted
+ * by trust.jks, both in the directory named by the tls.dir system property (test/tls by default).
+ */
+public class TestServer
+{
+    /** The administrator of the test directory. */
+    public static final String ROOT_DN = "cn=Manager,dc=example,dc=com";
+    public static final String ROOT_PASSWORD = "secret";
+
+    /** The password of the TLS key and trust stores. */
+    public static final String TLS_PASSWORD = "secret";
+
+    /**
+     * Return the running test server, starting it if this is the first call.
+     */
+    public static synchronized LdapServer getServer ()
+    {
+        if (_server == null) {
+            try {
+                _server = start();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to start the test LDAP server", e);
+            }
+        }
+        return _server;
+    }
+
+    /**
+     * Return the port the test server listens on, as a string for ldap_connect().
+     */
+    public static String getPort ()
+    {
+        return Integer.toString(getServer().getPort());
+    }
+
+    /**
+     * Start a new server with the test schema and entries, for tests that change the entries or
+     * settings of the server and so need one of their own. The caller stops it.
+     */
+    public static LdapServer start ()
+        throws IOException
+    {
+        return start(new File(System.getProperty("openldap.dir", "test/openldap")));
+    }
+
+    /**
+     * Start a new server with the test schema and entries from the given directory.
+     */
+    public static LdapServer start (File openldapDir)
+        throws IOException
+    {
+        Schema schema = new Schema();
+        schema.loadDirectory(new File(openldapDir, "schema"));
+        Directory directory = new Directory();
+        FileInputStream in = new FileInputStream(new File(openldapDir, "test.ldif"));
+        try {
+            LdifReader reader = new LdifReader(in.getChannel());
+            LdapWrite write;
+            while ((write = reader.next()) != null) {
+                directory.add(toEntry(write));
+            }
+        } finally {
+            in.close();
+        }
+        LdapServer server = new LdapServer(directory, schema);
+        server.setRootDN(ROOT_DN, ROOT_PASSWORD);
+        server.setTLS(createTLSContext(true));
+        server.start();
+        return server;
+    }
+
+    /**
+     * Turn a record read from an LDIF file into the entry it adds.
+     */
+    protected static Entry toEntry (LdapWrite write)
+        throws IOException
+    {
+        if (write.getAttributes() == null) {
+            throw new IOException("Only entries can be loaded, not changes to " + write.getDN());
+        }
+        Entry entry = new Entry(write.getDN());
+        try {
+            NamingEnumeration<? extends Attribute> attrs = write.getAttributes().getAll();
+            while (attrs.hasMore()) {
+                Attribute attr = attrs.next();
+                for (int ii = 0; ii < attr.size(); ii++) {
+                    Object value = attr.get(ii);
+                    if (value instanceof byte[]) {
+                        entry.add(attr.getID(), (byte[]) value);
+                    } else {
+                        entry.add(attr.getID(), (String) value);
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            throw new IOException("Unable to read " + write.getDN() + ": " + e);
+        }
+        return entry;
+    }
+
+    /**
+     * Create a TLS context with the test certificate, for the server, or trusting it, for
+     * clients. Only TLS 1.2 is offered, under which resumed sessions keep the ID they were first
+     * given, as tests of session reuse expect.
+     */
+    public static SSLContext createTLSContext (boolean server)
+        throws IOException
+    {
+        File dir = new File(System.getProperty("tls.dir", "test/tls"));
+        char[] password = TLS_PASSWORD.toCharArray();
+        try {
+            KeyStore store = KeyStore.getInstance("JKS");
+            FileInputStream in = new FileInputStream(
+                new File(dir, server ? "server.jks" : "trust.jks"));
+            try {
+                store.load(in, password);
+            } finally {
+                in.close();
+            }
+            SSLContext context = SSLContext.getInstance("TLSv1.2");
+            if (server) {
+                KeyManagerFactory keys =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keys.init(store, password);
+                context.init(keys.getKeyManagers(), null, null);
+            } else {
+                TrustManagerFactory trust =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trust.init(store);
+                context.init(null, trust.getTrustManagers(), null);
+            }
+            return context;
+        } catch (GeneralSecurityException e) {
+            IOException ioe = new IOException("Unable to load the test TLS stores: " + e);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    protected static LdapServer _server;
+}